@@ -2,11 +2,12 @@ package com.sonnybell.app;
 
 import com.sonnybell.app.client.Client;
 import com.sonnybell.app.javafx.ClientSideGUI;
+import com.sonnybell.app.loadtest.LoadGenerator;
 import com.sonnybell.app.server.Server;
 
 /**
  * Main class to start the application.
- * Usage: java -jar your-app.jar &lt;server|client|GUI&gt;
+ * Usage: java -jar your-app.jar &lt;server|client|GUI|load&gt;
  */
 public final class Main {
 
@@ -17,13 +18,13 @@ public final class Main {
 
     /**
      * Main method to start the application based on the provided argument.
-     * It can start the server, client, or GUI.
+     * It can start the server, client, GUI, or the load generator.
      *
-     * @param args Command line arguments: "server", "client", or "GUI"
+     * @param args Command line arguments: "server", "client", "GUI", or "load"
      */
     public static void main(String[] args) {
         if (args.length != 1) {
-            System.out.println("Usage: java -jar your-app.jar <server|client|GUI>");
+            System.out.println("Usage: java -jar your-app.jar <server|client|GUI|load>");
             System.exit(1);
         }
 
@@ -39,8 +40,11 @@ public final class Main {
         } else if ("gui".equalsIgnoreCase(mode)) {
             System.out.println("Starting the GUI...");
             ClientSideGUI.main(args); // Replace with your JavaFX main class
+        } else if ("load".equalsIgnoreCase(mode)) {
+            System.out.println("Starting the load generator...");
+            LoadGenerator.main(args);
         } else {
-            System.out.println("Invalid argument. Use 'server', 'client', or 'GUI'.");
+            System.out.println("Invalid argument. Use 'server', 'client', 'GUI', or 'load'.");
             System.exit(1);
         }
     }
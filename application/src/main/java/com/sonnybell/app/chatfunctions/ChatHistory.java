@@ -1,53 +1,174 @@
 package com.sonnybell.app.chatfunctions;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * ChatHistory class to manage the history of messages.
  * It stores a limited number of messages and provides methods to add and
  * retrieve them.
+ * Each chat room owns its own ChatHistory; the static methods operate on the
+ * history of the default lobby room so existing callers keep working.
  * This class is thread-safe and ensures that the message history is
  * synchronized
  * across multiple threads.
- * Uses a LinkedList to store messages, allowing for efficient addition and
- * removal
- * of messages.
- * The maximum number of messages stored is defined by the MAX_HISTORY constant.
- * When the maximum is reached, the oldest message is removed to make space for
- * the new one.
+ * Uses a fixed size ring buffer to store messages, so adding a message never
+ * allocates and the oldest message is overwritten once the history is full.
  * This ensures that the message history does not grow indefinitely and consumes
  * excessive memory.
  */
 public final class ChatHistory {
 
     private static final int MAX_HISTORY = 100;
-    private static final LinkedList<String> MESSAGE_HISTORY = new LinkedList<>();
+    private static final ChatHistory LOBBY_HISTORY = new ChatHistory(MAX_HISTORY);
 
-    private ChatHistory() {
-        // Prevent instantiation
+    // Ring buffer slots, head is the index of the oldest message
+    private final ChatMessage[] ring;
+    private int head;
+    private int size;
+    // Messages ever added, the position readers keep to ask for what is new
+    private long added;
+
+    /**
+     * Creates a new history that keeps at most the given number of messages.
+     *
+     * @param capacity The maximum number of messages to keep.
+     */
+    public ChatHistory(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("History capacity must be positive.");
+        }
+        this.ring = new ChatMessage[capacity];
     }
 
     /**
-     * Adds a message to the history.
+     * Gets the history of the default lobby room.
+     *
+     * @return The lobby history.
+     */
+    public static ChatHistory lobby() {
+        return LOBBY_HISTORY;
+    }
+
+    /**
+     * Adds a message to the lobby history.
      * If the history is full, the oldest message is removed.
      *
      * @param message The message to add to the history.
      */
-    public static synchronized void addMessageToHistory(String message) {
-        if (MESSAGE_HISTORY.size() >= MAX_HISTORY) {
-            MESSAGE_HISTORY.removeFirst();
-        }
-        MESSAGE_HISTORY.add(message);
+    public static void addMessageToHistory(ChatMessage message) {
+        LOBBY_HISTORY.add(message);
     }
 
     /**
-     * Retrieves the message history.
+     * Retrieves the text of the lobby message history.
      * Returns a copy of the message history to ensure thread safety.
      *
+     * @return A list of message texts in the history.
+     */
+    public static List<String> getMessageHistory() {
+        return LOBBY_HISTORY.snapshot();
+    }
+
+    /**
+     * Adds a message to this history.
+     * If the history is full, the oldest message is overwritten.
+     *
+     * @param message The message to add to the history.
+     */
+    public synchronized void add(ChatMessage message) {
+        if (size < ring.length) {
+            ring[(head + size) % ring.length] = message;
+            size++;
+        } else {
+            ring[head] = message;
+            head = (head + 1) % ring.length;
+        }
+        added++;
+    }
+
+    /**
+     * Replaces the content of this history with messages copied from another
+     * server, including its position, so readers can go on with the
+     * positions that server gave out.
+     *
+     * @param messages The messages, oldest first.
+     * @param position The position after the last message, see textSince.
+     */
+    public synchronized void restore(List<ChatMessage> messages, long position) {
+        Arrays.fill(ring, null);
+        head = 0;
+        size = 0;
+        int skip = Math.max(0, messages.size() - ring.length);
+        for (ChatMessage message : messages.subList(skip, messages.size())) {
+            ring[size++] = message;
+        }
+        added = Math.max(position, size);
+    }
+
+    /**
+     * Returns a copy of the text of this history, oldest message first.
+     *
+     * @return A list of message texts in the history.
+     */
+    public synchronized List<String> snapshot() {
+        List<String> copy = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            copy.add(ring[(head + i) % ring.length].getText());
+        }
+        return copy;
+    }
+
+    /**
+     * Copies the text of the messages added after a position, oldest first.
+     * A reader keeps the returned position and passes it next time to get only
+     * the new messages. When messages after the position were already
+     * overwritten, or the position is not one this history gave out, every
+     * stored message is copied instead, so the reader can tell it must start
+     * over when fewer or more texts than the positions moved were copied.
+     *
+     * @param position The position returned by the last call, or 0.
+     * @param out      Receives the texts.
+     * @return The position after the last message added.
+     */
+    public synchronized long textSince(long position, List<String> out) {
+        long first = added - size;
+        long from = position < first || position > added ? first : position;
+        for (long i = from; i < added; i++) {
+            out.add(ring[(int) ((head + (i - first)) % ring.length)].getText());
+        }
+        return added;
+    }
+
+    /**
+     * Returns a copy of the messages in this history, oldest message first.
+     *
      * @return A list of messages in the history.
      */
-    public static synchronized List<String> getMessageHistory() {
-        return new LinkedList<>(MESSAGE_HISTORY);
+    public synchronized List<ChatMessage> messages() {
+        List<ChatMessage> copy = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            copy.add(ring[(head + i) % ring.length]);
+        }
+        return copy;
+    }
+
+    /**
+     * Gets the position after the last message added, see textSince.
+     *
+     * @return The number of messages ever added.
+     */
+    public synchronized long position() {
+        return added;
+    }
+
+    /**
+     * Gets the number of messages currently stored.
+     *
+     * @return The number of messages in the history.
+     */
+    public synchronized int size() {
+        return size;
     }
 }
@@ -0,0 +1,178 @@
+package com.sonnybell.app.chatfunctions;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ChatMessage class representing a single message flowing through the server.
+ * Each message carries its kind, its sender, the time it was created and a
+ * server wide sequence number, next to the text that is sent to clients.
+ * It also carries the System.nanoTime() its line was read at, which is used to
+ * measure how long the message takes to reach its recipients.
+ * Messages are immutable and can be shared between threads.
+ */
+public final class ChatMessage {
+
+    // Server wide sequence, every message gets the next number
+    private static final AtomicLong SEQUENCE = new AtomicLong();
+
+    private final MessageKind kind;
+    // Null for messages that do not come from a user
+    private final String sender;
+    private final String text;
+    private final long timestamp;
+    private final long sequence;
+    // System.nanoTime() the message entered the server
+    private final long receivedNanos;
+
+    private ChatMessage(MessageKind kind, String sender, String text, long timestamp, long sequence,
+            long receivedNanos) {
+        this.kind = kind;
+        this.sender = sender;
+        this.text = text;
+        this.timestamp = timestamp;
+        this.sequence = sequence;
+        this.receivedNanos = receivedNanos;
+    }
+
+    private ChatMessage(MessageKind kind, String sender, String text, long receivedNanos) {
+        this(kind, sender, text, System.currentTimeMillis(), SEQUENCE.incrementAndGet(), receivedNanos);
+    }
+
+    private ChatMessage(MessageKind kind, String sender, String text) {
+        this(kind, sender, text, System.nanoTime());
+    }
+
+    /**
+     * Creates a message sent by a user.
+     *
+     * @param kind   The kind of the message.
+     * @param sender The username of the sender.
+     * @param text   The text sent to clients.
+     * @return The new message.
+     */
+    public static ChatMessage of(MessageKind kind, String sender, String text) {
+        return new ChatMessage(kind, sender, text);
+    }
+
+    /**
+     * Creates a message that does not come from a user.
+     *
+     * @param kind The kind of the message.
+     * @param text The text sent to clients.
+     * @return The new message.
+     */
+    public static ChatMessage of(MessageKind kind, String text) {
+        return new ChatMessage(kind, null, text);
+    }
+
+    /**
+     * Creates a chat line written by a user.
+     *
+     * @param sender The username of the sender.
+     * @param text   The text sent to clients, including the "user: " prefix.
+     * @return The new message.
+     */
+    public static ChatMessage chat(String sender, String text) {
+        return new ChatMessage(MessageKind.CHAT, sender, text);
+    }
+
+    /**
+     * Creates a chat line written by a user that was read at a given time.
+     *
+     * @param sender        The username of the sender.
+     * @param text          The text sent to clients, including the "user: " prefix.
+     * @param receivedNanos The System.nanoTime() the line was read at.
+     * @return The new message.
+     */
+    public static ChatMessage chat(String sender, String text, long receivedNanos) {
+        return new ChatMessage(MessageKind.CHAT, sender, text, receivedNanos);
+    }
+
+    /**
+     * Creates a game announcement.
+     *
+     * @param text The text sent to clients.
+     * @return The new message.
+     */
+    public static ChatMessage game(String text) {
+        return new ChatMessage(MessageKind.GAME, null, text);
+    }
+
+    /**
+     * Creates a copy of a message recorded by another server, keeping its time
+     * and sequence number. Messages created here afterwards get higher
+     * sequence numbers than the copy.
+     *
+     * @param kind      The kind of the message.
+     * @param sender    The username of the sender, or null for none.
+     * @param text      The text sent to clients.
+     * @param timestamp The time the message was created.
+     * @param sequence  The sequence number of the message.
+     * @return The new message.
+     */
+    public static ChatMessage replica(MessageKind kind, String sender, String text, long timestamp, long sequence) {
+        SEQUENCE.accumulateAndGet(sequence, Math::max);
+        return new ChatMessage(kind, sender, text, timestamp, sequence, System.nanoTime());
+    }
+
+    /**
+     * Gets the kind of the message.
+     *
+     * @return The message kind.
+     */
+    public MessageKind getKind() {
+        return kind;
+    }
+
+    /**
+     * Gets the username of the sender.
+     *
+     * @return The sender, or null if the message does not come from a user.
+     */
+    public String getSender() {
+        return sender;
+    }
+
+    /**
+     * Gets the text sent to clients.
+     *
+     * @return The message text.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Gets the time the message was created.
+     *
+     * @return The creation time in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Gets the sequence number of the message.
+     *
+     * @return The server wide sequence number.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Gets the time the message entered the server.
+     * For chat lines this is when the line was read, for other messages it is
+     * when the message was created.
+     *
+     * @return The System.nanoTime() of arrival.
+     */
+    public long getReceivedNanos() {
+        return receivedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
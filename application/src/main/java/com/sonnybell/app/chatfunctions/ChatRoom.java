@@ -0,0 +1,152 @@
+package com.sonnybell.app.chatfunctions;
+
+import com.sonnybell.app.client.ClientHandler;
+import com.sonnybell.app.client.Delivery;
+import com.sonnybell.app.server.Cluster;
+import com.sonnybell.app.server.Metrics;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ChatRoom class representing a named chat channel.
+ * Each room has its own subscriber set, its own history ring and its own log
+ * partition, so a broadcast only touches the members of that room.
+ * Rooms are created and removed by the RoomRegistry.
+ */
+public final class ChatRoom {
+    private static final Metrics.Summary BROADCAST_ROOM = Metrics.summary("chat_broadcast_duration_seconds",
+            "Time spent sending a broadcast to all of its recipients.", "scope", "room");
+
+    private final String name;
+    private final ChatHistory history;
+    // Null for the lobby, which logs to the main MessageLog.log
+    private final String logPartition;
+    // Socket clients subscribed to this room
+    private final Set<ClientHandler> members = ConcurrentHashMap.newKeySet();
+    // Web users currently reading this room, they poll the history
+    private final Set<String> webMembers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Constructor to initialize a room.
+     *
+     * @param name         The name of the room.
+     * @param history      The history ring used by this room.
+     * @param logPartition The log partition name, or null for the main log.
+     */
+    ChatRoom(String name, ChatHistory history, String logPartition) {
+        this.name = name;
+        this.history = history;
+        this.logPartition = logPartition;
+    }
+
+    /**
+     * Gets the name of the room.
+     *
+     * @return The room name.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Gets the history ring of the room.
+     *
+     * @return The room history.
+     */
+    public ChatHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Gets the log partition of the room.
+     *
+     * @return The log partition name, or null for the main log.
+     */
+    public String getLogPartition() {
+        return logPartition;
+    }
+
+    /**
+     * Gets a read-only view of the socket clients in this room.
+     *
+     * @return The socket members of the room.
+     */
+    public Set<ClientHandler> getMembers() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    /**
+     * Gets the number of socket and web users in this room.
+     *
+     * @return The member count.
+     */
+    public int getMemberCount() {
+        return members.size() + webMembers.size();
+    }
+
+    /**
+     * Records the message in this room's history and log partition and sends it
+     * to every socket member except the sender, and to the same room on the
+     * other nodes of the cluster.
+     *
+     * @param message The message to broadcast.
+     * @param sender  The client that sent the message, or null for none.
+     */
+    public void broadcast(ChatMessage message, ClientHandler sender) {
+        deliver(message, sender);
+        Cluster.relay(message, name);
+    }
+
+    /**
+     * Records a message broadcast to this room on another node of the cluster
+     * and sends it to every socket member, without relaying it again.
+     *
+     * @param message The message to deliver.
+     */
+    public void deliverRelayed(ChatMessage message) {
+        deliver(message, null);
+    }
+
+    private void deliver(ChatMessage message, ClientHandler sender) {
+        long start = System.nanoTime();
+        ClientHandler.addToHistory(message, this);
+        long appended = System.nanoTime();
+        ClientHandler.logMessage(message, logPartition);
+        long logged = System.nanoTime();
+
+        // The fan-out and end to end latency are recorded once the last member has been written to
+        Delivery delivery = new Delivery(message.getText(), message.getReceivedNanos());
+        for (ClientHandler member : members) {
+            if (member != sender) {
+                member.send(delivery);
+            }
+        }
+        delivery.release();
+        long queued = System.nanoTime();
+
+        MessageLatency.HISTORY_APPEND.record(appended - start);
+        MessageLatency.LOG_ENQUEUE.record(logged - appended);
+        BROADCAST_ROOM.record(queued - logged);
+    }
+
+    boolean isEmpty() {
+        return members.isEmpty() && webMembers.isEmpty();
+    }
+
+    void addMember(ClientHandler handler) {
+        members.add(handler);
+    }
+
+    void removeMember(ClientHandler handler) {
+        members.remove(handler);
+    }
+
+    void addWebMember(String username) {
+        webMembers.add(username);
+    }
+
+    void removeWebMember(String username) {
+        webMembers.remove(username);
+    }
+}
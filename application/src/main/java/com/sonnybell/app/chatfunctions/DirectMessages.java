@@ -0,0 +1,129 @@
+package com.sonnybell.app.chatfunctions;
+
+import com.sonnybell.app.client.ClientHandler;
+import com.sonnybell.app.web.WebChat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * DirectMessages class to route private messages between two users.
+ * Socket recipients are found through the username index in ClientHandler,
+ * so delivery never scans the client list.
+ * Each pair of users has its own small mailbox, private messages are never
+ * added to a room history or the shared message log.
+ * Web users read their mailboxes by polling.
+ */
+public final class DirectMessages {
+
+    private static final int MAILBOX_SIZE = 50;
+
+    // Mailbox for each pair of users, keyed by the two sorted usernames
+    private static final Map<String, ChatHistory> MAILBOXES = new ConcurrentHashMap<>();
+    // Users each user has a mailbox with, used to list and clean up mailboxes
+    private static final Map<String, Set<String>> PARTNERS = new ConcurrentHashMap<>();
+    // Bumped whenever a mailbox of the user changes, so polling clients can skip unchanged ones
+    private static final Map<String, AtomicLong> VERSIONS = new ConcurrentHashMap<>();
+
+    private DirectMessages() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Sends a private message.
+     * The message is stored in the mailbox of the pair and pushed straight to the
+     * recipient if it is a socket client.
+     *
+     * @param from The username of the sender.
+     * @param to   The username of the recipient.
+     * @param text The text of the message.
+     * @return true if the recipient is online and the message was stored, false
+     *         otherwise.
+     */
+    public static boolean send(String from, String to, String text) {
+        ClientHandler target = ClientHandler.findByUsername(to);
+        if (target == null && !WebChat.isWebUser(to)) {
+            return false;
+        }
+
+        mailbox(from, to).add(ChatMessage.of(MessageKind.DIRECT, from, from + " -> " + to + ": " + text));
+        changed(from);
+        changed(to);
+        if (target != null) {
+            target.sendMessage("DM from " + from + ": " + text);
+        }
+        return true;
+    }
+
+    /**
+     * Gets all conversations of a user.
+     *
+     * @param username The user to get the conversations for.
+     * @return A map from partner username to the messages exchanged with them.
+     */
+    public static Map<String, List<String>> conversationsOf(String username) {
+        Map<String, List<String>> conversations = new LinkedHashMap<>();
+        Set<String> partners = PARTNERS.get(username);
+        if (partners == null) {
+            return conversations;
+        }
+        for (String partner : partners) {
+            ChatHistory mailbox = MAILBOXES.get(pairKey(username, partner));
+            if (mailbox != null) {
+                conversations.put(partner, mailbox.snapshot());
+            }
+        }
+        return conversations;
+    }
+
+    /**
+     * Gets the version of the mailboxes of a user, which changes whenever one
+     * of them does.
+     *
+     * @param username The user.
+     * @return The version, 0 while the user has no mailbox.
+     */
+    public static long versionOf(String username) {
+        AtomicLong version = VERSIONS.get(username);
+        return version == null ? 0 : version.get();
+    }
+
+    /**
+     * Drops every mailbox of a user.
+     * Called when the user goes offline.
+     *
+     * @param username The user that went offline.
+     */
+    public static void forget(String username) {
+        VERSIONS.remove(username);
+        Set<String> partners = PARTNERS.remove(username);
+        if (partners == null) {
+            return;
+        }
+        for (String partner : partners) {
+            MAILBOXES.remove(pairKey(username, partner));
+            changed(partner);
+            Set<String> theirs = PARTNERS.get(partner);
+            if (theirs != null) {
+                theirs.remove(username);
+            }
+        }
+    }
+
+    private static void changed(String username) {
+        VERSIONS.computeIfAbsent(username, k -> new AtomicLong()).incrementAndGet();
+    }
+
+    private static ChatHistory mailbox(String from, String to) {
+        PARTNERS.computeIfAbsent(from, k -> ConcurrentHashMap.newKeySet()).add(to);
+        PARTNERS.computeIfAbsent(to, k -> ConcurrentHashMap.newKeySet()).add(from);
+        return MAILBOXES.computeIfAbsent(pairKey(from, to), k -> new ChatHistory(MAILBOX_SIZE));
+    }
+
+    private static String pairKey(String a, String b) {
+        return a.compareTo(b) <= 0 ? a + '\n' + b : b + '\n' + a;
+    }
+}
@@ -0,0 +1,296 @@
+package com.sonnybell.app.chatfunctions;
+
+import com.sonnybell.app.server.Metrics;
+import com.sonnybell.app.server.ServerConfig;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * LogSegments class keeping track of the closed segments of one message log.
+ * When the MessageLogWriter rolls a log, the file is renamed to a numbered
+ * segment next to it, MessageLog.000042.log, and compressed to
+ * MessageLog.000042.log.gz on a background thread.
+ * A manifest, MessageLog.manifest, lists every segment with the time of its
+ * first and last line, so the segments covering a time range are found
+ * without opening any of them. Only the newest segments are kept.
+ * The manifest is rewritten through a temporary file, so a crash never
+ * leaves it half written, and segments not yet compressed at a crash are
+ * compressed when the log is next used.
+ */
+public final class LogSegments {
+
+    // Closed segments kept of each log, 0 keeps all of them
+    private static final int RETAIN_SEGMENTS = ServerConfig.getInt("chat.log.retainSegments", 30);
+    private static final String LOG_SUFFIX = ".log";
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final String MANIFEST_SUFFIX = ".manifest";
+
+    // Segment bookkeeping of every log, by the absolute path of its active file
+    private static final Map<Path, LogSegments> BY_LOG = new ConcurrentHashMap<>();
+    // Compresses and deletes segments, one at a time in the order they were closed
+    private static final ExecutorService COMPRESSOR = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "message-log-compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final Metrics.Counter ROTATIONS = Metrics.counter("chat_log_rotations_total",
+            "Message log files closed and turned into segments.");
+    private static final Metrics.Counter COMPRESSED_BYTES = Metrics.counter("chat_log_compressed_bytes_total",
+            "Bytes of closed message log segments before compression.");
+
+    private final Path active;
+    private final Path manifest;
+    // File name of the active log without .log, the start of every segment name
+    private final String stem;
+    // Closed segments, oldest first, guarded by this
+    private final List<Segment> segments = new ArrayList<>();
+    private long nextNumber = 1;
+
+    private LogSegments(Path active) {
+        this.active = active;
+        String name = active.getFileName().toString();
+        this.stem = name.endsWith(LOG_SUFFIX) ? name.substring(0, name.length() - LOG_SUFFIX.length()) : name;
+        this.manifest = active.resolveSibling(stem + MANIFEST_SUFFIX);
+        load();
+    }
+
+    /**
+     * Gets the segments of a log, reading its manifest on first use.
+     *
+     * @param activePath The path of the file the log is appended to.
+     * @return The segments of the log.
+     */
+    public static LogSegments of(String activePath) {
+        return BY_LOG.computeIfAbsent(Paths.get(activePath).toAbsolutePath().normalize(), LogSegments::new);
+    }
+
+    /**
+     * Opens a segment or the active log for reading, decompressing it if needed.
+     *
+     * @param file The file, as returned by find.
+     * @return A reader of the lines of the file.
+     * @throws IOException If the file cannot be opened, for example because
+     *                     retention deleted it after it was found.
+     */
+    public static BufferedReader open(Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        if (file.getFileName().toString().endsWith(GZIP_SUFFIX)) {
+            in = new GZIPInputStream(in);
+        }
+        return new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Finds the files holding lines logged in a time range, oldest first.
+     * The active log is always last, if it exists, since its lines are the
+     * newest.
+     *
+     * @param fromMillis The start of the range, inclusive.
+     * @param toMillis   The end of the range, inclusive.
+     * @return The files to read.
+     */
+    public synchronized List<Path> find(long fromMillis, long toMillis) {
+        List<Path> files = new ArrayList<>();
+        for (Segment segment : segments) {
+            if (segment.lastMillis >= fromMillis && segment.firstMillis <= toMillis) {
+                files.add(active.resolveSibling(segment.file));
+            }
+        }
+        if (Files.exists(active)) {
+            files.add(active);
+        }
+        return files;
+    }
+
+    /**
+     * Gets the number of closed segments.
+     *
+     * @return The number of segments.
+     */
+    public synchronized int size() {
+        return segments.size();
+    }
+
+    /**
+     * Turns the active log into a new segment and compresses it in the background.
+     * Must be called by the writer of the log after closing the active file.
+     *
+     * @param firstMillis The time of the first line of the file.
+     * @param lastMillis  The time of the last line of the file.
+     * @param lines       The number of lines in the file.
+     * @throws IOException If the file cannot be renamed.
+     */
+    void roll(long firstMillis, long lastMillis, long lines) throws IOException {
+        Segment segment;
+        synchronized (this) {
+            String file = String.format("%s.%06d%s", stem, nextNumber, LOG_SUFFIX);
+            Files.move(active, active.resolveSibling(file), StandardCopyOption.ATOMIC_MOVE);
+            segment = new Segment(file, nextNumber, firstMillis, lastMillis, lines);
+            nextNumber++;
+            segments.add(segment);
+            save();
+        }
+        ROTATIONS.inc();
+        COMPRESSOR.execute(() -> compress(segment));
+    }
+
+    /**
+     * Compresses a segment and drops the oldest segments over the retention
+     * count. Runs on the compressor thread.
+     *
+     * @param segment The segment to compress.
+     */
+    private void compress(Segment segment) {
+        Path plain = active.resolveSibling(segment.file);
+        Path compressed = active.resolveSibling(segment.file + GZIP_SUFFIX);
+        Path temp = active.resolveSibling(segment.file + GZIP_SUFFIX + ".tmp");
+        try {
+            long size = Files.size(plain);
+            try (InputStream in = Files.newInputStream(plain);
+                    OutputStream out = new GZIPOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                in.transferTo(out);
+            }
+            Files.move(temp, compressed, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            synchronized (this) {
+                segment.file = segment.file + GZIP_SUFFIX;
+                save();
+            }
+            Files.delete(plain);
+            COMPRESSED_BYTES.add(size);
+        } catch (IOException e) {
+            System.err.println("Failed to compress log segment " + plain + ": " + e.getMessage());
+        }
+        retain();
+    }
+
+    private void retain() {
+        List<Segment> expired = new ArrayList<>();
+        synchronized (this) {
+            while (RETAIN_SEGMENTS > 0 && segments.size() > RETAIN_SEGMENTS) {
+                expired.add(segments.remove(0));
+            }
+            if (expired.isEmpty()) {
+                return;
+            }
+            save();
+        }
+        for (Segment segment : expired) {
+            try {
+                Files.deleteIfExists(active.resolveSibling(segment.file));
+            } catch (IOException e) {
+                System.err.println("Failed to delete log segment " + segment.file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads the manifest and compresses the segments a crash left uncompressed.
+     */
+    private void load() {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(manifest, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            // No segment was closed yet
+            return;
+        } catch (IOException e) {
+            System.err.println("Failed to read log manifest " + manifest + ": " + e.getMessage());
+            return;
+        }
+        for (String line : lines) {
+            Segment segment = Segment.parse(line);
+            if (segment == null) {
+                continue;
+            }
+            boolean compressed = Files.exists(active.resolveSibling(segment.file + GZIP_SUFFIX));
+            if (!segment.file.endsWith(GZIP_SUFFIX) && compressed) {
+                // The crash came after compressing but before the manifest was updated
+                segment.file = segment.file + GZIP_SUFFIX;
+            }
+            segments.add(segment);
+            nextNumber = Math.max(nextNumber, segment.number + 1);
+        }
+        for (Segment segment : segments) {
+            if (!segment.file.endsWith(GZIP_SUFFIX)) {
+                COMPRESSOR.execute(() -> compress(segment));
+            }
+        }
+    }
+
+    /**
+     * Writes the manifest. Must be called while holding the lock.
+     */
+    private void save() {
+        Path temp = manifest.resolveSibling(manifest.getFileName() + ".tmp");
+        StringBuilder out = new StringBuilder();
+        for (Segment segment : segments) {
+            segment.format(out);
+        }
+        try {
+            Files.writeString(temp, out, StandardCharsets.UTF_8);
+            Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to write log manifest " + manifest + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Segment class describing one closed segment, one line of the manifest.
+     */
+    private static final class Segment {
+        // Fields of a manifest line, separated by tabs
+        private static final int FILE = 0;
+        private static final int NUMBER = 1;
+        private static final int FIRST_MILLIS = 2;
+        private static final int LAST_MILLIS = 3;
+        private static final int LINES = 4;
+        private static final int FIELDS = 5;
+
+        // File name, ends in .gz once compressed
+        private String file;
+        private final long number;
+        private final long firstMillis;
+        private final long lastMillis;
+        private final long lines;
+
+        Segment(String file, long number, long firstMillis, long lastMillis, long lines) {
+            this.file = file;
+            this.number = number;
+            this.firstMillis = firstMillis;
+            this.lastMillis = lastMillis;
+            this.lines = lines;
+        }
+
+        static Segment parse(String line) {
+            String[] fields = line.split("\t");
+            if (fields.length != FIELDS) {
+                return null;
+            }
+            try {
+                return new Segment(fields[FILE], Long.parseLong(fields[NUMBER]), Long.parseLong(fields[FIRST_MILLIS]),
+                        Long.parseLong(fields[LAST_MILLIS]), Long.parseLong(fields[LINES]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        void format(StringBuilder out) {
+            out.append(file).append('\t').append(number).append('\t').append(firstMillis).append('\t')
+                    .append(lastMillis).append('\t').append(lines).append('\n');
+        }
+    }
+}
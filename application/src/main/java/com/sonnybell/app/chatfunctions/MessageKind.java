@@ -0,0 +1,47 @@
+package com.sonnybell.app.chatfunctions;
+
+/**
+ * MessageKind enum classifying every chat message.
+ * The kind is set once by the producer of a message, so routing and logging
+ * read a field instead of inspecting the text.
+ */
+public enum MessageKind {
+    /** A chat line written by a user. */
+    CHAT("UserChats"),
+    /** A user joined the chat or a room. */
+    JOIN("HelloUser"),
+    /** A user left the chat or a room. */
+    LEAVE("GoodbyeUser"),
+    /** An announcement from a game. */
+    GAME("GameMessages"),
+    /** An admin action such as removing a user. */
+    MODERATION("Moderation"),
+    /** Any other server announcement. */
+    SERVER("Server"),
+    /** A private message between two users. */
+    DIRECT("DirectMessages");
+
+    private final String logTag;
+
+    MessageKind(String logTag) {
+        this.logTag = logTag;
+    }
+
+    /**
+     * Gets the tag used for this kind of message in the message log.
+     *
+     * @return The log tag.
+     */
+    public String getLogTag() {
+        return logTag;
+    }
+
+    /**
+     * Checks whether this kind announces a user joining or leaving.
+     *
+     * @return true for join and leave messages.
+     */
+    public boolean isPresence() {
+        return this == JOIN || this == LEAVE;
+    }
+}
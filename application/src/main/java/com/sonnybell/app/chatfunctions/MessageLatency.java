@@ -0,0 +1,52 @@
+package com.sonnybell.app.chatfunctions;
+
+import com.sonnybell.app.server.LatencyHistogram;
+import com.sonnybell.app.server.Metrics;
+
+/**
+ * MessageLatency class holding the latency histograms of the message path.
+ * A message is stamped when its line is read from a socket or web request, and
+ * the time it spends in each stage until the last recipient's socket write
+ * finishes is recorded here:
+ * classify covers rate limiting, commands and answer checks, then the
+ * broadcast appends to the history, queues the log line and fans the message
+ * out to the members of the room. The end to end histogram covers the whole
+ * path from the stamp to the last write.
+ * The histograms are published by /api/metrics as
+ * chat_message_latency_seconds with the 0.5, 0.99 and 0.999 quantiles.
+ */
+public final class MessageLatency {
+
+    private static final String NAME = "chat_message_latency_seconds";
+    private static final String HELP = "Time a message spends in each stage, from reading it to the last delivery.";
+
+    /**
+     * Time from reading a line until it is known to be a chat message.
+     */
+    public static final LatencyHistogram CLASSIFY = Metrics.histogram(NAME, HELP, "stage", "classify");
+
+    /**
+     * Time spent adding a message to the history of its room.
+     */
+    public static final LatencyHistogram HISTORY_APPEND = Metrics.histogram(NAME, HELP, "stage", "history_append");
+
+    /**
+     * Time spent handing the log line of a message to the log writer.
+     */
+    public static final LatencyHistogram LOG_ENQUEUE = Metrics.histogram(NAME, HELP, "stage", "log_enqueue");
+
+    /**
+     * Time from queueing a message for its recipients until the last
+     * recipient's write finished.
+     */
+    public static final LatencyHistogram FAN_OUT = Metrics.histogram(NAME, HELP, "stage", "fan_out");
+
+    /**
+     * Time from reading a message until the last recipient's write finished.
+     */
+    public static final LatencyHistogram END_TO_END = Metrics.histogram(NAME, HELP, "stage", "end_to_end");
+
+    private MessageLatency() {
+        // Prevent instantiation
+    }
+}
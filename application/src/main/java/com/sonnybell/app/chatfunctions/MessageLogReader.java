@@ -0,0 +1,330 @@
+package com.sonnybell.app.chatfunctions;
+
+import com.sonnybell.app.client.ClientHandler;
+import java.io.*;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * MessageLogReader class reading the lines of the message logs back, oldest
+ * first.
+ * Every log is read through its LogSegments, so only the segments covering the
+ * requested time range are opened, one at a time. When several rooms are
+ * read, their logs are merged by time holding only the next line of each, so
+ * reading a whole archive takes the same memory as reading a single line.
+ * Log lines only keep the time to the second, so a range starting or ending
+ * within a second includes that whole second.
+ */
+public final class MessageLogReader implements Closeable {
+
+    // Logs of rooms other than the lobby, MessageLog-room.log and MessageLog-room.manifest
+    private static final Pattern ROOM_LOG = Pattern.compile("MessageLog-([\\w-]+)\\.(log|manifest)");
+    // Format of Date.toString(), used for the time of every log line
+    private static final DateTimeFormatter LOG_TIME = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy",
+            Locale.US);
+    private static final long MILLIS_PER_SECOND = 1000;
+    // Separators after the time and after the tag of a log line
+    private static final String TIME_END = "] [";
+    private static final String TAG_END = "] ";
+    private static final String CHAT_TAG = MessageKind.CHAT.getLogTag();
+    private static final String DIRECT_TAG = MessageKind.DIRECT.getLogTag();
+
+    // Logs with a line ready, ordered by the time of that line
+    private final PriorityQueue<Source> ready = new PriorityQueue<>(Comparator
+            .comparingLong((Source source) -> source.next.timestamp).thenComparing(source -> source.room));
+    private final List<Source> sources = new ArrayList<>();
+
+    private MessageLogReader(List<String> rooms, String user, long fromMillis, long toMillis) throws IOException {
+        try {
+            for (String room : rooms) {
+                Source source = new Source(room, user, fromMillis, toMillis);
+                sources.add(source);
+                if (source.advance()) {
+                    ready.add(source);
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the logs of some rooms for reading.
+     *
+     * @param room       The room to read, or null for every room.
+     * @param user       Only lines sent by this user, or null for every line.
+     * @param fromMillis Only lines logged at or after this time.
+     * @param toMillis   Only lines logged at or before this time.
+     * @return The reader, to be closed by the caller.
+     * @throws IOException If a log cannot be opened.
+     */
+    public static MessageLogReader open(String room, String user, long fromMillis, long toMillis)
+            throws IOException {
+        List<String> rooms = new ArrayList<>();
+        if (room != null) {
+            rooms.add(room);
+        } else {
+            rooms.add(RoomRegistry.LOBBY);
+            rooms.addAll(loggedRooms());
+        }
+        return new MessageLogReader(rooms, user, fromMillis, toMillis);
+    }
+
+    /**
+     * Reads the next line of the logs.
+     *
+     * @return The line, or null once every log has been read.
+     * @throws IOException If a log cannot be read.
+     */
+    public Record next() throws IOException {
+        Source source = ready.poll();
+        if (source == null) {
+            return null;
+        }
+        Record record = source.next;
+        if (source.advance()) {
+            ready.add(source);
+        }
+        return record;
+    }
+
+    /**
+     * Closes every log still open.
+     */
+    @Override
+    public void close() {
+        for (Source source : sources) {
+            source.closeFile();
+        }
+        ready.clear();
+    }
+
+    /**
+     * Finds the rooms that have a log, or had one that was rolled into segments.
+     *
+     * @return The room names, sorted.
+     * @throws IOException If the log directory cannot be listed.
+     */
+    private static SortedSet<String> loggedRooms() throws IOException {
+        SortedSet<String> rooms = new TreeSet<>();
+        String mainLog = ClientHandler.logFilePath(null);
+        if (mainLog == null) {
+            return rooms;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(mainLog).getParent(), "MessageLog-*")) {
+            for (Path file : files) {
+                Matcher matcher = ROOM_LOG.matcher(file.getFileName().toString());
+                if (matcher.matches() && !RoomRegistry.LOBBY.equals(matcher.group(1))) {
+                    rooms.add(matcher.group(1));
+                }
+            }
+        }
+        return rooms;
+    }
+
+    /**
+     * Record class holding one line of a message log.
+     */
+    public static final class Record {
+        private final long timestamp;
+        private final String room;
+        private final String tag;
+        private final String user;
+        private final String text;
+
+        /**
+         * Constructor to create a record of a log line.
+         *
+         * @param timestamp The time the line was logged, in epoch milliseconds.
+         * @param room      The room whose log holds the line.
+         * @param tag       The log tag, or null if the line has none.
+         * @param user      The sender, or null if the line has none.
+         * @param text      The text after the tag, or the whole line.
+         */
+        Record(long timestamp, String room, String tag, String user, String text) {
+            this.timestamp = timestamp;
+            this.room = room;
+            this.tag = tag;
+            this.user = user;
+            this.text = text;
+        }
+
+        /**
+         * Gets the time the line was logged, to the second.
+         *
+         * @return The time in epoch milliseconds.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Gets the room whose log holds the line.
+         *
+         * @return The room name.
+         */
+        public String getRoom() {
+            return room;
+        }
+
+        /**
+         * Gets the log tag of the kind of message, such as UserChats.
+         *
+         * @return The tag, or null if the line has none.
+         */
+        public String getTag() {
+            return tag;
+        }
+
+        /**
+         * Gets the user that sent the message, for chat lines and direct messages.
+         *
+         * @return The username, or null for other lines.
+         */
+        public String getUser() {
+            return user;
+        }
+
+        /**
+         * Gets the text of the message.
+         *
+         * @return The text.
+         */
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * Source class reading the files of one room log in order.
+     */
+    private static final class Source {
+        private final String room;
+        private final String user;
+        private final long fromMillis;
+        private final long toMillis;
+        // Segments and active log still to read
+        private final List<Path> files;
+        private int fileIndex;
+        private BufferedReader reader;
+        private Record next;
+        // Last parsed time, lines of the same second share it
+        private String lastTimeText;
+        private long lastTime;
+
+        Source(String room, String user, long fromMillis, long toMillis) {
+            this.room = room;
+            this.user = user;
+            this.fromMillis = fromMillis;
+            this.toMillis = toMillis;
+            String path = ClientHandler.logFilePath(RoomRegistry.LOBBY.equals(room) ? null : room);
+            this.files = path == null ? List.of()
+                    : LogSegments.of(path).find(secondOf(fromMillis), toMillis);
+        }
+
+        private static long secondOf(long millis) {
+            return millis == Long.MIN_VALUE ? millis : millis - Math.floorMod(millis, MILLIS_PER_SECOND);
+        }
+
+        /**
+         * Reads up to the next line that passes the filters.
+         *
+         * @return true if a line was found, false at the end of the log.
+         */
+        boolean advance() throws IOException {
+            while (true) {
+                String line = reader == null ? null : reader.readLine();
+                if (line == null) {
+                    closeFile();
+                    if (fileIndex == files.size()) {
+                        next = null;
+                        return false;
+                    }
+                    reader = openFile(files.get(fileIndex++));
+                    continue;
+                }
+                Record record = parse(line);
+                if (record.timestamp >= secondOf(fromMillis) && record.timestamp <= toMillis
+                        && (user == null || user.equals(record.user))) {
+                    next = record;
+                    return true;
+                }
+            }
+        }
+
+        private BufferedReader openFile(Path file) throws IOException {
+            try {
+                return LogSegments.open(file);
+            } catch (NoSuchFileException e) {
+                // The segment was compressed since it was found
+                Path compressed = file.resolveSibling(file.getFileName() + ".gz");
+                if (Files.exists(compressed)) {
+                    return LogSegments.open(compressed);
+                }
+                // Or dropped by retention, or the active log was not created yet
+                return new BufferedReader(new StringReader(""));
+            }
+        }
+
+        void closeFile() {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to close message log of #" + room + ": " + e.getMessage());
+                }
+                reader = null;
+            }
+        }
+
+        /**
+         * Splits a log line, [time] [tag] text. A line that does not have this
+         * form is kept whole as text, with the time of the line before it.
+         */
+        private Record parse(String line) {
+            int timeEnd = line.startsWith("[") ? line.indexOf(TIME_END) : -1;
+            int tagEnd = timeEnd < 0 ? -1 : line.indexOf(TAG_END, timeEnd + TAG_END.length());
+            if (tagEnd < 0) {
+                return new Record(lastTime, room, null, null, line);
+            }
+            String timeText = line.substring(1, timeEnd);
+            if (!timeText.equals(lastTimeText)) {
+                try {
+                    lastTime = ZonedDateTime.parse(timeText, LOG_TIME).toInstant().toEpochMilli();
+                    lastTimeText = timeText;
+                } catch (DateTimeParseException e) {
+                    return new Record(lastTime, room, null, null, line);
+                }
+            }
+            String tag = line.substring(timeEnd + TIME_END.length(), tagEnd);
+            String text = line.substring(tagEnd + TAG_END.length());
+            return new Record(lastTime, room, tag, senderOf(tag, text), text);
+        }
+
+        private static String senderOf(String tag, String text) {
+            int end = -1;
+            if (CHAT_TAG.equals(tag)) {
+                end = text.indexOf(": ");
+            } else if (DIRECT_TAG.equals(tag)) {
+                end = text.indexOf(" -> ");
+            }
+            return end > 0 ? text.substring(0, end) : null;
+        }
+    }
+}
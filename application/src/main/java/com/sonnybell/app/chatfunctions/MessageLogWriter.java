@@ -0,0 +1,291 @@
+package com.sonnybell.app.chatfunctions;
+
+import com.sonnybell.app.server.Metrics;
+import com.sonnybell.app.server.ServerConfig;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * MessageLogWriter class writing message log lines on a background thread.
+ * Broadcasting a message only puts its log line in a queue, so a slow disk
+ * never holds up the chat.
+ * The writer takes every queued line at once and opens each log file only
+ * once per batch.
+ * When the queue is full, the sender waits for room by default, so no line is
+ * ever lost. With chat.log.whenFull set to drop, new lines are dropped and
+ * counted instead of blocking the sender. Lines still queued are written when
+ * the server shuts down.
+ * Log files stay open between batches. A file that has grown over the size
+ * limit, or has been written to for longer than the rotation interval, is
+ * closed and handed to its LogSegments before the next lines are written,
+ * all on the writer thread, so rotating never holds up a sender either.
+ */
+public final class MessageLogWriter {
+
+    private static final int QUEUE_CAPACITY = ServerConfig.getInt("chat.log.queueCapacity", 10000);
+    // Lines are dropped instead of waiting for room when the queue is full
+    private static final boolean DROP_WHEN_FULL = "drop".equalsIgnoreCase(
+            ServerConfig.getString("chat.log.whenFull", "block"));
+    private static final boolean APPEND_MODE = true;
+    // A log file is rolled once it is this large, or once it has been written to for this long
+    private static final long MAX_BYTES = ServerConfig.getLong("chat.log.maxBytes", 64L * 1024 * 1024);
+    private static final long ROTATE_MS = ServerConfig.getLong("chat.log.rotateMs", 24L * 60 * 60 * 1000);
+    // Log files kept open at once, the least recently written is closed first
+    private static final int MAX_OPEN_FILES = 64;
+
+    private static final BlockingQueue<Line> QUEUE = new ArrayBlockingQueue<>(Math.max(1, QUEUE_CAPACITY));
+    // Held while writing a batch, so the shutdown flush never overtakes the writer thread
+    private static final Object WRITE_LOCK = new Object();
+    // Open log files by path, in the order they were last written, guarded by WRITE_LOCK
+    private static final Map<String, OpenLog> OPEN = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, OpenLog> eldest) {
+            if (size() <= MAX_OPEN_FILES) {
+                return false;
+            }
+            eldest.getValue().close();
+            return true;
+        }
+    };
+
+    private static final Metrics.Counter WRITTEN = Metrics.counter("chat_log_lines_written_total",
+            "Message log lines written to disk.");
+    private static final Metrics.Counter DROPPED = Metrics.counter("chat_log_lines_dropped_total",
+            "Message log lines dropped because the log queue was full.");
+
+    static {
+        Metrics.gauge("chat_log_queue_size", "Message log lines waiting to be written.", QUEUE::size);
+
+        Thread writer = new Thread(MessageLogWriter::writeLoop, "message-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(MessageLogWriter::flush, "message-log-flush"));
+    }
+
+    private MessageLogWriter() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Queues a line to be appended to a log file.
+     *
+     * @param filePath The log file to append to.
+     * @param text     The line to append, without line separator.
+     */
+    public static void append(String filePath, String text) {
+        append(filePath, System.currentTimeMillis(), text);
+    }
+
+    /**
+     * Queues a line to be appended to a log file.
+     *
+     * @param filePath  The log file to append to.
+     * @param timestamp The time the line was logged, recorded in the segment manifest.
+     * @param text      The line to append, without line separator.
+     */
+    public static void append(String filePath, long timestamp, String text) {
+        Line line = new Line(filePath, timestamp, text);
+        if (QUEUE.offer(line)) {
+            return;
+        }
+        if (DROP_WHEN_FULL) {
+            DROPPED.inc();
+            return;
+        }
+        try {
+            QUEUE.put(line);
+        } catch (InterruptedException e) {
+            DROPPED.inc();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gets the number of lines waiting to be written.
+     *
+     * @return The queue length.
+     */
+    public static int getBacklog() {
+        return QUEUE.size();
+    }
+
+    /**
+     * Writes every queued line now.
+     */
+    public static void flush() {
+        List<Line> batch = new ArrayList<>();
+        synchronized (WRITE_LOCK) {
+            QUEUE.drainTo(batch);
+            write(batch);
+        }
+    }
+
+    private static void writeLoop() {
+        List<Line> batch = new ArrayList<>();
+        while (true) {
+            try {
+                Line first = QUEUE.take();
+                synchronized (WRITE_LOCK) {
+                    batch.add(first);
+                    QUEUE.drainTo(batch);
+                    write(batch);
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes a batch of lines. Must be called while holding WRITE_LOCK.
+     *
+     * @param batch The lines to write.
+     */
+    private static void write(List<Line> batch) {
+        // Group the lines by file, keeping their order within each file
+        Map<String, Group> byFile = new LinkedHashMap<>();
+        for (Line line : batch) {
+            byFile.computeIfAbsent(line.filePath, key -> new Group()).add(line);
+        }
+
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Group> entry : byFile.entrySet()) {
+            try {
+                OpenLog log = OPEN.get(entry.getKey());
+                if (log != null && log.isDue(now)) {
+                    OPEN.remove(entry.getKey());
+                    log.roll();
+                    log = null;
+                }
+                if (log == null) {
+                    log = new OpenLog(entry.getKey());
+                    OPEN.put(entry.getKey(), log);
+                }
+                log.write(entry.getValue());
+            } catch (IOException e) {
+                System.err.println("Failed to write to log file.");
+                e.printStackTrace();
+                // Open the file again for the next batch
+                OpenLog failed = OPEN.remove(entry.getKey());
+                if (failed != null) {
+                    failed.close();
+                }
+            }
+        }
+        WRITTEN.add(batch.size());
+    }
+
+    /**
+     * Line class holding one queued log line.
+     */
+    private static final class Line {
+        private final String filePath;
+        private final long timestamp;
+        private final String text;
+
+        Line(String filePath, long timestamp, String text) {
+            this.filePath = filePath;
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Group class collecting the lines of a batch that go to the same file.
+     */
+    private static final class Group {
+        private final StringBuilder text = new StringBuilder();
+        private long firstMillis = Long.MAX_VALUE;
+        private long lastMillis = Long.MIN_VALUE;
+        private int lines;
+
+        void add(Line line) {
+            text.append(line.text).append(System.lineSeparator());
+            firstMillis = Math.min(firstMillis, line.timestamp);
+            lastMillis = Math.max(lastMillis, line.timestamp);
+            lines++;
+        }
+    }
+
+    /**
+     * OpenLog class holding an open log file and what it holds so far.
+     * Only used by the writer while holding WRITE_LOCK.
+     */
+    private static final class OpenLog {
+        private final String path;
+        private final FileOutputStream file;
+        private final Writer out;
+        // Time the file was started, either now or when an earlier run created it
+        private final long startedMillis;
+        private long bytes;
+        private long firstMillis;
+        private long lastMillis;
+        private long lines;
+
+        OpenLog(String path) throws IOException {
+            this.path = path;
+            Path filePath = Paths.get(path);
+            if (Files.exists(filePath)) {
+                // Continue the file of an earlier run, its lines are not counted
+                BasicFileAttributes attributes = Files.readAttributes(filePath, BasicFileAttributes.class);
+                this.startedMillis = Math.min(attributes.creationTime().toMillis(),
+                        attributes.lastModifiedTime().toMillis());
+            } else {
+                System.out.println("Log file created.");
+                this.startedMillis = System.currentTimeMillis();
+            }
+            this.file = new FileOutputStream(path, APPEND_MODE);
+            this.out = new BufferedWriter(new OutputStreamWriter(file, StandardCharsets.UTF_8));
+            this.bytes = file.getChannel().size();
+            this.firstMillis = startedMillis;
+            this.lastMillis = startedMillis;
+        }
+
+        boolean isDue(long now) {
+            return bytes > 0 && (bytes >= MAX_BYTES || now - startedMillis >= ROTATE_MS);
+        }
+
+        void write(Group group) throws IOException {
+            if (lines == 0 && bytes == 0) {
+                // A new file spans the time of its own lines
+                firstMillis = group.firstMillis;
+                lastMillis = group.lastMillis;
+            }
+            out.write(group.text.toString());
+            out.flush();
+            bytes = file.getChannel().position();
+            lastMillis = Math.max(lastMillis, group.lastMillis);
+            lines += group.lines;
+        }
+
+        /**
+         * Closes the file and turns it into a segment of its log.
+         *
+         * @throws IOException If the file cannot be renamed.
+         */
+        void roll() throws IOException {
+            close();
+            LogSegments.of(path).roll(firstMillis, lastMillis, lines);
+        }
+
+        void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close log file " + path + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.sonnybell.app.chatfunctions;
+
+import com.sonnybell.app.server.Cluster;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Presence class keeping track of who is online, for clients that poll.
+ * Every user coming online or going offline bumps a version and is kept in a
+ * short change log, so a client that knows the version it saw last is only
+ * sent the users that joined or left since. A client too far behind, or new,
+ * is sent everyone online instead.
+ * A user logged in more than once counts as online until the last of its
+ * connections is gone. Every change is also passed on to the other nodes of
+ * the cluster, see the Cluster class.
+ */
+public final class Presence {
+
+    // Changes kept for clients that are behind, older versions get the full list
+    private static final int LOG_SIZE = 1024;
+
+    // Connections of every online user, guarded by the class lock
+    private static final Map<String, Integer> ONLINE = new LinkedHashMap<>();
+    // Recent changes as a ring, the change to version v is at v % LOG_SIZE
+    private static final String[] LOG_USERS = new String[LOG_SIZE];
+    private static final boolean[] LOG_JOINED = new boolean[LOG_SIZE];
+    private static long version;
+
+    private Presence() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Records that a user came online.
+     *
+     * @param username The user.
+     */
+    public static synchronized void joined(String username) {
+        if (ONLINE.merge(username, 1, Integer::sum) == 1) {
+            record(username, true);
+        }
+    }
+
+    /**
+     * Records that a user went offline.
+     *
+     * @param username The user.
+     */
+    public static synchronized void left(String username) {
+        Integer connections = ONLINE.get(username);
+        if (connections == null) {
+            return;
+        }
+        if (connections > 1) {
+            ONLINE.put(username, connections - 1);
+        } else {
+            ONLINE.remove(username);
+            record(username, false);
+        }
+    }
+
+    /**
+     * Gets everyone online.
+     *
+     * @return The usernames.
+     */
+    public static synchronized List<String> online() {
+        return new ArrayList<>(ONLINE.keySet());
+    }
+
+    /**
+     * Gets the changes since a version.
+     *
+     * @param since The version the client saw last, or 0 for none.
+     * @return The users that joined and left since, or everyone online.
+     */
+    public static synchronized Diff since(long since) {
+        if (since <= 0 || since > version || version - since > LOG_SIZE) {
+            return new Diff(version, true, online(), List.of());
+        }
+        // Only the last change of each user counts
+        Map<String, Boolean> last = new LinkedHashMap<>();
+        for (long v = since + 1; v <= version; v++) {
+            int slot = (int) (v % LOG_SIZE);
+            last.remove(LOG_USERS[slot]);
+            last.put(LOG_USERS[slot], LOG_JOINED[slot]);
+        }
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (Map.Entry<String, Boolean> change : last.entrySet()) {
+            (change.getValue() ? joined : left).add(change.getKey());
+        }
+        return new Diff(version, false, joined, left);
+    }
+
+    private static void record(String username, boolean joined) {
+        version++;
+        int slot = (int) (version % LOG_SIZE);
+        LOG_USERS[slot] = username;
+        LOG_JOINED[slot] = joined;
+        Cluster.presenceChanged(username, joined);
+    }
+
+    /**
+     * Diff class holding the presence changes sent to a client.
+     */
+    public static final class Diff {
+        private final long version;
+        private final boolean full;
+        private final List<String> joined;
+        private final List<String> left;
+
+        /**
+         * Constructor to create the presence changes of one sync.
+         *
+         * @param version The version the changes bring the client up to.
+         * @param full    Whether joined lists everyone online instead of changes.
+         * @param joined  The users that came online, or everyone online.
+         * @param left    The users that went offline.
+         */
+        Diff(long version, boolean full, List<String> joined, List<String> left) {
+            this.version = version;
+            this.full = full;
+            this.joined = joined;
+            this.left = left;
+        }
+
+        /**
+         * Gets the version to ask for changes since next time.
+         *
+         * @return The current version.
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Tells whether joined lists everyone online, replacing what the
+         * client knew.
+         *
+         * @return true for a full list, false for changes.
+         */
+        public boolean isFull() {
+            return full;
+        }
+
+        /**
+         * Gets the users that came online.
+         *
+         * @return The usernames.
+         */
+        public List<String> getJoined() {
+            return joined;
+        }
+
+        /**
+         * Gets the users that went offline.
+         *
+         * @return The usernames.
+         */
+        public List<String> getLeft() {
+            return left;
+        }
+    }
+}
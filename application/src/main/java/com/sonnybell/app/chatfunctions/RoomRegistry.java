@@ -0,0 +1,307 @@
+package com.sonnybell.app.chatfunctions;
+
+import com.sonnybell.app.client.ClientHandler;
+import com.sonnybell.app.server.Metrics;
+import com.sonnybell.app.server.Replication;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * RoomRegistry class to keep track of all chat rooms.
+ * Rooms are spread over a fixed number of shards, each guarded by its own lock,
+ * so joining or leaving one room never contends with unrelated rooms.
+ * The lobby room always exists and uses the global chat history.
+ * Other rooms are created on first join and removed when their last member
+ * leaves.
+ * A standby server keeps the histories of the rooms of its leader without the
+ * rooms, as nobody is connected to it, and a room created once it took over
+ * starts with the history its leader had for it, see the Replication class.
+ */
+public final class RoomRegistry {
+
+    /**
+     * Name of the default room every user starts in.
+     */
+    public static final String LOBBY = "general";
+
+    private static final int SHARD_COUNT = 16;
+    private static final int ROOM_HISTORY = 100;
+    private static final int MAX_ROOM_NAME_LENGTH = 32;
+
+    private static final ChatRoom LOBBY_ROOM = new ChatRoom(LOBBY, ChatHistory.lobby(), null);
+    private static final List<Map<String, ChatRoom>> SHARDS = new ArrayList<>(SHARD_COUNT);
+
+    // Room each web user is currently reading, web users not in the map are in the lobby
+    private static final Map<String, ChatRoom> WEB_LOCATIONS = new ConcurrentHashMap<>();
+    // Histories copied from the leader of rooms that do not exist here, a room takes its own when created
+    private static final Map<String, ChatHistory> REPLICAS = new ConcurrentHashMap<>();
+
+    static {
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            SHARDS.add(new HashMap<>());
+        }
+        Metrics.gauge("chat_rooms", "Chat rooms, including the lobby.", () -> listRooms().size());
+        Metrics.gauge("chat_history_messages", "Messages kept in the history of all rooms.",
+                RoomRegistry::historySize);
+    }
+
+    private RoomRegistry() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Gets the lobby room.
+     *
+     * @return The lobby room.
+     */
+    public static ChatRoom lobby() {
+        return LOBBY_ROOM;
+    }
+
+    /**
+     * Normalizes a room name given by a user.
+     * Room names are lower case and may only contain letters, digits, '-' and
+     * '_', which also keeps them safe to use in log file names.
+     *
+     * @param rawName The name typed by the user, with or without a leading '#'.
+     * @return The normalized name, or null if the name is not valid.
+     */
+    public static String normalizeName(String rawName) {
+        if (rawName == null) {
+            return null;
+        }
+        String name = rawName.trim();
+        if (name.startsWith("#")) {
+            name = name.substring(1);
+        }
+        if (name.isEmpty() || name.length() > MAX_ROOM_NAME_LENGTH) {
+            return null;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return null;
+            }
+        }
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Moves a socket client into a room, creating the room if needed.
+     *
+     * @param handler  The client to move.
+     * @param current  The room the client is in now, or null if it is in none.
+     * @param roomName The normalized name of the room to join.
+     * @return The room the client is now in.
+     */
+    public static ChatRoom joinSocket(ClientHandler handler, ChatRoom current, String roomName) {
+        ChatRoom target;
+        if (LOBBY.equals(roomName)) {
+            target = LOBBY_ROOM;
+            target.addMember(handler);
+        } else {
+            Map<String, ChatRoom> shard = shardFor(roomName);
+            synchronized (shard) {
+                target = shard.computeIfAbsent(roomName, RoomRegistry::newRoom);
+                target.addMember(handler);
+            }
+        }
+        if (current != null && current != target) {
+            leaveSocket(handler, current);
+        }
+        return target;
+    }
+
+    /**
+     * Removes a socket client from a room, removing the room if it is now empty.
+     *
+     * @param handler The client to remove.
+     * @param room    The room the client is in.
+     */
+    public static void leaveSocket(ClientHandler handler, ChatRoom room) {
+        if (room == null) {
+            return;
+        }
+        if (room == LOBBY_ROOM) {
+            room.removeMember(handler);
+            return;
+        }
+        Map<String, ChatRoom> shard = shardFor(room.getName());
+        synchronized (shard) {
+            room.removeMember(handler);
+            if (room.isEmpty() && shard.remove(room.getName(), room)) {
+                Replication.roomRemoved(room.getName());
+            }
+        }
+    }
+
+    /**
+     * Moves a web user into a room, creating the room if needed.
+     *
+     * @param username The web user to move.
+     * @param roomName The normalized name of the room to join.
+     * @return The room the web user is now in.
+     */
+    public static ChatRoom joinWeb(String username, String roomName) {
+        ChatRoom current = webRoomOf(username);
+        ChatRoom target;
+        if (LOBBY.equals(roomName)) {
+            target = LOBBY_ROOM;
+            target.addWebMember(username);
+        } else {
+            Map<String, ChatRoom> shard = shardFor(roomName);
+            synchronized (shard) {
+                target = shard.computeIfAbsent(roomName, RoomRegistry::newRoom);
+                target.addWebMember(username);
+            }
+        }
+        WEB_LOCATIONS.put(username, target);
+        if (current != target) {
+            leaveWebRoom(username, current);
+        }
+        return target;
+    }
+
+    /**
+     * Removes a web user from whatever room it is in.
+     * Called when the web user logs out or is removed by an admin.
+     *
+     * @param username The web user to remove.
+     */
+    public static void removeWeb(String username) {
+        ChatRoom current = WEB_LOCATIONS.remove(username);
+        leaveWebRoom(username, current == null ? LOBBY_ROOM : current);
+    }
+
+    /**
+     * Gets the room a web user is currently reading.
+     *
+     * @param username The web user.
+     * @return The room of the web user, or the lobby if it has not joined any.
+     */
+    public static ChatRoom webRoomOf(String username) {
+        if (username == null) {
+            return LOBBY_ROOM;
+        }
+        ChatRoom room = WEB_LOCATIONS.get(username);
+        return room == null ? LOBBY_ROOM : room;
+    }
+
+    /**
+     * Finds a room by name without creating it.
+     *
+     * @param roomName The name of the room.
+     * @return The room, or null if it does not exist.
+     */
+    public static ChatRoom find(String roomName) {
+        if (LOBBY.equals(roomName)) {
+            return LOBBY_ROOM;
+        }
+        Map<String, ChatRoom> shard = shardFor(roomName);
+        synchronized (shard) {
+            return shard.get(roomName);
+        }
+    }
+
+    /**
+     * Lists all rooms, lobby first and then by name.
+     *
+     * @return A list of all current rooms.
+     */
+    public static List<ChatRoom> listRooms() {
+        List<ChatRoom> rooms = new ArrayList<>();
+        for (Map<String, ChatRoom> shard : SHARDS) {
+            synchronized (shard) {
+                rooms.addAll(shard.values());
+            }
+        }
+        rooms.sort(Comparator.comparing(ChatRoom::getName));
+        rooms.add(0, LOBBY_ROOM);
+        return rooms;
+    }
+
+    /**
+     * Gets the history of every room and of every room copied from the
+     * leader, to send to a standby server.
+     *
+     * @return The histories by room name, the lobby first.
+     */
+    public static Map<String, ChatHistory> histories() {
+        Map<String, ChatHistory> histories = new LinkedHashMap<>();
+        for (ChatRoom room : listRooms()) {
+            histories.put(room.getName(), room.getHistory());
+        }
+        for (Map.Entry<String, ChatHistory> replica : REPLICAS.entrySet()) {
+            histories.putIfAbsent(replica.getKey(), replica.getValue());
+        }
+        return histories;
+    }
+
+    /**
+     * Gets the history a standby server copies the messages of a room of its
+     * leader to, creating it if needed.
+     *
+     * @param roomName The name of the room.
+     * @return The lobby history for the lobby, a copied history otherwise.
+     */
+    public static ChatHistory replicaHistory(String roomName) {
+        if (LOBBY.equals(roomName)) {
+            return ChatHistory.lobby();
+        }
+        return REPLICAS.computeIfAbsent(roomName, name -> new ChatHistory(ROOM_HISTORY));
+    }
+
+    /**
+     * Drops the copied history of a room the leader removed.
+     *
+     * @param roomName The name of the room.
+     */
+    public static void forgetReplica(String roomName) {
+        REPLICAS.remove(roomName);
+    }
+
+    /**
+     * Drops the copied history of every room, before a snapshot of the
+     * leader replaces them.
+     */
+    public static void forgetReplicas() {
+        REPLICAS.clear();
+    }
+
+    private static long historySize() {
+        long total = 0;
+        for (ChatRoom room : listRooms()) {
+            total += room.getHistory().size();
+        }
+        return total;
+    }
+
+    private static void leaveWebRoom(String username, ChatRoom room) {
+        if (room == LOBBY_ROOM) {
+            room.removeWebMember(username);
+            return;
+        }
+        Map<String, ChatRoom> shard = shardFor(room.getName());
+        synchronized (shard) {
+            room.removeWebMember(username);
+            if (room.isEmpty() && shard.remove(room.getName(), room)) {
+                Replication.roomRemoved(room.getName());
+            }
+        }
+    }
+
+    private static ChatRoom newRoom(String roomName) {
+        ChatHistory replica = REPLICAS.remove(roomName);
+        return new ChatRoom(roomName, replica != null ? replica : new ChatHistory(ROOM_HISTORY), roomName);
+    }
+
+    private static Map<String, ChatRoom> shardFor(String roomName) {
+        return SHARDS.get(Math.floorMod(roomName.hashCode(), SHARD_COUNT));
+    }
+}
@@ -0,0 +1,884 @@
+package com.sonnybell.app.chatfunctions;
+
+import com.sonnybell.app.server.Metrics;
+import com.sonnybell.app.server.ServerConfig;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * SearchIndex class keeping an inverted index of every chat line.
+ * Logged chat lines are queued and indexed on a background thread, like the
+ * message log, so searching never holds up the chat.
+ * Every indexed line gets the next sequence number and is appended to
+ * MessageLog.docs next to the log segments. Each term maps to a posting list,
+ * the sorted sequence numbers of the lines holding it, stored as varint
+ * deltas with a skip entry every few postings, so a query only walks the
+ * shortest list and jumps through the others.
+ * Lines are also indexed under their sender, and their times are kept in
+ * sequence order, so filtering by user or time is part of the same walk.
+ * The index is saved to MessageLog.index in the background and at shutdown.
+ * On startup the lines appended after the last save are indexed again from
+ * MessageLog.docs, and a missing or broken index is rebuilt from it.
+ */
+public final class SearchIndex {
+
+    private static final int QUEUE_CAPACITY = ServerConfig.getInt("chat.search.queueCapacity", 10000);
+    // Time between two saves of the index, when lines were indexed since the last one
+    private static final long SNAPSHOT_MS = ServerConfig.getInt("chat.search.snapshotMs", 60000);
+    private static final String DOCS_FILE = "MessageLog.docs";
+    private static final String INDEX_FILE = "MessageLog.index";
+    private static final int MAGIC = 0x43485849;
+    private static final int VERSION = 1;
+    // Postings between two skip entries of a posting list
+    private static final int SKIP_INTERVAL = 128;
+    // Longer words are cut, they are almost never searched for in full
+    private static final int MAX_TERM_LENGTH = 64;
+    // Sender terms start with a character that never occurs in a word term
+    private static final char USER_PREFIX = '\u0001';
+    private static final int INITIAL_DOCS = 1024;
+    private static final int INITIAL_POSTING_BYTES = 4;
+    private static final int VARINT_MASK = 0x7F;
+    private static final int VARINT_MORE = 0x80;
+    private static final int VARINT_SHIFT = 7;
+    private static final int RECORD_HEADER = Integer.BYTES;
+    // Longest varint of a delta between two sequence numbers
+    private static final int MAX_VARINT_BYTES = 5;
+
+    private static final BlockingQueue<Entry> QUEUE = new ArrayBlockingQueue<>(Math.max(1, QUEUE_CAPACITY));
+    private static final SearchIndex INSTANCE = new SearchIndex(Paths.get(System.getProperty("user.dir", ".")));
+
+    private static final Metrics.Counter INDEXED = Metrics.counter("chat_search_indexed_total",
+            "Chat lines added to the search index.");
+    private static final Metrics.Counter DROPPED = Metrics.counter("chat_search_dropped_total",
+            "Chat lines not indexed because the index queue was full.");
+    private static final Metrics.Counter QUERIES = Metrics.counter("chat_search_queries_total",
+            "Searches run against the search index.");
+
+    static {
+        Metrics.gauge("chat_search_documents", "Chat lines in the search index.", () -> INSTANCE.docCount);
+        Metrics.gauge("chat_search_terms", "Distinct terms in the search index.", () -> INSTANCE.termCount());
+
+        Thread indexer = new Thread(INSTANCE::indexLoop, "search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(INSTANCE::flush, "search-index-flush"));
+    }
+
+    private final Path docsPath;
+    private final Path indexPath;
+    // Guards everything below, the indexer writes a whole batch under the write lock
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // Released once the saved index is loaded, searches wait for it
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private final Map<String, PostingList> postings = new HashMap<>();
+    // Position of every line in the docs file, and its time, by sequence number
+    private long[] offsets = new long[INITIAL_DOCS];
+    // Never decreasing, so the lines of a time range are found by binary search
+    private long[] timestamps = new long[INITIAL_DOCS];
+    private volatile int docCount;
+    private FileChannel docs;
+    private long docsLength;
+    // Docs count at the last save of the index
+    private int savedDocs;
+    private boolean loaded;
+
+    /**
+     * Constructor to create the index kept in a directory. The server uses the
+     * one in its working directory, other instances are only used by tests.
+     *
+     * @param dir The directory holding MessageLog.docs and MessageLog.index.
+     */
+    SearchIndex(Path dir) {
+        this.docsPath = dir.resolve(DOCS_FILE);
+        this.indexPath = dir.resolve(INDEX_FILE);
+    }
+
+    /**
+     * Queues a logged message to be indexed. Only chat lines written by users
+     * are indexed.
+     *
+     * @param message The logged message.
+     * @param room    The room the message was sent in.
+     */
+    public static void add(ChatMessage message, String room) {
+        if (message.getKind() != MessageKind.CHAT || message.getSender() == null) {
+            return;
+        }
+        if (!QUEUE.offer(new Entry(message, room))) {
+            DROPPED.inc();
+        }
+    }
+
+    /**
+     * Searches the indexed chat lines.
+     * A line matches when it holds every word of the query. Words are
+     * compared ignoring case, and the query may be empty when a user is given.
+     *
+     * @param query      The words to search for.
+     * @param user       Only lines sent by this user, or null for any user.
+     * @param fromMillis Only lines sent at or after this time.
+     * @param toMillis   Only lines sent at or before this time.
+     * @param limit      The number of lines to return at most.
+     * @return The newest matching lines and the number of matches.
+     * @throws IOException If the matching lines cannot be read.
+     */
+    public static Result search(String query, String user, long fromMillis, long toMillis, int limit)
+            throws IOException {
+        QUERIES.inc();
+        return INSTANCE.find(query, user, fromMillis, toMillis, limit);
+    }
+
+    /**
+     * Splits text into the terms it is indexed under: runs of letters and
+     * digits, in lower case.
+     *
+     * @param text The text.
+     * @return The distinct terms, in the order they first occur.
+     */
+    public static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.append(Character.toLowerCase(c));
+                }
+            } else if (term.length() > 0) {
+                terms.add(term.toString());
+                term.setLength(0);
+            }
+        }
+        return terms;
+    }
+
+    private static String userTerm(String user) {
+        return USER_PREFIX + user.toLowerCase(Locale.ROOT);
+    }
+
+    private int termCount() {
+        lock.readLock().lock();
+        try {
+            return postings.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void indexLoop() {
+        load();
+        List<Entry> batch = new ArrayList<>();
+        long lastSave = System.currentTimeMillis();
+        while (true) {
+            try {
+                Entry first = QUEUE.poll(SNAPSHOT_MS, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    QUEUE.drainTo(batch);
+                    index(batch);
+                    batch.clear();
+                }
+                if (System.currentTimeMillis() - lastSave >= SNAPSHOT_MS) {
+                    save();
+                    lastSave = System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Indexes every queued line and saves the index. Runs at shutdown.
+     */
+    private void flush() {
+        List<Entry> batch = new ArrayList<>();
+        QUEUE.drainTo(batch);
+        index(batch);
+        save();
+    }
+
+    /**
+     * Appends a batch of lines to the docs file and indexes them.
+     *
+     * @param batch The lines to index.
+     */
+    void index(List<Entry> batch) {
+        lock.writeLock().lock();
+        try {
+            if (!loaded || batch.isEmpty()) {
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            long[] positions = new long[batch.size()];
+            for (int i = 0; i < positions.length; i++) {
+                record.reset();
+                batch.get(i).write(new DataOutputStream(record));
+                positions[i] = docsLength + out.size();
+                out.writeInt(record.size());
+                record.writeTo(out);
+            }
+            // The lines are only indexed once they are in the docs file
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                docs.write(buffer, docsLength + buffer.position());
+            }
+            docsLength += buffer.limit();
+            for (int i = 0; i < positions.length; i++) {
+                Entry entry = batch.get(i);
+                addDoc(positions[i], entry.timestamp, entry.sender, entry.text);
+            }
+            INDEXED.add(positions.length);
+        } catch (IOException e) {
+            System.err.println("Failed to write the search index docs: " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Adds one line to the posting lists. Must be called holding the write lock.
+     */
+    private void addDoc(long offset, long timestamp, String sender, String text) {
+        int doc = docCount;
+        if (doc == offsets.length) {
+            offsets = Arrays.copyOf(offsets, doc * 2);
+            timestamps = Arrays.copyOf(timestamps, doc * 2);
+        }
+        offsets[doc] = offset;
+        timestamps[doc] = doc == 0 ? timestamp : Math.max(timestamps[doc - 1], timestamp);
+        postings.computeIfAbsent(userTerm(sender), key -> new PostingList()).add(doc);
+        // Chat lines start with the name of their sender, which is indexed on its own
+        String words = text.startsWith(sender + ": ") ? text.substring(sender.length() + 2) : text;
+        for (String term : terms(words)) {
+            postings.computeIfAbsent(term, key -> new PostingList()).add(doc);
+        }
+        docCount = doc + 1;
+    }
+
+    /**
+     * Searches this index, see search.
+     *
+     * @param query      The words to search for.
+     * @param user       Only lines sent by this user, or null for any user.
+     * @param fromMillis Only lines sent at or after this time.
+     * @param toMillis   Only lines sent at or before this time.
+     * @param limit      The number of lines to return at most.
+     * @return The newest matching lines and the number of matches.
+     * @throws IOException If the index could not be opened or the lines cannot be read.
+     */
+    Result find(String query, String user, long fromMillis, long toMillis, int limit) throws IOException {
+        List<String> terms = new ArrayList<>(terms(query == null ? "" : query));
+        if (user != null && !user.isBlank()) {
+            terms.add(userTerm(user.trim()));
+        }
+        if (terms.isEmpty()) {
+            throw new IllegalArgumentException("A query or a user is required.");
+        }
+        try {
+            ready.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while the search index was loading.");
+        }
+        lock.readLock().lock();
+        try {
+            if (!loaded) {
+                throw new IOException("The search index could not be opened.");
+            }
+            List<PostingList> lists = new ArrayList<>();
+            for (String term : terms) {
+                PostingList list = postings.get(term);
+                if (list == null) {
+                    return new Result(0, List.of());
+                }
+                lists.add(list);
+            }
+            lists.sort(Comparator.comparingInt(list -> list.size));
+            int from = lowerBound(fromMillis);
+            int to = toMillis == Long.MAX_VALUE ? docCount : lowerBound(toMillis + 1);
+
+            // Walk the shortest list and look each of its lines up in the others
+            Cursor[] cursors = new Cursor[lists.size()];
+            for (int i = 0; i < cursors.length; i++) {
+                cursors[i] = new Cursor(lists.get(i));
+            }
+            ArrayDeque<Integer> newest = new ArrayDeque<>();
+            int total = 0;
+            int doc = cursors[0].advance(from);
+            while (doc < to) {
+                int match = doc;
+                for (int i = 1; i < cursors.length && match == doc; i++) {
+                    match = cursors[i].advance(doc);
+                }
+                if (match == doc) {
+                    total++;
+                    newest.addFirst(doc);
+                    if (newest.size() > Math.max(1, limit)) {
+                        newest.removeLast();
+                    }
+                    doc = cursors[0].next();
+                } else if (match == Cursor.END) {
+                    break;
+                } else {
+                    doc = cursors[0].advance(match);
+                }
+            }
+
+            List<Hit> hits = new ArrayList<>();
+            for (int hit : newest) {
+                hits.add(readHit(hit));
+            }
+            return new Result(total, hits);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the first line sent at or after a time. Must be called holding a lock.
+     */
+    private int lowerBound(long millis) {
+        int low = 0;
+        int high = docCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] < millis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private Hit readHit(int doc) throws IOException {
+        long offset = offsets[doc];
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        readFully(header, offset);
+        ByteBuffer body = ByteBuffer.allocate(header.flip().getInt());
+        readFully(body, offset + RECORD_HEADER);
+        Entry entry = Entry.read(new DataInputStream(new ByteArrayInputStream(body.array())));
+        return new Hit(doc, entry.timestamp, entry.room, entry.sender, entry.text);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (docs.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Search index docs end at " + position);
+            }
+        }
+    }
+
+    /**
+     * Opens the docs file, reads the saved index and indexes the lines
+     * appended after it was saved.
+     */
+    void load() {
+        lock.writeLock().lock();
+        try {
+            docs = FileChannel.open(docsPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            try {
+                readSnapshot();
+            } catch (NoSuchFileException e) {
+                clear();
+            } catch (IOException e) {
+                System.err.println("Failed to read search index, rebuilding it: " + e.getMessage());
+                clear();
+            }
+            savedDocs = docCount;
+            replay();
+            loaded = true;
+            if (docCount > 0) {
+                System.out.println("Search index loaded with " + docCount + " lines.");
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to open search index docs " + docsPath + ": " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+            ready.countDown();
+        }
+    }
+
+    private void clear() {
+        postings.clear();
+        offsets = new long[INITIAL_DOCS];
+        timestamps = new long[INITIAL_DOCS];
+        docCount = 0;
+        docsLength = 0;
+    }
+
+    /**
+     * Indexes the lines of the docs file after docsLength. A line cut short by
+     * a crash is dropped from the file, with anything after it.
+     */
+    private void replay() throws IOException {
+        long size = docs.size();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(docsPath)))) {
+            in.skipNBytes(docsLength);
+            while (size - docsLength >= RECORD_HEADER) {
+                int length = in.readInt();
+                if (length < 0 || size - docsLength - RECORD_HEADER < length) {
+                    break;
+                }
+                byte[] body = new byte[length];
+                in.readFully(body);
+                Entry entry;
+                try {
+                    entry = Entry.read(new DataInputStream(new ByteArrayInputStream(body)));
+                } catch (IOException e) {
+                    break;
+                }
+                addDoc(docsLength, entry.timestamp, entry.sender, entry.text);
+                docsLength += RECORD_HEADER + length;
+            }
+        }
+        if (docsLength < size) {
+            docs.truncate(docsLength);
+        }
+    }
+
+    private void readSnapshot() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("not a search index");
+            }
+            int count = in.readInt();
+            long length = in.readLong();
+            if (length > docs.size()) {
+                throw new IOException("the docs file is shorter than the index");
+            }
+            // Every line takes at least its header in the docs file
+            if (count < 0 || length < 0 || count > length / RECORD_HEADER) {
+                throw new IOException("invalid line count " + count);
+            }
+            offsets = new long[Math.max(INITIAL_DOCS, count)];
+            timestamps = new long[offsets.length];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = in.readLong();
+                timestamps[i] = in.readLong();
+                if (offsets[i] < 0 || offsets[i] >= length || i > 0 && timestamps[i] < timestamps[i - 1]) {
+                    throw new IOException("invalid line " + i);
+                }
+            }
+            int terms = in.readInt();
+            for (int i = 0; i < terms; i++) {
+                String term = in.readUTF();
+                postings.put(term, PostingList.read(in, count));
+            }
+            docCount = count;
+            docsLength = length;
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file and moves it over the last one,
+     * when lines were indexed since it was saved.
+     */
+    synchronized void save() {
+        lock.readLock().lock();
+        try {
+            if (!loaded || docCount == savedDocs) {
+                return;
+            }
+            Path temp = indexPath.resolveSibling(INDEX_FILE + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(docCount);
+                out.writeLong(docsLength);
+                for (int i = 0; i < docCount; i++) {
+                    out.writeLong(offsets[i]);
+                    out.writeLong(timestamps[i]);
+                }
+                out.writeInt(postings.size());
+                for (Map.Entry<String, PostingList> entry : postings.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    entry.getValue().write(out);
+                }
+            }
+            docs.force(false);
+            Files.move(temp, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            savedDocs = docCount;
+        } catch (IOException e) {
+            System.err.println("Failed to save search index " + indexPath + ": " + e.getMessage());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Result class holding the newest matching lines of a search.
+     */
+    public static final class Result {
+        private final int total;
+        private final List<Hit> hits;
+
+        Result(int total, List<Hit> hits) {
+            this.total = total;
+            this.hits = hits;
+        }
+
+        /**
+         * Gets the number of matching lines, including those not returned.
+         *
+         * @return The number of matches.
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        /**
+         * Gets the newest matching lines, newest first.
+         *
+         * @return The lines.
+         */
+        public List<Hit> getHits() {
+            return hits;
+        }
+    }
+
+    /**
+     * Hit class holding one matching chat line.
+     */
+    public static final class Hit {
+        private final long sequence;
+        private final long timestamp;
+        private final String room;
+        private final String sender;
+        private final String text;
+
+        /**
+         * Constructor to create a hit from a line read from the docs file.
+         *
+         * @param sequence  The sequence number of the line.
+         * @param timestamp The time the line was sent.
+         * @param room      The room the line was sent in.
+         * @param sender    The user that sent the line.
+         * @param text      The line as it was shown in the chat.
+         */
+        Hit(long sequence, long timestamp, String room, String sender, String text) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.room = room;
+            this.sender = sender;
+            this.text = text;
+        }
+
+        /**
+         * Gets the sequence number of the line in the index.
+         *
+         * @return The sequence number.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Gets the time the line was sent.
+         *
+         * @return The time in epoch milliseconds.
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Gets the room the line was sent in.
+         *
+         * @return The room name.
+         */
+        public String getRoom() {
+            return room;
+        }
+
+        /**
+         * Gets the user that sent the line.
+         *
+         * @return The username.
+         */
+        public String getSender() {
+            return sender;
+        }
+
+        /**
+         * Gets the line as it was shown in the chat.
+         *
+         * @return The text.
+         */
+        public String getText() {
+            return text;
+        }
+    }
+
+    /**
+     * Entry class holding one line to index, as it is stored in the docs file.
+     */
+    static final class Entry {
+        private final long timestamp;
+        private final String room;
+        private final String sender;
+        private final String text;
+
+        /**
+         * Constructor to create the entry of a logged message.
+         *
+         * @param message The message.
+         * @param room    The room the message was sent in.
+         */
+        Entry(ChatMessage message, String room) {
+            this(message.getTimestamp(), room, message.getSender(), message.getText());
+        }
+
+        /**
+         * Constructor to create an entry from its fields.
+         *
+         * @param timestamp The time the line was sent.
+         * @param room      The room the line was sent in.
+         * @param sender    The user that sent the line.
+         * @param text      The line as it was shown in the chat.
+         */
+        Entry(long timestamp, String room, String sender, String text) {
+            this.timestamp = timestamp;
+            this.room = room;
+            this.sender = sender;
+            this.text = text;
+        }
+
+        /**
+         * Reads an entry written by write.
+         *
+         * @param in The stream.
+         * @return The entry.
+         * @throws IOException If reading fails or the entry is broken.
+         */
+        static Entry read(DataInput in) throws IOException {
+            long timestamp = in.readLong();
+            String room = in.readUTF();
+            String sender = in.readUTF();
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("invalid text length " + length);
+            }
+            byte[] text = new byte[length];
+            in.readFully(text);
+            return new Entry(timestamp, room, sender, new String(text, StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Writes the entry as it is stored in the docs file.
+         *
+         * @param out The stream.
+         * @throws IOException If writing fails.
+         */
+        void write(DataOutput out) throws IOException {
+            out.writeLong(timestamp);
+            out.writeUTF(room);
+            out.writeUTF(sender);
+            byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * PostingList class holding the sorted sequence numbers of the lines
+     * holding one term, as varint deltas.
+     * Every SKIP_INTERVAL postings the position in the bytes and the posting
+     * before it are recorded, so a cursor can jump over whole blocks.
+     */
+    private static final class PostingList {
+        private byte[] bytes = new byte[INITIAL_POSTING_BYTES];
+        private int length;
+        private int size;
+        private int last = -1;
+        // Posting before each block and the position of the block in the bytes
+        private int[] skipDocs = new int[1];
+        private int[] skipPositions = new int[1];
+
+        /**
+         * Reads a posting list written by write, checking every posting.
+         *
+         * @param in   The stream.
+         * @param docs The number of lines in the index, every posting must be below it.
+         * @return The posting list.
+         * @throws IOException If reading fails or the list is broken.
+         */
+        static PostingList read(DataInput in, int docs) throws IOException {
+            PostingList list = new PostingList();
+            int count = in.readInt();
+            int bytes = in.readInt();
+            if (count < 0 || count > docs || bytes < count || bytes > (long) count * MAX_VARINT_BYTES) {
+                throw new IOException("invalid posting list of " + count + " postings in " + bytes + " bytes");
+            }
+            byte[] data = new byte[bytes];
+            in.readFully(data);
+            // Decode once to rebuild the skip entries and the last posting
+            int position = 0;
+            int doc = -1;
+            for (int i = 0; i < count; i++) {
+                if (i % SKIP_INTERVAL == 0) {
+                    list.skip(i / SKIP_INTERVAL, doc, position);
+                }
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    if (position == data.length || shift > VARINT_SHIFT * (MAX_VARINT_BYTES - 1)) {
+                        throw new IOException("broken posting " + i);
+                    }
+                    b = data[position++];
+                    delta |= (b & VARINT_MASK) << shift;
+                    shift += VARINT_SHIFT;
+                } while ((b & VARINT_MORE) != 0);
+                // Postings are increasing and name a line of the index
+                if (delta <= 0 || delta >= docs - doc) {
+                    throw new IOException("broken posting " + i);
+                }
+                doc += delta;
+            }
+            if (position != data.length) {
+                throw new IOException("posting list has " + (data.length - position) + " trailing bytes");
+            }
+            list.bytes = data;
+            list.length = data.length;
+            list.size = count;
+            list.last = doc;
+            return list;
+        }
+
+        void add(int doc) {
+            if (doc <= last) {
+                // The term occurs more than once in the line
+                return;
+            }
+            if (size % SKIP_INTERVAL == 0) {
+                skip(size / SKIP_INTERVAL, last, length);
+            }
+            if (length + Integer.BYTES + 1 > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + Integer.BYTES + 1));
+            }
+            int delta = doc - last;
+            while ((delta & ~VARINT_MASK) != 0) {
+                bytes[length++] = (byte) ((delta & VARINT_MASK) | VARINT_MORE);
+                delta >>>= VARINT_SHIFT;
+            }
+            bytes[length++] = (byte) delta;
+            last = doc;
+            size++;
+        }
+
+        void write(DataOutput out) throws IOException {
+            out.writeInt(size);
+            out.writeInt(length);
+            out.write(bytes, 0, length);
+        }
+
+        private void skip(int block, int doc, int position) {
+            if (block == skipDocs.length) {
+                skipDocs = Arrays.copyOf(skipDocs, block * 2);
+                skipPositions = Arrays.copyOf(skipPositions, block * 2);
+            }
+            skipDocs[block] = doc;
+            skipPositions[block] = position;
+        }
+    }
+
+    /**
+     * Cursor class walking a posting list in order.
+     */
+    private static final class Cursor {
+        // Returned once the list is exhausted, larger than every sequence number
+        private static final int END = Integer.MAX_VALUE;
+
+        private final PostingList list;
+        private int position;
+        private int index;
+        private int doc = -1;
+
+        Cursor(PostingList list) {
+            this.list = list;
+        }
+
+        int next() {
+            if (index >= list.size) {
+                doc = END;
+                return doc;
+            }
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = list.bytes[position++];
+                delta |= (b & VARINT_MASK) << shift;
+                shift += VARINT_SHIFT;
+            } while ((b & VARINT_MORE) != 0);
+            doc += delta;
+            index++;
+            return doc;
+        }
+
+        /**
+         * Moves to the first posting at or after a target.
+         *
+         * @param target The sequence number to move to.
+         * @return The posting found, or END.
+         */
+        int advance(int target) {
+            if (doc >= target) {
+                return doc;
+            }
+            // Jump to the last block starting before the target, if it is ahead
+            int blocks = (list.size + SKIP_INTERVAL - 1) / SKIP_INTERVAL;
+            int low = index / SKIP_INTERVAL + 1;
+            int high = blocks - 1;
+            int found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (list.skipDocs[mid] < target) {
+                    found = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            if (found > 0) {
+                doc = list.skipDocs[found];
+                position = list.skipPositions[found];
+                index = found * SKIP_INTERVAL;
+            }
+            while (doc < target) {
+                next();
+            }
+            return doc;
+        }
+    }
+}
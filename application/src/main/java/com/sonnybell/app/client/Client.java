@@ -1,21 +1,29 @@
 package com.sonnybell.app.client;
 
 import com.sonnybell.app.interfaces.MessageListener;
+import com.sonnybell.app.server.AdmissionControl;
 import java.io.*;
 import java.net.Socket;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Client class to handle sending and receiving messages from the server.
  * It connects to the server, sends messages, and listens for incoming messages.
  */
 public class Client {
+    // Time between two heartbeats sent to the server
+    private static final int HEARTBEAT_INTERVAL_MS = Integer.getInteger("chat.heartbeat.intervalMs", 15000);
+    // Number of heartbeat intervals without any line from the server before giving up
+    private static final int MISSED_HEARTBEATS = 3;
     private static int serverPort = 6666;
     private Socket socket;
     private BufferedReader reader;
     private BufferedWriter writer;
     private String username;
     private MessageListener messageListener;
+    // System.nanoTime() of the last line received from the server
+    private volatile long lastReceived = System.nanoTime();
 
     /**
      * Constructor to initialize the client with a socket and username.
@@ -65,7 +73,7 @@ public class Client {
      * as handshake
      * and close the connection.
      */
-    public void sendMessage(String messageToSend) {
+    public synchronized void sendMessage(String messageToSend) {
         try {
             if ("quit".equalsIgnoreCase(messageToSend)) {
                 writer.write("quit");
@@ -81,6 +89,21 @@ public class Client {
         }
     }
 
+    /**
+     * Sends a heartbeat to the server so it knows the connection is alive.
+     * The server answers with PONG.
+     */
+    public synchronized void sendHeartbeat() {
+        try {
+            writer.write("PING");
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            System.out.println("[ERROR] Failed to send heartbeat: " + e.getMessage());
+            closeEverything();
+        }
+    }
+
     /**
      * Method to send messages from the console.
      * It reads user input from the console and sends it to the server.
@@ -110,6 +133,13 @@ public class Client {
             String msgFromServer;
             try {
                 while ((msgFromServer = reader.readLine()) != null) {
+                    lastReceived = System.nanoTime();
+
+                    // Answers to our heartbeats are not shown
+                    if ("PONG".equals(msgFromServer)) {
+                        continue;
+                    }
+
                     // Check if server sent a quit command
                     if ("quit".equalsIgnoreCase(msgFromServer.trim())) {
                         System.out.println("[INFO] Server has requested client to quit. Disconnecting...");
@@ -135,6 +165,33 @@ public class Client {
         });
         listenerThread.setDaemon(true);
         listenerThread.start();
+        startHeartbeat();
+    }
+
+    /**
+     * Starts a thread that sends a heartbeat to the server at a fixed interval.
+     * If nothing has been received from the server for several intervals the
+     * connection is considered dead and closed.
+     */
+    private void startHeartbeat() {
+        Thread heartbeatThread = new Thread(() -> {
+            long deadAfter = TimeUnit.MILLISECONDS.toNanos((long) HEARTBEAT_INTERVAL_MS * MISSED_HEARTBEATS);
+            while (!socket.isClosed()) {
+                try {
+                    Thread.sleep(HEARTBEAT_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (System.nanoTime() - lastReceived > deadAfter) {
+                    System.out.println("[INFO] Server stopped responding. Disconnecting...");
+                    closeEverything();
+                    return;
+                }
+                sendHeartbeat();
+            }
+        });
+        heartbeatThread.setDaemon(true);
+        heartbeatThread.start();
     }
 
     /**
@@ -180,6 +237,44 @@ public class Client {
         }
     }
 
+    /**
+     * Connects to the server without prompting, for tools that drive many
+     * clients at once.
+     * It sends the password and then the username, like the console client.
+     *
+     * @param host     The host name of the server.
+     * @param port     The port of the server.
+     * @param password The server password.
+     * @param username The username to log in with.
+     * @return The connected client, its history has not been read yet.
+     * @throws IOException If the server cannot be reached or refuses the password.
+     */
+    public static Client connect(String host, int port, String password, String username) throws IOException {
+        Socket socket = new Socket(host, port);
+        try {
+            BufferedWriter tempWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            BufferedReader tempReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+            tempWriter.write(password);
+            tempWriter.newLine();
+            tempWriter.flush();
+
+            // Anything but OK is a wrong password or a rejected connection
+            String serverResponse = tempReader.readLine();
+            if (!"OK".equals(serverResponse)) {
+                throw new IOException(serverResponse == null ? "Server closed the connection." : serverResponse);
+            }
+
+            tempWriter.write(username);
+            tempWriter.newLine();
+            tempWriter.flush();
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return new Client(socket, username);
+    }
+
     /**
      * Main method to start the client.
      * It connects to the server and starts listening for messages.
@@ -241,6 +336,13 @@ public class Client {
                 // If the password is correct, the server will respond with "OK"
                 if ("OK".equals(serverResponse)) {
                     break; // Password is correct, exit the loop
+                } else if (serverResponse == null || serverResponse.startsWith(AdmissionControl.REJECTED_PREFIX)) {
+                    // The server turned the connection away or closed it
+                    System.out.println(serverResponse == null
+                            ? "Server closed the connection."
+                            : serverResponse.substring(AdmissionControl.REJECTED_PREFIX.length()));
+                    socket.close();
+                    return;
                 } else {
                     System.out.println("Incorrect password. Please try again.");
                 }
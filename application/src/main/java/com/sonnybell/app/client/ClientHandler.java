@@ -1,15 +1,43 @@
 package com.sonnybell.app.client;
 
 import com.sonnybell.app.chatfunctions.ChatHistory;
+import com.sonnybell.app.chatfunctions.ChatMessage;
+import com.sonnybell.app.chatfunctions.ChatRoom;
+import com.sonnybell.app.chatfunctions.DirectMessages;
+import com.sonnybell.app.chatfunctions.MessageKind;
+import com.sonnybell.app.chatfunctions.MessageLatency;
+import com.sonnybell.app.chatfunctions.MessageLogWriter;
+import com.sonnybell.app.chatfunctions.Presence;
+import com.sonnybell.app.chatfunctions.RoomRegistry;
+import com.sonnybell.app.chatfunctions.SearchIndex;
 import com.sonnybell.app.games.CapitalGame;
+import com.sonnybell.app.games.GameSessions;
+import com.sonnybell.app.games.Leaderboard;
+import com.sonnybell.app.server.AdmissionControl;
+import com.sonnybell.app.server.Cluster;
+import com.sonnybell.app.server.CountingOutputStream;
+import com.sonnybell.app.server.Metrics;
+import com.sonnybell.app.server.RateLimiter;
+import com.sonnybell.app.server.Replication;
+import com.sonnybell.app.server.ServerConfig;
 import java.io.*;
+import java.net.InetAddress;
 import java.net.Socket;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ClientHandler class to manage individual client connections.
@@ -22,9 +50,51 @@ public class ClientHandler implements Runnable {
     // Maintain a static set of all connected handlers
     private static final Set<ClientHandler> HANDLERS = new CopyOnWriteArraySet<>();
 
+    // Index of connected socket clients by username, used to route direct messages
+    private static final Map<String, ClientHandler> BY_USERNAME = new ConcurrentHashMap<>();
+
     // Make these static since they're used in static methods
     private static final String LOG_PATTERN = "%h/MessageLog.log";
-    private static final boolean APPEND_MODE = true;
+    // Each room other than the lobby logs to its own partition file
+    private static final String ROOM_LOG_PATTERN = "%h/MessageLog-%r.log";
+    // Players shown by the /leaderboard command
+    private static final int LEADERBOARD_SIZE = 10;
+    // Lines shown by the /search command
+    private static final int SEARCH_RESULTS = 10;
+    // Lines that may wait for a slow client before it is disconnected
+    private static final int OUTBOUND_CAPACITY = ServerConfig.getInt("chat.socket.outboundQueue", 1000);
+    // Threads writing queued lines to the clients, 0 for a virtual thread per drain
+    private static final int WRITER_THREADS = ServerConfig.getInt("chat.socket.writerThreads", 0);
+    // Time the quit line of an admin removal gets to reach the client
+    private static final long QUIT_TIMEOUT_MS = 1000;
+    private static final long QUIT_POLL_MS = 10;
+
+    // Metrics of socket clients, see the Metrics class
+    private static final Metrics.Counter MESSAGES_RECEIVED = Metrics.counter("chat_messages_in_total",
+            "Messages entering the chat, by source.", "source", "socket");
+    private static final Metrics.Counter MESSAGES_SENT = Metrics.counter("chat_messages_out_total",
+            "Lines sent to users, by transport.", "transport", "socket");
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.counter("chat_bytes_written_total",
+            "Bytes sent to users, by transport.", "transport", "socket");
+    private static final Metrics.Summary BROADCAST_ALL = Metrics.summary("chat_broadcast_duration_seconds",
+            "Time spent sending a broadcast to all of its recipients.", "scope", "all");
+    private static final Metrics.Counter SLOW_CONSUMERS = Metrics.counter("chat_slow_consumer_disconnects_total",
+            "Socket clients disconnected because they read slower than their messages arrived.");
+
+    // Shared by all clients, a client only takes a writer while it has lines waiting
+    private static final ExecutorService WRITERS = WRITER_THREADS > 0
+            ? Executors.newFixedThreadPool(WRITER_THREADS, task -> {
+                Thread thread = new Thread(task, "client-writer");
+                thread.setDaemon(true);
+                return thread;
+            })
+            : Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("client-writer-", 0).factory());
+
+    static {
+        Metrics.gauge("chat_socket_clients", "Socket clients that finished the handshake.", HANDLERS::size);
+        Metrics.gauge("chat_outbound_queue_size", "Lines waiting to be written to socket clients.",
+                () -> HANDLERS.stream().mapToLong(handler -> handler.outbound.size()).sum());
+    }
 
     /**
      * Static variable to keep track of the total number of connected clients.
@@ -42,12 +112,34 @@ public class ClientHandler implements Runnable {
 
     // Socket connected to the client
     private Socket socket;
+    // Remote address of the client, used for per address rate limits
+    private InetAddress address;
+    // Whether the client was told it is being throttled
+    private boolean throttled;
+    // Set once the connection is closed, so it is only cleaned up once
+    private final AtomicBoolean closed = new AtomicBoolean();
+    // System.nanoTime() of the last line received, checked by the ConnectionReaper
+    private volatile long lastSeen = System.nanoTime();
     // BufferedReader to read messages from the client
     private BufferedReader reader;
-    // BufferedWriter to send messages to the client
+    // BufferedWriter to send messages to the client, only used by drains once the history is sent
     private BufferedWriter writer;
+    // Lines waiting to be written to the client, so a slow client never holds up the sender
+    private final BlockingQueue<Delivery> outbound = new ArrayBlockingQueue<>(Math.max(1, OUTBOUND_CAPACITY));
+    // Lines queued and lines written so far, compared when waiting for the queue to drain
+    private final AtomicLong queuedLines = new AtomicLong();
+    private volatile long writtenLines;
+    // Set once the client fell too far behind, so it is only disconnected once
+    private final AtomicBoolean overflowed = new AtomicBoolean();
+    // Set while a drain of this client is waiting for or running on a writer,
+    // so at most one drain writes to the client at a time
+    private final AtomicBoolean draining = new AtomicBoolean();
+    // Lines taken from the queue by the running drain
+    private final List<Delivery> batch = new ArrayList<>();
     // Username of the client
     private String username;
+    // Room the client is currently subscribed to
+    private volatile ChatRoom room;
 
     /**
      * Constructor to initialize the client handler with a socket.
@@ -56,15 +148,19 @@ public class ClientHandler implements Runnable {
      */
     public ClientHandler(Socket socket) {
         this.socket = socket;
+        this.address = socket.getInetAddress();
 
         try {
-            this.writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            this.writer = new BufferedWriter(new OutputStreamWriter(
+                    new CountingOutputStream(socket.getOutputStream(), BYTES_WRITTEN)));
             this.reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
 
             // Reading username after password is validated
             this.username = reader.readLine();
             if (username == null) {
+                closed.set(true);
                 socket.close();
+                AdmissionControl.release(address);
                 return;
             }
 
@@ -86,14 +182,19 @@ public class ClientHandler implements Runnable {
 
                 // Adds the client to the list of usernames
                 clientNamesList.add(username);
+                Presence.joined(username);
             }
 
             // Add this client to the list of connected clients
             CLIENT.add(this);
             HANDLERS.add(this);
+            BY_USERNAME.put(username, this);
+
+            // Every client starts in the lobby room
+            room = RoomRegistry.joinSocket(this, null, RoomRegistry.LOBBY);
 
-            String message = "SERVER: " + username + " has joined the chat!";
-            broadcastMessage(message);
+            broadcastMessage(ChatMessage.of(MessageKind.JOIN, username,
+                    "SERVER: " + username + " has joined the chat!"));
         } catch (IOException e) {
             closeEverything();
         }
@@ -129,6 +230,7 @@ public class ClientHandler implements Runnable {
 
         // Adds the web client to the list of usernames
         clientNamesList.add(username);
+        Presence.joined(username);
 
         System.out.println("Web user " + username + " has connected!");
     }
@@ -145,6 +247,7 @@ public class ClientHandler implements Runnable {
 
         // Removes the web client from the list of usernames
         clientNamesList.remove(username);
+        Presence.left(username);
 
         System.out.println("Web user " + username + " has disconnected!");
     }
@@ -167,6 +270,43 @@ public class ClientHandler implements Runnable {
         return username;
     }
 
+    /**
+     * Static method to find a connected socket client by username.
+     *
+     * @param username The username to look up.
+     * @return The client handler, or null if no socket client has that username.
+     */
+    public static ClientHandler findByUsername(String username) {
+        return username == null ? null : BY_USERNAME.get(username);
+    }
+
+    /**
+     * Method to get the number of lines queued for the client but not written yet.
+     *
+     * @return The number of lines waiting for a writer.
+     */
+    public long getPendingLines() {
+        return queuedLines.get() - writtenLines;
+    }
+
+    /**
+     * Method to get the time the last line was received from the client.
+     *
+     * @return The System.nanoTime() of the last line received.
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Method to get the room the client is currently in.
+     *
+     * @return The current room of the client.
+     */
+    public ChatRoom getRoom() {
+        return room;
+    }
+
     /**
      * Method to get the total number of connected clients.
      *
@@ -189,12 +329,34 @@ public class ClientHandler implements Runnable {
     @Override
     public void run() {
         String message;
-        while (socket.isConnected()) {
+        // isConnected() stays true after the peer goes away, so check isClosed()
+        while (!socket.isClosed()) {
             try {
                 message = reader.readLine();
                 if (message == null) {
                     break;
                 }
+                // Stamp the line, its latency is measured from here
+                long received = System.nanoTime();
+                lastSeen = received;
+
+                // Answer heartbeats straight away, they are not chat messages
+                if ("PING".equals(message)) {
+                    sendMessage("PONG");
+                    continue;
+                }
+                MESSAGES_RECEIVED.inc();
+
+                // Drop lines over the rate limit before doing any other work,
+                // and only tell the client once until it slows down
+                if (!RateLimiter.allow(address, username)) {
+                    if (!throttled) {
+                        throttled = true;
+                        sendMessage("SERVER: You are sending messages too fast. Please slow down.");
+                    }
+                    continue;
+                }
+                throttled = false;
 
                 // Skip logging empty or whitespace-only messages
                 if (message.trim().isEmpty()) {
@@ -213,15 +375,16 @@ public class ClientHandler implements Runnable {
                     actualMessage = message.substring(prefix.length());
                 }
 
-                // Check for game commands on the actual message content
+                // Check for commands on the actual message content
                 if (actualMessage.startsWith("/")) {
-                    handleGameCommands(actualMessage);
+                    handleCommands(actualMessage);
                     continue;
                 }
 
-                // Check if it's an answer to the current question
-                if (CapitalGame.isGameActive()) {
-                    boolean wasCorrectAnswer = CapitalGame.checkAnswer(username, actualMessage);
+                // Check if it's an answer to the question of the game in this room
+                CapitalGame game = GameSessions.find(room);
+                if (game != null && game.isGameActive()) {
+                    boolean wasCorrectAnswer = game.checkAnswer(username, actualMessage);
                     if (wasCorrectAnswer) {
                         // Don't broadcast the message if it was a correct answer
                         // The game will handle the announcement
@@ -230,7 +393,9 @@ public class ClientHandler implements Runnable {
                 }
 
                 // Regular chat message - only log if it's not empty/whitespace
-                broadcastMessage(message); // Broadcast the original formatted message
+                // Broadcast the original formatted message
+                MessageLatency.CLASSIFY.recordSince(received);
+                broadcastMessage(ChatMessage.chat(username, message, received));
 
             } catch (IOException e) {
                 closeEverything();
@@ -242,30 +407,62 @@ public class ClientHandler implements Runnable {
     }
 
     /**
-     * Handle game-related commands.
+     * Handle chat commands.
+     * The first word selects the command and the rest of the line is its argument.
      */
-    private void handleGameCommands(String command) {
-        switch (command.toLowerCase()) {
+    private void handleCommands(String command) {
+        String[] parts = command.trim().split("\\s+", 2);
+        String argument = parts.length > 1 ? parts[1].trim() : "";
+        switch (parts[0].toLowerCase()) {
+            case "/join":
+                joinRoom(argument);
+                break;
+            case "/leave":
+                joinRoom(RoomRegistry.LOBBY);
+                break;
+            case "/msg":
+                sendDirectMessage(argument);
+                break;
+            case "/rooms":
+                sendMessage("ROOM: You are in #" + room.getName());
+                for (ChatRoom chatRoom : RoomRegistry.listRooms()) {
+                    sendMessage("ROOM: #" + chatRoom.getName() + " (" + chatRoom.getMemberCount() + " users)");
+                }
+                break;
             case "/startgame":
-                CapitalGame.startGame();
+                GameSessions.startGame(room);
                 break;
             case "/stopgame":
-                CapitalGame.stopGame();
+                GameSessions.stopGame(room);
                 break;
             case "/scores":
-                CapitalGame.showScores();
+                GameSessions.showScores(room);
+                break;
+            case "/leaderboard":
+                String leaderboard = Leaderboard.allTime().format(LEADERBOARD_SIZE);
+                // Send the all-time leaderboard only to the user who asked for it
+                sendMessage("LEADERBOARD: " + (leaderboard.isEmpty() ? "No scores yet!" : leaderboard));
+                break;
+            case "/search":
+                searchMessages(argument);
                 break;
             case "/gamestatus":
-                String status = CapitalGame.getGameStatus();
+                String status = GameSessions.getGameStatus(room);
                 // Send status only to the user who requested it
                 sendMessage("GAME: " + status);
                 break;
             case "/help":
                 sendMessage("GAME: Available commands:");
-                sendMessage("GAME: /startgame - Start a new capital game");
-                sendMessage("GAME: /stopgame - Stop the current game");
+                sendMessage("GAME: /startgame - Start a new capital game in your room");
+                sendMessage("GAME: /stopgame - Stop the game in your room");
                 sendMessage("GAME: /scores - Show current scores");
                 sendMessage("GAME: /gamestatus - Check game status");
+                sendMessage("GAME: /leaderboard - Show the all-time best players");
+                sendMessage("GAME: /join <room> - Join or create a chat room");
+                sendMessage("GAME: /leave - Go back to the #" + RoomRegistry.LOBBY + " room");
+                sendMessage("GAME: /rooms - List chat rooms");
+                sendMessage("GAME: /msg <user> <text> - Send a private message");
+                sendMessage("GAME: /search [@user] <words> - Find earlier chat lines");
                 sendMessage("GAME: /help - Show this help message");
                 break;
             default:
@@ -273,108 +470,238 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    /**
+     * Moves this client into another room.
+     * The old room is told the client left, the new room is told the client
+     * joined, and the client receives the history of the new room.
+     *
+     * @param roomName The name of the room typed by the user.
+     */
+    private void joinRoom(String roomName) {
+        String target = RoomRegistry.normalizeName(roomName);
+        if (target == null) {
+            sendMessage("ROOM: Room names may only contain letters, digits, '-' and '_'.");
+            return;
+        }
+        ChatRoom current = room;
+        if (current.getName().equals(target)) {
+            sendMessage("ROOM: You are already in #" + target);
+            return;
+        }
+
+        current.broadcast(ChatMessage.of(MessageKind.LEAVE, username,
+                "SERVER: " + username + " has left #" + current.getName() + "."), this);
+        room = RoomRegistry.joinSocket(this, current, target);
+
+        sendMessage("ROOM: You joined #" + room.getName());
+        for (String msg : room.getHistory().snapshot()) {
+            sendMessage(msg);
+        }
+        room.broadcast(ChatMessage.of(MessageKind.JOIN, username,
+                "SERVER: " + username + " has joined #" + room.getName() + "."), this);
+    }
+
+    /**
+     * Sends a private message to another user.
+     *
+     * @param argument The recipient followed by the text of the message.
+     */
+    private void sendDirectMessage(String argument) {
+        String[] parts = argument.split("\\s+", 2);
+        if (parts.length < 2 || parts[1].isBlank()) {
+            sendMessage("DM: Usage: /msg <user> <text>");
+            return;
+        }
+        String recipient = parts[0];
+        if (recipient.equals(username)) {
+            sendMessage("DM: You cannot send a message to yourself.");
+            return;
+        }
+        if (DirectMessages.send(username, recipient, parts[1])) {
+            sendMessage("DM to " + recipient + ": " + parts[1]);
+        } else {
+            sendMessage("DM: User " + recipient + " is not online.");
+        }
+    }
+
+    /**
+     * Searches earlier chat lines and sends the newest matches to this client.
+     * A word starting with @ only matches lines sent by that user.
+     *
+     * @param argument The words to search for.
+     */
+    private void searchMessages(String argument) {
+        String user = null;
+        StringBuilder words = new StringBuilder();
+        for (String word : argument.split("\\s+")) {
+            if (word.startsWith("@") && word.length() > 1) {
+                user = word.substring(1);
+            } else {
+                words.append(word).append(' ');
+            }
+        }
+        if (user == null && SearchIndex.terms(words.toString()).isEmpty()) {
+            sendMessage("SEARCH: Usage: /search [@user] <words>");
+            return;
+        }
+        try {
+            SearchIndex.Result result = SearchIndex.search(words.toString(), user, Long.MIN_VALUE, Long.MAX_VALUE,
+                    SEARCH_RESULTS);
+            sendMessage("SEARCH: " + result.getTotal() + " matching lines"
+                    + (result.getTotal() > SEARCH_RESULTS ? ", newest " + SEARCH_RESULTS + " shown" : ""));
+            for (SearchIndex.Hit hit : result.getHits()) {
+                sendMessage("SEARCH: [" + new java.util.Date(hit.getTimestamp()) + "] #" + hit.getRoom() + " "
+                        + hit.getText());
+            }
+        } catch (IOException e) {
+            sendMessage("SEARCH: The search failed, please try again.");
+        }
+    }
+
     /**
      * Send a message to this specific client only.
+     * The message is queued and written by a shared writer, so this never waits
+     * for the network. A client whose queue is full is disconnected.
      *
      * @param message The message to send.
      */
     public void sendMessage(String message) {
+        send(new Delivery(message));
+    }
+
+    /**
+     * Send a delivery to this specific client only.
+     * A broadcast queues the same delivery for all of its recipients, which
+     * finishes it once the last of them has been written to.
+     *
+     * @param delivery The delivery to send.
+     */
+    public void send(Delivery delivery) {
+        if (closed.get()) {
+            return;
+        }
+        delivery.retain();
+        if (outbound.offer(delivery)) {
+            queuedLines.incrementAndGet();
+            if (draining.compareAndSet(false, true)) {
+                WRITERS.execute(this::drain);
+            }
+            return;
+        }
+        delivery.release();
+        // The client reads slower than the chat moves, drop it instead of holding up everyone else.
+        // Closing the socket ends its reader thread and fails its drain, which clean up the rest.
+        if (overflowed.compareAndSet(false, true)) {
+            SLOW_CONSUMERS.inc();
+            System.out.println("Disconnecting " + username + ", " + outbound.size() + " lines behind.");
+            try {
+                socket.close();
+            } catch (IOException e) {
+                closeEverything();
+            }
+        }
+    }
+
+    /**
+     * Writes the queued lines to the client until its queue is empty.
+     * Every line waiting at the same time is written with a single flush. A line
+     * queued while the drain is finishing is picked up by the same drain, or by
+     * the next one its sender starts.
+     */
+    private void drain() {
         try {
-            writer.write(message);
-            writer.newLine();
-            writer.flush();
+            do {
+                outbound.drainTo(batch);
+                if (!batch.isEmpty()) {
+                    for (Delivery delivery : batch) {
+                        writer.write(delivery.getText());
+                        writer.newLine();
+                    }
+                    writer.flush();
+                    MESSAGES_SENT.add(batch.size());
+                    writtenLines += batch.size();
+                    release(batch);
+                }
+                draining.set(false);
+            } while (!outbound.isEmpty() && !closed.get() && draining.compareAndSet(false, true));
         } catch (IOException e) {
+            release(batch);
             closeEverything();
         }
     }
 
+    /**
+     * Finishes the deliveries of a list, written or not, and clears it.
+     */
+    private static void release(List<Delivery> deliveries) {
+        for (Delivery delivery : deliveries) {
+            delivery.release();
+        }
+        deliveries.clear();
+    }
+
     /**
      * Static method to broadcast a message to ALL connected clients.
      * This is used for game messages and server announcements.
+     * Join and leave messages are already recorded by their producer, so they
+     * are only sent. The message is also relayed to the other nodes of the
+     * cluster.
      *
      * @param message The message to be sent to all clients.
      */
-    public static void broadcastMessageToAll(String message) {
-        boolean isJoinOrLeave = message.startsWith("SERVER: ")
-                &&
-                (message.contains("has joined the chat") || message.contains("has left the chat"));
-
-        // Decide on a tag to label this message
-        // This is used to categorize the message for logging purposes
-        String tag;
-        if (message.startsWith("GAME:")
-                ||
-                message.startsWith("QUESTION:")
-                ||
-                message.startsWith("CORRECT!")
-                ||
-                message.startsWith("TIME'S UP!")
-                ||
-                message.startsWith("CAPITAL GAME STARTED!")
-                ||
-                message.startsWith("GAME OVER!")
-                ||
-                message.startsWith("CURRENT SCORES:")) {
-            tag = "GameMessages";
-        } else if (message.startsWith("SERVER: ") && message.contains("has been removed by an admin")) {
-            tag = "Moderation";
-        } else if (message.contains(":") && !isJoinOrLeave) {
-            tag = "UserChats";
-        } else if (isJoinOrLeave) {
-            tag = "HelloUser";
-        } else {
-            tag = "Server";
+    public static void broadcastMessageToAll(ChatMessage message) {
+        if (!message.getKind().isPresence()) {
+            long logStart = System.nanoTime();
+            logMessage(message);
+            long logged = System.nanoTime();
+            addToHistory(message, RoomRegistry.lobby());
+            MessageLatency.LOG_ENQUEUE.record(logged - logStart);
+            MessageLatency.HISTORY_APPEND.recordSince(logged);
         }
 
-        // Only log and add to history if NOT already handled (system events are handled
-        // in WebChat)
-        if (!isJoinOrLeave) {
-            logMessage(message, tag);
-            ChatHistory.addMessageToHistory(message);
+        long start = System.nanoTime();
+        // The fan-out and end to end latency are recorded once the last client has been written to
+        Delivery delivery = new Delivery(message.getText(), message.getReceivedNanos());
+        for (ClientHandler handler : CLIENT) {
+            handler.send(delivery);
         }
+        delivery.release();
+        BROADCAST_ALL.record(System.nanoTime() - start);
+        Cluster.relay(message, null);
+    }
 
+    /**
+     * Static method to record a message broadcast to all clients on another node
+     * of the cluster and send it to all connected clients, without relaying it
+     * again. Join and leave messages are recorded here too, as their producer
+     * is on the other node.
+     *
+     * @param message The message to be sent to all clients.
+     */
+    public static void deliverRelayed(ChatMessage message) {
+        logMessage(message);
+        addToHistory(message, RoomRegistry.lobby());
+        String text = message.getText();
         for (ClientHandler handler : CLIENT) {
-            try {
-                handler.writer.write(message);
-                handler.writer.newLine();
-                handler.writer.flush();
-            } catch (IOException e) {
-                handler.closeEverything();
-            }
+            handler.sendMessage(text);
         }
     }
 
     /**
-     * Method to broadcast a message to all connected clients except the sender.
+     * Method to broadcast a message to all clients in the sender's room except
+     * the sender.
      * This is used for regular chat messages.
      *
      * @param message The message to be sent.
      */
-    public void broadcastMessage(String message) {
-        // Decide on a tag to label this message
-        String tag;
-        if (message.contains("has joined the chat!")) {
-            tag = "HelloUser";
-        } else if (message.contains("has left the chat.")) {
-            tag = "GoodbyeUser";
-        } else {
-            tag = "UserChats";
-        }
-
-        ChatHistory.addMessageToHistory(message);
-        logMessage(message, tag);
-
-        for (ClientHandler client : CLIENT) {
-            try {
-                if (!client.username.equals(this.username)) {
-                    client.writer.write(message);
-                    client.writer.newLine();
-                    client.writer.flush();
-                }
-            } catch (IOException e) {
-                client.closeEverything();
-            }
+    public void broadcastMessage(ChatMessage message) {
+        // Only the members of the sender's room receive the message
+        ChatRoom current = room;
+        if (current == null) {
+            // The handshake failed before the client joined a room
+            current = RoomRegistry.lobby();
         }
+        current.broadcast(message, this);
     }
 
     /**
@@ -385,6 +712,10 @@ public class ClientHandler implements Runnable {
         // Removes the client from the server
         CLIENT.remove(this);
         HANDLERS.remove(this);
+        if (username != null && BY_USERNAME.remove(username, this)) {
+            DirectMessages.forget(username);
+            RateLimiter.forgetUser(username);
+        }
 
         // Use centralized tracking for socket clients
         synchronized (ClientHandler.class) {
@@ -392,18 +723,34 @@ public class ClientHandler implements Runnable {
             clientTotal--;
             // Removes the client from the list of usernames
             clientNamesList.remove(username);
+            Presence.left(username);
         }
 
-        String message = "SERVER: " + username + " has left the chat.";
-        broadcastMessage(message);
+        broadcastMessage(ChatMessage.of(MessageKind.LEAVE, username, "SERVER: " + username + " has left the chat."));
+        RoomRegistry.leaveSocket(this, room);
     }
 
     /**
      * Method to close all resources associated with the client.
+     * Only the first call has any effect, later calls return straight away.
+     * The admission slot of the connection is given back here.
      */
     public void closeEverything() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        AdmissionControl.release(address);
         removeClientHandler();
+        // Lines that will never be written no longer hold up their broadcasts
+        List<Delivery> unsent = new ArrayList<>();
+        outbound.drainTo(unsent);
+        release(unsent);
         try {
+            // The socket goes first, a drain stuck on a client that stopped reading is released by it
+            if (socket != null) {
+                socket.close();
+            }
+
             if (reader != null) {
                 reader.close();
             }
@@ -412,51 +759,75 @@ public class ClientHandler implements Runnable {
                 writer.close();
             }
 
-            if (socket != null) {
-                socket.close();
-            }
-
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
     /**
-     * Static method to log messages to a file.
+     * Static method to log messages to the main log file.
+     * The message is tagged according to its kind.
      *
      * @param message The message to be logged.
-     * @param tag     The tag to associate with the message.
      */
-    public static void logMessage(String message, String tag) {
-        String projectDir = System.getProperty("user.dir");
-        if (projectDir == null) {
+    public static void logMessage(ChatMessage message) {
+        logMessage(message, null);
+    }
+
+    /**
+     * Static method to log messages to a log partition.
+     * Rooms other than the lobby log to their own file, MessageLog-room.log.
+     * The line is written by the MessageLogWriter in the background, chat
+     * lines are added to the SearchIndex, and the message is shipped to the
+     * standby servers by the Replication class.
+     *
+     * @param message   The message to be logged.
+     * @param partition The log partition, or null for the main log file.
+     */
+    public static void logMessage(ChatMessage message, String partition) {
+        String filePath = logFilePath(partition);
+        if (filePath == null) {
             System.err.println("Could not resolve project directory.");
             return;
         }
+        String timestamped = "[" + new java.util.Date(message.getTimestamp()) + "] ["
+                + message.getKind().getLogTag() + "] " + message.getText();
+        MessageLogWriter.append(filePath, message.getTimestamp(), timestamped);
+        SearchIndex.add(message, partition == null ? RoomRegistry.LOBBY : partition);
+        Replication.logged(message, partition);
+    }
 
-        String filePath = LOG_PATTERN.replace("%h", projectDir);
-        File file = new File(filePath);
-
-        if (!file.exists()) {
-            try {
-                boolean created = file.createNewFile();
-                if (created) {
-                    System.out.println("Log file created.");
-                }
-            } catch (IOException e) {
-                System.err.println("Failed to create log file.");
-                e.printStackTrace();
-                return;
-            }
+    /**
+     * Static method to add a message to the history of a room.
+     * The message is shipped to the standby servers by the Replication class
+     * while the history is locked, so they add the messages of a room in the
+     * same order.
+     *
+     * @param message The message to be added.
+     * @param room    The room, the lobby for messages to everyone.
+     */
+    public static void addToHistory(ChatMessage message, ChatRoom room) {
+        ChatHistory history = room.getHistory();
+        synchronized (history) {
+            history.add(message);
+            Replication.historyAdded(message, room.getName());
         }
+    }
 
-        try (FileWriter fw = new FileWriter(filePath, APPEND_MODE)) {
-            String timestamped = "[" + new java.util.Date() + "] [" + tag + "] " + message;
-            fw.write(timestamped + System.lineSeparator());
-        } catch (IOException e) {
-            System.err.println("Failed to write to log file.");
-            e.printStackTrace();
+    /**
+     * Gets the file a log partition is appended to.
+     *
+     * @param partition The log partition, or null for the main log file.
+     * @return The path of the file, or null if the project directory is unknown.
+     */
+    public static String logFilePath(String partition) {
+        String projectDir = System.getProperty("user.dir");
+        if (projectDir == null) {
+            return null;
         }
+        return partition == null
+                ? LOG_PATTERN.replace("%h", projectDir)
+                : ROOM_LOG_PATTERN.replace("%h", projectDir).replace("%r", partition);
     }
 
     /**
@@ -466,23 +837,22 @@ public class ClientHandler implements Runnable {
      * resources for this client.
      */
     public void initiateShutdownByAdmin() {
-        try {
-            if (socket != null && !socket.isClosed() && writer != null) {
-                writer.write("quit"); // Send quit command to the client
-                writer.newLine();
-                writer.flush();
-                // Log that admin initiated quit, if desired
-                // logMessage("Admin initiated quit for user: " + username, "Moderation");
+        if (socket != null && !socket.isClosed()) {
+            sendMessage("quit"); // Send quit command to the client
+            // Give the drain a moment to send it, the client might be unresponsive
+            long queued = queuedLines.get();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(QUIT_TIMEOUT_MS);
+            try {
+                while (writtenLines < queued && !socket.isClosed() && System.nanoTime() - deadline < 0) {
+                    TimeUnit.MILLISECONDS.sleep(QUIT_POLL_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        } catch (IOException e) {
-            System.err.println("ClientHandler: Error sending 'quit' message during admin removal for " + username + ": "
-                    + e.getMessage());
-            // Continue with closing everything, as the client might be unresponsive
-        } finally {
-            // Proceed to close everything on the server side for this client
-            // This will also handle removing the client from lists and broadcasting their
-            // departure
-            closeEverything();
         }
+        // Proceed to close everything on the server side for this client
+        // This will also handle removing the client from lists and broadcasting their
+        // departure
+        closeEverything();
     }
 }
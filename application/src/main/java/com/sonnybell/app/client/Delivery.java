@@ -0,0 +1,81 @@
+package com.sonnybell.app.client;
+
+import com.sonnybell.app.chatfunctions.MessageLatency;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivery class carrying one line to the socket clients it is queued for.
+ * A broadcast queues the same delivery for every recipient. A timed delivery
+ * counts the recipients whose write has not finished yet, and the last one to
+ * finish records the fan-out and end to end latency of the message, so both
+ * are measured up to the last socket write instead of up to the last enqueue.
+ * The broadcaster holds the delivery until it has been queued for everyone,
+ * so an early write cannot finish it before the last recipient got it.
+ */
+public final class Delivery {
+
+    private final String text;
+    // Whether the latency of the message is recorded once the delivery finishes
+    private final boolean timed;
+    // System.nanoTime() of the start of the fan-out and of the arrival of the message
+    private final long start;
+    private final long receivedNanos;
+    // Recipients still to be written to, plus the hold of the broadcaster
+    private final AtomicInteger pending = new AtomicInteger(1);
+
+    /**
+     * Constructor to create a delivery of a line whose latency is not recorded.
+     *
+     * @param text The line to send.
+     */
+    public Delivery(String text) {
+        this.text = text;
+        this.timed = false;
+        this.start = 0;
+        this.receivedNanos = 0;
+    }
+
+    /**
+     * Constructor to create a delivery of a message whose latency is recorded.
+     * The fan-out is timed from here.
+     *
+     * @param text          The line to send.
+     * @param receivedNanos The System.nanoTime() the message entered the server.
+     */
+    public Delivery(String text, long receivedNanos) {
+        this.text = text;
+        this.timed = true;
+        this.start = System.nanoTime();
+        this.receivedNanos = receivedNanos;
+    }
+
+    /**
+     * Gets the line to send.
+     *
+     * @return The line, without line separator.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Counts one more recipient, called before the delivery is queued for it.
+     */
+    void retain() {
+        if (timed) {
+            pending.incrementAndGet();
+        }
+    }
+
+    /**
+     * Counts one recipient as done, or the broadcaster once it has queued the
+     * delivery for everyone. The last release records the latency.
+     */
+    public void release() {
+        if (timed && pending.decrementAndGet() == 0) {
+            long finished = System.nanoTime();
+            MessageLatency.FAN_OUT.record(finished - start);
+            MessageLatency.END_TO_END.record(finished - receivedNanos);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.sonnybell.app.games;
+
+import com.sonnybell.app.server.ServerConfig;
+import java.text.Normalizer;
+import java.util.Arrays;
+
+/**
+ * AnswerMatcher class deciding whether a chat line answers a question.
+ * The accepted answers of a question are normalized once when the question is
+ * asked: letters are folded to lower case, accents are removed and everything
+ * that is not a letter or digit is dropped, so "Brasilia", "brasília" and
+ * "BRASÍLIA!" all match.
+ * Every chat line sent while a game runs is checked, so matching is done
+ * without allocating: the line is folded into a per-thread buffer, lines of
+ * the wrong length are rejected straight away, and the characters are only
+ * compared when the length and hash match an accepted answer.
+ * Answers must be typed exactly by default. Small typos can be accepted with
+ * the chat.game.maxTypos setting, which is the number of edits allowed for
+ * answers of at least five letters.
+ */
+final class AnswerMatcher {
+
+    // Accepted answers in a pack are separated by '|', the first one is shown to players
+    private static final char ALIAS_SEPARATOR = '|';
+    private static final int MAX_TYPOS = Math.max(0, ServerConfig.getInt("chat.game.maxTypos", 0));
+    // Shorter answers must be typed exactly, one edit would make them a different word
+    private static final int MIN_TYPO_LENGTH = 5;
+    // Characters below this are folded with a precomputed table
+    private static final int FOLD_TABLE_SIZE = 0x250;
+    private static final int HASH_MULTIPLIER = 31;
+    private static final char[] FOLD_TABLE = new char[FOLD_TABLE_SIZE];
+    // Initial size of the per-thread buffers, they grow for longer answers
+    private static final int BUFFER_SIZE = 64;
+
+    // Per-thread buffers, so checking a line does not allocate
+    private static final ThreadLocal<char[]> LINE_BUFFER = ThreadLocal.withInitial(() -> new char[BUFFER_SIZE]);
+    private static final ThreadLocal<int[][]> DISTANCE_ROWS = ThreadLocal.withInitial(() -> new int[2][BUFFER_SIZE]);
+
+    static {
+        for (int c = 0; c < FOLD_TABLE_SIZE; c++) {
+            // Decomposing splits an accented letter into the letter and its accent
+            String decomposed = Normalizer.normalize(String.valueOf((char) c), Normalizer.Form.NFD);
+            char base = decomposed.charAt(0);
+            FOLD_TABLE[c] = Character.isLetterOrDigit(base) ? Character.toLowerCase(base) : 0;
+        }
+    }
+
+    private final String displayAnswer;
+    private final char[][] answers;
+    private final int[] hashes;
+    private final int longest;
+    private final int maxTypos;
+
+    private AnswerMatcher(String displayAnswer, char[][] answers, int maxTypos) {
+        this.displayAnswer = displayAnswer;
+        this.answers = answers;
+        this.maxTypos = maxTypos;
+        this.hashes = new int[answers.length];
+        int max = 0;
+        for (int i = 0; i < answers.length; i++) {
+            hashes[i] = hash(answers[i], answers[i].length);
+            max = Math.max(max, answers[i].length);
+        }
+        this.longest = max;
+    }
+
+    /**
+     * Creates a matcher for the answer field of a question pack, accepting the
+     * typos allowed by the chat.game.maxTypos setting.
+     *
+     * @param answerField The accepted answers, separated by '|'.
+     * @return A matcher for the question.
+     */
+    static AnswerMatcher of(String answerField) {
+        return of(answerField, MAX_TYPOS);
+    }
+
+    /**
+     * Creates a matcher for the answer field of a question pack.
+     *
+     * @param answerField The accepted answers, separated by '|'.
+     * @param maxTypos    The edits allowed in answers of at least five letters.
+     * @return A matcher for the question.
+     */
+    static AnswerMatcher of(String answerField, int maxTypos) {
+        String[] aliases = answerField.split("\\" + ALIAS_SEPARATOR);
+        char[][] answers = new char[aliases.length][];
+        int count = 0;
+        for (String alias : aliases) {
+            char[] folded = fold(alias);
+            if (folded.length > 0) {
+                answers[count++] = folded;
+            }
+        }
+        return new AnswerMatcher(aliases[0].trim(), Arrays.copyOf(answers, count), Math.max(0, maxTypos));
+    }
+
+    /**
+     * Gets the answer shown to players.
+     *
+     * @return The first accepted answer as written in the pack.
+     */
+    String getDisplayAnswer() {
+        return displayAnswer;
+    }
+
+    /**
+     * Checks whether a chat line is one of the accepted answers.
+     *
+     * @param line The chat line typed by the player.
+     * @return true if the line matches an accepted answer, false otherwise.
+     */
+    boolean matches(String line) {
+        if (answers.length == 0) {
+            return false;
+        }
+        // Lines longer than any answer plus the allowed typos can never match
+        int limit = longest + maxTypos;
+        char[] buffer = LINE_BUFFER.get();
+        if (buffer.length < limit) {
+            buffer = new char[limit];
+            LINE_BUFFER.set(buffer);
+        }
+
+        int length = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char folded = foldChar(line.charAt(i));
+            if (folded != 0) {
+                if (length == limit) {
+                    return false;
+                }
+                buffer[length++] = folded;
+            }
+        }
+        if (length == 0) {
+            return false;
+        }
+
+        int hash = hash(buffer, length);
+        for (int i = 0; i < answers.length; i++) {
+            char[] answer = answers[i];
+            if (answer.length == length && hashes[i] == hash
+                    && Arrays.equals(answer, 0, length, buffer, 0, length)) {
+                return true;
+            }
+        }
+        if (maxTypos == 0) {
+            return false;
+        }
+        for (char[] answer : answers) {
+            if (answer.length >= MIN_TYPO_LENGTH && Math.abs(answer.length - length) <= maxTypos
+                    && withinDistance(answer, buffer, length, maxTypos)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the edit distance between an answer and a folded line is at
+     * most a bound, giving up as soon as every path exceeds it.
+     */
+    private static boolean withinDistance(char[] answer, char[] line, int lineLength, int bound) {
+        int[][] rows = DISTANCE_ROWS.get();
+        if (rows[0].length <= answer.length) {
+            rows = new int[2][answer.length + 1];
+            DISTANCE_ROWS.set(rows);
+        }
+        int[] previous = rows[0];
+        int[] current = rows[1];
+        for (int j = 0; j <= answer.length; j++) {
+            previous[j] = j;
+        }
+
+        for (int i = 1; i <= lineLength; i++) {
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= answer.length; j++) {
+                int cost = line[i - 1] == answer[j - 1] ? 0 : 1;
+                int value = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                current[j] = value;
+                rowMin = Math.min(rowMin, value);
+            }
+            if (rowMin > bound) {
+                return false;
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[answer.length] <= bound;
+    }
+
+    private static char[] fold(String text) {
+        char[] folded = new char[text.length()];
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = foldChar(text.charAt(i));
+            if (c != 0) {
+                folded[length++] = c;
+            }
+        }
+        return Arrays.copyOf(folded, length);
+    }
+
+    /**
+     * Folds one character to its lower case letter without accents.
+     *
+     * @return The folded character, or 0 if the character is ignored.
+     */
+    private static char foldChar(char c) {
+        if (c < FOLD_TABLE_SIZE) {
+            return FOLD_TABLE[c];
+        }
+        return Character.isLetterOrDigit(c) ? Character.toLowerCase(c) : 0;
+    }
+
+    private static int hash(char[] text, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = HASH_MULTIPLIER * hash + text[i];
+        }
+        return hash;
+    }
+}
@@ -1,15 +1,24 @@
 package com.sonnybell.app.games;
 
-import com.sonnybell.app.client.ClientHandler;
+import com.sonnybell.app.chatfunctions.ChatMessage;
+import com.sonnybell.app.chatfunctions.ChatRoom;
+import com.sonnybell.app.server.Metrics;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Capital Game is a multiplayer game that involves players answering questions
  * about world capitals.
- * Any connected player can answer the current question, and the game keeps
- * track of scores.
+ * Each game is a session played in one chat room, and any member of that room
+ * can answer the current question. The game keeps track of its participants
+ * and their scores.
+ * Sessions are created and looked up through GameSessions, so many games can
+ * run at the same time in different rooms without sharing any state.
+ * Questions come from the shared QuestionBank, and every game asks them in its
+ * own shuffled order without repeats.
  */
 public final class CapitalGame {
 
@@ -32,266 +41,325 @@ public final class CapitalGame {
     // 30 seconds
     private static final long QUESTION_TIMEOUT = 30000;
 
-    // Static final collections
-    private static final List<String> QUESTIONS = new CopyOnWriteArrayList<>();
-    private static final List<String> ANSWERS = new CopyOnWriteArrayList<>();
-    private static final Map<String, Integer> PLAYER_SCORES = new ConcurrentHashMap<>();
+    // Value of openQuestion while no question can be answered
+    private static final int NO_QUESTION = 0;
+
+    // Number of players shown on the scoreboard
+    private static final int SCOREBOARD_SIZE = 10;
+
+    private static final Metrics.Counter MESSAGES_IN = Metrics.counter("chat_messages_in_total",
+            "Messages entering the chat, by source.", "source", "game");
+
+    // Room the game is played in, all announcements go to this room
+    private final ChatRoom room;
+    // Users that have sent a line to the game while it was running
+    private final Set<String> participants = ConcurrentHashMap.newKeySet();
+
+    // Guards the game state and every state transition
+    private final Object lock = new Object();
+    // Scheduled steps of the running game, cancelled when the game stops
+    private final List<ScheduledFuture<?>> pending = new ArrayList<>();
+
+    // Number of the question that can be answered right now, the first player to
+    // swap it to NO_QUESTION wins the question, so exactly one correct answer scores
+    private final AtomicInteger openQuestion = new AtomicInteger(NO_QUESTION);
+
+    private volatile String currentQuestion = "";
+    // Accepted answers of the current question, set before the question is opened
+    private volatile AnswerMatcher currentAnswer;
+    private volatile GameState state = GameState.IDLE;
+    // Increases with every question asked, so a late timeout cannot close a newer question
+    private int questionNumber;
+    // Increases with every started or stopped game, so steps of an old game do nothing
+    private int generation;
+    // Timeout of the open question, cancelled when someone answers
+    private ScheduledFuture<?> questionTimeout;
+    // Shuffled order of the questions of the current game
+    private QuestionOrder order;
+    // Points scored in the current game
+    private volatile Leaderboard scores = new Leaderboard();
 
-    // Static variables
-    private static String currentQuestion = "";
-    private static String currentAnswer = "";
-    private static boolean gameActive;
-    private static int currentQuestionIndex = -1;
-
-    // Static initializer block
-    static {
-        initializeQuestionsAndAnswers();
+    /**
+     * Constructor to create an idle game session for a room.
+     * Sessions are created by GameSessions.
+     *
+     * @param room The room the game is played in.
+     */
+    CapitalGame(ChatRoom room) {
+        this.room = room;
     }
 
-    // Private constructor to prevent instantiation
-    private CapitalGame() {
-        // Utility class
+    /**
+     * Gets the room the game is played in.
+     *
+     * @return The room of the game.
+     */
+    public ChatRoom getRoom() {
+        return room;
     }
 
-    private static void initializeQuestionsAndAnswers() {
-        // Questions
-        QUESTIONS.add("What is the capital of France?");
-        QUESTIONS.add("What is the capital of Japan?");
-        QUESTIONS.add("What is the capital of Brazil?");
-        QUESTIONS.add("What is the capital of Canada?");
-        QUESTIONS.add("What is the capital of Australia?");
-        QUESTIONS.add("What is the capital of Germany?");
-        QUESTIONS.add("What is the capital of Egypt?");
-        QUESTIONS.add("What is the capital of India?");
-        QUESTIONS.add("What is the capital of Russia?");
-        QUESTIONS.add("What is the capital of South Africa?");
-        QUESTIONS.add("What is the capital of Italy?");
-        QUESTIONS.add("What is the capital of China?");
-        QUESTIONS.add("What is the capital of Mexico?");
-        QUESTIONS.add("What is the capital of Argentina?");
-        QUESTIONS.add("What is the capital of South Korea?");
-        QUESTIONS.add("What is the capital of Spain?");
-        QUESTIONS.add("What is the capital of United Kingdom?");
-        QUESTIONS.add("What is the capital of United States?");
-        QUESTIONS.add("What is the capital of Saudi Arabia?");
-        QUESTIONS.add("What is the capital of Turkey?");
-
-        // Corresponding answers
-        ANSWERS.add("Paris");
-        ANSWERS.add("Tokyo");
-        ANSWERS.add("Brasília");
-        ANSWERS.add("Ottawa");
-        ANSWERS.add("Canberra");
-        ANSWERS.add("Berlin");
-        ANSWERS.add("Cairo");
-        ANSWERS.add("New Delhi");
-        ANSWERS.add("Moscow");
-        ANSWERS.add("Pretoria");
-        ANSWERS.add("Rome");
-        ANSWERS.add("Beijing");
-        ANSWERS.add("Mexico City");
-        ANSWERS.add("Buenos Aires");
-        ANSWERS.add("Seoul");
-        ANSWERS.add("Madrid");
-        ANSWERS.add("London");
-        ANSWERS.add("Washington DC");
-        ANSWERS.add("Riyadh");
-        ANSWERS.add("Ankara");
+    /**
+     * Gets the users that have taken part in the game.
+     *
+     * @return A read-only view of the participants.
+     */
+    public Set<String> getParticipants() {
+        return Collections.unmodifiableSet(participants);
     }
 
     /**
      * Start a new capital game.
      */
-    public static void startGame() {
-        if (gameActive) {
-            ClientHandler.broadcastMessageToAll("GAME: A game is already in progress!");
-            return;
-        }
-
-        gameActive = true;
-        PLAYER_SCORES.clear();
-
-        // Send game start message with delays between instructions
-        ClientHandler.broadcastMessageToAll("CAPITAL GAME STARTED! ");
-
-        // Delay before next instruction
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                ClientHandler.broadcastMessageToAll("GAME: First to " + WINNING_SCORE + " correct answers wins!");
+    public void startGame() {
+        synchronized (lock) {
+            if (state != GameState.IDLE) {
+                announce("GAME: A game is already in progress!");
+                return;
             }
-            // Delay before next instruction
-        }, ONE_SECOND);
-
-        // Delay before next instruction
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                ClientHandler.broadcastMessageToAll("GAME: Type your answer in the chat to participate!");
-            }
-            // 2 seconds delay
-        }, TWO_SECONDS);
-
-        // Delay before first question
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                nextQuestion();
+
+            QuestionBank bank = QuestionBank.capitals();
+            if (bank.size() == 0) {
+                announce("GAME: No questions are available!");
+                return;
             }
+
+            state = GameState.STARTING;
+            generation++;
+            order = new QuestionOrder(bank.size());
+            scores = new Leaderboard();
+            participants.clear();
+
+            // Send game start message with delays between instructions
+            announce("CAPITAL GAME STARTED! ");
+            int game = generation;
+            scheduleStep(game, ONE_SECOND,
+                    () -> announce("GAME: First to " + WINNING_SCORE + " correct answers wins!"));
+            scheduleStep(game, TWO_SECONDS, () -> announce("GAME: Type your answer in the chat to participate!"));
             // Start the first question after a delay
-        }, THREE_SECONDS);
+            scheduleStep(game, THREE_SECONDS, this::nextQuestion);
+        }
     }
 
     /**
      * Stop the current game.
      */
-    public static void stopGame() {
-        if (!gameActive) {
-            ClientHandler.broadcastMessageToAll("GAME: No game is currently running!");
-            return;
-        }
+    public void stopGame() {
+        synchronized (lock) {
+            if (state == GameState.IDLE) {
+                announce("GAME: No game is currently running!");
+                return;
+            }
 
-        // Reset game state
-        gameActive = false;
-        ClientHandler.broadcastMessageToAll("GAME STOPPED! ");
+            // Reset game state and drop every scheduled step of this game
+            endGame();
+            announce("GAME STOPPED! ");
+        }
+        GameSessions.retire(this);
 
         // Small delay before showing scores
-        Timer timer = new Timer();
-        timer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                showScores();
-            }
-            // 0.5 second delay
-        }, HALF_SECOND);
+        GameScheduler.schedule(this::showScores, HALF_SECOND);
     }
 
     /**
      * Move to the next question.
+     * Must be called while holding the lock.
      */
-    private static void nextQuestion() {
-        if (!gameActive) {
-            return;
-        }
-        currentQuestionIndex = (int) (Math.random() * QUESTIONS.size());
-        currentQuestion = QUESTIONS.get(currentQuestionIndex);
-        currentAnswer = ANSWERS.get(currentQuestionIndex);
+    private void nextQuestion() {
+        QuestionBank bank = QuestionBank.capitals();
+        int index = order.next();
+        currentQuestion = bank.getQuestion(index);
+        currentAnswer = AnswerMatcher.of(bank.getAnswer(index));
+        state = GameState.QUESTION_OPEN;
+        int question = ++questionNumber;
+        openQuestion.set(question);
         // seconds for division
         final int second = 1000;
 
-        ClientHandler.broadcastMessageToAll("QUESTION: " + currentQuestion);
+        announce("QUESTION: " + currentQuestion);
 
         // Small delay before timeout message
-        Timer instructionTimer = new Timer();
-        instructionTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                ClientHandler
-                        .broadcastMessageToAll("GAME: You have " + (QUESTION_TIMEOUT / second) + " seconds to answer!");
+        int game = generation;
+        scheduleStep(game, HALF_SECOND, () -> {
+            if (state == GameState.QUESTION_OPEN && question == questionNumber) {
+                announce("GAME: You have " + (QUESTION_TIMEOUT / second) + " seconds to answer!");
             }
-            // 0.5 second delay
-        }, HALF_SECOND);
-
-        // Schedule timeout for question
-        Timer timeoutTimer = new Timer();
-        timeoutTimer.schedule(new TimerTask() {
-            @Override
-            public void run() {
-                if (gameActive && currentQuestion.equals(QUESTIONS.get(currentQuestionIndex))) {
-                    ClientHandler.broadcastMessageToAll("TIME'S UP! The answer was: " + currentAnswer);
-
-                    // Small delay before next question
-                    Timer nextQuestionTimer = new Timer();
-                    nextQuestionTimer.schedule(new TimerTask() {
-                        @Override
-                        public void run() {
-                            nextQuestion();
-                        }
-                        // 1 second delay before next question
-                    }, ONE_SECOND);
-                }
-            }
-        }, QUESTION_TIMEOUT);
+        });
+
+        // Schedule timeout for question, cancelled if someone answers first
+        questionTimeout = scheduleStep(game, QUESTION_TIMEOUT, () -> onQuestionTimeout(question));
+    }
+
+    /**
+     * Closes a question nobody answered in time.
+     * The game ends by itself once everybody has left its room.
+     * Must be called while holding the lock.
+     *
+     * @param question The number of the question that timed out.
+     */
+    private void onQuestionTimeout(int question) {
+        // A player may have answered just before the timeout fired
+        if (!openQuestion.compareAndSet(question, NO_QUESTION)) {
+            return;
+        }
+        state = GameState.BETWEEN_QUESTIONS;
+        announce("TIME'S UP! The answer was: " + currentAnswer.getDisplayAnswer());
+
+        if (room.getMemberCount() == 0) {
+            endGame();
+            GameScheduler.schedule(() -> GameSessions.retire(this), 0);
+            return;
+        }
+        // 1 second delay before next question
+        scheduleStep(generation, ONE_SECOND, this::nextQuestion);
     }
 
     /**
      * Check if a player's message is an answer to the current question.
+     * Wrong answers are rejected without taking the game lock. Only the first
+     * correct answer to a question scores, later ones return false.
      */
-    public static boolean checkAnswer(String username, String message) {
-        if (!gameActive || currentAnswer.isEmpty()) {
+    public boolean checkAnswer(String username, String message) {
+        // Read the question before the answer, the answer is always set first
+        int question = openQuestion.get();
+        if (question == NO_QUESTION) {
+            return false;
+        }
+        AnswerMatcher answer = currentAnswer;
+        participants.add(username);
+
+        // Check if the message is a correct answer, ignoring case, accents and punctuation
+        if (!answer.matches(message)) {
+            return false;
+        }
+        // Only one player can close the question, everyone else was too late
+        if (!openQuestion.compareAndSet(question, NO_QUESTION)) {
             return false;
         }
 
-        // starting score for players
-        final int defaultScore = 0;
         // Add one score if correct answer
         final int correctAnswerScore = 1;
+        boolean won;
+
+        synchronized (lock) {
+            // The game may have been stopped since the question was won
+            if (state != GameState.QUESTION_OPEN || question != questionNumber) {
+                return false;
+            }
+            state = GameState.BETWEEN_QUESTIONS;
+            questionTimeout.cancel(false);
 
-        // Check if the message is a correct answer (case-insensitive)
-        if (message.trim().equalsIgnoreCase(currentAnswer)) {
             // Player got it right logic
-            PLAYER_SCORES.put(username, PLAYER_SCORES.getOrDefault(username, defaultScore) + correctAnswerScore);
-            int playerScore = PLAYER_SCORES.get(username);
+            int playerScore = scores.addPoints(username, correctAnswerScore);
+            Leaderboard.allTime().addPoints(username, correctAnswerScore);
 
-            ClientHandler.broadcastMessageToAll("CORRECT! " + username + " got it right!");
-            ClientHandler.broadcastMessageToAll("GAME: " + username + " now has " + playerScore + " point(s)!");
+            announce("CORRECT! " + username + " got it right!");
+            announce("GAME: " + username + " now has " + playerScore + " point(s)!");
 
             // Check if player won
-            if (playerScore >= WINNING_SCORE) {
-                gameActive = false;
-                ClientHandler.broadcastMessageToAll("GAME OVER! " + username + " WINS! ");
+            won = playerScore >= WINNING_SCORE;
+            if (won) {
+                endGame();
+                announce("GAME OVER! " + username + " WINS! ");
                 showScores();
-                return true;
+            } else {
+                // 2 seconds delay before next question
+                final int delayBeforeNextQuestion = 2000;
+
+                // Move to next question
+                scheduleStep(generation, delayBeforeNextQuestion, this::nextQuestion);
             }
-            // 2 seconds delay before next question
-            final int delayBeforeNextQuestion = 2000;
-
-            // Move to next question
-            Timer timer = new Timer();
-            timer.schedule(new TimerTask() {
-                @Override
-                public void run() {
-                    nextQuestion();
+        }
+        if (won) {
+            GameSessions.retire(this);
+        }
+        return true;
+    }
+
+    /**
+     * Schedules a step of the current game on the shared game scheduler.
+     * The step runs while holding the lock, and does nothing if the game it
+     * belongs to has ended in the meantime.
+     * Must be called while holding the lock.
+     *
+     * @param game    The generation of the game the step belongs to.
+     * @param delayMs The delay in milliseconds.
+     * @param step    The step to run.
+     * @return A future that can be used to cancel the step.
+     */
+    private ScheduledFuture<?> scheduleStep(int game, long delayMs, Runnable step) {
+        pending.removeIf(Future::isDone);
+        ScheduledFuture<?> future = GameScheduler.schedule(() -> {
+            synchronized (lock) {
+                if (game == generation) {
+                    step.run();
                 }
-            }, delayBeforeNextQuestion);
+            }
+        }, delayMs);
+        pending.add(future);
+        return future;
+    }
 
-            return true;
+    /**
+     * Ends the current game and cancels all of its scheduled steps.
+     * Must be called while holding the lock.
+     */
+    private void endGame() {
+        state = GameState.IDLE;
+        generation++;
+        openQuestion.set(NO_QUESTION);
+        for (ScheduledFuture<?> future : pending) {
+            future.cancel(false);
         }
-
-        return false;
+        pending.clear();
     }
 
     /**
      * Show current scores.
      */
-    public static void showScores() {
-        if (PLAYER_SCORES.isEmpty()) {
-            ClientHandler.broadcastMessageToAll("GAME: No scores yet!");
+    public void showScores() {
+        Leaderboard board = scores;
+        if (board.isEmpty()) {
+            announce("GAME: No scores yet!");
             return;
         }
 
-        ClientHandler.broadcastMessageToAll("CURRENT SCORES:");
-        PLAYER_SCORES.entrySet().stream()
-                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
-                .forEach(entry -> ClientHandler
-                        .broadcastMessageToAll("GAME: " + entry.getKey() + ": " + entry.getValue() + " point(s)"));
+        // The whole scoreboard is sent as one message
+        announce("CURRENT SCORES: " + board.format(SCOREBOARD_SIZE));
+    }
+
+    /**
+     * Sends a game announcement to the room of the game.
+     *
+     * @param text The announcement text.
+     */
+    private void announce(String text) {
+        MESSAGES_IN.inc();
+        room.broadcast(ChatMessage.game(text), null);
     }
 
     /**
      * Check if game is currently active.
      */
-    public static boolean isGameActive() {
-        return gameActive;
+    public boolean isGameActive() {
+        return state != GameState.IDLE;
+    }
+
+    /**
+     * Gets the question that can be answered right now.
+     *
+     * @return The question, or null while no question is open.
+     */
+    public String getOpenQuestion() {
+        return state == GameState.QUESTION_OPEN ? currentQuestion : null;
     }
 
     /**
      * Get game status.
      */
-    public static String getGameStatus() {
-        if (!gameActive) {
+    public String getGameStatus() {
+        if (state == GameState.IDLE) {
             return "No game is currently running. Type '/startgame' to start!";
         }
-        return "Game in progress! Current question: " + currentQuestion;
+        return "Game in progress with " + participants.size() + " player(s)! Current question: " + currentQuestion;
     }
 }
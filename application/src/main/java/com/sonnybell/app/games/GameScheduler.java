@@ -0,0 +1,40 @@
+package com.sonnybell.app.games;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GameScheduler class holding the one scheduler thread shared by all games.
+ * Every delayed game step, such as the next question or a question timeout,
+ * runs on this thread, so the number of threads stays the same no matter how
+ * many games and questions are running.
+ * Cancelled tasks are removed from the queue straight away.
+ */
+public final class GameScheduler {
+
+    private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "game-scheduler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        EXECUTOR.setRemoveOnCancelPolicy(true);
+    }
+
+    private GameScheduler() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Runs a task once after a delay.
+     *
+     * @param task    The task to run.
+     * @param delayMs The delay in milliseconds.
+     * @return A future that can be used to cancel the task.
+     */
+    public static ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return EXECUTOR.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,118 @@
+package com.sonnybell.app.games;
+
+import com.sonnybell.app.chatfunctions.ChatMessage;
+import com.sonnybell.app.chatfunctions.ChatRoom;
+import com.sonnybell.app.server.Metrics;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * GameSessions class keeping track of the running capital games.
+ * Every chat room can run its own game, games in different rooms never share
+ * any state.
+ * A session is registered when a game starts in a room and removed again when
+ * that game ends.
+ */
+public final class GameSessions {
+
+    // Running sessions by their room, a room that is removed and created again
+    // under the same name never sees the game of the old room
+    private static final Map<ChatRoom, CapitalGame> SESSIONS = new ConcurrentHashMap<>();
+
+    static {
+        Metrics.gauge("chat_game_sessions", "Capital games currently running.", SESSIONS::size);
+    }
+
+    private GameSessions() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Finds the game running in a room.
+     *
+     * @param room The room.
+     * @return The game of the room, or null if no game is running there.
+     */
+    public static CapitalGame find(ChatRoom room) {
+        return SESSIONS.get(room);
+    }
+
+    /**
+     * Starts a game in a room, or tells the room a game is already running.
+     *
+     * @param room The room to start the game in.
+     */
+    public static void startGame(ChatRoom room) {
+        // The game is started outside the map, so its announcements are never
+        // broadcast while a bin of the map is locked
+        CapitalGame session = SESSIONS.computeIfAbsent(room, CapitalGame::new);
+        session.startGame();
+        // A finishing session may have been retired before it was restarted,
+        // an active session is never retired so putting it back is enough
+        if (session.isGameActive()) {
+            SESSIONS.putIfAbsent(room, session);
+        }
+    }
+
+    /**
+     * Stops the game running in a room.
+     *
+     * @param room The room to stop the game in.
+     */
+    public static void stopGame(ChatRoom room) {
+        CapitalGame game = find(room);
+        if (game == null) {
+            room.broadcast(ChatMessage.game("GAME: No game is currently running!"), null);
+            return;
+        }
+        game.stopGame();
+    }
+
+    /**
+     * Shows the scores of the game running in a room.
+     *
+     * @param room The room to show the scores in.
+     */
+    public static void showScores(ChatRoom room) {
+        CapitalGame game = find(room);
+        if (game == null) {
+            room.broadcast(ChatMessage.game("GAME: No scores yet!"), null);
+            return;
+        }
+        game.showScores();
+    }
+
+    /**
+     * Gets the status of the game in a room.
+     *
+     * @param room The room.
+     * @return A description of the game status.
+     */
+    public static String getGameStatus(ChatRoom room) {
+        CapitalGame game = find(room);
+        if (game == null) {
+            return "No game is currently running. Type '/startgame' to start!";
+        }
+        return game.getGameStatus();
+    }
+
+    /**
+     * Gets the number of registered game sessions.
+     *
+     * @return The number of sessions.
+     */
+    public static int getSessionCount() {
+        return SESSIONS.size();
+    }
+
+    /**
+     * Removes a session once its game has ended.
+     * Does nothing if the session was restarted in the meantime.
+     *
+     * @param game The session to remove.
+     */
+    static void retire(CapitalGame game) {
+        SESSIONS.computeIfPresent(game.getRoom(),
+                (key, session) -> session == game && !session.isGameActive() ? null : session);
+    }
+}
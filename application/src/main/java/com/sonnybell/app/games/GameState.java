@@ -0,0 +1,15 @@
+package com.sonnybell.app.games;
+
+/**
+ * GameState enum listing the states a capital game moves through.
+ */
+public enum GameState {
+    /** No game is running. */
+    IDLE,
+    /** The game was started and the instructions are being shown. */
+    STARTING,
+    /** A question is open and answers are being checked. */
+    QUESTION_OPEN,
+    /** The last question is closed and the next one is about to be asked. */
+    BETWEEN_QUESTIONS
+}
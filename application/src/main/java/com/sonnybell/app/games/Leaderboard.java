@@ -0,0 +1,243 @@
+package com.sonnybell.app.games;
+
+import com.sonnybell.app.server.ServerConfig;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Leaderboard class keeping players ranked by their points.
+ * The ranking is kept up to date as points arrive, in a sorted set next to the
+ * map of scores, so showing the top players never sorts all players.
+ * Adding points only locks the entry of that player, and reading the ranking
+ * takes no lock at all, so showing scores never blocks scoring.
+ * Every capital game has its own leaderboard for the running game. The
+ * all-time leaderboard is shared by all games and is saved to disk in the
+ * background, see ScoreStore.
+ */
+public final class Leaderboard {
+
+    // Highest points first, players with the same points by name
+    private static final Comparator<Entry> RANKING = Comparator.comparingInt(Entry::getPoints).reversed()
+            .thenComparing(Entry::getUser);
+
+    // Time between saves of the all-time leaderboard
+    private static final long FLUSH_INTERVAL_MS = ServerConfig.getInt("chat.game.leaderboardFlushMs", 5000);
+
+    private final Map<String, Entry> byUser = new ConcurrentHashMap<>();
+    private final NavigableSet<Entry> ranking = new ConcurrentSkipListSet<>(RANKING);
+    // Null for leaderboards that only live in memory
+    private final ScoreStore store;
+    // Set when points were added since the last save
+    private final AtomicBoolean dirty = new AtomicBoolean();
+
+    /**
+     * Constructor to create an empty leaderboard that only lives in memory.
+     */
+    public Leaderboard() {
+        this(null);
+    }
+
+    private Leaderboard(ScoreStore store) {
+        this.store = store;
+    }
+
+    /**
+     * Gets the all-time leaderboard shared by every game.
+     * It is loaded from disk on first use and saved again in the background
+     * whenever it changes.
+     *
+     * @return The all-time leaderboard.
+     */
+    public static Leaderboard allTime() {
+        return AllTime.BOARD;
+    }
+
+    /**
+     * Adds points to a player, adding the player if it has no points yet.
+     *
+     * @param user   The player to add points to.
+     * @param points The points to add, must be positive.
+     * @return The new points of the player.
+     */
+    public int addPoints(String user, int points) {
+        if (points <= 0) {
+            throw new IllegalArgumentException("Points must be positive.");
+        }
+        Entry updated = byUser.compute(user, (name, old) -> {
+            Entry next = new Entry(name, old == null ? points : old.points + points);
+            // Add before removing, so readers never miss the player
+            ranking.add(next);
+            if (old != null) {
+                ranking.remove(old);
+            }
+            return next;
+        });
+        dirty.set(true);
+        return updated.points;
+    }
+
+    /**
+     * Gets the points of a player.
+     *
+     * @param user The player.
+     * @return The points of the player, or 0 if it has none.
+     */
+    public int getPoints(String user) {
+        Entry entry = byUser.get(user);
+        return entry == null ? 0 : entry.points;
+    }
+
+    /**
+     * Gets the best players, best first.
+     *
+     * @param limit The maximum number of players to return.
+     * @return The best players in ranking order.
+     */
+    public List<Entry> top(int limit) {
+        List<Entry> top = new ArrayList<>(Math.min(limit, byUser.size()));
+        Set<String> seen = new HashSet<>();
+        for (Entry entry : ranking) {
+            if (top.size() >= limit) {
+                break;
+            }
+            // A player being updated right now can briefly be in the set twice,
+            // the newer entry has more points so it comes first
+            if (seen.add(entry.user)) {
+                top.add(entry);
+            }
+        }
+        return top;
+    }
+
+    /**
+     * Formats the best players as a single line, for example
+     * "1. alice 12 | 2. bob 9".
+     *
+     * @param limit The maximum number of players to show.
+     * @return The formatted ranking, empty if nobody has points.
+     */
+    public String format(int limit) {
+        StringBuilder line = new StringBuilder();
+        int rank = 1;
+        for (Entry entry : top(limit)) {
+            if (line.length() > 0) {
+                line.append(" | ");
+            }
+            line.append(rank++).append(". ").append(entry.user).append(' ').append(entry.points);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Gets the number of players with points.
+     *
+     * @return The number of players.
+     */
+    public int size() {
+        return byUser.size();
+    }
+
+    /**
+     * Checks whether nobody has points yet.
+     *
+     * @return true if the leaderboard is empty, false otherwise.
+     */
+    public boolean isEmpty() {
+        return byUser.isEmpty();
+    }
+
+    /**
+     * Saves the leaderboard if it changed since the last save.
+     * Does nothing for leaderboards that only live in memory.
+     */
+    void flush() {
+        if (store == null || !dirty.getAndSet(false)) {
+            return;
+        }
+        try {
+            store.save(byUser.values());
+        } catch (IOException e) {
+            // Keep the changes so the next flush tries again
+            dirty.set(true);
+            System.err.println("Failed to save leaderboard: " + e.getMessage());
+        }
+    }
+
+    private static Leaderboard loadAllTime() {
+        String file = System.getProperty("chat.game.leaderboardFile");
+        Path path = file == null || file.isBlank()
+                ? Path.of(System.getProperty("user.dir"), "Leaderboard.dat")
+                : Path.of(file.trim());
+        ScoreStore store = new ScoreStore(path);
+
+        Leaderboard board = new Leaderboard(store);
+        try {
+            for (Map.Entry<String, Integer> saved : store.load().entrySet()) {
+                if (saved.getValue() > 0) {
+                    board.addPoints(saved.getKey(), saved.getValue());
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to load leaderboard from " + path + ": " + e.getMessage());
+        }
+        board.dirty.set(false);
+
+        ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "leaderboard-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        writer.scheduleWithFixedDelay(board::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        // Save the last points when the server shuts down
+        Runtime.getRuntime().addShutdownHook(new Thread(board::flush, "leaderboard-flush"));
+        return board;
+    }
+
+    /**
+     * Entry class holding the points of one player.
+     * Entries never change, adding points replaces the entry.
+     */
+    public static final class Entry {
+        private final String user;
+        private final int points;
+
+        Entry(String user, int points) {
+            this.user = user;
+            this.points = points;
+        }
+
+        /**
+         * Gets the name of the player.
+         *
+         * @return The username.
+         */
+        public String getUser() {
+            return user;
+        }
+
+        /**
+         * Gets the points of the player.
+         *
+         * @return The points.
+         */
+        public int getPoints() {
+            return points;
+        }
+    }
+
+    // Loads the all-time leaderboard when it is first used
+    private static final class AllTime {
+        private static final Leaderboard BOARD = loadAllTime();
+
+        private AllTime() {
+            // Prevent instantiation
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package com.sonnybell.app.games;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * QuestionBank class holding a pack of questions for the capital game.
+ * A pack is a UTF-8 text file with one question per line, written as
+ * question, a tab and the answer. The answer may list accepted alternatives
+ * separated by '|', the first one is the answer shown to players. Blank lines
+ * and lines starting with '#' are skipped.
+ * The bundled pack is read from the questions/capitals.tsv resource. A bigger
+ * pack can be used by setting the chat.game.questionFile system property to
+ * the path of a file, which is then memory-mapped instead of read into memory.
+ * The pack is kept as its raw bytes plus one table of line offsets, so a pack
+ * with hundreds of thousands of questions costs a few bytes per question
+ * instead of two String objects each. Questions are only decoded when asked.
+ * The pack is loaded on first use and is read-only afterwards, so it can be
+ * shared by every game without locking.
+ */
+public final class QuestionBank {
+
+    private static final String BUNDLED_PACK = "/questions/capitals.tsv";
+    private static final String PACK_PROPERTY = "chat.game.questionFile";
+    private static final int INITIAL_TABLE_SIZE = 1024;
+
+    // Raw bytes of the pack, read-only and only accessed with absolute positions
+    private final ByteBuffer data;
+    // Start of question i, the question ends at separators[i]
+    private final int[] starts;
+    // Position of the tab of question i, the answer ends at ends[i]
+    private final int[] separators;
+    private final int[] ends;
+
+    private QuestionBank(ByteBuffer data) {
+        this.data = data;
+
+        int[] lineStarts = new int[INITIAL_TABLE_SIZE];
+        int[] tabs = new int[INITIAL_TABLE_SIZE];
+        int[] lineEnds = new int[INITIAL_TABLE_SIZE];
+        int count = 0;
+
+        int limit = data.limit();
+        int lineStart = 0;
+        while (lineStart < limit) {
+            int tab = -1;
+            int position = lineStart;
+            while (position < limit && data.get(position) != '\n') {
+                if (tab < 0 && data.get(position) == '\t') {
+                    tab = position;
+                }
+                position++;
+            }
+            int lineEnd = position;
+            // Accept files written with Windows line endings
+            if (lineEnd > lineStart && data.get(lineEnd - 1) == '\r') {
+                lineEnd--;
+            }
+
+            boolean comment = lineStart < lineEnd && data.get(lineStart) == '#';
+            if (!comment && tab > lineStart && tab < lineEnd - 1) {
+                if (count == lineStarts.length) {
+                    lineStarts = Arrays.copyOf(lineStarts, count * 2);
+                    tabs = Arrays.copyOf(tabs, count * 2);
+                    lineEnds = Arrays.copyOf(lineEnds, count * 2);
+                }
+                lineStarts[count] = lineStart;
+                tabs[count] = tab;
+                lineEnds[count] = lineEnd;
+                count++;
+            }
+            lineStart = position + 1;
+        }
+
+        this.starts = Arrays.copyOf(lineStarts, count);
+        this.separators = Arrays.copyOf(tabs, count);
+        this.ends = Arrays.copyOf(lineEnds, count);
+    }
+
+    /**
+     * Gets the question pack used by the capital game, loading it on first use.
+     *
+     * @return The capital question pack.
+     */
+    public static QuestionBank capitals() {
+        return Holder.CAPITALS;
+    }
+
+    /**
+     * Gets the number of questions in the pack.
+     *
+     * @return The number of questions.
+     */
+    public int size() {
+        return starts.length;
+    }
+
+    /**
+     * Gets the text of a question.
+     *
+     * @param index The index of the question.
+     * @return The question text.
+     */
+    public String getQuestion(int index) {
+        return decode(starts[index], separators[index]);
+    }
+
+    /**
+     * Gets the answer field of a question.
+     *
+     * @param index The index of the question.
+     * @return The accepted answers, separated by '|'.
+     */
+    public String getAnswer(int index) {
+        return decode(separators[index] + 1, ends[index]);
+    }
+
+    private String decode(int from, int to) {
+        return StandardCharsets.UTF_8.decode(data.slice(from, to - from)).toString();
+    }
+
+    private static QuestionBank load() {
+        String file = System.getProperty(PACK_PROPERTY);
+        if (file != null && !file.isBlank()) {
+            try (FileChannel channel = FileChannel.open(Path.of(file.trim()), StandardOpenOption.READ)) {
+                // Offsets are ints, so a single pack is limited to 2 GB
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("file is larger than 2 GB");
+                }
+                QuestionBank bank = new QuestionBank(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+                System.out.println("Loaded " + bank.size() + " questions from " + file.trim());
+                return bank;
+            } catch (IOException e) {
+                System.err.println("Could not load question pack " + file + ": " + e.getMessage()
+                        + ". Using the bundled questions.");
+            }
+        }
+
+        try (InputStream in = QuestionBank.class.getResourceAsStream(BUNDLED_PACK)) {
+            if (in == null) {
+                System.err.println("Bundled question pack " + BUNDLED_PACK + " is missing.");
+                return new QuestionBank(ByteBuffer.allocate(0));
+            }
+            return new QuestionBank(ByteBuffer.wrap(in.readAllBytes()).asReadOnlyBuffer());
+        } catch (IOException e) {
+            System.err.println("Could not load bundled question pack: " + e.getMessage());
+            return new QuestionBank(ByteBuffer.allocate(0));
+        }
+    }
+
+    // Loads the pack when it is first used, not when the game classes are loaded
+    private static final class Holder {
+        private static final QuestionBank CAPITALS = load();
+
+        private Holder() {
+            // Prevent instantiation
+        }
+    }
+}
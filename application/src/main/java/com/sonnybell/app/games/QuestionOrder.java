@@ -0,0 +1,71 @@
+package com.sonnybell.app.games;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * QuestionOrder class giving the order in which a game asks its questions.
+ * The order is a random permutation of the question indexes, shuffled with
+ * Fisher-Yates, so every order is as likely and no question is repeated until
+ * every question of the pack has been asked.
+ * The indexes are shuffled again once all of them have been asked, and the
+ * question asked last is never the first of the next round.
+ */
+final class QuestionOrder {
+
+    private final int[] order;
+    private int drawn;
+
+    /**
+     * Constructor to create a shuffled order over a number of questions.
+     *
+     * @param size The number of questions, must be positive.
+     */
+    QuestionOrder(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Question order size must be positive.");
+        }
+        order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        shuffle();
+    }
+
+    /**
+     * Gets the index of the next question to ask.
+     *
+     * @return The next question index.
+     */
+    int next() {
+        if (drawn == order.length) {
+            reshuffle();
+        }
+        return order[drawn++];
+    }
+
+    /**
+     * Shuffles the indexes for the next round, moving the question asked last
+     * away from the front to a random place.
+     */
+    private void reshuffle() {
+        int last = order[order.length - 1];
+        shuffle();
+        if (order.length > 1 && order[0] == last) {
+            swap(0, ThreadLocalRandom.current().nextInt(1, order.length));
+        }
+    }
+
+    private void shuffle() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = order.length - 1; i > 0; i--) {
+            swap(i, random.nextInt(i + 1));
+        }
+        drawn = 0;
+    }
+
+    private void swap(int first, int second) {
+        int index = order[first];
+        order[first] = order[second];
+        order[second] = index;
+    }
+}
@@ -0,0 +1,84 @@
+package com.sonnybell.app.games;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * ScoreStore class saving all-time scores to a small binary file.
+ * The file starts with a magic number and the number of players, followed by
+ * the name and points of each player, so a player costs only a few bytes.
+ * A save writes a temporary file next to the store and moves it over the old
+ * one, so a crash during a save never leaves a half written file behind.
+ */
+final class ScoreStore {
+
+    // "LBD1", marks the file as a leaderboard in this format
+    private static final int MAGIC = 0x4C424431;
+
+    private final Path path;
+
+    /**
+     * Constructor to create a store for a file.
+     *
+     * @param path The file the scores are kept in.
+     */
+    ScoreStore(Path path) {
+        this.path = path;
+    }
+
+    /**
+     * Reads the saved scores.
+     *
+     * @return The points of each saved player, empty if nothing was saved yet.
+     * @throws IOException If the file cannot be read or is not a score file.
+     */
+    Map<String, Integer> load() throws IOException {
+        Map<String, Integer> scores = new HashMap<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("not a leaderboard file");
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                scores.put(in.readUTF(), in.readInt());
+            }
+        } catch (NoSuchFileException e) {
+            // Nothing saved yet
+            return scores;
+        }
+        return scores;
+    }
+
+    /**
+     * Replaces the saved scores.
+     *
+     * @param entries The points of every player.
+     * @throws IOException If the file cannot be written.
+     */
+    void save(Collection<Leaderboard.Entry> entries) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        // The collection may change while saving, so count what is written
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(records)) {
+            for (Leaderboard.Entry entry : entries) {
+                out.writeUTF(entry.getUser());
+                out.writeInt(entry.getPoints());
+                count++;
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(count);
+            records.writeTo(out);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
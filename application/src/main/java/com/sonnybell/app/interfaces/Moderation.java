@@ -1,6 +1,9 @@
 package com.sonnybell.app.interfaces;
 
+import com.sonnybell.app.chatfunctions.ChatMessage;
+import com.sonnybell.app.chatfunctions.MessageKind;
 import com.sonnybell.app.client.ClientHandler;
+import com.sonnybell.app.server.Cluster;
 import com.sonnybell.app.web.WebChat;
 
 /**
@@ -13,6 +16,7 @@ public interface Moderation {
     /**
      * Removes a user directly from the server's client list.
      * This method is intended to be used by an admin.
+     * A user online on another node of the cluster is removed by that node.
      *
      * @param usernameToRemove The username of the user to be removed.
      * @return true if the user was found and removal was initiated, false
@@ -24,20 +28,31 @@ public interface Moderation {
             return false;
         }
 
-        ClientHandler handlerToRemove = null;
-        for (ClientHandler handler : ClientHandler.getClientList()) {
-            if (handler.getUsername().equals(usernameToRemove)) {
-                handlerToRemove = handler;
-                break;
-            }
+        if (removeLocalUser(usernameToRemove) || Cluster.requestRemoval(usernameToRemove)) {
+            return true;
         }
+        System.out.println("Moderation: User " + usernameToRemove + " not found.");
+        return false;
+    }
+
+    /**
+     * Removes a user connected to this server, either a socket or a web client.
+     * Used by removeUserDirectly and by the Cluster, when another node asks
+     * for a user online here to be removed.
+     *
+     * @param usernameToRemove The username of the user to be removed.
+     * @return true if the user was found and removal was initiated, false
+     *         otherwise.
+     */
+    static boolean removeLocalUser(String usernameToRemove) {
+        ClientHandler handlerToRemove = ClientHandler.findByUsername(usernameToRemove);
 
         if (handlerToRemove != null) {
-            String message = "SERVER: " + usernameToRemove + " has been removed by an admin.";
-            String tag = "Moderation";
+            ChatMessage message = ChatMessage.of(MessageKind.MODERATION, usernameToRemove,
+                    "SERVER: " + usernameToRemove + " has been removed by an admin.");
 
             // Log the admin action before initiating shutdown
-            ClientHandler.logMessage(message, tag);
+            ClientHandler.logMessage(message);
             System.out.println(message);
 
             // Ask the ClientHandler to shut down itself and notify its client.
@@ -50,9 +65,11 @@ public interface Moderation {
                 // The list should be updated, so handlerToRemove should not be in it.
                 // We send to all *other* clients.
                 if (!client.getUsername().equals(usernameToRemove)) { // Check username to be sure
-                    client.sendMessage(message); // Send the specific admin removal message
+                    client.sendMessage(message.getText()); // Send the specific admin removal message
                 }
             }
+            // The other nodes of the cluster record and send it like any broadcast
+            Cluster.relay(message, null);
             return true;
         } else {
             // Check if it's a web client by looking at the centralized username list
@@ -63,18 +80,15 @@ public interface Moderation {
                 // Also remove from the WebChat WEB_USERS set
                 WebChat.removeFromWebUsers(usernameToRemove);
 
-                String message = "SERVER: " + usernameToRemove + " (Web) has been removed by an admin.";
-                String tag = "Moderation";
-
-                ClientHandler.logMessage(message, tag);
+                ChatMessage message = ChatMessage.of(MessageKind.MODERATION, usernameToRemove,
+                        "SERVER: " + usernameToRemove + " (Web) has been removed by an admin.");
                 System.out.println(message);
 
-                // Broadcast removal message to all socket clients
+                // Log, record and broadcast the removal message to all socket clients
                 ClientHandler.broadcastMessageToAll(message); // This is a static method, sends to all current socket
 
                 return true;
             } else {
-                System.out.println("Moderation: User " + usernameToRemove + " not found.");
                 return false;
             }
         }
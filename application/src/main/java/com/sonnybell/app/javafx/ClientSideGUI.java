@@ -1,6 +1,7 @@
 package com.sonnybell.app.javafx;
 
 import com.sonnybell.app.client.Client;
+import com.sonnybell.app.server.AdmissionControl;
 import java.io.*;
 import java.net.Socket;
 import javafx.animation.KeyFrame;
@@ -179,6 +180,11 @@ public class ClientSideGUI extends Application {
                 serverResponse = tempReader.readLine();
                 if ("OK".equals(serverResponse)) {
                     break;
+                } else if (serverResponse == null || serverResponse.startsWith(AdmissionControl.REJECTED_PREFIX)) {
+                    // The server turned the connection away or closed it
+                    throw new IOException(serverResponse == null
+                            ? "Server closed the connection."
+                            : serverResponse.substring(AdmissionControl.REJECTED_PREFIX.length()));
                 } else {
                     showAlert("Incorrect password. Please try again.");
                 }
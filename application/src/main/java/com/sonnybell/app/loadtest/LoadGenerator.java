@@ -0,0 +1,168 @@
+package com.sonnybell.app.loadtest;
+
+import com.sonnybell.app.server.ServerConfig;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LoadGenerator class driving a running server with simulated users.
+ * It connects socket users through Client and logs in web users through
+ * /api/webchat/*, lets every user send messages at a fixed rate and reports
+ * the throughput, the connection setup time and the delivery latency.
+ * Everything runs in one process on the same machine as the server, and is
+ * configured with system properties, for example
+ * java -Dchat.load.password=secret -Dchat.load.sockets=500 -jar app.jar load.
+ * The server limits connections and messages per address, so those limits
+ * must be raised on the server for larger runs.
+ */
+public final class LoadGenerator {
+
+    private static final String HOST = ServerConfig.getString("chat.load.host", "127.0.0.1");
+    private static final int PORT = ServerConfig.getInt("chat.load.port", 6666);
+    private static final int WEB_PORT = ServerConfig.getInt("chat.load.webPort", 8080);
+    private static final String PASSWORD = ServerConfig.getString("chat.load.password", null);
+    private static final int SOCKET_USERS = ServerConfig.getInt("chat.load.sockets", 100);
+    private static final int WEB_USERS = ServerConfig.getInt("chat.load.webUsers", 10);
+    // Messages per second sent by each user
+    private static final double RATE = ServerConfig.getDouble("chat.load.messagesPerSecond", 1.0);
+    // Length of every message sent, short messages are padded
+    private static final int MESSAGE_BYTES = ServerConfig.getInt("chat.load.messageBytes", 0);
+    private static final int DURATION_SECONDS = ServerConfig.getInt("chat.load.durationSec", 30);
+    private static final int CONNECT_THREADS = ServerConfig.getInt("chat.load.connectThreads", 16);
+    // Time between two polls of a web user, the browser script polls every second
+    private static final int POLL_MS = ServerConfig.getInt("chat.load.pollMs", 1000);
+
+    // Time given to messages still in flight when sending stops
+    private static final long DRAIN_MS = 2000;
+    private static final long CONNECT_TIMEOUT_MINUTES = 10;
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+    private static final int RUN_ID_RANGE = 0x10000;
+
+    private final LoadStats stats = new LoadStats();
+    private final List<SocketUser> socketUsers = Collections.synchronizedList(new ArrayList<>());
+    private final List<WebUser> webUsers = Collections.synchronizedList(new ArrayList<>());
+    // Part of every username, so users of an earlier run still logged in do not clash
+    private final String runId = Integer.toHexString(ThreadLocalRandom.current().nextInt(RUN_ID_RANGE));
+
+    private LoadGenerator() {
+    }
+
+    /**
+     * Main method to run the load generator with the configured settings.
+     *
+     * @param args Command line arguments, not used.
+     */
+    public static void main(String[] args) {
+        if (PASSWORD == null) {
+            System.out.println("Set the server password with -Dchat.load.password=<password>.");
+            return;
+        }
+        try {
+            new LoadGenerator().run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.out.println("Load run interrupted.");
+        }
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println("Connecting " + SOCKET_USERS + " socket users and " + WEB_USERS + " web users to "
+                + HOST + "...");
+        HttpClient http = HttpClient.newHttpClient();
+        String baseUrl = "http://" + HOST + ":" + WEB_PORT;
+        long connectStart = System.nanoTime();
+        connectUsers(http, baseUrl);
+        System.out.println(String.format("Connected %d socket users and %d web users in %.1f s.",
+                socketUsers.size(), webUsers.size(), (System.nanoTime() - connectStart) / NANOS_PER_SECOND));
+
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(
+                Runtime.getRuntime().availableProcessors(), task -> {
+                    Thread thread = new Thread(task, "load-scheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        System.out.println("Sending " + RATE + " messages per second per user for " + DURATION_SECONDS + " s...");
+        long start = System.nanoTime();
+        schedule(scheduler);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(DURATION_SECONDS));
+        scheduler.shutdownNow();
+        long elapsed = System.nanoTime() - start;
+        Thread.sleep(DRAIN_MS);
+
+        System.out.print(stats.report(elapsed));
+    }
+
+    /**
+     * Connects the socket users and logs in the web users, several at a time.
+     *
+     * @param http    The HTTP client shared by the web users.
+     * @param baseUrl The address of the web server.
+     * @throws InterruptedException If interrupted while waiting for the connections.
+     */
+    private void connectUsers(HttpClient http, String baseUrl) throws InterruptedException {
+        ExecutorService connectors = Executors.newFixedThreadPool(Math.max(1, CONNECT_THREADS));
+        for (int i = 1; i <= SOCKET_USERS; i++) {
+            SocketUser user = new SocketUser("load-" + runId + "-s" + i, stats, MESSAGE_BYTES);
+            connectors.execute(() -> {
+                try {
+                    user.connect(HOST, PORT, PASSWORD);
+                    socketUsers.add(user);
+                } catch (IOException e) {
+                    stats.onConnectFailed();
+                    System.out.println("Socket user failed to connect: " + e.getMessage());
+                }
+            });
+        }
+        for (int i = 1; i <= WEB_USERS; i++) {
+            WebUser user = new WebUser("load-" + runId + "-w" + i, baseUrl, http, stats, MESSAGE_BYTES);
+            connectors.execute(() -> {
+                try {
+                    if (user.login(PASSWORD)) {
+                        webUsers.add(user);
+                    } else {
+                        stats.onConnectFailed();
+                        System.out.println("Web user login was refused.");
+                    }
+                } catch (IOException e) {
+                    stats.onConnectFailed();
+                    System.out.println("Web user failed to log in: " + e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        connectors.shutdown();
+        connectors.awaitTermination(CONNECT_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * Starts sending for every user, and polling for the web users.
+     * Start times are spread over one period, so the users do not all send at
+     * the same moment.
+     *
+     * @param scheduler The scheduler running the users.
+     */
+    private void schedule(ScheduledExecutorService scheduler) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (RATE > 0) {
+            long period = Math.max(1, (long) (NANOS_PER_SECOND / RATE));
+            for (SocketUser user : socketUsers) {
+                scheduler.scheduleAtFixedRate(user::send, random.nextLong(period), period, TimeUnit.NANOSECONDS);
+            }
+            for (WebUser user : webUsers) {
+                scheduler.scheduleAtFixedRate(user::send, random.nextLong(period), period, TimeUnit.NANOSECONDS);
+            }
+        }
+        for (WebUser user : webUsers) {
+            scheduler.scheduleAtFixedRate(user::poll, random.nextLong(POLL_MS), POLL_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.sonnybell.app.loadtest;
+
+import com.sonnybell.app.server.LatencyHistogram;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LoadStats class collecting the measurements of a load run.
+ * Every message the load generator sends carries the System.nanoTime() it
+ * was sent at. All users run in the same process, so a receiver subtracts
+ * that time from its own clock to get the delivery latency.
+ * Web users only see a message when they next poll, so their latency
+ * includes up to one poll interval, like it does for a browser.
+ */
+final class LoadStats {
+
+    // Marks a chat line as sent by the load generator, followed by a sequence number and a send time
+    private static final String MARKER = "#load ";
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+    private static final int DECIMAL = 10;
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String[] QUANTILE_LABELS = {"p50", "p90", "p99", "p99.9"};
+
+    // Messages sent by users, whether or not the server accepted them
+    private final LongAdder sent = new LongAdder();
+    // Messages received by socket users and web users
+    private final LongAdder socketDelivered = new LongAdder();
+    private final LongAdder webDelivered = new LongAdder();
+    // Rate limit answers, connections that failed and requests that failed
+    private final LongAdder rateLimited = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private final LongAdder requestFailures = new LongAdder();
+
+    private final LatencyHistogram socketConnect = new LatencyHistogram();
+    private final LatencyHistogram webLogin = new LatencyHistogram();
+    private final LatencyHistogram socketLatency = new LatencyHistogram();
+    private final LatencyHistogram webLatency = new LatencyHistogram();
+
+    /**
+     * Builds the text of a load message.
+     *
+     * @param sequence The number of the message, counting from one for each user.
+     * @param size     The length of the text, padded in front if needed.
+     * @return The text to send.
+     */
+    static String payload(long sequence, int size) {
+        String text = MARKER + sequence + " " + System.nanoTime();
+        return text.length() >= size ? text : "x".repeat(size - text.length()) + text;
+    }
+
+    /**
+     * Gets the sequence number of a received load message.
+     *
+     * @param line The received chat line.
+     * @return The sequence number, or -1 if the line is not a load message.
+     */
+    static long sequenceOf(String line) {
+        int start = line.lastIndexOf(MARKER);
+        if (start < 0) {
+            return -1;
+        }
+        start += MARKER.length();
+        int end = line.indexOf(' ', start);
+        return end < 0 ? -1 : parse(line, start, end);
+    }
+
+    /**
+     * Gets the send time of a received load message.
+     *
+     * @param line The received chat line.
+     * @return The System.nanoTime() it was sent at, or -1 if the line is not a load message.
+     */
+    static long sentNanosOf(String line) {
+        int start = line.lastIndexOf(MARKER);
+        if (start < 0) {
+            return -1;
+        }
+        start = line.indexOf(' ', start + MARKER.length());
+        return start < 0 ? -1 : parse(line, start + 1, line.length());
+    }
+
+    void onSent() {
+        sent.increment();
+    }
+
+    void onSocketDelivered(long sentNanos) {
+        socketDelivered.increment();
+        socketLatency.recordSince(sentNanos);
+    }
+
+    void onWebDelivered(long sentNanos) {
+        webDelivered.increment();
+        webLatency.recordSince(sentNanos);
+    }
+
+    void onRateLimited() {
+        rateLimited.increment();
+    }
+
+    void onConnectFailed() {
+        connectFailures.increment();
+    }
+
+    void onRequestFailed() {
+        requestFailures.increment();
+    }
+
+    void onSocketConnected(long startNanos) {
+        socketConnect.recordSince(startNanos);
+    }
+
+    void onWebLoggedIn(long startNanos) {
+        webLogin.recordSince(startNanos);
+    }
+
+    long getSent() {
+        return sent.sum();
+    }
+
+    long getSocketDelivered() {
+        return socketDelivered.sum();
+    }
+
+    long getRateLimited() {
+        return rateLimited.sum();
+    }
+
+    LatencyHistogram getSocketLatency() {
+        return socketLatency;
+    }
+
+    /**
+     * Formats the results of the run.
+     *
+     * @param elapsedNanos How long messages were sent for.
+     * @return The report, one measurement per line.
+     */
+    String report(long elapsedNanos) {
+        double seconds = elapsedNanos / NANOS_PER_SECOND;
+        long delivered = socketDelivered.sum() + webDelivered.sum();
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("Duration:             %.1f s%n", seconds));
+        out.append(String.format("Messages sent:        %d (%.1f/s)%n", sent.sum(), sent.sum() / seconds));
+        out.append(String.format("Messages delivered:   %d (%.1f/s), %d to sockets, %d to web users%n",
+                delivered, delivered / seconds, socketDelivered.sum(), webDelivered.sum()));
+        out.append(String.format("Rate limited:         %d%n", rateLimited.sum()));
+        out.append(String.format("Failed connections:   %d%n", connectFailures.sum()));
+        out.append(String.format("Failed requests:      %d%n", requestFailures.sum()));
+        appendQuantiles(out, "Socket connect", socketConnect);
+        appendQuantiles(out, "Web login", webLogin);
+        appendQuantiles(out, "Socket delivery", socketLatency);
+        appendQuantiles(out, "Web delivery", webLatency);
+        return out.toString();
+    }
+
+    private static void appendQuantiles(StringBuilder out, String name, LatencyHistogram histogram) {
+        out.append(String.format("%-22s", name + ":"));
+        if (histogram.getCount() == 0) {
+            out.append("no samples").append(System.lineSeparator());
+            return;
+        }
+        for (int i = 0; i < QUANTILES.length; i++) {
+            double millis = histogram.quantile(QUANTILES[i]) / (double) TimeUnit.MILLISECONDS.toNanos(1);
+            out.append(String.format("%s %.2f ms  ", QUANTILE_LABELS[i], millis));
+        }
+        out.append(String.format("(%d samples)%n", histogram.getCount()));
+    }
+
+    private static long parse(String line, int start, int end) {
+        try {
+            return Long.parseLong(line, start, end, DECIMAL);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
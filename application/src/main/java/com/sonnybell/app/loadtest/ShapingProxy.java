@@ -0,0 +1,365 @@
+package com.sonnybell.app.loadtest;
+
+import com.sonnybell.app.server.ServerConfig;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ShapingProxy class forwarding TCP connections from clients to the server
+ * over a degraded link.
+ * Every connection through the proxy gets the same Shape: a bandwidth cap,
+ * added latency, regular stalls, or going silent without closing, like a
+ * peer that dropped off the network.
+ * The proxy keeps its socket buffers and the data it holds small, so a slow
+ * link pushes back on the server within seconds instead of being absorbed
+ * by the proxy.
+ * It runs on its own with system properties, for example
+ * java -Dchat.proxy.bytesPerSecond=1024 -cp app.jar com.sonnybell.app.loadtest.ShapingProxy,
+ * and the console client then connects to the proxy port.
+ */
+public final class ShapingProxy implements Closeable {
+
+    // Socket buffer size of proxied connections, small so backpressure reaches the server quickly
+    private static final int SOCKET_BUFFER_BYTES = 16 * 1024;
+    private static final int CHUNK_BYTES = 8 * 1024;
+    // Chunks read but not yet forwarded, per direction
+    private static final int CHUNKS_IN_FLIGHT = 4;
+    // Bandwidth caps are enforced in steps of about a tenth of a second
+    private static final int STEPS_PER_SECOND = 10;
+    // Ports used by main when none are configured, the proxy sits next to a server on its default port
+    private static final int DEFAULT_PORT = 6667;
+    private static final int DEFAULT_TARGET_PORT = 6666;
+
+    private final ServerSocket serverSocket;
+    private final String targetHost;
+    private final int targetPort;
+    private final Shape shape;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+
+    /**
+     * Constructor to create a proxy listening on a port of the loopback address.
+     *
+     * @param listenPort The port to listen on, 0 for any free port.
+     * @param targetHost The host name of the server.
+     * @param targetPort The port of the server.
+     * @param shape      The shape of every proxied connection.
+     * @throws IOException If the port cannot be opened.
+     */
+    public ShapingProxy(int listenPort, String targetHost, int targetPort, Shape shape) throws IOException {
+        this.serverSocket = new ServerSocket(listenPort, 0, InetAddress.getLoopbackAddress());
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.shape = shape;
+    }
+
+    /**
+     * Main method to run the proxy with the configured settings until it is killed.
+     *
+     * @param args Command line arguments, not used.
+     * @throws IOException If the proxy port cannot be opened.
+     */
+    public static void main(String[] args) throws IOException {
+        Shape shape = Shape.healthy()
+                .degradeAfter(ServerConfig.getInt("chat.proxy.degradeAfterMs", 0))
+                .bandwidth(ServerConfig.getInt("chat.proxy.bytesPerSecond", 0))
+                .latency(ServerConfig.getInt("chat.proxy.latencyMs", 0))
+                .stalls(ServerConfig.getInt("chat.proxy.stallEveryMs", 0),
+                        ServerConfig.getInt("chat.proxy.stallForMs", 0));
+        if (Boolean.getBoolean("chat.proxy.halfOpen")) {
+            shape = shape.halfOpen();
+        }
+        ShapingProxy proxy = new ShapingProxy(ServerConfig.getInt("chat.proxy.port", DEFAULT_PORT),
+                ServerConfig.getString("chat.proxy.targetHost", "127.0.0.1"),
+                ServerConfig.getInt("chat.proxy.targetPort", DEFAULT_TARGET_PORT), shape);
+        System.out.println("Proxy listening on port " + proxy.getPort() + " with " + shape + ".");
+        proxy.start();
+    }
+
+    /**
+     * Gets the port the proxy listens on.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Starts accepting connections on a background thread.
+     */
+    public void start() {
+        Thread acceptor = new Thread(this::acceptLoop, "shaping-proxy-" + getPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Stops the proxy and closes every proxied connection.
+     */
+    @Override
+    public void close() {
+        closeQuietly(serverSocket);
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                client.setSendBufferSize(SOCKET_BUFFER_BYTES);
+                client.setReceiveBufferSize(SOCKET_BUFFER_BYTES);
+                Socket server = new Socket();
+                server.setSendBufferSize(SOCKET_BUFFER_BYTES);
+                server.setReceiveBufferSize(SOCKET_BUFFER_BYTES);
+                server.connect(new InetSocketAddress(targetHost, targetPort));
+                sockets.add(client);
+                sockets.add(server);
+
+                long degradeAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shape.degradeAfterMs);
+                new Pipe(client, server, degradeAt).start("up");
+                new Pipe(server, client, degradeAt).start("down");
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.out.println("Proxy failed to connect: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+            // Nothing left to do with a connection that cannot be closed
+        }
+    }
+
+    /**
+     * Pipe class moving the bytes of one direction of a connection.
+     * A reader thread reads chunks into a small queue and a writer thread
+     * forwards them once their latency has passed, at the capped rate.
+     */
+    private final class Pipe {
+        private final Socket from;
+        private final Socket to;
+        private final long degradeAt;
+        private final BlockingQueue<Chunk> chunks = new ArrayBlockingQueue<>(CHUNKS_IN_FLIGHT);
+
+        Pipe(Socket from, Socket to, long degradeAt) {
+            this.from = from;
+            this.to = to;
+            this.degradeAt = degradeAt;
+        }
+
+        void start(String direction) {
+            Thread reader = new Thread(this::readLoop, "shaping-proxy-" + direction + "-reader");
+            Thread writer = new Thread(this::writeLoop, "shaping-proxy-" + direction + "-writer");
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        private boolean degraded() {
+            return System.nanoTime() - degradeAt >= 0;
+        }
+
+        private void readLoop() {
+            int chunkSize = shape.bytesPerSecond > 0
+                    ? Math.max(1, Math.min(CHUNK_BYTES, shape.bytesPerSecond / STEPS_PER_SECOND))
+                    : CHUNK_BYTES;
+            byte[] buffer = new byte[CHUNK_BYTES];
+            try {
+                InputStream in = from.getInputStream();
+                while (true) {
+                    goSilentIfHalfOpen();
+                    int read = in.read(buffer, 0, degraded() ? chunkSize : CHUNK_BYTES);
+                    if (read < 0) {
+                        break;
+                    }
+                    long latency = degraded() ? TimeUnit.MILLISECONDS.toNanos(shape.latencyMs) : 0;
+                    chunks.put(new Chunk(Arrays.copyOf(buffer, read), System.nanoTime() + latency));
+                }
+            } catch (IOException e) {
+                // The connection is gone, the writer closes both sides
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            chunks.offer(Chunk.END);
+        }
+
+        private void writeLoop() {
+            long nextStall = degradeAt + TimeUnit.MILLISECONDS.toNanos(shape.stallEveryMs);
+            try {
+                OutputStream out = to.getOutputStream();
+                while (true) {
+                    Chunk chunk = chunks.take();
+                    if (chunk == Chunk.END) {
+                        break;
+                    }
+                    sleepNanos(chunk.due - System.nanoTime());
+                    if (degraded() && shape.stallEveryMs > 0 && System.nanoTime() - nextStall >= 0) {
+                        TimeUnit.MILLISECONDS.sleep(shape.stallForMs);
+                        nextStall = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shape.stallEveryMs);
+                    }
+                    goSilentIfHalfOpen();
+                    out.write(chunk.data);
+                    out.flush();
+                    if (degraded() && shape.bytesPerSecond > 0) {
+                        sleepNanos(TimeUnit.SECONDS.toNanos(chunk.data.length) / shape.bytesPerSecond);
+                    }
+                }
+            } catch (IOException e) {
+                // The other side is gone, close this side too
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            closeQuietly(from);
+            closeQuietly(to);
+        }
+
+        /**
+         * Stops moving data for good once a half-open connection degrades,
+         * without closing anything, until the proxy is closed.
+         *
+         * @throws InterruptedException If interrupted while silent.
+         */
+        private void goSilentIfHalfOpen() throws InterruptedException {
+            if (!shape.halfOpen || !degraded()) {
+                return;
+            }
+            while (!from.isClosed() && !to.isClosed()) {
+                TimeUnit.SECONDS.sleep(1);
+            }
+        }
+
+        private void sleepNanos(long nanos) throws InterruptedException {
+            if (nanos > 0) {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+            }
+        }
+    }
+
+    /**
+     * Chunk class holding bytes read from one side and when to forward them.
+     */
+    private static final class Chunk {
+        // Marks the end of the stream
+        private static final Chunk END = new Chunk(new byte[0], 0);
+
+        private final byte[] data;
+        private final long due;
+
+        Chunk(byte[] data, long due) {
+            this.data = data;
+            this.due = due;
+        }
+    }
+
+    /**
+     * Shape class describing how a proxied connection is degraded.
+     * Shapes are immutable, every method returns a changed copy.
+     */
+    public static final class Shape {
+        private final int degradeAfterMs;
+        private final int bytesPerSecond;
+        private final int latencyMs;
+        private final int stallEveryMs;
+        private final int stallForMs;
+        private final boolean halfOpen;
+
+        private Shape(int degradeAfterMs, int bytesPerSecond, int latencyMs, int stallEveryMs, int stallForMs,
+                boolean halfOpen) {
+            this.degradeAfterMs = degradeAfterMs;
+            this.bytesPerSecond = bytesPerSecond;
+            this.latencyMs = latencyMs;
+            this.stallEveryMs = stallEveryMs;
+            this.stallForMs = stallForMs;
+            this.halfOpen = halfOpen;
+        }
+
+        /**
+         * Gets a shape that forwards everything as fast as it arrives.
+         *
+         * @return The shape.
+         */
+        public static Shape healthy() {
+            return new Shape(0, 0, 0, 0, 0, false);
+        }
+
+        /**
+         * Keeps the connection healthy for a while, so the client can log in
+         * and read the history before the link degrades.
+         *
+         * @param millis Time after connecting before the shape applies.
+         * @return The changed shape.
+         */
+        public Shape degradeAfter(int millis) {
+            return new Shape(millis, bytesPerSecond, latencyMs, stallEveryMs, stallForMs, halfOpen);
+        }
+
+        /**
+         * Caps the bandwidth of each direction.
+         *
+         * @param limit Bytes per second, 0 for no cap.
+         * @return The changed shape.
+         */
+        public Shape bandwidth(int limit) {
+            return new Shape(degradeAfterMs, limit, latencyMs, stallEveryMs, stallForMs, halfOpen);
+        }
+
+        /**
+         * Delays everything forwarded.
+         *
+         * @param millis The added latency.
+         * @return The changed shape.
+         */
+        public Shape latency(int millis) {
+            return new Shape(degradeAfterMs, bytesPerSecond, millis, stallEveryMs, stallForMs, halfOpen);
+        }
+
+        /**
+         * Stops forwarding for a while at a regular interval.
+         *
+         * @param everyMillis Time between two stalls, 0 for none.
+         * @param forMillis   Length of a stall.
+         * @return The changed shape.
+         */
+        public Shape stalls(int everyMillis, int forMillis) {
+            return new Shape(degradeAfterMs, bytesPerSecond, latencyMs, everyMillis, forMillis, halfOpen);
+        }
+
+        /**
+         * Stops forwarding for good once degraded, without closing the
+         * connection, like a peer that dropped off the network.
+         *
+         * @return The changed shape.
+         */
+        public Shape halfOpen() {
+            return new Shape(degradeAfterMs, bytesPerSecond, latencyMs, stallEveryMs, stallForMs, true);
+        }
+
+        @Override
+        public String toString() {
+            if (halfOpen) {
+                return "half-open after " + degradeAfterMs + " ms";
+            }
+            return bytesPerSecond + " B/s, " + latencyMs + " ms latency, stall " + stallForMs + " ms every "
+                    + stallEveryMs + " ms, after " + degradeAfterMs + " ms";
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.sonnybell.app.loadtest;
+
+import com.sonnybell.app.client.Client;
+import com.sonnybell.app.interfaces.MessageListener;
+import java.io.IOException;
+
+/**
+ * SocketUser class playing one user connected over a socket.
+ * It logs in through Client like the console client does and listens for
+ * messages with a MessageListener, measuring the latency of every load
+ * message it receives.
+ */
+final class SocketUser implements MessageListener {
+
+    // Sent by the server when a socket user goes over the rate limit
+    private static final String RATE_LIMITED = "SERVER: You are sending messages too fast.";
+
+    private final String username;
+    private final LoadStats stats;
+    // Length of the messages sent
+    private final int messageBytes;
+    private Client client;
+    private long sequence;
+    // Lines of the history sent on login are not deliveries
+    private volatile boolean live;
+
+    /**
+     * Constructor to create a user that is not connected yet.
+     *
+     * @param username     The username to log in with.
+     * @param stats        The measurements the user adds to.
+     * @param messageBytes The length the messages sent are padded to.
+     */
+    SocketUser(String username, LoadStats stats, int messageBytes) {
+        this.username = username;
+        this.stats = stats;
+        this.messageBytes = messageBytes;
+    }
+
+    /**
+     * Connects to the server, logs in and starts listening.
+     *
+     * @param host     The host name of the server.
+     * @param port     The socket port of the server.
+     * @param password The server password.
+     * @throws IOException If the connection or the login fails.
+     */
+    void connect(String host, int port, String password) throws IOException {
+        long start = System.nanoTime();
+        client = Client.connect(host, port, password, username);
+        client.setMessageListener(this);
+        client.readInitialHistory();
+        stats.onSocketConnected(start);
+        live = true;
+        client.listenForMessages();
+    }
+
+    /**
+     * Sends the next load message.
+     */
+    void send() {
+        client.sendMessage(LoadStats.payload(++sequence, messageBytes));
+        stats.onSent();
+    }
+
+    @Override
+    public void onMessageReceived(String message) {
+        if (!live) {
+            return;
+        }
+        long sentNanos = LoadStats.sentNanosOf(message);
+        if (sentNanos >= 0) {
+            stats.onSocketDelivered(sentNanos);
+        } else if (message.startsWith(RATE_LIMITED)) {
+            stats.onRateLimited();
+        }
+    }
+}
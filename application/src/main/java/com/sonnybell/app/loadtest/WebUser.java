@@ -0,0 +1,158 @@
+package com.sonnybell.app.loadtest;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * WebUser class playing one user of the web chat.
+ * It logs in, posts messages and polls for new ones through /api/webchat/*
+ * the way the browser script does.
+ * Every poll returns the whole room history, so a load message is only
+ * counted the first time it is seen.
+ */
+final class WebUser {
+
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_NO_CONTENT = 204;
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final String username;
+    private final String baseUrl;
+    private final HttpClient http;
+    private final LoadStats stats;
+    // Length of the messages sent
+    private final int messageBytes;
+    // Highest sequence number seen from each sender, only touched by one poll at a time
+    private final Map<String, Long> lastSeen = new HashMap<>();
+    // Set while a poll is in flight, a slow server gets no second poll from the same user
+    private final AtomicBoolean polling = new AtomicBoolean();
+    private long sequence;
+    // Session token given at login, sent with every later request
+    private volatile String token = "";
+
+    /**
+     * Constructor to create a user that is not logged in yet.
+     *
+     * @param username     The username to log in with.
+     * @param baseUrl      The address of the web interface, like http://127.0.0.1:8080.
+     * @param http         The client sending the requests, shared by all web users.
+     * @param stats        The measurements the user adds to.
+     * @param messageBytes The length the messages sent are padded to.
+     */
+    WebUser(String username, String baseUrl, HttpClient http, LoadStats stats, int messageBytes) {
+        this.username = username;
+        this.baseUrl = baseUrl;
+        this.http = http;
+        this.stats = stats;
+        this.messageBytes = messageBytes;
+    }
+
+    /**
+     * Logs in to the web chat.
+     *
+     * @param password The server password.
+     * @return Whether the login was accepted.
+     * @throws IOException          If the request fails.
+     * @throws InterruptedException If interrupted while waiting for the answer.
+     */
+    boolean login(String password) throws IOException, InterruptedException {
+        JSONObject body = new JSONObject();
+        body.put("username", username);
+        body.put("password", password);
+        long start = System.nanoTime();
+        HttpResponse<String> response = http.send(post("/api/webchat/login", body),
+                HttpResponse.BodyHandlers.ofString());
+        boolean valid = response.statusCode() == HTTP_OK && new JSONObject(response.body()).optBoolean("valid");
+        if (valid) {
+            token = new JSONObject(response.body()).optString("token", "");
+            // Everything already in the history was sent before the run
+            markSeen(new JSONArray(get("/api/webchat/messages")), false);
+            stats.onWebLoggedIn(start);
+        }
+        return valid;
+    }
+
+    /**
+     * Posts the next load message without waiting for the answer.
+     */
+    void send() {
+        JSONObject body = new JSONObject();
+        body.put("message", LoadStats.payload(++sequence, messageBytes));
+        stats.onSent();
+        http.sendAsync(post("/api/webchat/messages", body), HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        stats.onRequestFailed();
+                    } else if (response.statusCode() == HTTP_TOO_MANY_REQUESTS) {
+                        stats.onRateLimited();
+                    } else if (response.statusCode() != HTTP_OK && response.statusCode() != HTTP_NO_CONTENT) {
+                        stats.onRequestFailed();
+                    }
+                });
+    }
+
+    /**
+     * Polls for messages, unless the previous poll has not been answered yet.
+     */
+    void poll() {
+        if (!polling.compareAndSet(false, true)) {
+            return;
+        }
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + "/api/webchat/messages"))
+                .header("Authorization", "Bearer " + token).GET().build();
+        http.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                .whenComplete((response, error) -> {
+                    try {
+                        if (error != null || response.statusCode() != HTTP_OK) {
+                            stats.onRequestFailed();
+                        } else {
+                            markSeen(new JSONArray(response.body()), true);
+                        }
+                    } finally {
+                        polling.set(false);
+                    }
+                });
+    }
+
+    private void markSeen(JSONArray messages, boolean record) {
+        for (int i = 0; i < messages.length(); i++) {
+            String line = messages.optString(i, "");
+            long seq = LoadStats.sequenceOf(line);
+            int colon = line.indexOf(": ");
+            if (seq < 0 || colon < 0) {
+                continue;
+            }
+            String sender = line.substring(0, colon);
+            Long last = lastSeen.get(sender);
+            if (last != null && seq <= last) {
+                continue;
+            }
+            lastSeen.put(sender, seq);
+            if (record && !sender.equals(username)) {
+                stats.onWebDelivered(LoadStats.sentNanosOf(line));
+            }
+        }
+    }
+
+    private String get(String path) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Authorization", "Bearer " + token).GET().build();
+        return http.send(request, HttpResponse.BodyHandlers.ofString()).body();
+    }
+
+    private HttpRequest post(String path, JSONObject body) {
+        return HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Content-Type", "application/json")
+                .header("Authorization", "Bearer " + token)
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString()))
+                .build();
+    }
+}
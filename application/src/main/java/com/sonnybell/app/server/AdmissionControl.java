@@ -0,0 +1,128 @@
+package com.sonnybell.app.server;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * AdmissionControl class to decide whether a new socket connection is accepted.
+ * It caps the total number of open connections and the number of open
+ * connections per remote address, and counts accepted and rejected connections.
+ * The limits are read from these system properties:
+ * chat.server.maxConnections, chat.server.maxConnectionsPerAddress and
+ * chat.server.backlog.
+ */
+public final class AdmissionControl {
+
+    /**
+     * Prefix of the line sent to a client whose connection is rejected.
+     */
+    public static final String REJECTED_PREFIX = "REJECTED: ";
+
+    private static final int MAX_CONNECTIONS = ServerConfig.getInt("chat.server.maxConnections", 1000);
+    private static final int MAX_PER_ADDRESS = ServerConfig.getInt("chat.server.maxConnectionsPerAddress", 50);
+    private static final int BACKLOG = ServerConfig.getInt("chat.server.backlog", 128);
+
+    private static final AtomicInteger OPEN_CONNECTIONS = new AtomicInteger();
+    // Open connections per address, addresses without open connections are removed
+    private static final Map<InetAddress, Integer> OPEN_PER_ADDRESS = new ConcurrentHashMap<>();
+
+    private static final LongAdder ACCEPTED = new LongAdder();
+    private static final LongAdder REJECTED_FULL = new LongAdder();
+    private static final LongAdder REJECTED_ADDRESS = new LongAdder();
+
+    static {
+        Metrics.gauge("chat_connections_open", "Open socket connections.", OPEN_CONNECTIONS::get);
+        Metrics.counterFunction("chat_connections_accepted_total", "Socket connections accepted.", ACCEPTED::sum);
+        Metrics.counterFunction("chat_connections_rejected_total", "Socket connections rejected, by reason.",
+                REJECTED_FULL::sum, "reason", "server_full");
+        Metrics.counterFunction("chat_connections_rejected_total", "Socket connections rejected, by reason.",
+                REJECTED_ADDRESS::sum, "reason", "address_limit");
+    }
+
+    private AdmissionControl() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Gets the accept backlog to create the server socket with.
+     *
+     * @return The accept backlog.
+     */
+    public static int getBacklog() {
+        return BACKLOG;
+    }
+
+    /**
+     * Tries to take a connection slot for a new connection.
+     * Every successful call must be paired with a call to release.
+     *
+     * @param address The remote address of the connection.
+     * @return null if the connection is admitted, otherwise the reason it was
+     *         rejected.
+     */
+    public static String tryAdmit(InetAddress address) {
+        if (OPEN_CONNECTIONS.incrementAndGet() > MAX_CONNECTIONS) {
+            OPEN_CONNECTIONS.decrementAndGet();
+            REJECTED_FULL.increment();
+            return "Server is full. Please try again later.";
+        }
+
+        if (OPEN_PER_ADDRESS.merge(address, 1, Integer::sum) > MAX_PER_ADDRESS) {
+            release(address);
+            REJECTED_ADDRESS.increment();
+            return "Too many connections from your address.";
+        }
+
+        ACCEPTED.increment();
+        return null;
+    }
+
+    /**
+     * Gives back the connection slot of a closed connection.
+     *
+     * @param address The remote address of the connection.
+     */
+    public static void release(InetAddress address) {
+        OPEN_PER_ADDRESS.computeIfPresent(address, (a, open) -> open > 1 ? open - 1 : null);
+        OPEN_CONNECTIONS.decrementAndGet();
+    }
+
+    /**
+     * Gets the number of currently open socket connections.
+     *
+     * @return The number of open connections.
+     */
+    public static int getOpenConnections() {
+        return OPEN_CONNECTIONS.get();
+    }
+
+    /**
+     * Gets the number of accepted connections since the server started.
+     *
+     * @return The number of accepted connections.
+     */
+    public static long getAcceptedCount() {
+        return ACCEPTED.sum();
+    }
+
+    /**
+     * Gets the number of connections rejected because the server was full.
+     *
+     * @return The number of rejected connections.
+     */
+    public static long getRejectedFullCount() {
+        return REJECTED_FULL.sum();
+    }
+
+    /**
+     * Gets the number of connections rejected by the per address limit.
+     *
+     * @return The number of rejected connections.
+     */
+    public static long getRejectedAddressCount() {
+        return REJECTED_ADDRESS.sum();
+    }
+}
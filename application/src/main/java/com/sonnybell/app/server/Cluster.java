@@ -0,0 +1,517 @@
+package com.sonnybell.app.server;
+
+import com.sonnybell.app.chatfunctions.ChatMessage;
+import com.sonnybell.app.chatfunctions.ChatRoom;
+import com.sonnybell.app.chatfunctions.MessageKind;
+import com.sonnybell.app.chatfunctions.Presence;
+import com.sonnybell.app.chatfunctions.RoomRegistry;
+import com.sonnybell.app.client.ClientHandler;
+import com.sonnybell.app.interfaces.Moderation;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Cluster class linking several server processes into one chat.
+ * Every node listens for its peers on chat.cluster.port, on the address given
+ * by chat.cluster.bind, and connects to the nodes listed in
+ * chat.cluster.peers, so two nodes only need to list each other in one
+ * direction. A link starts with the two nodes proving they know the server
+ * password, see the Handshake class, and sending their node names, after that
+ * it carries the broadcasts that originated on the sending node, the users
+ * online there and requests to remove one of them.
+ * A node relays only its own broadcasts, it does not forward those of other
+ * nodes, so every node must be linked to every other node. A broadcast that
+ * reaches a node twice, over two links between the same nodes or after a link
+ * was re-established, is delivered once, by the origin node and the sequence
+ * number the message had there.
+ * The users online on the other nodes and the local users make up the cluster
+ * wide view shown by /api/status and used by Moderation.
+ * Cluster mode is off unless chat.cluster.node names this node.
+ */
+public final class Cluster {
+
+    // Name of this node, cluster mode is off without one
+    private static final String NODE = ServerConfig.getString("chat.cluster.node", "");
+    // Port the peers connect to, 0 to only connect out
+    private static final int PORT = ServerConfig.getInt("chat.cluster.port", 0);
+    // Address the port is opened on, peers on other machines need one they can reach
+    private static final String BIND = ServerConfig.getString("chat.cluster.bind", "127.0.0.1");
+    // Peers to connect to, host:port separated by commas
+    private static final String PEERS = ServerConfig.getString("chat.cluster.peers", "");
+    // Time between attempts to reach a peer that is not connected
+    private static final int RETRY_MS = ServerConfig.getInt("chat.cluster.retryMs", 2000);
+    // Frames that may wait for a slow peer before its link is dropped
+    private static final int QUEUE_CAPACITY = ServerConfig.getInt("chat.cluster.queueCapacity", 10000);
+    // Time a peer gets to connect, prove it knows the password and say hello
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    // Sequence numbers remembered per origin node to drop duplicates
+    private static final int DEDUP_WINDOW = 4096;
+    // Start time of this process, tells the sequence numbers of a restarted node from the ones before
+    private static final long INCARNATION = System.currentTimeMillis();
+
+    // Frame types, the first byte of every frame
+    private static final byte HELLO = 1;
+    private static final byte MESSAGE = 2;
+    private static final byte USERS = 3;
+    private static final byte JOINED = 4;
+    private static final byte LEFT = 5;
+    private static final byte REMOVE = 6;
+
+    private static final String RELAYED = "chat_cluster_messages_total";
+    private static final String RELAYED_HELP = "Broadcasts relayed between cluster nodes, by direction.";
+    private static final Metrics.Counter RELAYED_OUT = Metrics.counter(RELAYED, RELAYED_HELP, "direction", "out");
+    private static final Metrics.Counter RELAYED_IN = Metrics.counter(RELAYED, RELAYED_HELP, "direction", "in");
+    private static final Metrics.Counter DUPLICATES = Metrics.counter("chat_cluster_duplicates_total",
+            "Broadcasts from other cluster nodes dropped because they were already delivered.");
+
+    // Links to the other nodes, a node linked both ways has two
+    private static final Set<Link> LINKS = new CopyOnWriteArraySet<>();
+    // Recently delivered sequence numbers of every other node
+    private static final Map<String, Window> DELIVERED = new ConcurrentHashMap<>();
+
+    private static boolean started;
+
+    static {
+        Metrics.gauge("chat_cluster_peers", "Other cluster nodes this node is linked to.",
+                () -> peers().size());
+    }
+
+    private Cluster() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Starts listening for peers and connecting to the configured ones, if
+     * cluster mode is on.
+     */
+    public static synchronized void start() {
+        if (started || !isEnabled()) {
+            return;
+        }
+        started = true;
+        if (PORT > 0) {
+            try {
+                ServerSocket serverSocket = Handshake.listen(BIND, PORT);
+                startThread("cluster-listener", () -> listen(serverSocket));
+            } catch (IOException e) {
+                System.err.println("Cluster: cannot listen on " + BIND + ":" + PORT + ": " + e.getMessage());
+            }
+        }
+        for (String peer : PEERS.split(",")) {
+            InetSocketAddress address = parseAddress(peer.trim());
+            if (address != null) {
+                startThread("cluster-dial-" + peer.trim(), () -> dial(address));
+            } else if (!peer.isBlank()) {
+                System.err.println("Cluster: ignoring invalid peer '" + peer.trim() + "', expected host:port.");
+            }
+        }
+        System.out.println("Cluster node " + NODE + " started.");
+    }
+
+    /**
+     * Tells whether this server is a node of a cluster.
+     *
+     * @return true if chat.cluster.node is set.
+     */
+    public static boolean isEnabled() {
+        return !NODE.isEmpty();
+    }
+
+    /**
+     * Gets the name of this node.
+     *
+     * @return The node name, or null when cluster mode is off.
+     */
+    public static String getNode() {
+        return isEnabled() ? NODE : null;
+    }
+
+    /**
+     * Gets the other nodes this node is linked to.
+     *
+     * @return The node names, each once.
+     */
+    public static List<String> peers() {
+        Set<String> peers = new LinkedHashSet<>();
+        for (Link link : LINKS) {
+            peers.add(link.node);
+        }
+        return new ArrayList<>(peers);
+    }
+
+    /**
+     * Gets the users online on the other nodes.
+     *
+     * @return The usernames, each once.
+     */
+    public static List<String> remoteUsers() {
+        Set<String> users = new LinkedHashSet<>();
+        for (Link link : LINKS) {
+            users.addAll(link.users);
+        }
+        return new ArrayList<>(users);
+    }
+
+    /**
+     * Sends a broadcast that originated on this node to the other nodes.
+     *
+     * @param message The message.
+     * @param room    The room it was sent to, or null for a broadcast to everyone.
+     */
+    public static void relay(ChatMessage message, String room) {
+        if (LINKS.isEmpty()) {
+            return;
+        }
+        byte[] frame = Frames.frame(MESSAGE, out -> {
+            out.writeLong(message.getSequence());
+            Frames.writeString(out, message.getKind().name());
+            Frames.writeString(out, room == null ? "" : room);
+            Frames.writeString(out, message.getSender() == null ? "" : message.getSender());
+            Frames.writeString(out, message.getText());
+        });
+        for (Link link : LINKS) {
+            link.send(frame);
+        }
+        RELAYED_OUT.inc();
+    }
+
+    /**
+     * Tells the other nodes a local user came online or went offline. Called
+     * by Presence while it holds its lock, so the changes reach the peers in
+     * the order they happened and after the list of users a new link starts
+     * with.
+     *
+     * @param username The user.
+     * @param joined   true if the user came online, false if it went offline.
+     */
+    public static void presenceChanged(String username, boolean joined) {
+        if (LINKS.isEmpty()) {
+            return;
+        }
+        byte[] frame = Frames.frame(joined ? JOINED : LEFT, out -> Frames.writeString(out, username));
+        for (Link link : LINKS) {
+            link.send(frame);
+        }
+    }
+
+    /**
+     * Asks the node a user is online on to remove it.
+     *
+     * @param username The user.
+     * @return true if another node has the user online and was asked.
+     */
+    public static boolean requestRemoval(String username) {
+        for (Link link : LINKS) {
+            if (link.users.contains(username)) {
+                link.send(Frames.frame(REMOVE, out -> Frames.writeString(out, username)));
+                System.out.println("Cluster: asked node " + link.node + " to remove " + username + ".");
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static InetSocketAddress parseAddress(String peer) {
+        int colon = peer.lastIndexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        try {
+            return new InetSocketAddress(peer.substring(0, colon), Integer.parseInt(peer.substring(colon + 1)));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void listen(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                startThread("cluster-link-" + socket.getRemoteSocketAddress(), () -> runLink(socket, false));
+            } catch (IOException e) {
+                System.err.println("Cluster: accepting a peer failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Keeps a link to a configured peer, connecting again whenever it drops.
+     */
+    private static void dial(InetSocketAddress address) {
+        while (true) {
+            Socket socket = new Socket();
+            try {
+                socket.connect(address, HANDSHAKE_TIMEOUT_MS);
+                runLink(socket, true);
+            } catch (IOException e) {
+                // The peer is not up yet, try again later
+                Frames.closeQuietly(socket);
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs the handshake and says hello on a new connection, then reads frames
+     * from the peer until the connection closes.
+     *
+     * @param dialed true if this node made the connection, false if it accepted it.
+     */
+    private static void runLink(Socket socket, boolean dialed) {
+        Link link;
+        try {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            socket.setKeepAlive(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            if (dialed) {
+                Handshake.dial(in, out);
+            } else {
+                Handshake.accept(in, out);
+            }
+            out.write(Frames.frame(HELLO, hello -> {
+                Frames.writeString(hello, NODE);
+                hello.writeLong(INCARNATION);
+            }));
+            out.flush();
+
+            if (in.readByte() != HELLO) {
+                throw new IOException("expected a hello");
+            }
+            String node = Frames.readString(in);
+            long incarnation = in.readLong();
+            if (node.isEmpty() || node.equals(NODE)) {
+                throw new IOException("invalid node name '" + node + "'");
+            }
+            socket.setSoTimeout(0);
+            link = new Link(socket, in, out, node, incarnation);
+        } catch (IOException e) {
+            System.err.println("Cluster: handshake with " + socket.getRemoteSocketAddress() + " failed: "
+                    + e.getMessage());
+            Frames.closeQuietly(socket);
+            return;
+        }
+
+        // Changes to the local users are sent under the Presence lock, holding it
+        // here puts every later change behind the list the link starts with
+        synchronized (Presence.class) {
+            List<String> online = Presence.online();
+            link.send(Frames.frame(USERS, out -> {
+                out.writeInt(online.size());
+                for (String username : online) {
+                    Frames.writeString(out, username);
+                }
+            }));
+            LINKS.add(link);
+        }
+        System.out.println("Cluster: linked to node " + link.node + ".");
+        link.run();
+        System.out.println("Cluster: link to node " + link.node + " closed.");
+    }
+
+    /**
+     * Handles a frame from a peer.
+     */
+    private static void receive(Link link, byte type) throws IOException {
+        DataInputStream in = link.in;
+        switch (type) {
+            case MESSAGE:
+                long sequence = in.readLong();
+                MessageKind kind = Frames.readKind(in);
+                String room = Frames.readString(in);
+                String sender = Frames.readString(in);
+                String text = Frames.readString(in);
+                if (firstDelivery(link, sequence)) {
+                    deliver(kind, room, sender, text);
+                } else {
+                    DUPLICATES.inc();
+                }
+                break;
+            case USERS:
+                int count = in.readInt();
+                Set<String> users = new LinkedHashSet<>();
+                for (int i = 0; i < count; i++) {
+                    users.add(Frames.readString(in));
+                }
+                link.users.retainAll(users);
+                link.users.addAll(users);
+                break;
+            case JOINED:
+                link.users.add(Frames.readString(in));
+                break;
+            case LEFT:
+                link.users.remove(Frames.readString(in));
+                break;
+            case REMOVE:
+                String username = Frames.readString(in);
+                System.out.println("Cluster: node " + link.node + " asked to remove " + username + ".");
+                Moderation.removeLocalUser(username);
+                break;
+            default:
+                throw new IOException("unknown frame type " + type);
+        }
+    }
+
+    /**
+     * Checks whether a broadcast of a peer is seen for the first time.
+     */
+    private static boolean firstDelivery(Link link, long sequence) {
+        Window window = DELIVERED.compute(link.node, (node, current) ->
+                current == null || current.incarnation < link.incarnation ? new Window(link.incarnation) : current);
+        return window.incarnation == link.incarnation && window.add(sequence);
+    }
+
+    /**
+     * Delivers a broadcast of a peer to the local users, without relaying it again.
+     */
+    private static void deliver(MessageKind kind, String room, String sender, String text) {
+        ChatMessage message = ChatMessage.of(kind, sender.isEmpty() ? null : sender, text);
+        RELAYED_IN.inc();
+        if (room.isEmpty()) {
+            ClientHandler.deliverRelayed(message);
+            return;
+        }
+        // Nobody here is in a room that does not exist on this node
+        ChatRoom target = RoomRegistry.find(room);
+        if (target != null) {
+            target.deliverRelayed(message);
+        }
+    }
+
+    /**
+     * Window class remembering the latest sequence numbers delivered from one
+     * run of a node.
+     */
+    private static final class Window {
+        private final long incarnation;
+        private final Set<Long> sequences = Collections.newSetFromMap(new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > DEDUP_WINDOW;
+            }
+        });
+
+        Window(long incarnation) {
+            this.incarnation = incarnation;
+        }
+
+        synchronized boolean add(long sequence) {
+            return sequences.add(sequence);
+        }
+    }
+
+    /**
+     * Link class holding the connection to one peer.
+     * Frames are queued for a writer thread of the link, so a slow peer never
+     * holds up a broadcast, and the link is dropped when its queue is full.
+     */
+    private static final class Link {
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final String node;
+        private final long incarnation;
+        // Users online on the peer
+        private final Set<String> users = ConcurrentHashMap.newKeySet();
+        private final BlockingQueue<byte[]> outbound = new ArrayBlockingQueue<>(Math.max(1, QUEUE_CAPACITY));
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        Link(Socket socket, DataInputStream in, DataOutputStream out, String node, long incarnation) {
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+            this.node = node;
+            this.incarnation = incarnation;
+        }
+
+        void send(byte[] frame) {
+            if (!outbound.offer(frame) && !closed.get()) {
+                System.err.println("Cluster: node " + node + " fell behind, dropping its link.");
+                close();
+            }
+        }
+
+        /**
+         * Writes queued frames on a thread of its own and reads frames on the
+         * calling thread, until the connection closes.
+         */
+        void run() {
+            Thread writer = new Thread(this::writeLoop, "cluster-writer-" + node);
+            writer.setDaemon(true);
+            writer.start();
+            try {
+                while (!closed.get()) {
+                    receive(this, in.readByte());
+                }
+            } catch (EOFException e) {
+                // The peer closed the link
+            } catch (IOException e) {
+                if (!closed.get()) {
+                    System.err.println("Cluster: link to node " + node + " failed: " + e.getMessage());
+                }
+            } finally {
+                close();
+                writer.interrupt();
+            }
+        }
+
+        private void writeLoop() {
+            List<byte[]> batch = new ArrayList<>();
+            try {
+                while (true) {
+                    batch.add(outbound.take());
+                    outbound.drainTo(batch);
+                    for (byte[] frame : batch) {
+                        out.write(frame);
+                    }
+                    out.flush();
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                close();
+            } catch (InterruptedException e) {
+                // The link is being closed
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void close() {
+            if (closed.compareAndSet(false, true)) {
+                LINKS.remove(this);
+                Frames.closeQuietly(socket);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.sonnybell.app.server;
+
+import com.sonnybell.app.client.ClientHandler;
+import com.sonnybell.app.web.WebChat;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ConnectionReaper class to evict dead socket connections and idle web users.
+ * Socket clients send a PING line at a fixed interval and the server answers
+ * with PONG, so every live connection keeps updating its last seen time.
+ * A single background thread checks all connections and web users at a fixed
+ * interval and removes the ones that have been silent for too long.
+ * The intervals are read from these system properties:
+ * chat.heartbeat.checkIntervalMs, chat.heartbeat.timeoutMs and
+ * chat.web.idleTimeoutMs.
+ */
+public final class ConnectionReaper {
+
+    private static final int CHECK_INTERVAL_MS = ServerConfig.getInt("chat.heartbeat.checkIntervalMs", 5000);
+    private static final int SOCKET_TIMEOUT_MS = ServerConfig.getInt("chat.heartbeat.timeoutMs", 45000);
+    private static final int WEB_TIMEOUT_MS = ServerConfig.getInt("chat.web.idleTimeoutMs", 30000);
+
+    private static ScheduledExecutorService scheduler;
+
+    private ConnectionReaper() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Starts the reaper thread if it is not running yet.
+     */
+    public static synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "connection-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(ConnectionReaper::reap, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs one check over all socket connections and web users.
+     * A scheduled task that throws is never run again, so a failure is logged
+     * and the next check goes ahead as planned.
+     */
+    @SuppressWarnings("checkstyle:IllegalCatch")
+    static void reap() {
+        try {
+            long now = System.nanoTime();
+            long socketTimeout = TimeUnit.MILLISECONDS.toNanos(SOCKET_TIMEOUT_MS);
+            for (ClientHandler handler : ClientHandler.getClientList()) {
+                if (now - handler.getLastSeen() > socketTimeout) {
+                    System.out.println("Evicting silent connection of " + handler.getUsername());
+                    handler.closeEverything();
+                }
+            }
+
+            WebChat.expireIdleUsers(now - TimeUnit.MILLISECONDS.toNanos(WEB_TIMEOUT_MS));
+            RateLimiter.pruneIdleAddresses();
+        } catch (RuntimeException e) {
+            System.err.println("Connection reaper failed: " + e);
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package com.sonnybell.app.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * CountingOutputStream class adding every byte written to a metrics counter.
+ * It is placed under the writers of socket clients and HTTP responses to
+ * measure the bytes the server sends.
+ */
+public final class CountingOutputStream extends FilterOutputStream {
+
+    private final Metrics.Counter counter;
+
+    /**
+     * Constructor to wrap a stream.
+     *
+     * @param out     The stream to write to.
+     * @param counter The counter to add the written bytes to.
+     */
+    public CountingOutputStream(OutputStream out, Metrics.Counter counter) {
+        super(out);
+        this.counter = counter;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        counter.inc();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        // Write the whole block at once, FilterOutputStream would write it byte by byte
+        out.write(b, off, len);
+        counter.add(len);
+    }
+}
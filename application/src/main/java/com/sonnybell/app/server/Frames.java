@@ -0,0 +1,146 @@
+package com.sonnybell.app.server;
+
+import com.sonnybell.app.chatfunctions.ChatMessage;
+import com.sonnybell.app.chatfunctions.MessageKind;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Frames class encoding the frames servers send each other, used by the
+ * Cluster and Replication links.
+ * A frame is a type byte followed by its fields, written with a
+ * DataOutputStream. Strings are their UTF-8 length followed by the bytes, so
+ * they can be of any length, unlike with writeUTF.
+ */
+final class Frames {
+
+    // Longest string a frame may carry, anything longer means the stream is broken
+    private static final int MAX_STRING_BYTES = 1024 * 1024;
+
+    private Frames() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Encodes a frame, so it can be queued for any number of links.
+     *
+     * @param type The frame type.
+     * @param body Writes the fields of the frame.
+     * @return The encoded frame.
+     */
+    static byte[] frame(byte type, Body body) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(type);
+            body.write(out);
+        } catch (IOException e) {
+            // Writing to memory does not fail
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes a string as its UTF-8 length followed by the bytes.
+     *
+     * @param out   The stream.
+     * @param value The string.
+     * @throws IOException If writing fails.
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by writeString.
+     *
+     * @param in The stream.
+     * @return The string.
+     * @throws IOException If reading fails or the length is not valid.
+     */
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes a message with its sequence number and time.
+     *
+     * @param out     The stream.
+     * @param message The message.
+     * @throws IOException If writing fails.
+     */
+    static void writeMessage(DataOutputStream out, ChatMessage message) throws IOException {
+        out.writeLong(message.getSequence());
+        out.writeLong(message.getTimestamp());
+        writeString(out, message.getKind().name());
+        writeString(out, message.getSender() == null ? "" : message.getSender());
+        writeString(out, message.getText());
+    }
+
+    /**
+     * Reads a message written by writeMessage, keeping its sequence number and
+     * time.
+     *
+     * @param in The stream.
+     * @return The message.
+     * @throws IOException If reading fails or the message is not valid.
+     */
+    static ChatMessage readMessage(DataInputStream in) throws IOException {
+        long sequence = in.readLong();
+        long timestamp = in.readLong();
+        MessageKind kind = readKind(in);
+        String sender = readString(in);
+        String text = readString(in);
+        return ChatMessage.replica(kind, sender.isEmpty() ? null : sender, text, timestamp, sequence);
+    }
+
+    /**
+     * Reads the name of a message kind.
+     *
+     * @param in The stream.
+     * @return The kind.
+     * @throws IOException If reading fails or the kind is unknown.
+     */
+    static MessageKind readKind(DataInputStream in) throws IOException {
+        String kind = readString(in);
+        try {
+            return MessageKind.valueOf(kind);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("unknown message kind " + kind);
+        }
+    }
+
+    /**
+     * Closes the socket of a link that is being dropped, ignoring a failure.
+     *
+     * @param socket The socket.
+     */
+    static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // The connection is being dropped anyway
+        }
+    }
+
+    /**
+     * Body interface writing the fields of a frame after its type.
+     */
+    interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
@@ -0,0 +1,129 @@
+package com.sonnybell.app.server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Handshake class proving to both ends of a Cluster or Replication link that
+ * the other one knows the server password, without the password ever being
+ * sent.
+ * The accepting server starts by sending a random challenge and nothing else.
+ * The dialing server answers with a challenge of its own and an HMAC-SHA256
+ * of both challenges keyed with the password. Only once that answer checks out
+ * does the accepting server answer the dialer's challenge the same way, so a
+ * client that does not know the password learns nothing from a server. Each
+ * answer also covers the role of its sender, so an answer cannot be sent back
+ * to the server it came from.
+ */
+final class Handshake {
+
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int CHALLENGE_BYTES = 32;
+    // Length of an HMAC-SHA256
+    private static final int ANSWER_BYTES = 32;
+
+    // Roles, the first byte of what each answer covers
+    private static final byte DIALER = 1;
+    private static final byte ACCEPTOR = 2;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private Handshake() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Opens a listener for the links of other servers.
+     *
+     * @param bind The address to listen on, a loopback address keeps other
+     *             machines out.
+     * @param port The port.
+     * @return The listening socket.
+     * @throws IOException If the address is unknown or the port is taken.
+     */
+    static ServerSocket listen(String bind, int port) throws IOException {
+        return new ServerSocket(port, 0, InetAddress.getByName(bind));
+    }
+
+    /**
+     * Runs the handshake on a connection this server accepted. Nothing but the
+     * challenge is sent before the dialing server has proven it knows the
+     * password.
+     *
+     * @param in  The stream from the dialing server.
+     * @param out The stream to the dialing server.
+     * @throws IOException If the dialing server does not know the password or
+     *                     the connection fails.
+     */
+    static void accept(DataInputStream in, DataOutputStream out) throws IOException {
+        byte[] challenge = challenge();
+        out.write(challenge);
+        out.flush();
+
+        byte[] dialerChallenge = new byte[CHALLENGE_BYTES];
+        in.readFully(dialerChallenge);
+        byte[] answer = new byte[ANSWER_BYTES];
+        in.readFully(answer);
+        if (!MessageDigest.isEqual(answer, answer(DIALER, challenge, dialerChallenge))) {
+            throw new IOException("wrong password");
+        }
+        out.write(answer(ACCEPTOR, dialerChallenge, challenge));
+        out.flush();
+    }
+
+    /**
+     * Runs the handshake on a connection this server made.
+     *
+     * @param in  The stream from the accepting server.
+     * @param out The stream to the accepting server.
+     * @throws IOException If the accepting server does not know the password,
+     *                     rejected this server's answer, or the connection fails.
+     */
+    static void dial(DataInputStream in, DataOutputStream out) throws IOException {
+        byte[] acceptorChallenge = new byte[CHALLENGE_BYTES];
+        in.readFully(acceptorChallenge);
+        byte[] challenge = challenge();
+        out.write(challenge);
+        out.write(answer(DIALER, acceptorChallenge, challenge));
+        out.flush();
+
+        byte[] answer = new byte[ANSWER_BYTES];
+        in.readFully(answer);
+        if (!MessageDigest.isEqual(answer, answer(ACCEPTOR, challenge, acceptorChallenge))) {
+            throw new IOException("wrong password");
+        }
+    }
+
+    private static byte[] challenge() {
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        RANDOM.nextBytes(challenge);
+        return challenge;
+    }
+
+    /**
+     * Computes the answer of a role to a challenge, the challenge it answers
+     * comes first.
+     */
+    private static byte[] answer(byte role, byte[] answered, byte[] own) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(Server.getServerPass().getBytes(StandardCharsets.UTF_8), ALGORITHM));
+            mac.update(role);
+            mac.update(answered);
+            mac.update(own);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            // Every JDK provides HmacSHA256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.sonnybell.app.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LatencyHistogram class counting durations in logarithmic buckets.
+ * Every power of two is split into eight buckets, so a reported quantile is
+ * at most 12.5% above the real value, from one nanosecond up to about twenty
+ * minutes. Longer durations are counted in the last bucket.
+ * The buckets are one fixed array created up front, so recording a duration
+ * never allocates and costs a few arithmetic operations and one atomic add.
+ * Quantiles are only computed when the metrics are rendered.
+ */
+public final class LatencyHistogram implements Metrics.Series {
+
+    // Quantiles published for every histogram
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+    private static final String[] QUANTILE_LABELS = {"0.5", "0.99", "0.999"};
+
+    // Each power of two is split into 2^SUB_BITS buckets
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    // Largest power of two with its own buckets, 2^40 ns is about 18 minutes
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+
+    /**
+     * Constructor to create an empty histogram.
+     * Histograms published as metrics are created by Metrics.histogram.
+     */
+    public LatencyHistogram() {
+    }
+
+    /**
+     * Records one duration.
+     *
+     * @param nanos The duration in nanoseconds, negative values count as 0.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        buckets.incrementAndGet(bucketOf(value));
+        count.increment();
+        totalNanos.add(value);
+    }
+
+    /**
+     * Records the time since a start time.
+     *
+     * @param startNanos The System.nanoTime() the measured work started at.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Gets the number of recorded durations.
+     *
+     * @return The count.
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Gets an estimate of a quantile of the recorded durations.
+     *
+     * @param quantile The quantile, between 0 and 1.
+     * @return The upper bound of the bucket holding the quantile in nanoseconds,
+     *         or 0 if nothing was recorded.
+     */
+    public long quantile(double quantile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        return quantile(counts, total, quantile);
+    }
+
+    private static long quantile(long[] counts, long total, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(counts.length - 1);
+    }
+
+    @Override
+    public void render(StringBuilder out, String name, String labels) {
+        // Read the buckets once, so all quantiles come from the same snapshot
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        for (int i = 0; i < QUANTILES.length; i++) {
+            out.append(name).append(withQuantile(labels, QUANTILE_LABELS[i])).append(' ')
+                    .append(quantile(counts, total, QUANTILES[i]) / NANOS_PER_SECOND).append('\n');
+        }
+        out.append(name).append("_sum").append(labels).append(' ')
+                .append(totalNanos.sum() / NANOS_PER_SECOND).append('\n');
+        out.append(name).append("_count").append(labels).append(' ').append(count.sum()).append('\n');
+    }
+
+    /**
+     * Gets the bucket of a duration.
+     * Values below 2^SUB_BITS get a bucket each, larger values are bucketed by
+     * their highest bit and the SUB_BITS bits below it.
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = Math.min(MAX_EXPONENT, Long.SIZE - 1 - Long.numberOfLeadingZeros(value));
+        if (exponent == MAX_EXPONENT && value >= 1L << (MAX_EXPONENT + 1)) {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+    }
+
+    private static String withQuantile(String labels, String quantile) {
+        if (labels.isEmpty()) {
+            return "{quantile=\"" + quantile + "\"}";
+        }
+        return labels.substring(0, labels.length() - 1) + ",quantile=\"" + quantile + "\"}";
+    }
+}
@@ -0,0 +1,277 @@
+package com.sonnybell.app.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Metrics class holding the counters and gauges of the server.
+ * Counters are striped LongAdders, so counting from many threads at once never
+ * contends on one shared value, and reading them only happens when the
+ * metrics are scraped.
+ * Gauges and counters kept elsewhere are registered as functions that are
+ * only called while rendering.
+ * The metrics are rendered in the Prometheus text format by the /api/metrics
+ * endpoint.
+ */
+public final class Metrics {
+
+    // Nanoseconds in a second, durations are recorded in nanoseconds and shown in seconds
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+    // Metric families by name, each holding its series by their rendered labels
+    private static final Map<String, Family> FAMILIES = new ConcurrentHashMap<>();
+
+    private Metrics() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Gets a counter, creating it on first use.
+     * Asking twice for the same name and labels returns the same counter.
+     *
+     * @param name   The metric name, ending in _total.
+     * @param help   The description of the metric.
+     * @param labels Label names and values, alternating.
+     * @return The counter.
+     */
+    public static Counter counter(String name, String help, String... labels) {
+        Family family = family(name, help, "counter");
+        return (Counter) family.series.computeIfAbsent(labels(labels), key -> new Counter());
+    }
+
+    /**
+     * Gets a summary of durations, creating it on first use.
+     * Asking twice for the same name and labels returns the same summary.
+     *
+     * @param name   The metric name, ending in _seconds.
+     * @param help   The description of the metric.
+     * @param labels Label names and values, alternating.
+     * @return The summary.
+     */
+    public static Summary summary(String name, String help, String... labels) {
+        Family family = family(name, help, "summary");
+        return (Summary) family.series.computeIfAbsent(labels(labels), key -> new Summary());
+    }
+
+    /**
+     * Gets a latency histogram, creating it on first use.
+     * It is published as a summary with the 0.5, 0.99 and 0.999 quantiles.
+     *
+     * @param name   The metric name, ending in _seconds.
+     * @param help   The description of the metric.
+     * @param labels Label names and values, alternating.
+     * @return The histogram.
+     */
+    public static LatencyHistogram histogram(String name, String help, String... labels) {
+        Family family = family(name, help, "summary");
+        return (LatencyHistogram) family.series.computeIfAbsent(labels(labels), key -> new LatencyHistogram());
+    }
+
+    /**
+     * Registers a gauge whose value is read when the metrics are rendered.
+     *
+     * @param name   The metric name.
+     * @param help   The description of the metric.
+     * @param value  Supplies the current value.
+     * @param labels Label names and values, alternating.
+     */
+    public static void gauge(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "gauge").series.put(labels(labels), new Function(value));
+    }
+
+    /**
+     * Registers a counter that is kept by another class and read when the
+     * metrics are rendered.
+     *
+     * @param name   The metric name, ending in _total.
+     * @param help   The description of the metric.
+     * @param value  Supplies the current count.
+     * @param labels Label names and values, alternating.
+     */
+    public static void counterFunction(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, "counter").series.put(labels(labels), new Function(value));
+    }
+
+    /**
+     * Renders every metric in the Prometheus text format, sorted by name.
+     *
+     * @return The metrics text.
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder();
+        for (Family family : new TreeMap<>(FAMILIES).values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+            for (Map.Entry<String, Series> series : new TreeMap<>(family.series).entrySet()) {
+                series.getValue().render(out, family.name, series.getKey());
+            }
+        }
+        return out.toString();
+    }
+
+    private static Family family(String name, String help, String type) {
+        Family family = FAMILIES.computeIfAbsent(name, key -> new Family(name, help, type));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException("Metric " + name + " is already a " + family.type + ".");
+        }
+        return family;
+    }
+
+    private static String labels(String... labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be given as name and value pairs.");
+        }
+        StringBuilder out = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) {
+                out.append(',');
+            }
+            out.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    out.append('\\').append(c);
+                } else if (c == '\n') {
+                    out.append("\\n");
+                } else {
+                    out.append(c);
+                }
+            }
+            out.append('"');
+        }
+        return out.append('}').toString();
+    }
+
+    private static String seconds(long nanos) {
+        return Double.toString(nanos / NANOS_PER_SECOND);
+    }
+
+    /**
+     * Series interface for one labelled value of a metric family.
+     */
+    interface Series {
+        /**
+         * Appends the lines of this series to the metrics text.
+         *
+         * @param out    The metrics text.
+         * @param name   The name of the metric family.
+         * @param labels The rendered labels of this series, empty for none.
+         */
+        void render(StringBuilder out, String name, String labels);
+    }
+
+    /**
+     * Counter class counting events, such as messages or requests.
+     */
+    public static final class Counter implements Series {
+        private final LongAdder count = new LongAdder();
+
+        private Counter() {
+        }
+
+        /**
+         * Adds one to the counter.
+         */
+        public void inc() {
+            count.increment();
+        }
+
+        /**
+         * Adds an amount to the counter.
+         *
+         * @param amount The amount to add, must not be negative.
+         */
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        /**
+         * Gets the current count.
+         *
+         * @return The count.
+         */
+        public long get() {
+            return count.sum();
+        }
+
+        @Override
+        public void render(StringBuilder out, String name, String labels) {
+            out.append(name).append(labels).append(' ').append(count.sum()).append('\n');
+        }
+    }
+
+    /**
+     * Summary class recording how many times something took how long in total.
+     */
+    public static final class Summary implements Series {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+
+        private Summary() {
+        }
+
+        /**
+         * Records one duration.
+         *
+         * @param nanos The duration in nanoseconds.
+         */
+        public void record(long nanos) {
+            count.increment();
+            totalNanos.add(nanos);
+        }
+
+        /**
+         * Records the time since a start time.
+         *
+         * @param startNanos The System.nanoTime() the measured work started at.
+         */
+        public void recordSince(long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        @Override
+        public void render(StringBuilder out, String name, String labels) {
+            out.append(name).append("_sum").append(labels).append(' ').append(seconds(totalNanos.sum())).append('\n');
+            out.append(name).append("_count").append(labels).append(' ').append(count.sum()).append('\n');
+        }
+    }
+
+    /**
+     * Function class for values that are read when the metrics are rendered.
+     */
+    private static final class Function implements Series {
+        private final LongSupplier value;
+
+        Function(LongSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public void render(StringBuilder out, String name, String labels) {
+            out.append(name).append(labels).append(' ').append(value.getAsLong()).append('\n');
+        }
+    }
+
+    /**
+     * Family class holding the series of one metric name.
+     */
+    private static final class Family {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final Map<String, Series> series = new ConcurrentHashMap<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+}
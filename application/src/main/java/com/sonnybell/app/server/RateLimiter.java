@@ -0,0 +1,135 @@
+package com.sonnybell.app.server;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RateLimiter class to throttle incoming chat lines from socket and web users.
+ * Every user and every remote address has its own token bucket, and a line is
+ * only accepted when both buckets have a token left.
+ * The limits are read from these system properties:
+ * chat.rate.user.burst, chat.rate.user.perSecond,
+ * chat.rate.address.burst and chat.rate.address.perSecond.
+ */
+public final class RateLimiter {
+
+    private static final int USER_BURST = ServerConfig.getInt("chat.rate.user.burst", 10);
+    private static final double USER_PER_SECOND = ServerConfig.getDouble("chat.rate.user.perSecond", 5);
+    private static final int ADDRESS_BURST = ServerConfig.getInt("chat.rate.address.burst", 40);
+    private static final double ADDRESS_PER_SECOND = ServerConfig.getDouble("chat.rate.address.perSecond", 20);
+
+    private static final Map<String, TokenBucket> USER_BUCKETS = new ConcurrentHashMap<>();
+    private static final Map<InetAddress, TokenBucket> ADDRESS_BUCKETS = new ConcurrentHashMap<>();
+
+    // Number of lines rejected by each kind of limit
+    private static final LongAdder USER_THROTTLED = new LongAdder();
+    private static final LongAdder ADDRESS_THROTTLED = new LongAdder();
+
+    static {
+        Metrics.counterFunction("chat_rate_limited_total", "Lines dropped by the rate limiter, by limit.",
+                USER_THROTTLED::sum, "limit", "user");
+        Metrics.counterFunction("chat_rate_limited_total", "Lines dropped by the rate limiter, by limit.",
+                ADDRESS_THROTTLED::sum, "limit", "address");
+    }
+
+    private RateLimiter() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Checks whether a remote address may send another line.
+     *
+     * @param address The remote address, or null if unknown.
+     * @return true if the line is accepted.
+     */
+    public static boolean allowAddress(InetAddress address) {
+        if (address == null) {
+            return true;
+        }
+        TokenBucket bucket = ADDRESS_BUCKETS.get(address);
+        if (bucket == null) {
+            bucket = ADDRESS_BUCKETS.computeIfAbsent(address, RateLimiter::newAddressBucket);
+        }
+        if (bucket.tryAcquire()) {
+            return true;
+        }
+        ADDRESS_THROTTLED.increment();
+        return false;
+    }
+
+    /**
+     * Checks whether a user may send another line.
+     *
+     * @param username The username.
+     * @return true if the line is accepted.
+     */
+    public static boolean allowUser(String username) {
+        TokenBucket bucket = USER_BUCKETS.get(username);
+        if (bucket == null) {
+            bucket = USER_BUCKETS.computeIfAbsent(username, RateLimiter::newUserBucket);
+        }
+        if (bucket.tryAcquire()) {
+            return true;
+        }
+        USER_THROTTLED.increment();
+        return false;
+    }
+
+    /**
+     * Checks both the address and the user limit.
+     *
+     * @param address  The remote address, or null if unknown.
+     * @param username The username.
+     * @return true if the line is accepted.
+     */
+    public static boolean allow(InetAddress address, String username) {
+        return allowAddress(address) && allowUser(username);
+    }
+
+    /**
+     * Drops the bucket of a user that went offline.
+     *
+     * @param username The username.
+     */
+    public static void forgetUser(String username) {
+        if (username != null) {
+            USER_BUCKETS.remove(username);
+        }
+    }
+
+    /**
+     * Drops address buckets that have refilled completely.
+     * A full bucket is the same as a new one, so this only frees memory.
+     */
+    public static void pruneIdleAddresses() {
+        ADDRESS_BUCKETS.values().removeIf(TokenBucket::isFull);
+    }
+
+    /**
+     * Gets the number of lines rejected by the per user limit.
+     *
+     * @return The number of throttled lines.
+     */
+    public static long getUserThrottledCount() {
+        return USER_THROTTLED.sum();
+    }
+
+    /**
+     * Gets the number of lines rejected by the per address limit.
+     *
+     * @return The number of throttled lines.
+     */
+    public static long getAddressThrottledCount() {
+        return ADDRESS_THROTTLED.sum();
+    }
+
+    private static TokenBucket newUserBucket(String username) {
+        return new TokenBucket(USER_BURST, USER_PER_SECOND);
+    }
+
+    private static TokenBucket newAddressBucket(InetAddress address) {
+        return new TokenBucket(ADDRESS_BURST, ADDRESS_PER_SECOND);
+    }
+}
@@ -0,0 +1,495 @@
+package com.sonnybell.app.server;
+
+import com.sonnybell.app.chatfunctions.ChatHistory;
+import com.sonnybell.app.chatfunctions.ChatMessage;
+import com.sonnybell.app.chatfunctions.RoomRegistry;
+import com.sonnybell.app.client.ClientHandler;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replication class shipping the chat history and the message log of a server
+ * to standby servers, so a standby can take over with the same history when
+ * the server goes away.
+ * The leader listens on chat.replication.port, on the address given by
+ * chat.replication.bind, and a standby has to prove it knows the server
+ * password before it is sent anything, see the Handshake class. Every message
+ * added to the history of a room, every room removed and every message log
+ * line becomes an entry with the next index, and the latest
+ * chat.replication.backlog entries are kept in memory.
+ * A standby started with chat.replication.leader connects to the leader and
+ * is sent every entry after the last one it applied, then each new entry as
+ * it is made. A standby that is new, followed an earlier run of the leader or
+ * fell further behind than the backlog is sent a snapshot of the history of
+ * every room instead of the entries it missed, and goes on from there. Log
+ * lines older than the snapshot are not sent again. The standby keeps the
+ * histories of rooms in the RoomRegistry until someone joins them.
+ * History entries keep their sequence numbers and times, and the snapshot
+ * keeps the positions web readers poll with, so a standby serves the same
+ * history the leader did. The leader sends a heartbeat when it has nothing
+ * to ship, and a standby that heard nothing from it for
+ * chat.replication.takeoverMs takes over: it opens its chat and web ports and
+ * ships its own history to standby servers of its own, if it has a
+ * chat.replication.port.
+ */
+public final class Replication {
+
+    // Leader to follow, host:port of its chat.replication.port, unset on the leader
+    private static final String LEADER = ServerConfig.getString("chat.replication.leader", "");
+    // Port standby servers connect to, 0 to ship to none
+    private static final int PORT = ServerConfig.getInt("chat.replication.port", 0);
+    // Address the port is opened on, a standby on another machine needs one it can reach
+    private static final String BIND = ServerConfig.getString("chat.replication.bind", "127.0.0.1");
+    // Entries kept for standby servers that are behind, one further behind is sent a snapshot
+    private static final int BACKLOG = Math.max(1, ServerConfig.getInt("chat.replication.backlog", 10000));
+    // Silence from the leader after which a standby takes over
+    private static final int TAKEOVER_MS = ServerConfig.getInt("chat.replication.takeoverMs", 3000);
+    // Time between heartbeats of a leader with nothing to ship, well within the takeover time
+    private static final int HEARTBEAT_MS = Math.max(1, TAKEOVER_MS / 3);
+    // Time a standby waits between attempts to reach its leader
+    private static final int RETRY_MS = 200;
+    // Start time of this process, a standby that followed another run of the leader needs a snapshot
+    private static final long INCARNATION = System.currentTimeMillis();
+
+    // Frame types, the first byte of every frame
+    private static final byte HELLO = 1;
+    private static final byte SNAPSHOT = 2;
+    private static final byte HISTORY = 3;
+    private static final byte LOG = 4;
+    private static final byte HEARTBEAT = 5;
+    private static final byte ROOM_REMOVED = 6;
+
+    private static final String ENTRIES = "chat_replication_entries_total";
+    private static final String ENTRIES_HELP = "History and log entries replicated, by direction.";
+    private static final Metrics.Counter SHIPPED = Metrics.counter(ENTRIES, ENTRIES_HELP, "direction", "shipped");
+    private static final Metrics.Counter APPLIED = Metrics.counter(ENTRIES, ENTRIES_HELP, "direction", "applied");
+    private static final Metrics.Counter SNAPSHOTS = Metrics.counter("chat_replication_snapshots_total",
+            "History snapshots sent to standby servers that were new or too far behind.");
+
+    // Guards the entries, and is notified when one is added
+    private static final Object LOCK = new Object();
+    // Latest entries as a ring, the entry with index i is at i % BACKLOG
+    private static final byte[][] BACKLOG_ENTRIES = new byte[BACKLOG][];
+    private static final AtomicInteger STANDBYS = new AtomicInteger();
+
+    // Index of the last entry made, entries start at 1
+    private static long lastIndex;
+    // Set once standby servers may connect, before that no entries are made
+    private static volatile boolean shipping;
+
+    static {
+        Metrics.gauge("chat_replication_standbys", "Standby servers the history is shipped to.", STANDBYS::get);
+    }
+
+    private Replication() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Starts shipping to standby servers, if chat.replication.port is set.
+     */
+    public static synchronized void start() {
+        if (PORT <= 0 || shipping) {
+            return;
+        }
+        try {
+            ServerSocket serverSocket = Handshake.listen(BIND, PORT);
+            shipping = true;
+            startThread("replication-listener", () -> listen(serverSocket));
+            System.out.println("Shipping the history to standby servers on " + BIND + ":" + PORT + ".");
+        } catch (IOException e) {
+            System.err.println("Replication: cannot listen on " + BIND + ":" + PORT + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Follows the leader given by chat.replication.leader, applying what it
+     * ships, and returns once the leader is gone so this server can take over.
+     * Returns straight away on a server without a leader. A standby that never
+     * reached its leader keeps waiting for it.
+     */
+    public static void awaitTakeover() {
+        if (LEADER.isEmpty()) {
+            return;
+        }
+        InetSocketAddress leader = parseAddress(LEADER);
+        if (leader == null) {
+            System.err.println("Replication: invalid leader '" + LEADER + "', expected host:port.");
+            return;
+        }
+        System.out.println("Standing by for the leader at " + LEADER + ".");
+        Standby standby = new Standby();
+        while (!standby.leaderGone()) {
+            try (Socket socket = new Socket()) {
+                socket.connect(leader, TAKEOVER_MS);
+                standby.follow(socket);
+            } catch (IOException e) {
+                // The leader is not up, or no longer
+            }
+            try {
+                TimeUnit.MILLISECONDS.sleep(RETRY_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        System.out.println("The leader is gone, taking over at entry " + standby.index + " with "
+                + ChatHistory.lobby().size() + " messages of lobby history.");
+    }
+
+    /**
+     * Makes an entry for a message added to the history of a room. Called
+     * while the history is locked, so the entries of a room are in the order
+     * of its history.
+     *
+     * @param message The message.
+     * @param room    The name of the room.
+     */
+    public static void historyAdded(ChatMessage message, String room) {
+        if (shipping) {
+            append(index -> Frames.frame(HISTORY, out -> {
+                out.writeLong(index);
+                Frames.writeString(out, room);
+                Frames.writeMessage(out, message);
+            }));
+        }
+    }
+
+    /**
+     * Makes an entry for a room removed once its last member left, so the
+     * standby servers drop its history too.
+     *
+     * @param room The name of the room.
+     */
+    public static void roomRemoved(String room) {
+        if (shipping) {
+            append(index -> Frames.frame(ROOM_REMOVED, out -> {
+                out.writeLong(index);
+                Frames.writeString(out, room);
+            }));
+        }
+    }
+
+    /**
+     * Makes an entry for a message written to the message log.
+     *
+     * @param message   The message.
+     * @param partition The log partition, or null for the main log file.
+     */
+    public static void logged(ChatMessage message, String partition) {
+        if (shipping) {
+            append(index -> Frames.frame(LOG, out -> {
+                out.writeLong(index);
+                Frames.writeString(out, partition == null ? "" : partition);
+                Frames.writeMessage(out, message);
+            }));
+        }
+    }
+
+    private static void append(Entry entry) {
+        synchronized (LOCK) {
+            lastIndex++;
+            BACKLOG_ENTRIES[(int) (lastIndex % BACKLOG)] = entry.encode(lastIndex);
+            LOCK.notifyAll();
+        }
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static InetSocketAddress parseAddress(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            return null;
+        }
+        try {
+            return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void listen(ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                startThread("replication-ship-" + socket.getRemoteSocketAddress(), () -> ship(socket));
+            } catch (IOException e) {
+                System.err.println("Replication: accepting a standby failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Ships entries to one standby server until its connection closes.
+     */
+    private static void ship(Socket socket) {
+        // A standby counts once it is past the handshake and has been sent where it stands
+        boolean counted = false;
+        try (socket) {
+            socket.setSoTimeout(TAKEOVER_MS);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            try {
+                Handshake.accept(in, out);
+            } catch (IOException e) {
+                System.err.println("Replication: rejected standby " + socket.getRemoteSocketAddress() + ": "
+                        + e.getMessage());
+                return;
+            }
+            if (in.readByte() != HELLO) {
+                throw new IOException("expected a hello");
+            }
+            long incarnation = in.readLong();
+            long cursor = in.readLong();
+            socket.setSoTimeout(0);
+            System.out.println("Replication: standby " + socket.getRemoteSocketAddress() + " connected at entry "
+                    + cursor + ".");
+
+            // Only the entries of this run can be replayed
+            List<byte[]> batch = incarnation == INCARNATION ? entriesAfter(cursor, 0) : null;
+            while (true) {
+                if (batch == null) {
+                    cursor = sendSnapshot(out);
+                } else if (batch.isEmpty()) {
+                    out.writeByte(HEARTBEAT);
+                } else {
+                    for (byte[] entry : batch) {
+                        out.write(entry);
+                    }
+                    cursor += batch.size();
+                    SHIPPED.add(batch.size());
+                }
+                out.flush();
+                if (!counted) {
+                    STANDBYS.incrementAndGet();
+                    counted = true;
+                }
+                batch = entriesAfter(cursor, HEARTBEAT_MS);
+            }
+        } catch (IOException e) {
+            System.out.println("Replication: standby " + socket.getRemoteSocketAddress() + " left: "
+                    + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (counted) {
+                STANDBYS.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Waits for entries after an index and copies them.
+     *
+     * @param cursor The index of the last entry the standby has.
+     * @param waitMs Time to wait for a new entry, 0 to not wait.
+     * @return The entries, empty if none came in time, or null if some of them
+     *         are no longer kept or the index is not one of this run.
+     */
+    private static List<byte[]> entriesAfter(long cursor, long waitMs) throws InterruptedException {
+        synchronized (LOCK) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMs);
+            long remaining = waitMs;
+            while (lastIndex == cursor && remaining > 0) {
+                LOCK.wait(remaining);
+                remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            }
+            if (cursor > lastIndex || lastIndex - cursor > BACKLOG) {
+                return null;
+            }
+            List<byte[]> entries = new ArrayList<>((int) (lastIndex - cursor));
+            for (long i = cursor + 1; i <= lastIndex; i++) {
+                entries.add(BACKLOG_ENTRIES[(int) (i % BACKLOG)]);
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Sends the history of every room. Each history is copied with the index
+     * of the last entry it includes, and the standby goes on from the index
+     * before the first copy, skipping the entries of a room its copy already
+     * includes.
+     *
+     * @return The index the standby goes on from.
+     */
+    private static long sendSnapshot(DataOutputStream out) throws IOException {
+        long index;
+        synchronized (LOCK) {
+            index = lastIndex;
+        }
+        Map<String, ChatHistory> histories = RoomRegistry.histories();
+        out.writeByte(SNAPSHOT);
+        out.writeLong(INCARNATION);
+        out.writeLong(index);
+        out.writeInt(histories.size());
+        for (Map.Entry<String, ChatHistory> room : histories.entrySet()) {
+            ChatHistory history = room.getValue();
+            List<ChatMessage> messages;
+            long position;
+            long included;
+            // History entries are made under the history lock, so none can slip in between
+            synchronized (history) {
+                messages = history.messages();
+                position = history.position();
+                synchronized (LOCK) {
+                    included = lastIndex;
+                }
+            }
+            Frames.writeString(out, room.getKey());
+            out.writeLong(included);
+            out.writeLong(position);
+            out.writeInt(messages.size());
+            for (ChatMessage message : messages) {
+                Frames.writeMessage(out, message);
+            }
+        }
+        SNAPSHOTS.inc();
+        return index;
+    }
+
+    /**
+     * Entry interface encoding an entry once its index is known.
+     */
+    private interface Entry {
+        byte[] encode(long index);
+    }
+
+    /**
+     * Standby class applying what the leader ships, on the thread waiting to
+     * take over.
+     */
+    private static final class Standby {
+        // Run of the leader the entries came from, and the index of the last one applied
+        private long incarnation;
+        private long index;
+        // System.nanoTime() the leader was last heard from, 0 before that
+        private long lastContact;
+        // Index of the last entry the snapshot copy of each room includes
+        private final Map<String, Long> snapshotted = new HashMap<>();
+
+        boolean leaderGone() {
+            return lastContact != 0
+                    && System.nanoTime() - lastContact >= TimeUnit.MILLISECONDS.toNanos(TAKEOVER_MS);
+        }
+
+        /**
+         * Runs the handshake and says hello to the leader, then applies what
+         * it ships until the connection closes or the leader is silent for the
+         * takeover time.
+         */
+        void follow(Socket socket) throws IOException {
+            socket.setSoTimeout(TAKEOVER_MS);
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            try {
+                Handshake.dial(in, out);
+            } catch (IOException e) {
+                System.err.println("Replication: handshake with the leader failed: " + e.getMessage());
+                return;
+            }
+            out.write(Frames.frame(HELLO, hello -> {
+                hello.writeLong(incarnation);
+                hello.writeLong(index);
+            }));
+            out.flush();
+            try {
+                while (true) {
+                    apply(in, in.readByte());
+                    lastContact = System.nanoTime();
+                }
+            } catch (EOFException e) {
+                System.out.println("Replication: the leader closed the connection.");
+            } catch (IOException e) {
+                System.out.println("Replication: lost the leader: " + e.getMessage());
+            }
+        }
+
+        private void apply(DataInputStream in, byte type) throws IOException {
+            switch (type) {
+                case SNAPSHOT:
+                    incarnation = in.readLong();
+                    index = in.readLong();
+                    int rooms = in.readInt();
+                    snapshotted.clear();
+                    RoomRegistry.forgetReplicas();
+                    for (int i = 0; i < rooms; i++) {
+                        restore(in);
+                    }
+                    System.out.println("Replication: loaded a snapshot of " + rooms + " rooms at entry "
+                            + index + ".");
+                    break;
+                case HISTORY:
+                    long entry = expect(in.readLong());
+                    String room = Frames.readString(in);
+                    ChatMessage message = Frames.readMessage(in);
+                    // The snapshot may already include it
+                    if (entry > snapshotted.getOrDefault(room, 0L)) {
+                        RoomRegistry.replicaHistory(room).add(message);
+                        APPLIED.inc();
+                    }
+                    break;
+                case ROOM_REMOVED:
+                    long removal = expect(in.readLong());
+                    String removed = Frames.readString(in);
+                    if (removal > snapshotted.getOrDefault(removed, 0L)) {
+                        RoomRegistry.forgetReplica(removed);
+                    }
+                    break;
+                case LOG:
+                    expect(in.readLong());
+                    String partition = Frames.readString(in);
+                    ClientHandler.logMessage(Frames.readMessage(in), partition.isEmpty() ? null : partition);
+                    APPLIED.inc();
+                    break;
+                case HEARTBEAT:
+                    break;
+                default:
+                    throw new IOException("unknown frame type " + type);
+            }
+        }
+
+        /**
+         * Replaces the copy of one room with the copy in a snapshot.
+         */
+        private void restore(DataInputStream in) throws IOException {
+            String room = Frames.readString(in);
+            long included = in.readLong();
+            long position = in.readLong();
+            int count = in.readInt();
+            List<ChatMessage> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                messages.add(Frames.readMessage(in));
+            }
+            RoomRegistry.replicaHistory(room).restore(messages, position);
+            snapshotted.put(room, included);
+        }
+
+        private long expect(long entry) throws IOException {
+            if (entry != index + 1) {
+                throw new IOException("expected entry " + (index + 1) + " but got " + entry);
+            }
+            index = entry;
+            return entry;
+        }
+    }
+}
@@ -7,6 +7,7 @@ import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.Scanner;
@@ -17,7 +18,19 @@ import java.util.Scanner;
  */
 public class Server {
     // Default server port is set to 6666
-    private static final int WEB_PORT = 8080;
+    private static final int WEB_PORT = ServerConfig.getInt("chat.web.port", 8080);
+    // Time a new connection gets to send its password and username
+    private static final int HANDSHAKE_TIMEOUT_MS = ServerConfig.getInt("chat.server.handshakeTimeoutMs", 30000);
+    // Outcome of every password handshake, see the Metrics class
+    private static final String HANDSHAKES = "chat_handshakes_total";
+    private static final String HANDSHAKES_HELP = "Password handshakes of new socket connections, by result.";
+    private static final Metrics.Counter HANDSHAKE_OK = Metrics.counter(HANDSHAKES, HANDSHAKES_HELP, "result", "ok");
+    private static final Metrics.Counter HANDSHAKE_WRONG_PASSWORD = Metrics.counter(HANDSHAKES, HANDSHAKES_HELP,
+            "result", "wrong_password");
+    private static final Metrics.Counter HANDSHAKE_ABANDONED = Metrics.counter(HANDSHAKES, HANDSHAKES_HELP,
+            "result", "abandoned");
+    private static final Metrics.Counter HANDSHAKE_FAILED = Metrics.counter(HANDSHAKES, HANDSHAKES_HELP,
+            "result", "failed");
     private static int serverPort = 6666;
     private static String serverPass;
     private ServerSocket serverSocket;
@@ -42,51 +55,120 @@ public class Server {
     /**
      * Method to start the server and accept client connections.
      * It runs in a loop to continuously accept new clients.
+     * Connections over the admission limits are rejected straight away, the
+     * others get their own thread for the password handshake and the chat.
      */
     public void startServer() {
         WebServer webServer = new WebServer(WEB_PORT);
         webServer.run();
+        ConnectionReaper.start();
+        Cluster.start();
+        Replication.start();
 
         try {
             while (!serverSocket.isClosed()) {
                 Socket socket = serverSocket.accept();
 
-                // Temporary input/output streams for password check
-                BufferedReader tempReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                BufferedWriter tempWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-
-                String receivedPassword;
-
-                while (true) {
-                    receivedPassword = tempReader.readLine();
-
-                    if (receivedPassword == null) {
-                        System.out.println("Client disconnected before entering a password.");
-                        socket.close();
-                        break;
-                    }
-
-                    if (receivedPassword.equals(serverPass)) {
-                        tempWriter.write("OK");
-                        tempWriter.newLine();
-                        tempWriter.flush();
-
-                        ClientHandler clientHandler = new ClientHandler(socket);
-                        Thread thread = new Thread(clientHandler);
-                        thread.start();
-                        break;
-                    } else {
-                        tempWriter.write("Incorrect password. Please try again.");
-                        tempWriter.newLine();
-                        tempWriter.flush();
-                    }
+                String rejection = AdmissionControl.tryAdmit(socket.getInetAddress());
+                if (rejection != null) {
+                    rejectConnection(socket, rejection);
+                    continue;
                 }
+
+                // The handshake runs on the connection's own thread,
+                // so a slow client cannot hold up the accept loop
+                Thread thread = new Thread(() -> handleNewConnection(socket));
+                thread.start();
             }
         } catch (IOException e) {
             System.err.println("Server error: " + e.getMessage());
         }
     }
 
+    /**
+     * Tells a client its connection was rejected and closes the connection.
+     *
+     * @param socket The rejected connection.
+     * @param reason The reason sent to the client.
+     */
+    private void rejectConnection(Socket socket, String reason) {
+        try (socket) {
+            BufferedWriter tempWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            tempWriter.write(AdmissionControl.REJECTED_PREFIX + reason);
+            tempWriter.newLine();
+            tempWriter.flush();
+        } catch (IOException e) {
+            System.err.println("Failed to reject connection: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Checks the password of a new connection and then runs its client handler.
+     * The connection must hold an admission slot, which is given back when the
+     * handshake fails or the client handler closes.
+     *
+     * @param socket The new connection.
+     */
+    private void handleNewConnection(Socket socket) {
+        InetAddress address = socket.getInetAddress();
+        try {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+
+            // Temporary input/output streams for password check
+            BufferedReader tempReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            BufferedWriter tempWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+
+            String receivedPassword;
+
+            while (true) {
+                receivedPassword = tempReader.readLine();
+
+                if (receivedPassword == null) {
+                    System.out.println("Client disconnected before entering a password.");
+                    HANDSHAKE_ABANDONED.inc();
+                    socket.close();
+                    AdmissionControl.release(address);
+                    return;
+                }
+
+                if (receivedPassword.equals(serverPass)) {
+                    tempWriter.write("OK");
+                    tempWriter.newLine();
+                    tempWriter.flush();
+                    HANDSHAKE_OK.inc();
+                    break;
+                } else {
+                    HANDSHAKE_WRONG_PASSWORD.inc();
+                    tempWriter.write("Incorrect password. Please try again.");
+                    tempWriter.newLine();
+                    tempWriter.flush();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Handshake failed: " + e.getMessage());
+            HANDSHAKE_FAILED.inc();
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // The connection is being dropped anyway
+            }
+            AdmissionControl.release(address);
+            return;
+        }
+
+        // From here on the client handler owns the connection and its slot
+        ClientHandler clientHandler = new ClientHandler(socket);
+        if (!socket.isClosed()) {
+            try {
+                socket.setSoTimeout(0);
+            } catch (IOException e) {
+                clientHandler.closeEverything();
+                return;
+            }
+            clientHandler.run();
+        }
+    }
+
     /**
      * Method to close the server socket.
      * It ensures that the server socket is closed properly.
@@ -130,9 +212,11 @@ public class Server {
             }
             Server.serverPass = inputPass;
             System.out.println("Server password set to: " + inputPass);
+            // A standby server only opens its ports once its leader is gone
+            Replication.awaitTakeover();
             System.out.println("Server is starting...");
 
-            ServerSocket serverSocket = new ServerSocket(serverPort);
+            ServerSocket serverSocket = new ServerSocket(serverPort, AdmissionControl.getBacklog());
             Server server = new Server(serverSocket);
             server.startServer();
         } catch (IOException e) {
@@ -0,0 +1,86 @@
+package com.sonnybell.app.server;
+
+/**
+ * ServerConfig class to read tunable server settings.
+ * Settings are given as system properties on the command line, for example
+ * java -Dchat.rate.user.burst=20 -jar app.jar server.
+ * Every setting has a default, so the server runs without any of them.
+ */
+public final class ServerConfig {
+
+    private ServerConfig() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Reads an integer setting.
+     *
+     * @param key          The name of the system property.
+     * @param defaultValue The value used when the property is missing or invalid.
+     * @return The configured value.
+     */
+    public static int getInt(String key, int defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ": " + value + ". Using " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reads a long integer setting, for sizes and times that may not fit in an int.
+     *
+     * @param key          The name of the system property.
+     * @param defaultValue The value used when the property is missing or invalid.
+     * @return The configured value.
+     */
+    public static long getLong(String key, long defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ": " + value + ". Using " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reads a decimal setting.
+     *
+     * @param key          The name of the system property.
+     * @param defaultValue The value used when the property is missing or invalid.
+     * @return The configured value.
+     */
+    public static double getDouble(String key, double defaultValue) {
+        String value = System.getProperty(key);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid value for " + key + ": " + value + ". Using " + defaultValue + ".");
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Reads a text setting.
+     *
+     * @param key          The name of the system property.
+     * @param defaultValue The value used when the property is missing.
+     * @return The configured value.
+     */
+    public static String getString(String key, String defaultValue) {
+        String value = System.getProperty(key);
+        return value == null || value.isBlank() ? defaultValue : value.trim();
+    }
+}
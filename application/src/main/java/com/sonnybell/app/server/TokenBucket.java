@@ -0,0 +1,55 @@
+package com.sonnybell.app.server;
+
+/**
+ * TokenBucket class implementing a token bucket rate limit.
+ * The bucket holds up to a burst of tokens and refills at a steady rate.
+ * Refilling is done lazily when a token is requested, so no timer is needed,
+ * and taking a token only does a little arithmetic under the bucket's lock.
+ */
+public final class TokenBucket {
+    private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Constructor to create a full bucket.
+     *
+     * @param burst           The maximum number of tokens the bucket holds.
+     * @param tokensPerSecond The number of tokens added per second.
+     */
+    public TokenBucket(int burst, double tokensPerSecond) {
+        this.capacity = burst;
+        this.tokensPerNano = tokensPerSecond / NANOS_PER_SECOND;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes one token from the bucket if one is available.
+     *
+     * @return true if a token was taken, false if the caller should be throttled.
+     */
+    public synchronized boolean tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Checks whether the bucket has refilled completely.
+     * A full bucket behaves like a new one, so it can be dropped.
+     *
+     * @return true if the bucket is full.
+     */
+    public synchronized boolean isFull() {
+        return tokens + (System.nanoTime() - lastRefill) * tokensPerNano >= capacity;
+    }
+}
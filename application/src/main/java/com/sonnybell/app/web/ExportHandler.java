@@ -0,0 +1,97 @@
+package com.sonnybell.app.web;
+
+import com.sonnybell.app.chatfunctions.MessageLogReader;
+import com.sonnybell.app.chatfunctions.RoomRegistry;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * ExportHandler class streaming the message logs at /api/export.
+ * Every log line is written as one JSON object per line (NDJSON) straight to
+ * the response, which is sent in chunks, so exporting a whole archive never
+ * holds more than a few lines in memory.
+ * The query parameters are from and to, the time range, given like for
+ * /api/search, user, the sender of chat lines and direct messages, and room,
+ * one room instead of all of them. Lines are sent oldest first.
+ * Only logged in users can export, a request without a session gets 401.
+ */
+public class ExportHandler implements HttpHandler {
+    // Constant for HTTP status code 200 OK
+    private static final int HTTP_OK = 200;
+    // Constant for HTTP status code 400 Bad Request, used for an invalid parameter
+    private static final int HTTP_BAD_REQUEST = 400;
+    // Constant for HTTP status code 401 Unauthorized, used when a request has no valid session
+    private static final int HTTP_UNAUTHORIZED = 401;
+    // Constant for HTTP status code 405 Method Not Allowed
+    private static final int HTTP_METHOD_NOT_ALLOWED = 405;
+    // Constant for unknown content length, used when the response body is empty
+    private static final int UNKNOWN_CONTENT_LENGTH = -1;
+    // Content length that makes the response chunked
+    private static final int CHUNKED = 0;
+
+    /**
+     * Handles GET requests exporting the message logs.
+     *
+     * @param exchange The HttpExchange object containing request and response data.
+     * @throws IOException If an I/O error occurs during response handling.
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, UNKNOWN_CONTENT_LENGTH);
+            exchange.close();
+            return;
+        }
+        if (WebSessions.find(exchange) == null) {
+            exchange.sendResponseHeaders(HTTP_UNAUTHORIZED, UNKNOWN_CONTENT_LENGTH);
+            exchange.close();
+            return;
+        }
+        long from;
+        long to;
+        String room = WebChat.queryParam(exchange, "room");
+        String user = WebChat.queryParam(exchange, "user");
+        try {
+            from = SearchHandler.parseTime(WebChat.queryParam(exchange, "from"), false);
+            to = SearchHandler.parseTime(WebChat.queryParam(exchange, "to"), true);
+            if (room != null && RoomRegistry.normalizeName(room) == null) {
+                throw new IllegalArgumentException("Invalid room '" + room + "'.");
+            }
+        } catch (IllegalArgumentException e) {
+            sendBadRequest(exchange, e.getMessage());
+            return;
+        }
+
+        try (MessageLogReader logs = MessageLogReader.open(room == null ? null : RoomRegistry.normalizeName(room),
+                user == null || user.isBlank() ? null : user.trim(), from, to)) {
+            exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+            exchange.sendResponseHeaders(HTTP_OK, CHUNKED);
+            try (OutputStream out = exchange.getResponseBody()) {
+                // The writer's buffer is passed on in pieces of about one chunk
+                JsonWriter json = new JsonWriter(out);
+                MessageLogReader.Record record;
+                while ((record = logs.next()) != null) {
+                    json.beginObject();
+                    json.name("timestamp").value(record.getTimestamp());
+                    json.name("room").value(record.getRoom());
+                    if (record.getTag() != null) {
+                        json.name("kind").value(record.getTag());
+                    }
+                    if (record.getUser() != null) {
+                        json.name("user").value(record.getUser());
+                    }
+                    json.name("text").value(record.getText());
+                    json.endObject().newline();
+                }
+                json.flush();
+                json.release();
+            }
+        }
+    }
+
+    private void sendBadRequest(HttpExchange exchange, String message) throws IOException {
+        new JsonWriter().beginObject().name("error").value(message).endObject().send(exchange, HTTP_BAD_REQUEST);
+    }
+}
@@ -0,0 +1,75 @@
+package com.sonnybell.app.web;
+
+import com.sonnybell.app.server.CountingOutputStream;
+import com.sonnybell.app.server.Metrics;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+
+/**
+ * HttpMetricsFilter class counting the requests of one HTTP context.
+ * It records the number of requests by response code, the time spent handling
+ * them and the bytes of the response bodies.
+ * One filter is added to every context of the WebServer.
+ */
+public class HttpMetricsFilter extends Filter {
+
+    private static final Metrics.Counter BYTES_WRITTEN = Metrics.counter("chat_bytes_written_total",
+            "Bytes sent to users, by transport.", "transport", "http");
+
+    private final String context;
+    private final Metrics.Summary duration;
+
+    /**
+     * Constructor to create the filter of a context.
+     *
+     * @param context The path of the context, used as the metrics label.
+     */
+    public HttpMetricsFilter(String context) {
+        this.context = context;
+        this.duration = Metrics.summary("chat_http_request_duration_seconds",
+                "Time spent handling HTTP requests, by context.", "context", context);
+    }
+
+    /**
+     * Counts response bytes sent around the response stream, such as files
+     * sent by NioHttpExchange.sendFile.
+     *
+     * @param bytes The number of bytes sent.
+     */
+    static void countBytes(long bytes) {
+        BYTES_WRITTEN.add(bytes);
+    }
+
+    /**
+     * Runs the request through the rest of the chain and records it.
+     *
+     * @param exchange The HttpExchange object containing request and response data.
+     * @param chain    The rest of the filter chain and the handler.
+     * @throws IOException If an I/O error occurs during request handling.
+     */
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        long start = System.nanoTime();
+        exchange.setStreams(null, new CountingOutputStream(exchange.getResponseBody(), BYTES_WRITTEN));
+        try {
+            chain.doFilter(exchange);
+        } finally {
+            duration.recordSince(start);
+            // -1 when the handler failed before sending a response
+            int code = exchange.getResponseCode();
+            Metrics.counter("chat_http_requests_total", "HTTP requests, by context and response code.",
+                    "context", context, "code", Integer.toString(code)).inc();
+        }
+    }
+
+    /**
+     * Gets a description of the filter.
+     *
+     * @return The description.
+     */
+    @Override
+    public String description() {
+        return "Counts requests to " + context;
+    }
+}
@@ -0,0 +1,373 @@
+package com.sonnybell.app.web;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * JsonWriter class encoding JSON responses straight into UTF-8 bytes.
+ * Values are appended to a byte buffer as they are written, so a response is
+ * never built as a tree or a String first. The buffer is reused by the next
+ * response on the same thread, so answering a request usually allocates
+ * nothing but the values themselves.
+ * A writer either holds the whole response and sends it with its length, see
+ * send, or is given an OutputStream and passes its buffer on to it as it
+ * fills, for responses of any size such as NDJSON streams.
+ * Strings are escaped as JSON requires, including control characters.
+ */
+final class JsonWriter {
+
+    // Buffer size a writer starts with, and the largest buffer kept for reuse
+    private static final int INITIAL_SIZE = 4 * 1024;
+    private static final int MAX_KEPT_SIZE = 64 * 1024;
+    // A streaming writer passes its buffer on once it holds this many bytes
+    private static final int FLUSH_SIZE = 32 * 1024;
+    // Nesting depth tracked without growing
+    private static final int INITIAL_DEPTH = 8;
+    // Characters below are control characters, written as escapes
+    private static final char FIRST_UNESCAPED = 0x20;
+    private static final char ASCII_LIMIT = 0x80;
+    // Line breaks to JavaScript, escaped so the output is safe to embed in a script
+    private static final char LINE_SEPARATOR = 0x2028;
+    private static final char PARAGRAPH_SEPARATOR = 0x2029;
+    // Bytes a char other than a surrogate takes in UTF-8 at most, a surrogate pair takes four
+    private static final int MAX_BYTES_PER_CHAR = 3;
+
+    // Buffers kept between the responses of a thread
+    private static final ThreadLocal<byte[]> BUFFERS = new ThreadLocal<>();
+
+    private final OutputStream out;
+    private byte[] buf;
+    private int count;
+    // Per open object or array, whether it has no member yet
+    private boolean[] empty = new boolean[INITIAL_DEPTH];
+    private int depth;
+    // Set after a name, its value follows without a comma
+    private boolean afterName;
+    // Created for the first string that is not plain ASCII
+    private CharsetEncoder encoder;
+
+    /**
+     * Creates a writer holding the whole response, to be sent with send.
+     */
+    JsonWriter() {
+        this(null);
+    }
+
+    /**
+     * Creates a writer streaming to an OutputStream.
+     *
+     * @param out The stream, written to by newline and flush.
+     */
+    JsonWriter(OutputStream out) {
+        this.out = out;
+        byte[] kept = BUFFERS.get();
+        if (kept != null) {
+            // Taken, so a second writer on this thread gets a buffer of its own
+            BUFFERS.remove();
+            this.buf = kept;
+        } else {
+            this.buf = new byte[INITIAL_SIZE];
+        }
+    }
+
+    /**
+     * Starts an object.
+     *
+     * @return This writer.
+     */
+    JsonWriter beginObject() {
+        return open('{');
+    }
+
+    /**
+     * Ends the innermost object.
+     *
+     * @return This writer.
+     */
+    JsonWriter endObject() {
+        return close('}');
+    }
+
+    /**
+     * Starts an array.
+     *
+     * @return This writer.
+     */
+    JsonWriter beginArray() {
+        return open('[');
+    }
+
+    /**
+     * Ends the innermost array.
+     *
+     * @return This writer.
+     */
+    JsonWriter endArray() {
+        return close(']');
+    }
+
+    /**
+     * Writes the name of the next member of an object.
+     *
+     * @param name The name.
+     * @return This writer.
+     */
+    JsonWriter name(String name) {
+        separate();
+        string(name);
+        put((byte) ':');
+        afterName = true;
+        return this;
+    }
+
+    /**
+     * Writes a string, or null.
+     *
+     * @param value The value.
+     * @return This writer.
+     */
+    JsonWriter value(String value) {
+        separate();
+        if (value == null) {
+            ascii("null");
+        } else {
+            string(value);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a whole number.
+     *
+     * @param value The value.
+     * @return This writer.
+     */
+    JsonWriter value(long value) {
+        separate();
+        ascii(Long.toString(value));
+        return this;
+    }
+
+    /**
+     * Writes a decimal number, or null for NaN and infinities, which JSON
+     * cannot represent.
+     *
+     * @param value The value.
+     * @return This writer.
+     */
+    JsonWriter value(double value) {
+        separate();
+        ascii(Double.isFinite(value) ? Double.toString(value) : "null");
+        return this;
+    }
+
+    /**
+     * Writes a boolean.
+     *
+     * @param value The value.
+     * @return This writer.
+     */
+    JsonWriter value(boolean value) {
+        separate();
+        ascii(value ? "true" : "false");
+        return this;
+    }
+
+    /**
+     * Writes an array of strings.
+     *
+     * @param values The strings.
+     * @return This writer.
+     */
+    JsonWriter array(Iterable<String> values) {
+        beginArray();
+        for (String value : values) {
+            value(value);
+        }
+        return endArray();
+    }
+
+    /**
+     * Ends a line of NDJSON, the next value starts a new document. A
+     * streaming writer passes on its buffer once it is large enough.
+     *
+     * @throws IOException If writing to the stream fails.
+     */
+    void newline() throws IOException {
+        put((byte) '\n');
+        depth = 0;
+        afterName = false;
+        if (out != null && count >= FLUSH_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Passes what is buffered on to the stream of a streaming writer.
+     *
+     * @throws IOException If writing to the stream fails.
+     */
+    void flush() throws IOException {
+        if (out != null && count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+
+    /**
+     * Sends what was written as the JSON response of an exchange and closes
+     * the response. The writer must not be used afterwards.
+     *
+     * @param exchange The exchange to answer.
+     * @param status   The status code.
+     * @throws IOException If an I/O error occurs during response handling.
+     */
+    void send(HttpExchange exchange, int status) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, count);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(buf, 0, count);
+        }
+        release();
+    }
+
+    /**
+     * Gives the buffer back for the next writer on this thread.
+     */
+    void release() {
+        if (buf != null && buf.length <= MAX_KEPT_SIZE) {
+            BUFFERS.set(buf);
+        }
+        buf = null;
+    }
+
+    private JsonWriter open(char bracket) {
+        separate();
+        put((byte) bracket);
+        if (++depth == empty.length) {
+            empty = Arrays.copyOf(empty, depth * 2);
+        }
+        empty[depth] = true;
+        return this;
+    }
+
+    private JsonWriter close(char bracket) {
+        put((byte) bracket);
+        depth--;
+        return this;
+    }
+
+    /**
+     * Writes the comma before a value or name, unless it is the first in its
+     * object or array or the value of a name.
+     */
+    private void separate() {
+        if (afterName) {
+            afterName = false;
+        } else if (depth > 0) {
+            if (empty[depth]) {
+                empty[depth] = false;
+            } else {
+                put((byte) ',');
+            }
+        }
+    }
+
+    private void string(String value) {
+        int length = value.length();
+        ensure(length + 2);
+        buf[count++] = '"';
+        int i = 0;
+        while (i < length) {
+            char c = value.charAt(i);
+            if (needsEscape(c)) {
+                escape(c);
+                i++;
+            } else if (c < ASCII_LIMIT) {
+                ensure(1);
+                buf[count++] = (byte) c;
+                i++;
+            } else {
+                // Hand the run of other characters to the encoder, it also pairs up surrogates
+                int end = i + 1;
+                while (end < length && value.charAt(end) >= ASCII_LIMIT && !needsEscape(value.charAt(end))) {
+                    end++;
+                }
+                encode(value, i, end);
+                i = end;
+            }
+        }
+        ensure(1);
+        buf[count++] = '"';
+    }
+
+    private static boolean needsEscape(char c) {
+        return c < FIRST_UNESCAPED || c == '"' || c == '\\' || c == LINE_SEPARATOR || c == PARAGRAPH_SEPARATOR;
+    }
+
+    private void escape(char c) {
+        switch (c) {
+            case '"':
+                ascii("\\\"");
+                break;
+            case '\\':
+                ascii("\\\\");
+                break;
+            case '\n':
+                ascii("\\n");
+                break;
+            case '\r':
+                ascii("\\r");
+                break;
+            case '\t':
+                ascii("\\t");
+                break;
+            default:
+                ascii(String.format("\\u%04x", (int) c));
+                break;
+        }
+    }
+
+    /**
+     * Encodes characters as UTF-8 straight into the buffer. A lone surrogate,
+     * which has no UTF-8 form, is replaced by '?' like String.getBytes does.
+     */
+    private void encode(String value, int start, int end) {
+        ensure((end - start) * MAX_BYTES_PER_CHAR);
+        ByteBuffer target = ByteBuffer.wrap(buf, count, buf.length - count);
+        if (encoder == null) {
+            encoder = StandardCharsets.UTF_8.newEncoder().onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+        encoder.reset();
+        encoder.encode(CharBuffer.wrap(value, start, end), target, true);
+        encoder.flush(target);
+        count = target.position();
+    }
+
+    private void ascii(String text) {
+        int length = text.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            buf[count++] = (byte) text.charAt(i);
+        }
+    }
+
+    private void put(byte b) {
+        ensure(1);
+        buf[count++] = b;
+    }
+
+    private void ensure(int bytes) {
+        if (count + bytes > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + bytes));
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.sonnybell.app.web;
+
+import com.sonnybell.app.server.Metrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MetricsHandler class serving the server metrics at /api/metrics.
+ * The metrics are returned in the Prometheus text format, so the endpoint can
+ * be scraped by Prometheus or read directly.
+ */
+public class MetricsHandler implements HttpHandler {
+    // Constant for HTTP status code 200 OK
+    private static final int HTTP_OK = 200;
+    // Constant for HTTP status code 405 Method Not Allowed
+    private static final int HTTP_METHOD_NOT_ALLOWED = 405;
+    // Constant for unknown content length, used when the response body is empty
+    private static final int UNKNOWN_CONTENT_LENGTH = -1;
+
+    /**
+     * Handles GET requests for the metrics.
+     *
+     * @param exchange The HttpExchange object containing request and response data.
+     * @throws IOException If an I/O error occurs during response handling.
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, UNKNOWN_CONTENT_LENGTH);
+            exchange.close();
+            return;
+        }
+        byte[] resp = Metrics.render().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(HTTP_OK, resp.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(resp);
+        }
+    }
+}
@@ -0,0 +1,539 @@
+package com.sonnybell.app.web;
+
+import com.sonnybell.app.server.ServerConfig;
+import com.sun.net.httpserver.Headers;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * NioHttpConnection class holding one client connection of the NioHttpServer.
+ * The selector thread reads into the connection and parses one request at a
+ * time. While a worker handles that request, bytes of further requests the
+ * client pipelined are only buffered, they are parsed once the response is
+ * complete, so responses go out in the order of the requests.
+ * Workers write responses straight to the channel. When the socket buffer is
+ * full the worker waits for it on a selector of its own, so a slow client
+ * never holds up the selector thread.
+ */
+final class NioHttpConnection {
+
+    // Bytes of request line and headers accepted, a longer head is answered with 431
+    private static final int MAX_HEAD_BYTES = 16 * 1024;
+    // Bytes of request body accepted, a larger body is answered with 413
+    private static final int MAX_BODY_BYTES = ServerConfig.getInt("chat.web.maxBodyBytes", 1024 * 1024);
+    // Time a worker waits for a client to take more of a response
+    private static final long WRITE_TIMEOUT_MS = ServerConfig.getInt("chat.web.writeTimeoutMs", 30000);
+    // Read buffer of a connection, grown up to the largest request and shrunk back once it is handled
+    private static final int INITIAL_BUFFER = 8 * 1024;
+    private static final int HEX = 16;
+    // Method, target and version
+    private static final int REQUEST_LINE_PARTS = 3;
+
+    // Status codes the selector thread answers malformed requests with
+    private static final int HTTP_BAD_REQUEST = 400;
+    private static final int HTTP_PAYLOAD_TOO_LARGE = 413;
+    private static final int HTTP_HEADERS_TOO_LARGE = 431;
+    private static final int HTTP_SERVICE_UNAVAILABLE = 503;
+    private static final int HTTP_VERSION_NOT_SUPPORTED = 505;
+
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final NioHttpServer server;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final InetSocketAddress remoteAddress;
+    private final InetSocketAddress localAddress;
+
+    // Fields below are only used by the selector thread
+    // Bytes read and not yet parsed, in write mode
+    private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+    // Set while a worker handles a request of this connection
+    private boolean busy;
+    // Set once the client shut down its side, the connection closes after the current response
+    private boolean inputClosed;
+    private boolean continueSent;
+    private boolean closed;
+    private long lastActive = System.currentTimeMillis();
+
+    // Used by the worker writing a response, opened the first time the client is slow
+    private volatile Selector writeSelector;
+
+    /**
+     * Constructor to create the connection of a client the server accepted.
+     *
+     * @param server  The server that accepted the client.
+     * @param channel The channel of the client, in non-blocking mode.
+     * @param key     The key of the channel on the selector of the server.
+     * @throws IOException If the addresses of the channel cannot be read.
+     */
+    NioHttpConnection(NioHttpServer server, SocketChannel channel, SelectionKey key) throws IOException {
+        this.server = server;
+        this.channel = channel;
+        this.key = key;
+        this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+    }
+
+    InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    NioHttpServer.Context findContext(String path) {
+        return server.findContext(path);
+    }
+
+    /**
+     * Reads what the client sent, called on the selector thread when the
+     * channel is readable.
+     */
+    void read() {
+        if (!in.hasRemaining()) {
+            if (in.capacity() >= MAX_HEAD_BYTES + MAX_BODY_BYTES) {
+                // Only reached while busy, a request this large was answered when it was parsed
+                key.interestOps(0);
+                return;
+            }
+            in = grow(in);
+        }
+        int read;
+        try {
+            read = channel.read(in);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (read < 0) {
+            inputClosed = true;
+            if (busy) {
+                key.interestOps(0);
+            } else {
+                close();
+            }
+            return;
+        }
+        lastActive = System.currentTimeMillis();
+        if (!busy) {
+            processNext();
+        }
+    }
+
+    /**
+     * Tells the selector thread that the response to the current request is
+     * complete, called by the worker.
+     *
+     * @param keepAlive true to read the next request, false to close.
+     */
+    void finished(boolean keepAlive) {
+        server.runOnSelector(() -> {
+            busy = false;
+            lastActive = System.currentTimeMillis();
+            if (!keepAlive || inputClosed && in.position() == 0) {
+                close();
+                return;
+            }
+            if (!closed) {
+                key.interestOps(inputClosed ? 0 : SelectionKey.OP_READ);
+                processNext();
+            }
+        });
+    }
+
+    /**
+     * Checks whether the connection waits for a request since before a time.
+     *
+     * @param cutoff The time in epoch milliseconds.
+     * @return true if no request is in progress and nothing was read since.
+     */
+    boolean isIdleSince(long cutoff) {
+        return !busy && lastActive < cutoff;
+    }
+
+    /**
+     * Closes the connection, called on the selector thread.
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // The connection is gone either way
+        }
+        // Stop a worker waiting to write, it closes its selector itself
+        Selector selector = writeSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        server.closed(channel);
+    }
+
+    /**
+     * Writes buffers to the client, waiting for the client to take them.
+     * Called by the worker handling the current request.
+     *
+     * @param buffers The buffers, written in order and in as few writes as possible.
+     * @throws IOException If the client is gone or too slow.
+     */
+    void write(ByteBuffer... buffers) throws IOException {
+        while (hasRemaining(buffers)) {
+            if (channel.write(buffers) == 0) {
+                awaitWritable();
+            }
+        }
+    }
+
+    /**
+     * Sends part of a file to the client without copying it into the heap.
+     * Called by the worker handling the current request.
+     *
+     * @param file     The open file.
+     * @param position The first byte to send.
+     * @param count    The number of bytes to send.
+     * @throws IOException If the file cannot be read or the client is gone or too slow.
+     */
+    void transfer(FileChannel file, long position, long count) throws IOException {
+        long sent = 0;
+        while (sent < count) {
+            long written = file.transferTo(position + sent, count - sent, channel);
+            if (written == 0) {
+                awaitWritable();
+            }
+            sent += written;
+        }
+    }
+
+    /**
+     * Releases what the worker used to write the response, called by the
+     * worker once the response is complete.
+     */
+    void releaseWriter() {
+        Selector selector = writeSelector;
+        if (selector != null) {
+            writeSelector = null;
+            try {
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("Failed to close HTTP write selector: " + e.getMessage());
+            }
+        }
+    }
+
+    private void awaitWritable() throws IOException {
+        Selector selector = writeSelector;
+        if (selector == null) {
+            selector = Selector.open();
+            writeSelector = selector;
+            channel.register(selector, SelectionKey.OP_WRITE);
+        }
+        if (selector.select(WRITE_TIMEOUT_MS) == 0) {
+            throw new IOException(channel.isOpen() ? "Timed out writing to " + remoteAddress + "."
+                    : "Connection to " + remoteAddress + " closed.");
+        }
+        selector.selectedKeys().clear();
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers) {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parses the next buffered request and hands it to a worker, or answers
+     * it right away if it is malformed.
+     */
+    private void processNext() {
+        NioHttpExchange exchange;
+        try {
+            exchange = parse();
+        } catch (BadRequest e) {
+            sendError(e.status);
+            return;
+        }
+        if (exchange == null) {
+            return;
+        }
+        busy = true;
+        if (!server.dispatch(exchange)) {
+            busy = false;
+            sendError(HTTP_SERVICE_UNAVAILABLE);
+        }
+    }
+
+    /**
+     * Parses the request at the start of the buffer.
+     *
+     * @return The request, or null if it has not been read completely yet.
+     * @throws BadRequest If the request is malformed or too large.
+     */
+    private NioHttpExchange parse() throws BadRequest {
+        byte[] bytes = in.array();
+        int limit = in.position();
+        int lineEnd = lineEnd(bytes, 0, limit);
+        if (lineEnd < 0) {
+            return incompleteHead(limit);
+        }
+        String[] requestLine = ascii(bytes, 0, lineEnd).split(" ");
+        if (requestLine.length != REQUEST_LINE_PARTS || requestLine[0].isEmpty()) {
+            throw new BadRequest(HTTP_BAD_REQUEST);
+        }
+        String version = requestLine[2];
+        if (!"HTTP/1.1".equals(version) && !"HTTP/1.0".equals(version)) {
+            throw new BadRequest(HTTP_VERSION_NOT_SUPPORTED);
+        }
+
+        Headers headers = new Headers();
+        int pos = next(bytes, lineEnd);
+        while (true) {
+            lineEnd = lineEnd(bytes, pos, limit);
+            if (lineEnd < 0) {
+                return incompleteHead(limit);
+            }
+            if (lineEnd == pos) {
+                pos = next(bytes, lineEnd);
+                break;
+            }
+            String line = ascii(bytes, pos, lineEnd);
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                throw new BadRequest(HTTP_BAD_REQUEST);
+            }
+            headers.add(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+            pos = next(bytes, lineEnd);
+        }
+        if (pos > MAX_HEAD_BYTES) {
+            throw new BadRequest(HTTP_HEADERS_TOO_LARGE);
+        }
+
+        byte[] body;
+        String length = headers.getFirst("Content-Length");
+        String encoding = headers.getFirst("Transfer-Encoding");
+        if (encoding != null) {
+            if (length != null || !"chunked".equalsIgnoreCase(encoding)) {
+                throw new BadRequest(HTTP_BAD_REQUEST);
+            }
+            ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            pos = readChunks(bytes, pos, limit, chunks);
+            if (pos < 0) {
+                return incompleteBody(headers);
+            }
+            body = chunks.toByteArray();
+        } else {
+            int bodyLength = parseLength(length);
+            if (limit - pos < bodyLength) {
+                return incompleteBody(headers);
+            }
+            body = new byte[bodyLength];
+            System.arraycopy(bytes, pos, body, 0, bodyLength);
+            pos += bodyLength;
+        }
+
+        URI uri;
+        try {
+            uri = new URI(requestLine[1]);
+        } catch (URISyntaxException e) {
+            throw new BadRequest(HTTP_BAD_REQUEST);
+        }
+        String connection = String.valueOf(headers.getFirst("Connection")).toLowerCase(Locale.ROOT);
+        boolean keepAlive = "HTTP/1.1".equals(version) ? !connection.contains("close")
+                : connection.contains("keep-alive");
+        consume(pos);
+        return new NioHttpExchange(this, requestLine[0], uri, version, headers, body, keepAlive);
+    }
+
+    private NioHttpExchange incompleteHead(int buffered) throws BadRequest {
+        if (buffered >= MAX_HEAD_BYTES) {
+            throw new BadRequest(HTTP_HEADERS_TOO_LARGE);
+        }
+        return null;
+    }
+
+    /**
+     * Waits for the rest of a body, first telling a client that asked for it
+     * to go ahead and send the body.
+     */
+    private NioHttpExchange incompleteBody(Headers headers) throws BadRequest {
+        if (in.position() >= MAX_HEAD_BYTES + MAX_BODY_BYTES) {
+            throw new BadRequest(HTTP_PAYLOAD_TOO_LARGE);
+        }
+        if (!continueSent && "100-continue".equalsIgnoreCase(headers.getFirst("Expect"))) {
+            continueSent = true;
+            try {
+                // A handful of bytes into an idle connection, the socket buffer takes them
+                channel.write(ByteBuffer.wrap(CONTINUE));
+            } catch (IOException e) {
+                close();
+            }
+        }
+        return null;
+    }
+
+    private static int parseLength(String length) throws BadRequest {
+        if (length == null) {
+            return 0;
+        }
+        long value;
+        try {
+            value = Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            throw new BadRequest(HTTP_BAD_REQUEST);
+        }
+        if (value < 0) {
+            throw new BadRequest(HTTP_BAD_REQUEST);
+        }
+        if (value > MAX_BODY_BYTES) {
+            throw new BadRequest(HTTP_PAYLOAD_TOO_LARGE);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Decodes a chunked body.
+     *
+     * @return The position after the body, or -1 if it is not complete yet.
+     */
+    private static int readChunks(byte[] bytes, int start, int limit, ByteArrayOutputStream out) throws BadRequest {
+        int pos = start;
+        while (true) {
+            int lineEnd = lineEnd(bytes, pos, limit);
+            if (lineEnd < 0) {
+                return -1;
+            }
+            String sizeLine = ascii(bytes, pos, lineEnd);
+            int extension = sizeLine.indexOf(';');
+            int size;
+            try {
+                size = Integer.parseInt((extension < 0 ? sizeLine : sizeLine.substring(0, extension)).trim(), HEX);
+            } catch (NumberFormatException e) {
+                throw new BadRequest(HTTP_BAD_REQUEST);
+            }
+            pos = next(bytes, lineEnd);
+            if (size == 0) {
+                // Skip the trailers up to the empty line ending the body
+                while (true) {
+                    lineEnd = lineEnd(bytes, pos, limit);
+                    if (lineEnd < 0) {
+                        return -1;
+                    }
+                    boolean last = lineEnd == pos;
+                    pos = next(bytes, lineEnd);
+                    if (last) {
+                        return pos;
+                    }
+                }
+            }
+            if (size < 0 || out.size() + size > MAX_BODY_BYTES) {
+                throw new BadRequest(HTTP_PAYLOAD_TOO_LARGE);
+            }
+            int dataEnd = pos + size;
+            int chunkEnd = dataEnd < limit ? lineEnd(bytes, dataEnd, limit) : -1;
+            if (chunkEnd < 0) {
+                return -1;
+            }
+            if (chunkEnd != dataEnd) {
+                throw new BadRequest(HTTP_BAD_REQUEST);
+            }
+            out.write(bytes, pos, size);
+            pos = next(bytes, chunkEnd);
+        }
+    }
+
+    /**
+     * Finds the end of a line, tolerating a bare LF.
+     *
+     * @return The position of the CR or LF ending the line, or -1 if the line is not complete.
+     */
+    private static int lineEnd(byte[] bytes, int from, int limit) {
+        for (int i = from; i < limit; i++) {
+            if (bytes[i] == '\n') {
+                return i > from && bytes[i - 1] == '\r' ? i - 1 : i;
+            }
+        }
+        return -1;
+    }
+
+    private static int next(byte[] bytes, int lineEnd) {
+        return bytes[lineEnd] == '\r' ? lineEnd + 2 : lineEnd + 1;
+    }
+
+    private static String ascii(byte[] bytes, int from, int to) {
+        return new String(bytes, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Drops a parsed request from the buffer, shrinking a buffer grown for a
+     * large request.
+     */
+    private void consume(int length) {
+        int remaining = in.position() - length;
+        ByteBuffer target = in.capacity() > INITIAL_BUFFER && remaining <= INITIAL_BUFFER
+                ? ByteBuffer.allocate(INITIAL_BUFFER) : in;
+        System.arraycopy(in.array(), length, target.array(), 0, remaining);
+        target.position(remaining);
+        in = target;
+        continueSent = false;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer) {
+        int capacity = Math.min(buffer.capacity() * 2, MAX_HEAD_BYTES + MAX_BODY_BYTES);
+        ByteBuffer grown = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        grown.put(buffer);
+        return grown;
+    }
+
+    /**
+     * Answers a request that never reaches a handler and closes the
+     * connection, the rest of what the client sent cannot be trusted.
+     */
+    private void sendError(int status) {
+        String response = "HTTP/1.1 " + status + " " + NioHttpExchange.reasonPhrase(status)
+                + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+        try {
+            channel.write(ByteBuffer.wrap(response.getBytes(StandardCharsets.US_ASCII)));
+        } catch (IOException e) {
+            // Closed below either way
+        }
+        close();
+    }
+
+    /**
+     * BadRequest class signalling a request that is answered with an error
+     * status instead of being handled.
+     */
+    private static final class BadRequest extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        /**
+         * Constructor to create the signal of a malformed request.
+         *
+         * @param status The status to answer the request with.
+         */
+        BadRequest(int status) {
+            super(null, null, false, false);
+            this.status = status;
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package com.sonnybell.app.web;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * NioHttpExchange class holding one request of the NioHttpServer and its
+ * response, as the HttpExchange the handlers know.
+ * The request body has been read completely before the handler runs. The
+ * response is written from the handler's thread: the status line and headers
+ * are buffered with the start of the body and sent in a single write, a body
+ * of known length is sent as is and one of unknown length in chunks.
+ */
+final class NioHttpExchange extends HttpExchange {
+
+    // Constant for HTTP status code 404 Not Found, used when no context matches
+    private static final int HTTP_NOT_FOUND = 404;
+    // Constant for HTTP status code 500 Internal Server Error, used when a handler fails before responding
+    private static final int HTTP_INTERNAL_ERROR = 500;
+    // Status codes whose responses never have a body
+    private static final int HTTP_NO_CONTENT = 204;
+    private static final int HTTP_NOT_MODIFIED = 304;
+    private static final int HTTP_FIRST_FINAL = 200;
+    // Bytes of the body buffered before they are written
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    // Reason phrases of the status codes the server sends
+    private static final Map<Integer, String> REASON_PHRASES = Map.ofEntries(
+            Map.entry(100, "Continue"), Map.entry(200, "OK"), Map.entry(201, "Created"),
+            Map.entry(204, "No Content"), Map.entry(304, "Not Modified"), Map.entry(400, "Bad Request"),
+            Map.entry(401, "Unauthorized"), Map.entry(403, "Forbidden"), Map.entry(404, "Not Found"),
+            Map.entry(405, "Method Not Allowed"), Map.entry(413, "Content Too Large"),
+            Map.entry(429, "Too Many Requests"), Map.entry(431, "Request Header Fields Too Large"),
+            Map.entry(500, "Internal Server Error"), Map.entry(503, "Service Unavailable"),
+            Map.entry(505, "HTTP Version Not Supported"));
+
+    private static final byte[] CRLF = {'\r', '\n'};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final NioHttpConnection connection;
+    private final HttpContext context;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers requestHeaders;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+    private final ResponseStream response = new ResponseStream();
+    private InputStream requestBody;
+    private OutputStream responseBody = response;
+    private int responseCode = -1;
+    private HttpPrincipal principal;
+    // Cleared when the connection has to close after this response
+    private boolean keepAlive;
+    private boolean completed;
+
+    /**
+     * Constructor to create the exchange of a parsed request.
+     *
+     * @param connection     The connection the request came in on.
+     * @param method         The request method.
+     * @param uri            The request target.
+     * @param protocol       The HTTP version of the request.
+     * @param requestHeaders The request headers.
+     * @param body           The request body, decoded if it was chunked.
+     * @param keepAlive      Whether the connection may stay open after the response.
+     */
+    NioHttpExchange(NioHttpConnection connection, String method, URI uri, String protocol, Headers requestHeaders,
+            byte[] body, boolean keepAlive) {
+        this.connection = connection;
+        this.context = connection.findContext(uri.getPath() == null ? "/" : uri.getPath());
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.requestHeaders = requestHeaders;
+        this.requestBody = new ByteArrayInputStream(body);
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * Runs the request through the authenticator, filters and handler of its
+     * context, called on a worker. A response the handler left open is
+     * completed, and one it never started is answered with 500.
+     */
+    void run() {
+        try {
+            if (context == null) {
+                sendResponseHeaders(HTTP_NOT_FOUND, -1);
+            } else if (authenticate()) {
+                new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(this);
+            }
+            if (responseCode < 0 && !completed) {
+                keepAlive = false;
+                sendResponseHeaders(HTTP_INTERNAL_ERROR, -1);
+            }
+            response.close();
+        } catch (IOException e) {
+            // The client is gone, or the handler failed after starting its response
+            keepAlive = false;
+        } finally {
+            if (!completed) {
+                // A handler that threw anything else leaves the response unusable
+                keepAlive = false;
+                complete();
+            }
+        }
+    }
+
+    /**
+     * Sends a file as the whole response body, straight from the file system
+     * to the socket without passing through the heap.
+     * The response headers, such as Content-Type, are set before.
+     *
+     * @param code The status code.
+     * @param file The file to send.
+     * @return The number of bytes sent.
+     * @throws IOException If the file cannot be read or the client is gone.
+     */
+    public long sendFile(int code, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            sendResponseHeaders(code, size == 0 ? -1 : size);
+            if (size == 0 || response.discard) {
+                return 0;
+            }
+            // Send the headers first, the file follows them on the socket
+            response.flush();
+            connection.transfer(channel, 0, size);
+            response.remaining = 0;
+            response.close();
+            return size;
+        }
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return requestHeaders;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public void close() {
+        try {
+            requestBody.close();
+            if (responseCode < 0) {
+                // Closing without a response drops the connection, like the JDK server does
+                keepAlive = false;
+                complete();
+            } else {
+                responseBody.close();
+            }
+        } catch (IOException e) {
+            keepAlive = false;
+            complete();
+        }
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return requestBody;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return responseBody;
+    }
+
+    @Override
+    public void sendResponseHeaders(int code, long length) throws IOException {
+        if (responseCode >= 0) {
+            throw new IOException("Headers already sent.");
+        }
+        responseCode = code;
+        boolean head = "HEAD".equalsIgnoreCase(method);
+        boolean noBody = code < HTTP_FIRST_FINAL || code == HTTP_NO_CONTENT || code == HTTP_NOT_MODIFIED;
+        StringBuilder lines = new StringBuilder();
+        lines.append(protocol).append(' ').append(code).append(' ').append(reasonPhrase(code)).append("\r\n");
+        lines.append("Date: ").append(DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC)))
+                .append("\r\n");
+
+        if (noBody || length < 0) {
+            if (!noBody) {
+                lines.append("Content-Length: 0\r\n");
+            }
+            response.mode = Mode.NONE;
+        } else if (length > 0) {
+            lines.append("Content-Length: ").append(length).append("\r\n");
+            response.mode = Mode.FIXED;
+            response.remaining = length;
+        } else if (head) {
+            response.mode = Mode.NONE;
+        } else if ("HTTP/1.1".equals(protocol)) {
+            lines.append("Transfer-Encoding: chunked\r\n");
+            response.mode = Mode.CHUNKED;
+        } else {
+            // An HTTP/1.0 client reads a body of unknown length up to the end of the connection
+            keepAlive = false;
+            response.mode = Mode.UNTIL_CLOSE;
+        }
+        response.discard = head;
+
+        if (!keepAlive) {
+            lines.append("Connection: close\r\n");
+        } else if ("HTTP/1.0".equals(protocol)) {
+            lines.append("Connection: keep-alive\r\n");
+        }
+        for (Map.Entry<String, List<String>> header : responseHeaders.entrySet()) {
+            String name = header.getKey();
+            // The framing is decided here, not by the handler
+            if ("Content-Length".equalsIgnoreCase(name) || "Transfer-Encoding".equalsIgnoreCase(name)
+                    || "Connection".equalsIgnoreCase(name) || "Date".equalsIgnoreCase(name)) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                lines.append(name).append(": ").append(value).append("\r\n");
+            }
+        }
+        lines.append("\r\n");
+        response.head = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        if (length < 0 || noBody) {
+            // Nothing follows the headers, the response is complete
+            response.close();
+        }
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.getRemoteAddress();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.getLocalAddress();
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        if (value == null) {
+            attributes.remove(name);
+        } else {
+            attributes.put(name, value);
+        }
+    }
+
+    @Override
+    public void setStreams(InputStream in, OutputStream out) {
+        if (in != null) {
+            requestBody = in;
+        }
+        if (out != null) {
+            responseBody = out;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return principal;
+    }
+
+    /**
+     * Gets the reason phrase sent with a status code.
+     *
+     * @param code The status code.
+     * @return The phrase, empty for codes without a common one.
+     */
+    static String reasonPhrase(int code) {
+        return REASON_PHRASES.getOrDefault(code, "");
+    }
+
+    /**
+     * Runs the authenticator of the context, if it has one. A request it
+     * turns away is answered with the status code it gives, and the headers
+     * it set, such as WWW-Authenticate.
+     *
+     * @return true if the request goes on to the filters and handler.
+     */
+    private boolean authenticate() throws IOException {
+        Authenticator authenticator = context.getAuthenticator();
+        if (authenticator == null) {
+            return true;
+        }
+        Authenticator.Result result = authenticator.authenticate(this);
+        if (result instanceof Authenticator.Success success) {
+            principal = success.getPrincipal();
+            return true;
+        }
+        int code = result instanceof Authenticator.Retry retry
+                ? retry.getResponseCode() : ((Authenticator.Failure) result).getResponseCode();
+        sendResponseHeaders(code, -1);
+        return false;
+    }
+
+    /**
+     * Hands the connection back to the selector thread, once per request.
+     */
+    private void complete() {
+        if (completed) {
+            return;
+        }
+        completed = true;
+        connection.releaseWriter();
+        connection.finished(keepAlive);
+    }
+
+    /**
+     * How the response body is framed on the connection.
+     */
+    private enum Mode {
+        NONE, FIXED, CHUNKED, UNTIL_CLOSE
+    }
+
+    /**
+     * ResponseStream class writing the response body to the connection.
+     */
+    private final class ResponseStream extends OutputStream {
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        // Status line and headers not yet written, sent with the first bytes of the body
+        private ByteBuffer head;
+        private Mode mode;
+        // Bytes still to come of a body of known length
+        private long remaining;
+        // Set for HEAD requests, the body is dropped
+        private boolean discard;
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed || mode == null) {
+                throw new IOException(closed ? "Stream is closed." : "Headers not sent.");
+            }
+            if (discard || len == 0) {
+                return;
+            }
+            if (mode == Mode.NONE) {
+                throw new IOException("The response has no body.");
+            }
+            if (mode == Mode.FIXED) {
+                if (len > remaining) {
+                    throw new IOException("Too many bytes to write to stream.");
+                }
+                remaining -= len;
+            }
+            if (len > buffer.remaining()) {
+                writeBuffer();
+                if (len >= buffer.capacity()) {
+                    // Large writes go out as they are, without a copy into the buffer
+                    writeFrame(ByteBuffer.wrap(b, off, len));
+                    return;
+                }
+            }
+            buffer.put(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (closed || mode == null) {
+                return;
+            }
+            writeBuffer();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed || mode == null) {
+                return;
+            }
+            closed = true;
+            try {
+                if (mode == Mode.CHUNKED) {
+                    buffer.flip();
+                    if (buffer.hasRemaining()) {
+                        connection.write(headOrEmpty(), chunkSize(buffer.remaining()), buffer, ByteBuffer.wrap(CRLF),
+                                ByteBuffer.wrap(LAST_CHUNK));
+                    } else {
+                        connection.write(headOrEmpty(), ByteBuffer.wrap(LAST_CHUNK));
+                    }
+                } else {
+                    writeBuffer();
+                }
+                if (mode == Mode.FIXED && remaining > 0 && !discard) {
+                    throw new IOException("Insufficient bytes written to stream.");
+                }
+            } catch (IOException e) {
+                keepAlive = false;
+                throw e;
+            } finally {
+                complete();
+            }
+        }
+
+        private void writeBuffer() throws IOException {
+            buffer.flip();
+            writeFrame(buffer);
+            buffer.clear();
+        }
+
+        private void writeFrame(ByteBuffer data) throws IOException {
+            if (mode == Mode.CHUNKED && data.hasRemaining()) {
+                connection.write(headOrEmpty(), chunkSize(data.remaining()), data, ByteBuffer.wrap(CRLF));
+            } else {
+                connection.write(headOrEmpty(), data);
+            }
+        }
+
+        private ByteBuffer headOrEmpty() {
+            ByteBuffer pending = head == null ? ByteBuffer.allocate(0) : head;
+            head = null;
+            return pending;
+        }
+
+        private ByteBuffer chunkSize(int size) {
+            return ByteBuffer.wrap((Integer.toHexString(size) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.sonnybell.app.web;
+
+import com.sonnybell.app.server.Metrics;
+import com.sonnybell.app.server.ServerConfig;
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * NioHttpServer class, an HTTP/1.1 engine built on a NIO selector that runs
+ * the same HttpHandlers and Filters as the JDK HttpServer.
+ * One selector thread accepts connections and reads and parses requests, the
+ * handlers run on the executor given to setExecutor, typically a bounded pool
+ * or virtual threads. Connections are kept alive between requests, and
+ * requests a client pipelines on a connection are answered one after the
+ * other, in order. A connection idle for chat.web.keepAliveMs is closed.
+ * Handlers write the response straight to the socket from their own thread,
+ * and static files can be sent with NioHttpExchange.sendFile without copying
+ * them through the heap. Requests are parsed by NioHttpConnection.
+ * As with the JDK HttpServer, the authenticator of a context checks each
+ * request before its filters and handler.
+ * The engine is chosen with chat.web.engine=nio, see the WebServer class.
+ */
+public final class NioHttpServer extends HttpServer {
+
+    // Time a connection may stay open without a request in progress
+    private static final long KEEP_ALIVE_MS = ServerConfig.getInt("chat.web.keepAliveMs", 30000);
+    // How often idle connections are looked for
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    private static final Metrics.Counter CONNECTIONS = Metrics.counter("chat_http_connections_total",
+            "Connections accepted by the nio HTTP engine.");
+    private static final Metrics.Counter REJECTED = Metrics.counter("chat_http_rejected_total",
+            "Requests the nio HTTP engine answered with 503 because no worker took them.");
+
+    private final List<Context> contexts = new CopyOnWriteArrayList<>();
+    // Work handed to the selector thread by the workers, run between selects
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Map<SocketChannel, NioHttpConnection> connections = new HashMap<>();
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread selectorThread;
+    private Executor executor;
+    private volatile boolean running;
+
+    private NioHttpServer() {
+    }
+
+    /**
+     * Creates a server bound to an address.
+     *
+     * @param address The address to listen on.
+     * @param backlog The accept backlog, 0 for the system default.
+     * @return The server, to be started with start().
+     * @throws IOException If the address cannot be bound.
+     */
+    public static NioHttpServer create(InetSocketAddress address, int backlog) throws IOException {
+        NioHttpServer server = new NioHttpServer();
+        server.bind(address, backlog);
+        return server;
+    }
+
+    @Override
+    public void bind(InetSocketAddress address, int backlog) throws IOException {
+        if (serverChannel != null) {
+            throw new IllegalStateException("Server is already bound.");
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, backlog);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @Override
+    public void start() {
+        if (serverChannel == null) {
+            throw new IllegalStateException("Server is not bound.");
+        }
+        if (executor == null) {
+            // Like the JDK server, run handlers on the selector thread when no executor is set
+            executor = Runnable::run;
+        }
+        running = true;
+        selectorThread = new Thread(this::selectLoop, "http-selector");
+        selectorThread.start();
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        if (selectorThread != null) {
+            throw new IllegalStateException("Server is already started.");
+        }
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void stop(int delay) {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(TimeUnit.SECONDS.toMillis(Math.max(0, delay)));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        Context context = (Context) createContext(path);
+        context.setHandler(handler);
+        return context;
+    }
+
+    @Override
+    public HttpContext createContext(String path) {
+        if (path == null || !path.startsWith("/")) {
+            throw new IllegalArgumentException("Invalid context path '" + path + "'.");
+        }
+        for (Context context : contexts) {
+            if (context.path.equals(path)) {
+                throw new IllegalArgumentException("Context " + path + " already exists.");
+            }
+        }
+        Context context = new Context(this, path);
+        contexts.add(context);
+        return context;
+    }
+
+    @Override
+    public void removeContext(String path) {
+        if (!contexts.removeIf(context -> context.path.equals(path))) {
+            throw new IllegalArgumentException("No context " + path + ".");
+        }
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        removeContext(context.getPath());
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Finds the context of a request path, the longest context path that is
+     * the path itself or one of its leading segments.
+     *
+     * @param path The request path.
+     * @return The context, or null if none matches.
+     */
+    Context findContext(String path) {
+        Context best = null;
+        for (Context context : contexts) {
+            String prefix = context.path;
+            boolean matches = path.equals(prefix)
+                    || path.startsWith(prefix) && (prefix.endsWith("/") || path.charAt(prefix.length()) == '/');
+            if (matches && (best == null || prefix.length() > best.path.length())) {
+                best = context;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Runs a task on the selector thread, which owns the connections.
+     *
+     * @param task The task.
+     */
+    void runOnSelector(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Hands a parsed request to a worker.
+     *
+     * @param exchange The request.
+     * @return false if the executor refused it.
+     */
+    boolean dispatch(NioHttpExchange exchange) {
+        try {
+            executor.execute(exchange::run);
+            return true;
+        } catch (RejectedExecutionException e) {
+            REJECTED.inc();
+            return false;
+        }
+    }
+
+    private void selectLoop() {
+        long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL_MS;
+        while (running) {
+            try {
+                selector.select(SWEEP_INTERVAL_MS);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    handleKey(key);
+                }
+                selector.selectedKeys().clear();
+                long now = System.currentTimeMillis();
+                if (now >= nextSweep) {
+                    closeIdle(now);
+                    nextSweep = now + SWEEP_INTERVAL_MS;
+                }
+            } catch (IOException e) {
+                System.err.println("HTTP selector failed: " + e.getMessage());
+            }
+        }
+        for (NioHttpConnection connection : new ArrayList<>(connections.values())) {
+            connection.close();
+        }
+        try {
+            serverChannel.close();
+            selector.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close HTTP server: " + e.getMessage());
+        }
+    }
+
+    private void handleKey(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.isAcceptable()) {
+            accept();
+            return;
+        }
+        NioHttpConnection connection = (NioHttpConnection) key.attachment();
+        if (key.isReadable()) {
+            connection.read();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            NioHttpConnection connection = new NioHttpConnection(this, channel, key);
+            key.attach(connection);
+            connections.put(channel, connection);
+            CONNECTIONS.inc();
+        }
+    }
+
+    /**
+     * Forgets a closed connection, called on the selector thread.
+     *
+     * @param channel The channel of the connection.
+     */
+    void closed(SocketChannel channel) {
+        connections.remove(channel);
+    }
+
+    private void closeIdle(long now) {
+        for (NioHttpConnection connection : new ArrayList<>(connections.values())) {
+            if (connection.isIdleSince(now - KEEP_ALIVE_MS)) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Context class mapping a path to a handler and its filters.
+     */
+    static final class Context extends HttpContext {
+        private final String path;
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final List<Filter> filters = new CopyOnWriteArrayList<>();
+        private final NioHttpServer server;
+        private volatile HttpHandler handler;
+        private volatile Authenticator authenticator;
+
+        private Context(NioHttpServer server, String path) {
+            this.server = server;
+            this.path = path;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            if (handler == null) {
+                throw new IllegalArgumentException("Handler is null.");
+            }
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return server;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator auth) {
+            Authenticator previous = authenticator;
+            authenticator = auth;
+            return previous;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.sonnybell.app.web;
+
+import com.sonnybell.app.chatfunctions.SearchIndex;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+
+/**
+ * SearchHandler class serving searches of the chat lines at /api/search.
+ * The query parameters are q, the words to search for, user, the sender, and
+ * from and to, the time range. Times are epoch milliseconds, ISO instants or
+ * dates, a date as "to" includes the whole day.
+ * The newest matching lines are returned first, at most limit of them.
+ * Only logged in users can search, a request without a session gets 401.
+ */
+public class SearchHandler implements HttpHandler {
+    // Constant for HTTP status code 200 OK
+    private static final int HTTP_OK = 200;
+    // Constant for HTTP status code 400 Bad Request, used for a missing or invalid parameter
+    private static final int HTTP_BAD_REQUEST = 400;
+    // Constant for HTTP status code 401 Unauthorized, used when a request has no valid session
+    private static final int HTTP_UNAUTHORIZED = 401;
+    // Constant for HTTP status code 405 Method Not Allowed
+    private static final int HTTP_METHOD_NOT_ALLOWED = 405;
+    // Constant for unknown content length, used when the response body is empty
+    private static final int UNKNOWN_CONTENT_LENGTH = -1;
+
+    // Lines returned when no limit is given, and at most
+    private static final int DEFAULT_LIMIT = 20;
+    private static final int MAX_LIMIT = 100;
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    /**
+     * Handles GET requests searching the chat lines.
+     *
+     * @param exchange The HttpExchange object containing request and response data.
+     * @throws IOException If an I/O error occurs during response handling.
+     */
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+        if (!"GET".equalsIgnoreCase(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, UNKNOWN_CONTENT_LENGTH);
+            exchange.close();
+            return;
+        }
+        if (WebSessions.find(exchange) == null) {
+            exchange.sendResponseHeaders(HTTP_UNAUTHORIZED, UNKNOWN_CONTENT_LENGTH);
+            exchange.close();
+            return;
+        }
+        long start = System.nanoTime();
+        JsonWriter json = new JsonWriter().beginObject();
+        int status = HTTP_OK;
+        try {
+            String query = WebChat.queryParam(exchange, "q");
+            String user = WebChat.queryParam(exchange, "user");
+            long from = parseTime(WebChat.queryParam(exchange, "from"), false);
+            long to = parseTime(WebChat.queryParam(exchange, "to"), true);
+            int limit = parseLimit(WebChat.queryParam(exchange, "limit"));
+            SearchIndex.Result result = SearchIndex.search(query, user, from, to, limit);
+
+            json.name("total").value(result.getTotal());
+            json.name("hits").beginArray();
+            for (SearchIndex.Hit hit : result.getHits()) {
+                json.beginObject();
+                json.name("seq").value(hit.getSequence());
+                json.name("timestamp").value(hit.getTimestamp());
+                json.name("room").value(hit.getRoom());
+                json.name("user").value(hit.getSender());
+                json.name("text").value(hit.getText());
+                json.endObject();
+            }
+            json.endArray();
+            json.name("took_ms").value((System.nanoTime() - start) / NANOS_PER_MILLI);
+        } catch (IllegalArgumentException e) {
+            // Nothing was written yet, every parameter is read before the search
+            status = HTTP_BAD_REQUEST;
+            json.name("error").value(e.getMessage());
+        }
+        json.endObject().send(exchange, status);
+    }
+
+    /**
+     * Reads a time parameter.
+     *
+     * @param value The parameter, or null if it is missing.
+     * @param end   true for the end of a range, a date then means its last millisecond.
+     * @return The time in epoch milliseconds, or the widest bound if missing.
+     */
+    static long parseTime(String value, boolean end) {
+        if (value == null || value.isBlank()) {
+            return end ? Long.MAX_VALUE : Long.MIN_VALUE;
+        }
+        String trimmed = value.trim();
+        try {
+            if (trimmed.chars().allMatch(Character::isDigit)) {
+                return Long.parseLong(trimmed);
+            }
+            if (trimmed.contains("T")) {
+                return Instant.parse(trimmed).toEpochMilli();
+            }
+            LocalDate date = LocalDate.parse(trimmed);
+            ZoneId zone = ZoneId.systemDefault();
+            return end
+                    ? date.plusDays(1).atStartOfDay(zone).toInstant().toEpochMilli() - 1
+                    : date.atStartOfDay(zone).toInstant().toEpochMilli();
+        } catch (NumberFormatException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid time '" + value + "'.");
+        }
+    }
+
+    private static int parseLimit(String value) {
+        if (value == null || value.isBlank()) {
+            return DEFAULT_LIMIT;
+        }
+        try {
+            return Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(value.trim())));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid limit '" + value + "'.");
+        }
+    }
+}
@@ -1,16 +1,28 @@
 package com.sonnybell.app.web;
 
-import com.sonnybell.app.chatfunctions.ChatHistory;
+import com.sonnybell.app.chatfunctions.ChatMessage;
+import com.sonnybell.app.chatfunctions.ChatRoom;
+import com.sonnybell.app.chatfunctions.DirectMessages;
+import com.sonnybell.app.chatfunctions.MessageKind;
+import com.sonnybell.app.chatfunctions.MessageLatency;
+import com.sonnybell.app.chatfunctions.Presence;
+import com.sonnybell.app.chatfunctions.RoomRegistry;
+import com.sonnybell.app.chatfunctions.SearchIndex;
 import com.sonnybell.app.client.ClientHandler;
 import com.sonnybell.app.games.CapitalGame;
+import com.sonnybell.app.games.GameSessions;
+import com.sonnybell.app.games.Leaderboard;
+import com.sonnybell.app.server.Metrics;
+import com.sonnybell.app.server.RateLimiter;
 import com.sonnybell.app.server.Server;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import java.io.*;
+import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import org.json.JSONArray;
+import java.util.Map;
 import org.json.JSONObject;
 
 /**
@@ -21,6 +33,9 @@ public class WebChat implements HttpHandler {
     // Constant for HTTP status code 405 Method Not Allowed, used when the method is
     // not supported
     private static final int HTTP_METHOD_NOT_ALLOWED = 405;
+    // Constant for HTTP status code 401 Unauthorized, used when a request has no
+    // valid session
+    private static final int HTTP_UNAUTHORIZED = 401;
     // Constant for HTTP status code 404 Not Found, used when the requested resource
     // is not found
     private static final int HTTP_NOT_FOUND = 404;
@@ -29,12 +44,27 @@ public class WebChat implements HttpHandler {
     // Constant for HTTP status code 204 No Content, used when a POST request is
     // successful
     private static final int HTTP_NO_CONTENT = 204;
+    // Constant for HTTP status code 429 Too Many Requests, used when a web user
+    // is over the rate limit
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
     // Constant for unknown content length, used when the response body is empty
     private static final int UNKNOWN_CONTENT_LENGTH = -1;
-    // Set to keep track of web users currently logged in via the web interface.
-    // This is a thread-safe set to handle concurrent access from multiple web
-    // clients.
-    private static final java.util.Set<String> WEB_USERS = ConcurrentHashMap.newKeySet();
+    // Parts of a direct message command: /msg, the recipient and the text
+    private static final int DIRECT_MESSAGE_PARTS = 3;
+
+    // Metrics of web users, see the Metrics class
+    private static final Metrics.Counter MESSAGES_RECEIVED = Metrics.counter("chat_messages_in_total",
+            "Messages entering the chat, by source.", "source", "web");
+    private static final Metrics.Counter MESSAGES_SENT = Metrics.counter("chat_messages_out_total",
+            "Lines sent to users, by transport.", "transport", "web");
+
+    // Players returned by the leaderboard endpoint when no limit is given, and at most
+    private static final int DEFAULT_LEADERBOARD_SIZE = 10;
+    private static final int MAX_LEADERBOARD_SIZE = 100;
+
+    static {
+        Metrics.gauge("chat_web_users", "Web users currently logged in.", WebSessions::size);
+    }
 
     /**
      * Handles HTTP requests for the web chat API.
@@ -61,6 +91,13 @@ public class WebChat implements HttpHandler {
                 exchange.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, UNKNOWN_CONTENT_LENGTH);
             }
             // Handle the messages endpoint for both GET and POST methods
+        } else if ("/api/webchat/sync".equals(path)) {
+            // Handle the sync endpoint, GET only, polled by the web chat page
+            if ("GET".equalsIgnoreCase(method)) {
+                handleSync(exchange);
+            } else {
+                exchange.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, UNKNOWN_CONTENT_LENGTH);
+            }
         } else if ("/api/webchat/login".equals(path)) {
             // Handle the login endpoint for POST method only
             // This endpoint allows users to log in with a username and password
@@ -70,14 +107,6 @@ public class WebChat implements HttpHandler {
                 exchange.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, UNKNOWN_CONTENT_LENGTH);
             }
             // Handle the login endpoint for POST method only
-        } else if ("/api/webchat/status".equals(path)) {
-            // Handle the status check endpoint for POST method only
-            if ("POST".equalsIgnoreCase(method)) {
-                handleStatusCheck(exchange);
-            } else {
-                exchange.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, UNKNOWN_CONTENT_LENGTH);
-            }
-            // Handle the status check endpoint for POST method only
         } else if ("/api/webchat/logout".equals(path)) {
             // Handle the logout endpoint for POST method only
             // This endpoint allows users to log out and removes them from the web users set
@@ -87,6 +116,31 @@ public class WebChat implements HttpHandler {
                 exchange.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, UNKNOWN_CONTENT_LENGTH);
             }
             // Handle the logout endpoint for POST method only
+        } else if ("/api/webchat/rooms".equals(path)) {
+            // Handle the rooms endpoint, GET lists rooms and POST joins a room
+            if ("GET".equalsIgnoreCase(method)) {
+                handleListRooms(exchange);
+            } else if ("POST".equalsIgnoreCase(method)) {
+                handleJoinRoom(exchange);
+            } else {
+                exchange.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, UNKNOWN_CONTENT_LENGTH);
+            }
+        } else if ("/api/webchat/leaderboard".equals(path)) {
+            // Handle the all-time leaderboard of the capital game, GET only
+            if ("GET".equalsIgnoreCase(method)) {
+                handleGetLeaderboard(exchange);
+            } else {
+                exchange.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, UNKNOWN_CONTENT_LENGTH);
+            }
+        } else if ("/api/webchat/dm".equals(path)) {
+            // Handle direct messages, GET reads the user's mailboxes and POST sends one
+            if ("GET".equalsIgnoreCase(method)) {
+                handleGetDirectMessages(exchange);
+            } else if ("POST".equalsIgnoreCase(method)) {
+                handlePostDirectMessage(exchange);
+            } else {
+                exchange.sendResponseHeaders(HTTP_METHOD_NOT_ALLOWED, UNKNOWN_CONTENT_LENGTH);
+            }
         } else {
             exchange.sendResponseHeaders(HTTP_NOT_FOUND, UNKNOWN_CONTENT_LENGTH);
         }
@@ -94,172 +148,587 @@ public class WebChat implements HttpHandler {
 
     /**
      * Handles GET requests to retrieve chat messages.
-     * It returns the chat history as a JSON array.
+     * It returns the history of the room the requesting user is in as a JSON
+     * array. The user is given by the session of the request.
      *
      * @param exchange The HttpExchange object containing request and response data.
      * @throws IOException If an I/O error occurs during response handling.
      */
     private void handleGetMessages(HttpExchange exchange) throws IOException {
-        List<String> messages = ChatHistory.getMessageHistory();
-        JSONArray arr = new JSONArray();
-        // Convert the chat history to a JSON array
-        for (String msg : messages) {
-            arr.put(msg);
-        }
-        // Convert the JSON array to a byte array for the response
-        // and set the appropriate headers
-        byte[] resp = arr.toString().getBytes(StandardCharsets.UTF_8);
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(HTTP_OK, resp.length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(resp);
+        WebSessions.Session session = WebSessions.find(exchange);
+        if (session == null) {
+            sendUnauthorized(exchange);
+            return;
+        }
+        String user = session.getUsername();
+        List<String> messages = RoomRegistry.webRoomOf(user).getHistory().snapshot();
+        MESSAGES_SENT.add(messages.size());
+        // Write the chat history as a JSON array
+        new JsonWriter().array(messages).send(exchange, HTTP_OK);
+    }
+
+    /**
+     * Handles GET requests bringing a web page up to date in one round trip.
+     * The query parameters are what the page saw last: since, the message
+     * cursor, room, the room it was in, presence, the presence version, and
+     * dm, the direct message version. The response holds only what changed:
+     * the new messages of the room, the users that came online or went
+     * offline, the capital game state and, if any mailbox changed, the
+     * direct messages. When the page cannot be brought up to date, because it
+     * is new, changed room or fell behind, reset is true and messages holds
+     * the whole room history instead.
+     * A request without a session is answered with 401, so polling this alone
+     * also tells the page when it has been logged out.
+     *
+     * @param exchange The HttpExchange object containing request and response data.
+     * @throws IOException If an I/O error occurs during response handling.
+     */
+    private void handleSync(HttpExchange exchange) throws IOException {
+        WebSessions.Session session = WebSessions.find(exchange);
+        if (session == null) {
+            sendUnauthorized(exchange);
+            return;
+        }
+        String user = session.getUsername();
+        ChatRoom room = RoomRegistry.webRoomOf(user);
+        long since = parseVersion(queryParam(exchange, "since"));
+        boolean sameRoom = room.getName().equals(queryParam(exchange, "room"));
+
+        List<String> messages = new ArrayList<>();
+        long cursor = room.getHistory().textSince(sameRoom ? since : 0, messages);
+        // Otherwise the history no longer reaches back that far and all of it was copied
+        boolean reset = !sameRoom || since == 0 || messages.size() != cursor - since;
+        MESSAGES_SENT.add(messages.size());
+
+        JsonWriter json = new JsonWriter().beginObject();
+        json.name("loggedIn").value(true);
+        json.name("room").value(room.getName());
+        json.name("cursor").value(cursor);
+        json.name("reset").value(reset);
+        json.name("messages").array(messages);
+
+        Presence.Diff presence = Presence.since(parseVersion(queryParam(exchange, "presence")));
+        json.name("presence").beginObject();
+        json.name("version").value(presence.getVersion());
+        json.name("full").value(presence.isFull());
+        json.name("joined").array(presence.getJoined());
+        json.name("left").array(presence.getLeft());
+        json.endObject();
+
+        CapitalGame game = GameSessions.find(room);
+        json.name("game").beginObject();
+        json.name("active").value(game != null && game.isGameActive());
+        json.name("status").value(GameSessions.getGameStatus(room));
+        String question = game == null ? null : game.getOpenQuestion();
+        if (question != null) {
+            json.name("question").value(question);
+        }
+        json.endObject();
+
+        // Mailboxes are only sent when one changed, they are mostly the same as last time
+        long dmVersion = DirectMessages.versionOf(user);
+        if (dmVersion != parseVersion(queryParam(exchange, "dm")) || since == 0) {
+            json.name("dm").beginObject();
+            json.name("version").value(dmVersion);
+            json.name("conversations");
+            writeConversations(json, user);
+            json.endObject();
+        }
+
+        exchange.getResponseHeaders().set("Cache-Control", "no-store");
+        json.endObject().send(exchange, HTTP_OK);
+    }
+
+    /**
+     * Writes the direct messages of a user as an object mapping each
+     * conversation partner to the messages exchanged with them.
+     *
+     * @param json The writer.
+     * @param user The user.
+     */
+    private static void writeConversations(JsonWriter json, String user) {
+        json.beginObject();
+        for (Map.Entry<String, List<String>> conversation : DirectMessages.conversationsOf(user).entrySet()) {
+            json.name(conversation.getKey()).array(conversation.getValue());
+        }
+        json.endObject();
+    }
+
+    /**
+     * Reads a cursor or version parameter of the sync endpoint.
+     *
+     * @param value The parameter, or null if it is missing.
+     * @return The value, or 0 if missing or invalid, which asks for everything.
+     */
+    private static long parseVersion(String value) {
+        if (value == null || value.isBlank()) {
+            return 0;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            return 0;
         }
     }
 
     /**
      * Handles POST requests to send a chat message.
-     * It expects a JSON body with "user" and "message" fields.
-     * The message is added to the chat history and broadcasted to all connected
-     * clients.
+     * It expects a JSON body with a "message" field, the sender is the user of
+     * the session.
+     * The message is added to the history of the user's room and broadcasted to
+     * the members of that room.
+     * Room commands (/join, /leave, /rooms) and /search are answered with a JSON notice.
      *
      * @param exchange The HttpExchange object containing request and response data.
      * @throws IOException If an I/O error occurs during request handling.
      */
     private void handlePostMessage(HttpExchange exchange) throws IOException {
+        // Stamp the request, the latency of its message is measured from here
+        long received = System.nanoTime();
+        // Check the address limit before even reading the body
+        if (!RateLimiter.allowAddress(exchange.getRemoteAddress().getAddress())) {
+            sendTooManyRequests(exchange);
+            return;
+        }
+        // And the session, a request without one is turned away unread
+        WebSessions.Session session = WebSessions.find(exchange);
+        if (session == null) {
+            sendUnauthorized(exchange);
+            return;
+        }
+        String user = session.getUsername();
         String requestBody = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
         JSONObject payload = new JSONObject(requestBody);
-        String user = payload.optString("user", "");
         String message = payload.optString("message", "");
+        MESSAGES_RECEIVED.inc();
+        if (!RateLimiter.allowUser(user)) {
+            sendTooManyRequests(exchange);
+            return;
+        }
+
+        // Handle direct messages, they never reach the room history
+        if (message.startsWith("/msg")) {
+            String[] parts = message.trim().split("\\s+", DIRECT_MESSAGE_PARTS);
+            String notice = parts.length < DIRECT_MESSAGE_PARTS
+                    ? "Usage: /msg <user> <text>"
+                    : sendDirectMessage(user, parts[1], parts[2]);
+            sendRoomResponse(exchange, user, notice);
+            return;
+        }
+
+        // Handle searches, the newest match is shown as the notice
+        if (message.startsWith("/search")) {
+            sendRoomResponse(exchange, user, searchMessages(message.substring("/search".length()).trim()));
+            return;
+        }
 
-        // Handle game command
+        // Handle room commands
+        if (message.startsWith("/join") || message.startsWith("/leave") || message.startsWith("/rooms")) {
+            handleRoomCommand(exchange, user, message);
+            return;
+        }
+
+        // Handle game command, games are played in the user's room
+        ChatRoom room = RoomRegistry.webRoomOf(user);
+        CapitalGame game = GameSessions.find(room);
         if (message.startsWith("/startgame")) {
-            CapitalGame.startGame();
-            ClientHandler.broadcastMessageToAll("GAME START command issued by: " + user);
-        } else if (CapitalGame.isGameActive()) {
-            boolean wasCorrect = CapitalGame.checkAnswer(user, message);
+            GameSessions.startGame(room);
+            room.broadcast(ChatMessage.game("GAME START command issued by: " + user), null);
+        } else if (game != null && game.isGameActive()) {
+            boolean wasCorrect = game.checkAnswer(user, message);
             if (wasCorrect) {
                 sendNoContent(exchange);
                 return;
             }
         }
 
-        // Normal chat message from web client
+        // Normal chat message from web client, only sent to the user's room
         String formattedMessage = user + ": " + message;
-        ClientHandler.broadcastMessageToAll(formattedMessage);
+        MessageLatency.CLASSIFY.recordSince(received);
+        room.broadcast(ChatMessage.chat(user, formattedMessage, received), null);
 
         sendNoContent(exchange);
     }
 
     /**
-     * Handles POST requests for user login.
-     * It checks the provided username and password against the server's
-     * credentials.
-     * If valid, it adds the user to the set of web users and returns a success
-     * response.
+     * Handles a room command typed by a web user.
+     *
+     * @param exchange The HttpExchange object containing request and response data.
+     * @param user     The web user that sent the command.
+     * @param command  The command line.
+     * @throws IOException If an I/O error occurs during response handling.
+     */
+    private void handleRoomCommand(HttpExchange exchange, String user, String command) throws IOException {
+        String[] parts = command.trim().split("\\s+", 2);
+        String notice;
+        if ("/rooms".equalsIgnoreCase(parts[0])) {
+            StringBuilder sb = new StringBuilder("Rooms:");
+            for (ChatRoom room : RoomRegistry.listRooms()) {
+                sb.append(" #").append(room.getName()).append(" (").append(room.getMemberCount()).append(')');
+            }
+            notice = sb.toString();
+        } else if ("/leave".equalsIgnoreCase(parts[0])) {
+            notice = moveWebUser(user, RoomRegistry.LOBBY);
+        } else {
+            notice = moveWebUser(user, parts.length > 1 ? parts[1] : "");
+        }
+        sendRoomResponse(exchange, user, notice);
+    }
+
+    /**
+     * Handles GET requests listing all chat rooms and their member counts.
+     *
+     * @param exchange The HttpExchange object containing request and response data.
+     * @throws IOException If an I/O error occurs during response handling.
+     */
+    private void handleListRooms(HttpExchange exchange) throws IOException {
+        if (WebSessions.find(exchange) == null) {
+            sendUnauthorized(exchange);
+            return;
+        }
+        JsonWriter json = new JsonWriter().beginArray();
+        for (ChatRoom room : RoomRegistry.listRooms()) {
+            json.beginObject();
+            json.name("name").value(room.getName());
+            json.name("members").value(room.getMemberCount());
+            json.endObject();
+        }
+        json.endArray().send(exchange, HTTP_OK);
+    }
+
+    /**
+     * Handles POST requests moving a web user into a room.
+     * It expects a JSON body with a "room" field, an empty room moves the user
+     * of the session back to the lobby.
      *
      * @param exchange The HttpExchange object containing request and response data.
      * @throws IOException If an I/O error occurs during request handling.
      */
-    private void handleLogin(HttpExchange exchange) throws IOException {
+    private void handleJoinRoom(HttpExchange exchange) throws IOException {
+        WebSessions.Session session = WebSessions.find(exchange);
+        if (session == null) {
+            sendUnauthorized(exchange);
+            return;
+        }
+        String username = session.getUsername();
         String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
         JSONObject obj = new JSONObject(body);
-        String username = obj.optString("username", "");
-        String password = obj.optString("password", "");
-        boolean valid = password.equals(Server.getServerPass()) && !username.isBlank();
+        String roomName = obj.optString("room", "");
+        String notice = moveWebUser(username, roomName.isBlank() ? RoomRegistry.LOBBY : roomName);
+        sendRoomResponse(exchange, username, notice);
+    }
 
-        // Adds web user to the set if valid
-        if (valid) {
-            if (WEB_USERS.add(username)) {
-                ClientHandler.addWebClient(username);
+    /**
+     * Moves a logged in web user into a room and announces it in both rooms.
+     *
+     * @param username The web user to move.
+     * @param roomName The room name typed by the user.
+     * @return A notice describing the result for the user.
+     */
+    private String moveWebUser(String username, String roomName) {
+        if (!isWebUser(username)) {
+            return "You are not logged in.";
+        }
+        String target = RoomRegistry.normalizeName(roomName);
+        if (target == null) {
+            return "Room names may only contain letters, digits, '-' and '_'.";
+        }
+        ChatRoom current = RoomRegistry.webRoomOf(username);
+        if (current.getName().equals(target)) {
+            return "You are already in #" + target;
+        }
+        current.broadcast(ChatMessage.of(MessageKind.LEAVE, username,
+                "SERVER: " + username + " has left #" + current.getName() + "."), null);
+        ChatRoom room = RoomRegistry.joinWeb(username, target);
+        room.broadcast(ChatMessage.of(MessageKind.JOIN, username,
+                "SERVER: " + username + " has joined #" + room.getName() + "."), null);
+        return "You joined #" + room.getName();
+    }
 
-                String joinMsg = "SERVER: " + username + " has joined the chat!";
-                ChatHistory.addMessageToHistory(joinMsg);
-                ClientHandler.logMessage(joinMsg, "HelloUser");
-                // Only broadcast, do not log again in broadcastMessageToAll
-                ClientHandler.broadcastMessageToAll(joinMsg);
+    /**
+     * Handles GET requests for the direct messages of a web user.
+     * The user is given by the session of the request and the response maps
+     * each conversation partner to the messages exchanged with them.
+     *
+     * @param exchange The HttpExchange object containing request and response data.
+     * @throws IOException If an I/O error occurs during response handling.
+     */
+    private void handleGetDirectMessages(HttpExchange exchange) throws IOException {
+        WebSessions.Session session = WebSessions.find(exchange);
+        if (session == null) {
+            sendUnauthorized(exchange);
+            return;
+        }
+        JsonWriter json = new JsonWriter();
+        writeConversations(json, session.getUsername());
+        json.send(exchange, HTTP_OK);
+    }
+
+    /**
+     * Handles GET requests for the all-time capital game leaderboard.
+     * It returns the best players as a JSON array of rank, user and points,
+     * the number of players is given by the optional "limit" query parameter.
+     *
+     * @param exchange The HttpExchange object containing request and response data.
+     * @throws IOException If an I/O error occurs during response handling.
+     */
+    private void handleGetLeaderboard(HttpExchange exchange) throws IOException {
+        if (WebSessions.find(exchange) == null) {
+            sendUnauthorized(exchange);
+            return;
+        }
+        int limit = DEFAULT_LEADERBOARD_SIZE;
+        String requested = queryParam(exchange, "limit");
+        if (requested != null) {
+            try {
+                limit = Math.max(1, Math.min(MAX_LEADERBOARD_SIZE, Integer.parseInt(requested.trim())));
+            } catch (NumberFormatException e) {
+                limit = DEFAULT_LEADERBOARD_SIZE;
             }
         }
 
-        // Prepare the response
-        // with the validity of the login attempt
-        JSONObject resp = new JSONObject();
-        resp.put("valid", valid);
-        byte[] respBytes = resp.toString().getBytes(StandardCharsets.UTF_8);
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(HTTP_OK, respBytes.length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(respBytes);
+        JsonWriter json = new JsonWriter().beginArray();
+        int rank = 1;
+        for (Leaderboard.Entry entry : Leaderboard.allTime().top(limit)) {
+            json.beginObject();
+            json.name("rank").value(rank++);
+            json.name("user").value(entry.getUser());
+            json.name("points").value(entry.getPoints());
+            json.endObject();
         }
+        json.endArray().send(exchange, HTTP_OK);
     }
 
     /**
-     * Handles POST requests to check if a user is still logged in.
+     * Handles POST requests sending a direct message from a web user.
+     * It expects a JSON body with "to" and "message" fields, the sender is the
+     * user of the session.
      *
      * @param exchange The HttpExchange object containing request and response data.
      * @throws IOException If an I/O error occurs during request handling.
      */
-    private void handleStatusCheck(HttpExchange exchange) throws IOException {
+    private void handlePostDirectMessage(HttpExchange exchange) throws IOException {
+        WebSessions.Session session = WebSessions.find(exchange);
+        if (session == null) {
+            sendUnauthorized(exchange);
+            return;
+        }
+        String user = session.getUsername();
+        if (!RateLimiter.allow(exchange.getRemoteAddress().getAddress(), user)) {
+            sendTooManyRequests(exchange);
+            return;
+        }
         String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
         JSONObject obj = new JSONObject(body);
-        String username = obj.optString("username", "");
-
-        // Check both the local WEB_USERS set and the centralized tracking
-        // This ensures that if an admin removes a user, they're properly logged out
-        boolean loggedIn = WEB_USERS.contains(username) && ClientHandler.getClientNamesList().contains(username);
+        String notice = sendDirectMessage(user, obj.optString("to", ""), obj.optString("message", ""));
+        sendRoomResponse(exchange, user, notice);
+    }
 
-        JSONObject resp = new JSONObject();
-        resp.put("loggedIn", loggedIn);
+    /**
+     * Sends a direct message from a logged in web user.
+     *
+     * @param user    The web user sending the message.
+     * @param to      The recipient.
+     * @param message The text of the message.
+     * @return A notice describing the result for the user.
+     */
+    private String sendDirectMessage(String user, String to, String message) {
+        if (!isWebUser(user)) {
+            return "You are not logged in.";
+        }
+        if (message.isBlank() || to.isBlank() || to.equals(user)) {
+            return "Usage: /msg <user> <text>";
+        }
+        if (!DirectMessages.send(user, to, message)) {
+            return "User " + to + " is not online.";
+        }
+        return "DM to " + to + ": " + message;
+    }
 
-        byte[] respBytes = resp.toString().getBytes(StandardCharsets.UTF_8);
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(HTTP_OK, respBytes.length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(respBytes);
+    /**
+     * Searches earlier chat lines for a web user.
+     *
+     * @param query The words to search for.
+     * @return A notice with the number of matches and the newest one.
+     */
+    private String searchMessages(String query) {
+        if (SearchIndex.terms(query).isEmpty()) {
+            return "Usage: /search <words>";
+        }
+        try {
+            SearchIndex.Result result = SearchIndex.search(query, null, Long.MIN_VALUE, Long.MAX_VALUE, 1);
+            if (result.getHits().isEmpty()) {
+                return "No lines match '" + query + "'.";
+            }
+            SearchIndex.Hit newest = result.getHits().get(0);
+            return result.getTotal() + " matching, newest in #" + newest.getRoom() + ": " + newest.getText();
+        } catch (IOException e) {
+            return "The search failed, please try again.";
         }
     }
 
+    private void sendRoomResponse(HttpExchange exchange, String username, String notice) throws IOException {
+        new JsonWriter().beginObject()
+                .name("room").value(RoomRegistry.webRoomOf(username).getName())
+                .name("notice").value(notice)
+                .endObject().send(exchange, HTTP_OK);
+    }
+
     /**
-     * Handles POST requests for user logout.
-     * It removes the user from the set of web users and returns a response
-     * indicating success.
+     * Handles POST requests for user login.
+     * It checks the provided username and password against the server's
+     * credentials.
+     * If valid, it opens a session for the user and returns its token, which is
+     * also set as a cookie, so the browser sends it with every later request.
+     * Logging in again replaces the token of the session the user already has.
      *
      * @param exchange The HttpExchange object containing request and response data.
      * @throws IOException If an I/O error occurs during request handling.
      */
-    private void handleLogout(HttpExchange exchange) throws IOException {
+    private void handleLogin(HttpExchange exchange) throws IOException {
         String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
         JSONObject obj = new JSONObject(body);
         String username = obj.optString("username", "");
-        boolean removed = WEB_USERS.remove(username);
-        if (removed) {
-            ClientHandler.removeWebClient(username);
+        String password = obj.optString("password", "");
+        boolean valid = password.equals(Server.getServerPass()) && !username.isBlank();
 
-            String leaveMsg = "SERVER: " + username + " has left the chat.";
-            ChatHistory.addMessageToHistory(leaveMsg);
-            ClientHandler.logMessage(leaveMsg, "GoodbyeUser");
-            // Only broadcast, do not log again in broadcastMessageToAll
-            ClientHandler.broadcastMessageToAll(leaveMsg);
+        // Prepare the response
+        // with the validity of the login attempt
+        JsonWriter json = new JsonWriter().beginObject();
+        json.name("valid").value(valid);
+        if (valid) {
+            WebSessions.Session session = WebSessions.open(username);
+            // Only the first login of the user announces it
+            if (session.start()) {
+                ClientHandler.addWebClient(username);
+                RoomRegistry.joinWeb(username, RoomRegistry.LOBBY);
+
+                ChatMessage joinMsg = ChatMessage.of(MessageKind.JOIN, username,
+                        "SERVER: " + username + " has joined the chat!");
+                ClientHandler.addToHistory(joinMsg, RoomRegistry.lobby());
+                ClientHandler.logMessage(joinMsg);
+                // Only broadcast, do not log again in broadcastMessageToAll
+                ClientHandler.broadcastMessageToAll(joinMsg);
+            }
+            json.name("token").value(session.getToken());
+            exchange.getResponseHeaders().add("Set-Cookie", WebSessions.cookie(session.getToken()));
         }
+        json.endObject().send(exchange, HTTP_OK);
+    }
+
+    /**
+     * Handles POST requests for user logout.
+     * It ends the session of the request and returns a response indicating
+     * success.
+     *
+     * @param exchange The HttpExchange object containing request and response data.
+     * @throws IOException If an I/O error occurs during request handling.
+     */
+    private void handleLogout(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().close();
+        WebSessions.Session session = WebSessions.find(exchange);
+        boolean removed = session != null && logoutWebUser(session.getUsername());
         // Prepare the response indicating whether the user was removed
-        JSONObject resp = new JSONObject();
-        resp.put("removed", removed);
-        byte[] respBytes = resp.toString().getBytes(StandardCharsets.UTF_8);
-        exchange.getResponseHeaders().set("Content-Type", "application/json");
-        exchange.sendResponseHeaders(HTTP_OK, respBytes.length);
-        try (OutputStream os = exchange.getResponseBody()) {
-            os.write(respBytes);
+        exchange.getResponseHeaders().add("Set-Cookie", WebSessions.cookie(""));
+        new JsonWriter().beginObject().name("removed").value(removed).endObject().send(exchange, HTTP_OK);
+    }
+
+    /**
+     * Logs a web user out and announces that it left the chat.
+     *
+     * @param username The web user to log out.
+     * @return true if the user was logged in.
+     */
+    private static boolean logoutWebUser(String username) {
+        if (WebSessions.close(username) == null) {
+            return false;
+        }
+        ClientHandler.removeWebClient(username);
+        RoomRegistry.removeWeb(username);
+        DirectMessages.forget(username);
+        RateLimiter.forgetUser(username);
+
+        ChatMessage leaveMsg = ChatMessage.of(MessageKind.LEAVE, username,
+                "SERVER: " + username + " has left the chat.");
+        ClientHandler.addToHistory(leaveMsg, RoomRegistry.lobby());
+        ClientHandler.logMessage(leaveMsg);
+        // Only broadcast, do not log again in broadcastMessageToAll
+        ClientHandler.broadcastMessageToAll(leaveMsg);
+        return true;
+    }
+
+    /**
+     * Static method to log out every web user whose last request is older than
+     * the given time, ending its session. Called by the ConnectionReaper.
+     *
+     * @param cutoff The System.nanoTime() before which a user counts as gone.
+     */
+    public static void expireIdleUsers(long cutoff) {
+        for (WebSessions.Session session : WebSessions.all()) {
+            if (session.getLastSeen() - cutoff < 0) {
+                System.out.println("Web user " + session.getUsername() + " timed out.");
+                logoutWebUser(session.getUsername());
+            }
         }
     }
 
     /**
-     * Static method to remove a user from the WEB_USERS set.
-     * This is used by the moderation system when an admin removes a web user.
+     * Static method to end the session of a web user.
+     * This is used by the moderation system when an admin removes a web user,
+     * its next request is answered with 401 Unauthorized.
      *
-     * @param username The username to remove from the web users set.
-     * @return true if the user was removed, false if they weren't in the set.
+     * @param username The username to remove from the web users.
+     * @return true if the user was removed, false if they had no session.
      */
     public static boolean removeFromWebUsers(String username) {
-        return WEB_USERS.remove(username);
+        RoomRegistry.removeWeb(username);
+        DirectMessages.forget(username);
+        RateLimiter.forgetUser(username);
+        return WebSessions.close(username) != null;
+    }
+
+    /**
+     * Static method to check whether a user is logged in via the web interface.
+     *
+     * @param username The username to check.
+     * @return true if the user is a logged in web user.
+     */
+    public static boolean isWebUser(String username) {
+        return WebSessions.contains(username);
+    }
+
+    /**
+     * Reads a query parameter from the request URI.
+     *
+     * @param exchange The HttpExchange object containing request data.
+     * @param name     The name of the query parameter.
+     * @return The decoded value, or null if the parameter is missing.
+     */
+    static String queryParam(HttpExchange exchange, String name) {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            if (name.equals(key)) {
+                return eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private void sendUnauthorized(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().close();
+        exchange.sendResponseHeaders(HTTP_UNAUTHORIZED, UNKNOWN_CONTENT_LENGTH);
+        exchange.close();
+    }
+
+    private void sendTooManyRequests(HttpExchange exchange) throws IOException {
+        exchange.getRequestBody().close();
+        exchange.sendResponseHeaders(HTTP_TOO_MANY_REQUESTS, UNKNOWN_CONTENT_LENGTH);
+        exchange.close();
     }
 
     private void sendNoContent(HttpExchange exchange) throws IOException {
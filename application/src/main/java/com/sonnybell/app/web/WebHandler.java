@@ -1,15 +1,23 @@
 package com.sonnybell.app.web;
 
 import com.sonnybell.app.client.ClientHandler;
+import com.sonnybell.app.server.Cluster;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * WebHandler class that implements HttpHandler to handle HTTP requests.
@@ -66,6 +74,30 @@ public class WebHandler implements HttpHandler {
         return fileContent;
     }
 
+    /**
+     * Finds a resource that is a plain file on disk, as when running from the
+     * classes directory. Resources inside a jar are not files and are loaded
+     * with loadFile instead.
+     *
+     * @param fileName The name of the resource.
+     * @return The file, or null if the resource is missing or not a plain file.
+     */
+    private Path resourceFile(String fileName) {
+        if (fileName.isEmpty() || fileName.contains("..")) {
+            return null;
+        }
+        URL url = getClass().getClassLoader().getResource(fileName);
+        if (url == null || !"file".equals(url.getProtocol())) {
+            return null;
+        }
+        try {
+            Path file = Paths.get(url.toURI());
+            return Files.isRegularFile(file) ? file : null;
+        } catch (URISyntaxException e) {
+            return null;
+        }
+    }
+
     /**
      * Handles HTTP requests.
      * This method is called when a request is received.
@@ -79,16 +111,11 @@ public class WebHandler implements HttpHandler {
     public void handle(HttpExchange exchange) throws IOException {
         String requestPath = exchange.getRequestURI().getPath();
         final int getOk = 200;
+        final int notFound = 404;
 
         // If this is the JSON endpoint
         if ("/api/status".equals(requestPath)) {
-            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
-            String jsonResponse = buildStatusJson();
-            byte[] responseBytes = jsonResponse.getBytes(StandardCharsets.UTF_8);
-            exchange.sendResponseHeaders(getOk, responseBytes.length);
-            try (OutputStream out = exchange.getResponseBody()) {
-                out.write(responseBytes);
-            }
+            buildStatusJson().send(exchange, getOk);
             return;
         }
 
@@ -100,9 +127,21 @@ public class WebHandler implements HttpHandler {
         // Strip leading slash and treat as file name
         String fileName = requestPath.startsWith("/") ? requestPath.substring(1) : requestPath;
 
+        // Files other than pages are sent by the nio engine straight from disk, without a copy
+        if (exchange instanceof NioHttpExchange nioExchange && !fileName.endsWith(".html")) {
+            Path file = resourceFile(fileName);
+            if (file != null) {
+                HttpMetricsFilter.countBytes(nioExchange.sendFile(getOk, file));
+                return;
+            }
+        }
+
         // Try to load the file
         String responseContent = loadFile(fileName);
         if (responseContent == null) {
+            // Answer unknown paths, such as the retired /api/webchat/status, instead of leaving them hanging
+            exchange.sendResponseHeaders(notFound, -1);
+            exchange.close();
             return;
         } else {
             if (fileName.endsWith(".html")) {
@@ -140,8 +179,8 @@ public class WebHandler implements HttpHandler {
         out.close();
     }
 
-    // Helper method to create JSON
-    private String buildStatusJson() {
+    // Helper method to create JSON, usernames are escaped by the writer
+    private JsonWriter buildStatusJson() {
         final int getMinute = 60;
         final int getSecond = 60;
         Duration uptime = Duration.between(serverStartTime, Instant.now());
@@ -150,12 +189,19 @@ public class WebHandler implements HttpHandler {
         long seconds = uptime.getSeconds() % getSecond;
 
         String uptimeMessage = String.format("%02d:%02d:%02d", hours, minutes, seconds);
-        int totalClients = ClientHandler.getClientTotal();
-        String clientNames = String.join(",", ClientHandler.getClientNamesList());
-
-        return String.format(
-            "{\"uptime\":\"%s\",\"totalClients\":%d,\"clientNames\":\"%s\"}",
-            uptimeMessage, totalClients, clientNames
-        );
+        // Users online on the other nodes of the cluster count too
+        List<String> remoteUsers = Cluster.remoteUsers();
+        int totalClients = ClientHandler.getClientTotal() + remoteUsers.size();
+        List<String> names = new ArrayList<>(ClientHandler.getClientNamesList());
+        names.addAll(remoteUsers);
+        String clientNames = String.join(",", names);
+
+        return new JsonWriter().beginObject()
+                .name("uptime").value(uptimeMessage)
+                .name("totalClients").value(totalClients)
+                .name("clientNames").value(clientNames)
+                .name("node").value(Cluster.getNode())
+                .name("peers").array(Cluster.peers())
+                .endObject();
     }
 }
@@ -1,10 +1,14 @@
 package com.sonnybell.app.web;
 
 import com.sonnybell.app.chatfunctions.RemoveUserEndpointHandler;
+import com.sonnybell.app.server.ServerConfig;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.time.Instant;
+import java.util.Locale;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -13,6 +17,11 @@ import java.util.concurrent.Executors;
  * It creates a new WebServer instance and starts it.
  */
 public class WebServer implements Runnable {
+    // HTTP engine, jdk for com.sun.net.httpserver or nio for the NioHttpServer
+    private static final String ENGINE = ServerConfig.getString("chat.web.engine", "jdk").toLowerCase(Locale.ROOT);
+    // Worker threads of the nio engine, 0 for a virtual thread per request
+    private static final int WORKERS = ServerConfig.getInt("chat.web.workers", 0);
+
     private int port;
     private Instant startTime;
 
@@ -28,42 +37,75 @@ public class WebServer implements Runnable {
      */
     @Override
     public void run() {
-        ExecutorService threadPool = Executors.newCachedThreadPool();
         Thread.setDefaultUncaughtExceptionHandler((Thread t, Throwable e) -> {
             e.printStackTrace();
         });
 
         try {
-            // Create a new HttpServer instance
-            HttpServer server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+            // Create the HttpServer of the configured engine, both run the same handlers
+            InetSocketAddress address = new InetSocketAddress("localhost", port);
+            HttpServer server;
+            ExecutorService threadPool;
+            if ("nio".equalsIgnoreCase(ENGINE)) {
+                server = NioHttpServer.create(address, 0);
+                // A bounded pool, or a virtual thread per request when no size is given
+                threadPool = WORKERS > 0 ? Executors.newFixedThreadPool(WORKERS)
+                        : Executors.newVirtualThreadPerTaskExecutor();
+            } else {
+                server = HttpServer.create(address, 0);
+                threadPool = Executors.newCachedThreadPool();
+            }
 
             // Create a WebHandler to handle general requests (files, /api/status)
             WebHandler webHandler = new WebHandler(startTime);
             // Map general requests to the WebHandler
-            server.createContext("/", webHandler); // This will handle /api/status and file serving
+            createContext(server, "/", webHandler); // This will handle /api/status and file serving
 
             // Create and map the new AdminRemoveUserHandler for the specific admin path
             RemoveUserEndpointHandler adminRemoveUserHandler = new RemoveUserEndpointHandler();
             // Map the admin remove user endpoint to the handler
             // api/admin/remove-user/
-            server.createContext("/api/admin/remove-user/", adminRemoveUserHandler);
+            createContext(server, "/api/admin/remove-user/", adminRemoveUserHandler);
             // Map the WebChat endpoints to the WebChat handler
             // api/webchat/messages, /api/webchat/login, and /api/webchat/logout
             // These endpoints will be handled by the WebChat class
-            server.createContext("/api/webchat/messages", new WebChat());
-            server.createContext("/api/webchat/login", new WebChat());
-            server.createContext("/api/webchat/status", new WebChat()); // Add this line
-            server.createContext("/api/webchat/logout", new WebChat()); // Add this line
+            // WebChat keeps no state of its own, so one instance serves them all
+            WebChat webChat = new WebChat();
+            createContext(server, "/api/webchat/messages", webChat);
+            createContext(server, "/api/webchat/login", webChat);
+            createContext(server, "/api/webchat/logout", webChat);
+            createContext(server, "/api/webchat/rooms", webChat);
+            createContext(server, "/api/webchat/dm", webChat);
+            createContext(server, "/api/webchat/sync", webChat);
+            createContext(server, "/api/webchat/leaderboard", webChat);
+            // Search of earlier chat lines
+            createContext(server, "/api/search", new SearchHandler());
+            // Streaming export of the message logs as NDJSON
+            createContext(server, "/api/export", new ExportHandler());
+            // Server metrics in the Prometheus text format
+            createContext(server, "/api/metrics", new MetricsHandler());
 
             // Set executor for handling the requests
             server.setExecutor(threadPool);
 
             // Start the server
             server.start();
-            System.out.println("HTTP web server started on port " + port);
+            System.out.println("HTTP web server started on port " + port + " (" + ENGINE + " engine)");
             System.out.println("Visit http://localhost:" + port + " to access the server.");
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
+
+    /**
+     * Maps a path to a handler, counting its requests in the server metrics.
+     *
+     * @param server  The HTTP server.
+     * @param path    The path of the context.
+     * @param handler The handler of the context.
+     */
+    private static void createContext(HttpServer server, String path, HttpHandler handler) {
+        HttpContext context = server.createContext(path, handler);
+        context.getFilters().add(new HttpMetricsFilter(path));
+    }
 }
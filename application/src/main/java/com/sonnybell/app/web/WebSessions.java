@@ -0,0 +1,200 @@
+package com.sonnybell.app.web;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * WebSessions class keeping the sessions of the web users.
+ * Logging in gives a web user an opaque random token. The token is sent back
+ * as a cookie, or by other clients in an Authorization: Bearer header, and
+ * every request finds its session with one lookup in a concurrent table, so
+ * a request is authenticated without reading its body.
+ * A user has one session at a time. Logging in again while logged in gives
+ * the session a new token and revokes the old one, so whoever held it is
+ * answered with 401 and a session cannot be taken over by reusing its token.
+ * Sessions are expired by the ConnectionReaper once their user has been idle
+ * too long.
+ */
+final class WebSessions {
+
+    // Name of the cookie holding the session token
+    private static final String COOKIE = "chat_session";
+
+    // Random bytes in a token, encoded as 43 URL safe characters
+    private static final int TOKEN_BYTES = 32;
+    private static final String BEARER = "Bearer ";
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    // Sessions by token, and the same sessions by username
+    private static final Map<String, Session> BY_TOKEN = new ConcurrentHashMap<>();
+    private static final Map<String, Session> BY_USER = new ConcurrentHashMap<>();
+
+    private WebSessions() {
+        // Prevent instantiation
+    }
+
+    /**
+     * Starts a session for a user, or gives the session it already has a new
+     * token, revoking the old one.
+     *
+     * @param username The user that logged in.
+     * @return The session of the user.
+     */
+    static Session open(String username) {
+        Session session = BY_USER.compute(username, (key, existing) -> {
+            Session opened = existing == null ? new Session(key) : existing;
+            if (existing != null) {
+                BY_TOKEN.remove(existing.token);
+            }
+            opened.token = newToken();
+            BY_TOKEN.put(opened.token, opened);
+            return opened;
+        });
+        session.touch();
+        return session;
+    }
+
+    /**
+     * Finds the session of a request and records that its user is active.
+     *
+     * @param exchange The request, carrying the token in a cookie or header.
+     * @return The session, or null if the request has no valid token.
+     */
+    static Session find(HttpExchange exchange) {
+        String token = tokenOf(exchange);
+        Session session = token == null ? null : BY_TOKEN.get(token);
+        if (session != null) {
+            session.touch();
+        }
+        return session;
+    }
+
+    /**
+     * Ends the session of a user.
+     *
+     * @param username The user.
+     * @return The ended session, or null if the user had none.
+     */
+    static Session close(String username) {
+        Session session = username == null ? null : BY_USER.remove(username);
+        if (session != null) {
+            BY_TOKEN.remove(session.token);
+        }
+        return session;
+    }
+
+    /**
+     * Checks whether a user has a session.
+     *
+     * @param username The user.
+     * @return true if the user is logged in via the web interface.
+     */
+    static boolean contains(String username) {
+        return username != null && BY_USER.containsKey(username);
+    }
+
+    /**
+     * Gets every open session.
+     *
+     * @return A live view of the sessions.
+     */
+    static Collection<Session> all() {
+        return BY_USER.values();
+    }
+
+    /**
+     * Gets the number of open sessions.
+     *
+     * @return The number of web users logged in.
+     */
+    static int size() {
+        return BY_USER.size();
+    }
+
+    /**
+     * Builds the Set-Cookie header value carrying a session token.
+     *
+     * @param token The token, or an empty string to clear the cookie.
+     * @return The header value.
+     */
+    static String cookie(String token) {
+        // Only the API needs the token, and scripts never need to read it
+        String cookie = COOKIE + "=" + token + "; Path=/api; HttpOnly; SameSite=Strict";
+        return token.isEmpty() ? cookie + "; Max-Age=0" : cookie;
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        RANDOM.nextBytes(bytes);
+        return ENCODER.encodeToString(bytes);
+    }
+
+    /**
+     * Reads the session token of a request, from the Authorization header or
+     * else from the session cookie.
+     */
+    private static String tokenOf(HttpExchange exchange) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization != null && authorization.startsWith(BEARER)) {
+            return authorization.substring(BEARER.length()).trim();
+        }
+        for (String header : exchange.getRequestHeaders().getOrDefault("Cookie", List.of())) {
+            for (String cookie : header.split(";")) {
+                String pair = cookie.trim();
+                if (pair.startsWith(COOKIE + "=")) {
+                    return pair.substring(COOKIE.length() + 1);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Session class holding the state of one logged in web user.
+     */
+    static final class Session {
+        // Replaced when the user logs in again, only while holding its BY_USER entry
+        private volatile String token;
+        private final String username;
+        // Set once the user has been announced as joining the chat
+        private final AtomicBoolean started = new AtomicBoolean();
+        // System.nanoTime() of the last request of the user
+        private volatile long lastSeen;
+
+        Session(String username) {
+            this.username = username;
+        }
+
+        String getToken() {
+            return token;
+        }
+
+        String getUsername() {
+            return username;
+        }
+
+        long getLastSeen() {
+            return lastSeen;
+        }
+
+        /**
+         * Marks the session as started.
+         *
+         * @return true only for the first call, whoever logged in first.
+         */
+        boolean start() {
+            return started.compareAndSet(false, true);
+        }
+
+        void touch() {
+            lastSeen = System.nanoTime();
+        }
+    }
+}
@@ -1,6 +1,16 @@
 let username = "";
 let isLoggedOut = false;
 
+// What the page has seen last, sent with every sync so only changes come back
+let cursor = 0;
+let currentRoom = "";
+let presenceVersion = 0;
+let dmVersion = 0;
+const onlineUsers = new Set();
+// Messages kept on the page, older ones are dropped
+const MAX_MESSAGES = 200;
+let syncing = false;
+
 function sendMessage(message) {
     // Check if user is logged out before sending
     if (isLoggedOut) {
@@ -11,26 +21,50 @@ function sendMessage(message) {
     fetch('/api/webchat/messages', {
         method: 'POST',
         headers: { 'Content-Type': 'application/json' },
-        body: JSON.stringify({ user: username, message: message })
+        body: JSON.stringify({ message: message })
     })
     .then(response => {
         if (response.status === 401 || response.status === 403) {
             // User is no longer authenticated
             handleLogout();
+            return;
+        }
+        if (response.status === 429) {
+            document.getElementById("roomInfo").textContent = "You are sending messages too fast. Please slow down.";
+            return;
+        }
+        // Room commands answer with the current room and a notice
+        if (response.status === 200) {
+            return response.json();
         }
     })
+    .then(data => {
+        if (data && data.room) {
+            document.getElementById("roomInfo").textContent = `#${data.room} - ${data.notice}`;
+        }
+        sync();
+    })
     .catch(error => {
         console.error('Error sending message:', error);
     });
 }
 
-function fetchMessages() {
-    // Check if user is logged out before fetching
-    if (isLoggedOut) {
+function sync() {
+    // Skip a beat rather than pile up requests behind a slow one
+    if (isLoggedOut || syncing) {
         return;
     }
+    syncing = true;
 
-    fetch('/api/webchat/messages')
+    // One request brings messages, presence, game and direct messages up to date.
+    // The session cookie set at login identifies the user.
+    const params = new URLSearchParams({
+        since: cursor,
+        room: currentRoom,
+        presence: presenceVersion,
+        dm: dmVersion
+    });
+    fetch('/api/webchat/sync?' + params)
         .then(response => {
             if (response.status === 401 || response.status === 403) {
                 // User is no longer authenticated
@@ -41,43 +75,80 @@ function fetchMessages() {
         })
         .then(data => {
             if (data) {
-                const chatMessages = document.getElementById("chatMessages");
-                chatMessages.innerHTML = "";
-                data.forEach(msg => {
-                    chatMessages.innerHTML += `<div>${msg}</div>`;
-                });
-                chatMessages.scrollTop = chatMessages.scrollHeight;
+                showMessages(data);
+                showPresence(data.presence);
+                showGame(data.game);
+                if (data.dm) {
+                    showDirectMessages(data.dm);
+                }
             }
         })
         .catch(error => {
-            console.error('Error fetching messages:', error);
+            console.error('Error syncing:', error);
+        })
+        .finally(() => {
+            syncing = false;
         });
 }
 
-// Add a function to check if user is still logged in
-function checkUserStatus() {
-    if (isLoggedOut || !username) {
+function showMessages(data) {
+    const chatMessages = document.getElementById("chatMessages");
+    if (data.reset) {
+        chatMessages.innerHTML = "";
+    }
+    cursor = data.cursor;
+    currentRoom = data.room;
+    if (data.messages.length === 0) {
         return;
     }
+    data.messages.forEach(msg => {
+        const line = document.createElement("div");
+        line.textContent = msg;
+        chatMessages.appendChild(line);
+    });
+    while (chatMessages.childElementCount > MAX_MESSAGES) {
+        chatMessages.firstElementChild.remove();
+    }
+    chatMessages.scrollTop = chatMessages.scrollHeight;
+}
 
-    fetch('/api/webchat/status', {
-        method: 'POST',
-        headers: { 'Content-Type': 'application/json' },
-        body: JSON.stringify({ username: username })
-    })
-    .then(response => response.json())
-    .then(data => {
-        if (!data.loggedIn) {
-            handleLogout();
-        }
-    })
-    .catch(error => {
-        console.error('Error checking user status:', error);
+function showPresence(presence) {
+    if (presence.full) {
+        onlineUsers.clear();
+    }
+    presence.joined.forEach(user => onlineUsers.add(user));
+    presence.left.forEach(user => onlineUsers.delete(user));
+    presenceVersion = presence.version;
+    document.getElementById("onlineUsers").textContent =
+        `Online (${onlineUsers.size}): ${Array.from(onlineUsers).sort().join(", ")}`;
+}
+
+function showGame(game) {
+    document.getElementById("gameStatus").textContent = game.question
+        ? `Capital game - ${game.question}`
+        : game.status;
+}
+
+function showDirectMessages(dm) {
+    dmVersion = dm.version;
+    const directMessages = document.getElementById("directMessages");
+    directMessages.innerHTML = "";
+    Object.keys(dm.conversations).forEach(partner => {
+        dm.conversations[partner].forEach(msg => {
+            const line = document.createElement("div");
+            line.textContent = msg;
+            directMessages.appendChild(line);
+        });
     });
+    directMessages.scrollTop = directMessages.scrollHeight;
 }
 
 // Function to handle logout
 function handleLogout() {
+    // Several polls may find the session gone at once
+    if (isLoggedOut) {
+        return;
+    }
     isLoggedOut = true;
     alert("You have been logged out by an administrator or your session has expired. The page will refresh.");
     
@@ -124,10 +195,9 @@ window.login = function() {
             document.getElementById("loginOverlay").style.display = "none";
             document.getElementById("chatSection").style.display = "block";
             
-            // Start polling for messages and user status
-            setInterval(fetchMessages, 1000);
-            setInterval(checkUserStatus, 3000); // Check status every 3 seconds
-            fetchMessages();
+            // Start polling, an ended session answers with 401
+            setInterval(sync, 1000);
+            sync();
         } else {
             alert("Invalid username or password. Please try again.");
         }
@@ -139,9 +209,7 @@ window.login = function() {
 
 window.addEventListener("beforeunload", function () {
     if (username && !isLoggedOut) {
-        navigator.sendBeacon(
-            "/api/webchat/logout",
-            JSON.stringify({ username: username })
-        );
+        // The beacon carries the session cookie
+        navigator.sendBeacon("/api/webchat/logout");
     }
 });
@@ -0,0 +1,173 @@
+package com.sonnybell.app.chatfunctions;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for LogSegments: rolling, compression, retention and the manifest.
+ * Segments are compressed on a background thread, so the tests wait for it.
+ */
+class LogSegmentsTest {
+
+    // The default of chat.log.retainSegments
+    private static final int RETAINED = 30;
+    private static final long TIMEOUT_MS = 10_000;
+    private static final long POLL_MS = 10;
+
+    @TempDir
+    Path directory;
+
+    /**
+     * Waits for the compressor, so it is not writing while the directory is deleted.
+     */
+    @AfterEach
+    void awaitCompression() {
+        await(() -> {
+            try (Stream<Path> files = Files.list(directory)) {
+                return files.map(file -> file.getFileName().toString())
+                        .noneMatch(name -> name.matches(".*\\.\\d{6}\\.log") || name.endsWith(".tmp"));
+            } catch (IOException e) {
+                return false;
+            }
+        });
+    }
+
+    @Test
+    void rollTurnsTheActiveLogIntoACompressedSegment() throws IOException {
+        Path active = directory.resolve("MessageLog.log");
+        LogSegments segments = LogSegments.of(active.toString());
+        roll(segments, active, 100, 200, "first", "second");
+
+        assertFalse(Files.exists(active));
+        Path compressed = directory.resolve("MessageLog.000001.log.gz");
+        await(() -> Files.exists(compressed) && !Files.exists(directory.resolve("MessageLog.000001.log")));
+        assertEquals(List.of(compressed), segments.find(0, Long.MAX_VALUE));
+        try (BufferedReader reader = LogSegments.open(compressed)) {
+            assertEquals(List.of("first", "second"), reader.lines().collect(Collectors.toList()));
+        }
+    }
+
+    @Test
+    void findReturnsSegmentsOverlappingTheRangeAndTheActiveLog() throws IOException {
+        Path active = directory.resolve("MessageLog-games.log");
+        LogSegments segments = LogSegments.of(active.toString());
+        roll(segments, active, 0, 10, "a");
+        roll(segments, active, 11, 20, "b");
+        roll(segments, active, 21, 30, "c");
+        Files.writeString(active, "d\n");
+
+        assertEquals(List.of("MessageLog-games.000002", "MessageLog-games"), stems(segments.find(12, 15)));
+        assertEquals(List.of("MessageLog-games.000001", "MessageLog-games.000002", "MessageLog-games"),
+                stems(segments.find(10, 11)));
+        assertEquals(List.of("MessageLog-games"), stems(segments.find(31, 40)));
+    }
+
+    @Test
+    void retentionDeletesTheOldestSegments() throws IOException {
+        Path active = directory.resolve("MessageLog.log");
+        LogSegments segments = LogSegments.of(active.toString());
+        for (int i = 1; i <= RETAINED + 2; i++) {
+            roll(segments, active, i, i, "line " + i);
+        }
+
+        Path newest = directory.resolve(String.format("MessageLog.%06d.log.gz", RETAINED + 2));
+        await(() -> Files.exists(newest) && !Files.exists(directory.resolve("MessageLog.000002.log.gz")));
+        assertEquals(RETAINED, segments.size());
+        assertFalse(Files.exists(directory.resolve("MessageLog.000001.log.gz")));
+        assertTrue(Files.exists(directory.resolve("MessageLog.000003.log.gz")));
+        assertEquals(RETAINED, manifest("MessageLog").size());
+    }
+
+    @Test
+    void manifestListsEverySegmentWithItsTimesAndLines() throws IOException {
+        Path active = directory.resolve("MessageLog.log");
+        LogSegments segments = LogSegments.of(active.toString());
+        roll(segments, active, 100, 200, "a", "b", "c");
+        roll(segments, active, 300, 400, "d");
+        // The manifest names a segment's compressed file once it is compressed
+        List<String> expected = List.of("MessageLog.000001.log.gz\t1\t100\t200\t3",
+                "MessageLog.000002.log.gz\t2\t300\t400\t1");
+        await(() -> manifest("MessageLog").equals(expected));
+        assertEquals(expected, manifest("MessageLog"));
+    }
+
+    @Test
+    void loadCompressesSegmentsACrashLeftUncompressed() throws IOException {
+        Files.writeString(directory.resolve("MessageLog.000007.log"), "left over\n");
+        Files.writeString(directory.resolve("MessageLog.manifest"), "MessageLog.000007.log\t7\t50\t60\t1\n");
+
+        Path active = directory.resolve("MessageLog.log");
+        LogSegments segments = LogSegments.of(active.toString());
+        Path compressed = directory.resolve("MessageLog.000007.log.gz");
+        await(() -> Files.exists(compressed) && !Files.exists(directory.resolve("MessageLog.000007.log")));
+        assertEquals(List.of(compressed), segments.find(50, 60));
+
+        // Numbering goes on after the segments in the manifest
+        roll(segments, active, 70, 80, "new");
+        assertTrue(Files.exists(directory.resolve("MessageLog.000008.log"))
+                || Files.exists(directory.resolve("MessageLog.000008.log.gz")));
+    }
+
+    @Test
+    void loadFindsSegmentsCompressedBeforeTheManifestWasUpdated() throws IOException {
+        Path compressed = directory.resolve("MessageLog.000003.log.gz");
+        Files.write(compressed, new byte[0]);
+        Files.writeString(directory.resolve("MessageLog.manifest"),
+                "MessageLog.000003.log\t3\t50\t60\t1\nnot a segment\n");
+
+        LogSegments segments = LogSegments.of(directory.resolve("MessageLog.log").toString());
+        assertEquals(1, segments.size());
+        assertEquals(List.of(compressed), segments.find(0, Long.MAX_VALUE));
+    }
+
+    private static void roll(LogSegments segments, Path active, long first, long last, String... lines)
+            throws IOException {
+        Files.writeString(active, String.join("\n", lines) + "\n", StandardCharsets.UTF_8);
+        segments.roll(first, last, lines.length);
+    }
+
+    private List<String> manifest(String stem) {
+        try {
+            return Files.readAllLines(directory.resolve(stem + ".manifest"));
+        } catch (IOException e) {
+            return List.of();
+        }
+    }
+
+    /**
+     * Gets the file names without .log and .gz, which depend on whether the
+     * segment was compressed yet.
+     */
+    private static List<String> stems(List<Path> files) {
+        return files.stream().map(file -> file.getFileName().toString().replace(".gz", "").replace(".log", ""))
+                .collect(Collectors.toList());
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() - deadline < 0, "timed out");
+            try {
+                TimeUnit.MILLISECONDS.sleep(POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
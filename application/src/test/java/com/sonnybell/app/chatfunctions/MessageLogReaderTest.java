@@ -0,0 +1,178 @@
+package com.sonnybell.app.chatfunctions;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sonnybell.app.client.ClientHandler;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for MessageLogReader: merging the logs of several rooms by time,
+ * reading across segments and the active log, and the user and time filters.
+ * The logs are written in the server's working directory, so the tests move
+ * it to a temporary directory.
+ */
+class MessageLogReaderTest {
+
+    // A whole second, log lines only keep the time to the second
+    private static final long START = 1_700_000_000_000L;
+    private static final long SECOND = 1000;
+    private static final long TIMEOUT_MS = 10_000;
+    private static final long POLL_MS = 10;
+
+    private String userDir;
+
+    @TempDir
+    Path directory;
+
+    @BeforeEach
+    void moveLogs() {
+        userDir = System.getProperty("user.dir");
+        System.setProperty("user.dir", directory.toString());
+    }
+
+    /**
+     * Waits for the compressor, so it is not writing while the directory is
+     * deleted, and restores the working directory.
+     */
+    @AfterEach
+    void restoreUserDir() {
+        await(() -> {
+            try (Stream<Path> files = Files.list(directory)) {
+                return files.map(file -> file.getFileName().toString())
+                        .noneMatch(name -> name.matches(".*\\.\\d{6}\\.log") || name.endsWith(".tmp"));
+            } catch (IOException e) {
+                return false;
+            }
+        });
+        System.setProperty("user.dir", userDir);
+    }
+
+    @Test
+    void mergesTheLogsOfEveryRoomByTime() throws IOException {
+        roll(null, line(1, "UserChats", "alice: one"), line(4, "UserChats", "bob: four"));
+        write(null, line(6, "UserChats", "alice: six"));
+        roll("games", line(2, "GameMessages", "Round one"));
+        write("games", line(5, "UserChats", "carol: five"));
+        write("zoo", line(3, "DirectMessages", "dave -> alice: three"));
+
+        assertEquals(List.of("general alice: one", "games Round one", "zoo dave -> alice: three",
+                "general bob: four", "games carol: five", "general alice: six"),
+                read(null, null, Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(List.of("games Round one", "games carol: five"),
+                read("games", null, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    @Test
+    void filtersBySenderAndWholeSeconds() throws IOException {
+        roll(null, line(1, "UserChats", "alice: one"), line(2, "DirectMessages", "alice -> bob: two"));
+        write(null, line(3, "UserChats", "bob: three"), line(4, "UserChats", "alice: four"));
+
+        assertEquals(List.of("general alice: one", "general alice -> bob: two", "general alice: four"),
+                read(null, "alice", Long.MIN_VALUE, Long.MAX_VALUE));
+        // A range starting or ending within a second includes that second
+        assertEquals(List.of("general alice -> bob: two", "general bob: three"),
+                read(RoomRegistry.LOBBY, null, at(2) + SECOND / 2, at(3) + SECOND / 2));
+        assertEquals(List.of(), read(RoomRegistry.LOBBY, null, at(5), Long.MAX_VALUE));
+    }
+
+    @Test
+    void splitsLinesIntoTimeTagSenderAndText() throws IOException {
+        write(null, line(1, "UserChats", "alice: hi: there"), "a line without a time",
+                line(2, "Server", "Server restarting"));
+
+        try (MessageLogReader logs = MessageLogReader.open(null, null, Long.MIN_VALUE, Long.MAX_VALUE)) {
+            MessageLogReader.Record chat = logs.next();
+            assertEquals(at(1), chat.getTimestamp());
+            assertEquals(RoomRegistry.LOBBY, chat.getRoom());
+            assertEquals("UserChats", chat.getTag());
+            assertEquals("alice", chat.getUser());
+            assertEquals("alice: hi: there", chat.getText());
+            // A line without a time keeps the time of the line before it
+            MessageLogReader.Record untagged = logs.next();
+            assertEquals(at(1), untagged.getTimestamp());
+            assertNull(untagged.getTag());
+            assertEquals("a line without a time", untagged.getText());
+            MessageLogReader.Record server = logs.next();
+            assertEquals(at(2), server.getTimestamp());
+            assertNull(server.getUser());
+            assertNull(logs.next());
+        }
+    }
+
+    @Test
+    void readsNothingWithoutLogs() throws IOException {
+        assertEquals(List.of(), read(null, null, Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(List.of(), read("games", null, Long.MIN_VALUE, Long.MAX_VALUE));
+    }
+
+    private static long at(int second) {
+        return START + second * SECOND;
+    }
+
+    private static String line(int second, String tag, String text) {
+        return "[" + new Date(at(second)) + "] [" + tag + "] " + text;
+    }
+
+    private static Path log(String room) {
+        return Paths.get(ClientHandler.logFilePath(room));
+    }
+
+    private static void write(String room, String... lines) throws IOException {
+        Files.writeString(log(room), String.join("\n", lines) + "\n", StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes lines to the log of a room and rolls them into a segment, the
+     * lines have to be in time order.
+     */
+    private static void roll(String room, String... lines) throws IOException {
+        write(room, lines);
+        List<Long> times = new ArrayList<>();
+        try (MessageLogReader logs = MessageLogReader.open(room == null ? RoomRegistry.LOBBY : room, null,
+                Long.MIN_VALUE, Long.MAX_VALUE)) {
+            for (MessageLogReader.Record record = logs.next(); record != null; record = logs.next()) {
+                times.add(record.getTimestamp());
+            }
+        }
+        LogSegments.of(log(room).toString()).roll(times.get(0), times.get(times.size() - 1), lines.length);
+    }
+
+    private static List<String> read(String room, String user, long fromMillis, long toMillis) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (MessageLogReader logs = MessageLogReader.open(room, user, fromMillis, toMillis)) {
+            for (MessageLogReader.Record record = logs.next(); record != null; record = logs.next()) {
+                lines.add(record.getRoom() + " " + record.getText());
+            }
+        }
+        return lines;
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() - deadline < 0, "timed out");
+            try {
+                TimeUnit.MILLISECONDS.sleep(POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
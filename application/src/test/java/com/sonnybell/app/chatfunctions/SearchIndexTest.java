@@ -0,0 +1,252 @@
+package com.sonnybell.app.chatfunctions;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests for SearchIndex: query intersection, filters, and loading a saved
+ * index, including one that was broken on disk.
+ * Every test uses an index of its own in a temporary directory.
+ */
+class SearchIndexTest {
+
+    private static final String ROOM = "lobby";
+    // More lines than fit in one skip block of a posting list
+    private static final int MANY_LINES = 1000;
+    private static final int RARE_EVERY = 7;
+    private static final int OTHER_EVERY = 3;
+    private static final int LIMIT = 10;
+
+    private static String userDir;
+
+    // Shared by every test of the class, so each test gets a directory in it
+    @TempDir
+    static Path temporary;
+
+    private Path directory;
+
+    /**
+     * Points the index of the server at the temporary directory, it is created
+     * as soon as the class is loaded.
+     */
+    @BeforeAll
+    static void moveServerIndex() {
+        userDir = System.getProperty("user.dir");
+        System.setProperty("user.dir", temporary.toString());
+    }
+
+    @BeforeEach
+    void createDirectory() throws IOException {
+        directory = Files.createTempDirectory(temporary, "index");
+    }
+
+    @AfterAll
+    static void restoreUserDir() {
+        System.setProperty("user.dir", userDir);
+    }
+
+    @Test
+    void findsLinesHoldingEveryWordNewestFirst() throws IOException {
+        SearchIndex index = open();
+        index.index(List.of(
+                line(1, "alice", "I like apple pie"),
+                line(2, "bob", "Banana and APPLE together"),
+                line(3, "carol", "banana bread"),
+                line(4, "dave", "apple, banana!")));
+
+        SearchIndex.Result result = index.find("apple banana", null, 0, Long.MAX_VALUE, LIMIT);
+        assertEquals(2, result.getTotal());
+        assertEquals(List.of("dave: apple, banana!", "bob: Banana and APPLE together"), texts(result));
+        assertEquals(0, index.find("apple cherry", null, 0, Long.MAX_VALUE, LIMIT).getTotal());
+    }
+
+    @Test
+    void filtersBySenderAndTime() throws IOException {
+        SearchIndex index = open();
+        index.index(List.of(
+                line(10, "alice", "hello there"),
+                line(20, "bob", "hello again"),
+                line(30, "Alice", "hello once more"),
+                line(40, "alice", "goodbye")));
+
+        assertEquals(List.of("Alice: hello once more", "alice: hello there"),
+                texts(index.find("hello", "ALICE", 0, Long.MAX_VALUE, LIMIT)));
+        assertEquals(List.of("alice: goodbye", "Alice: hello once more", "alice: hello there"),
+                texts(index.find("", "alice", 0, Long.MAX_VALUE, LIMIT)));
+        assertEquals(List.of("Alice: hello once more", "bob: hello again"),
+                texts(index.find("hello", null, 20, 30, LIMIT)));
+        // The sender's name at the start of a line is not one of its words
+        assertEquals(0, index.find("alice", null, 0, Long.MAX_VALUE, LIMIT).getTotal());
+        assertThrows(IllegalArgumentException.class, () -> index.find("  ", null, 0, Long.MAX_VALUE, LIMIT));
+    }
+
+    @Test
+    void intersectsListsLongerThanASkipBlock() throws IOException {
+        SearchIndex index = open();
+        index.index(manyLines());
+
+        SearchIndex.Result result = index.find("common rare other", null, 0, Long.MAX_VALUE, LIMIT);
+        List<Integer> expected = new ArrayList<>();
+        for (int i = MANY_LINES - 1; i >= 0; i--) {
+            if (i % RARE_EVERY == 0 && i % OTHER_EVERY == 0) {
+                expected.add(i);
+            }
+        }
+        assertEquals(expected.size(), result.getTotal());
+        assertEquals(expected.subList(0, LIMIT), result.getHits().stream()
+                .map(hit -> (int) hit.getSequence()).collect(Collectors.toList()));
+        // Each line is indexed under its own number too, the walk must reach the last block
+        assertEquals(List.of("user: line " + (MANY_LINES - 2) + " common"),
+                texts(index.find("common " + (MANY_LINES - 2), null, 0, Long.MAX_VALUE, LIMIT)));
+    }
+
+    @Test
+    void loadsTheSavedIndexAndTheLinesAddedAfterIt() throws IOException {
+        SearchIndex index = open();
+        index.index(manyLines());
+        index.save();
+        index.index(List.of(line(MANY_LINES, "late", "a late common line")));
+
+        SearchIndex reopened = open();
+        assertEquals(MANY_LINES + 1, reopened.find("common", null, 0, Long.MAX_VALUE, LIMIT).getTotal());
+        assertEquals(List.of("late: a late common line"),
+                texts(reopened.find("late", null, 0, Long.MAX_VALUE, LIMIT)));
+    }
+
+    @Test
+    void rebuildsABrokenIndexFromTheDocs() throws IOException {
+        List<Consumer<ByteBuffer>> breakages = List.of(
+                // A zero delta, postings must increase
+                postings -> postings.put(postings.position() + Integer.BYTES * 2, (byte) 0),
+                // A varint that never ends
+                postings -> {
+                    for (int i = postings.position() + Integer.BYTES * 2; i < postings.limit(); i++) {
+                        postings.put(i, (byte) 0xFF);
+                    }
+                },
+                // More postings than lines
+                postings -> postings.putInt(postings.position(), MANY_LINES + 1),
+                // More postings than the bytes hold
+                postings -> postings.putInt(postings.position(), postings.getInt(postings.position()) + 1),
+                // A line count the docs file cannot hold
+                postings -> postings.putInt(Integer.BYTES * 2, Integer.MAX_VALUE));
+        for (Consumer<ByteBuffer> breakage : breakages) {
+            Path dir = Files.createTempDirectory(directory, "broken");
+            SearchIndex index = new SearchIndex(dir);
+            index.load();
+            index.index(manyLines());
+            index.save();
+            breakPostings(dir.resolve("MessageLog.index"), "other", breakage);
+
+            SearchIndex rebuilt = new SearchIndex(dir);
+            rebuilt.load();
+            assertEquals((MANY_LINES + OTHER_EVERY - 1) / OTHER_EVERY,
+                    rebuilt.find("other", null, 0, Long.MAX_VALUE, LIMIT).getTotal());
+            assertEquals(MANY_LINES, rebuilt.find("common", null, 0, Long.MAX_VALUE, LIMIT).getTotal());
+        }
+    }
+
+    @Test
+    void rebuildsATruncatedIndex() throws IOException {
+        SearchIndex index = open();
+        index.index(manyLines());
+        index.save();
+        Path file = directory.resolve("MessageLog.index");
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+
+        assertEquals(MANY_LINES, open().find("common", null, 0, Long.MAX_VALUE, LIMIT).getTotal());
+    }
+
+    @Test
+    void dropsALineCutShortByACrash() throws IOException {
+        SearchIndex index = open();
+        index.index(List.of(line(1, "alice", "before the crash")));
+        Files.write(directory.resolve("MessageLog.docs"), new byte[] {0, 0, 0, 100, 1, 2, 3},
+                StandardOpenOption.APPEND);
+
+        SearchIndex reopened = open();
+        assertEquals(1, reopened.find("crash", null, 0, Long.MAX_VALUE, LIMIT).getTotal());
+        reopened.index(List.of(line(2, "bob", "after the crash")));
+        assertEquals(List.of("bob: after the crash", "alice: before the crash"),
+                texts(reopened.find("crash", null, 0, Long.MAX_VALUE, LIMIT)));
+    }
+
+    private SearchIndex open() {
+        SearchIndex index = new SearchIndex(directory);
+        index.load();
+        return index;
+    }
+
+    private static SearchIndex.Entry line(long timestamp, String sender, String words) {
+        return new SearchIndex.Entry(timestamp, ROOM, sender, sender + ": " + words);
+    }
+
+    /**
+     * Lines holding "common", "rare" every RARE_EVERY lines, "other" every
+     * OTHER_EVERY lines, and their own number.
+     */
+    private static List<SearchIndex.Entry> manyLines() {
+        List<SearchIndex.Entry> lines = new ArrayList<>();
+        for (int i = 0; i < MANY_LINES; i++) {
+            String words = "line " + i + " common" + (i % RARE_EVERY == 0 ? " rare" : "")
+                    + (i % OTHER_EVERY == 0 ? " other" : "");
+            lines.add(line(i, "user", words));
+        }
+        return lines;
+    }
+
+    private static List<String> texts(SearchIndex.Result result) {
+        return result.getHits().stream().map(SearchIndex.Hit::getText).collect(Collectors.toList());
+    }
+
+    /**
+     * Changes the saved posting list of a term. The buffer is positioned at
+     * the posting count, which is followed by the byte length and the bytes.
+     */
+    private static void breakPostings(Path file, String term, Consumer<ByteBuffer> breakage) throws IOException {
+        byte[] bytes = Files.readAllBytes(file);
+        byte[] name = term.getBytes(StandardCharsets.UTF_8);
+        byte[] key = new byte[name.length + 2];
+        key[1] = (byte) name.length;
+        System.arraycopy(name, 0, key, 2, name.length);
+        int start = indexOf(bytes, key);
+        assertTrue(start > 0, "term not found in the index");
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.position(start + key.length);
+        buffer.limit(buffer.position() + Integer.BYTES * 2 + buffer.getInt(buffer.position() + Integer.BYTES));
+        breakage.accept(buffer);
+        Files.write(file, bytes);
+    }
+
+    private static int indexOf(byte[] bytes, byte[] key) {
+        for (int i = 0; i + key.length <= bytes.length; i++) {
+            int j = 0;
+            while (j < key.length && bytes[i + j] == key[j]) {
+                j++;
+            }
+            if (j == key.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
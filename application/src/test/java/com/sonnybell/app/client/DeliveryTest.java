@@ -0,0 +1,43 @@
+package com.sonnybell.app.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.sonnybell.app.chatfunctions.MessageLatency;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that a Delivery records its latency when the last recipient is done.
+ */
+class DeliveryTest {
+
+    @Test
+    void recordsOnceTheLastRecipientIsDone() {
+        long before = MessageLatency.FAN_OUT.getCount();
+        Delivery delivery = new Delivery("hello", System.nanoTime());
+        delivery.retain();
+        delivery.retain();
+        delivery.release();
+        // The broadcaster still holds it, one recipient is written
+        delivery.release();
+        assertEquals(before, MessageLatency.FAN_OUT.getCount());
+        delivery.release();
+        assertEquals(before + 1, MessageLatency.FAN_OUT.getCount());
+    }
+
+    @Test
+    void recordsWhenThereAreNoRecipients() {
+        long before = MessageLatency.END_TO_END.getCount();
+        new Delivery("hello", System.nanoTime()).release();
+        assertEquals(before + 1, MessageLatency.END_TO_END.getCount());
+    }
+
+    @Test
+    void neverRecordsUntimedLines() {
+        long before = MessageLatency.FAN_OUT.getCount();
+        Delivery delivery = new Delivery("PONG");
+        delivery.retain();
+        delivery.release();
+        delivery.release();
+        assertEquals(before, MessageLatency.FAN_OUT.getCount());
+    }
+}
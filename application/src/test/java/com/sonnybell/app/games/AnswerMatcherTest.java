@@ -0,0 +1,101 @@
+package com.sonnybell.app.games;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for AnswerMatcher, with the default of exact answers and with one
+ * allowed typo.
+ */
+class AnswerMatcherTest {
+
+    private static final int ONE_TYPO = 1;
+
+    @Test
+    void matchesExactAnswer() {
+        assertTrue(AnswerMatcher.of("Paris").matches("Paris"));
+    }
+
+    @Test
+    void ignoresCaseAndAccents() {
+        AnswerMatcher matcher = AnswerMatcher.of("Brasília");
+        assertTrue(matcher.matches("brasilia"));
+        assertTrue(matcher.matches("BRASÍLIA"));
+        assertTrue(AnswerMatcher.of("Brasilia").matches("brasília"));
+    }
+
+    @Test
+    void ignoresPunctuationAndSpaces() {
+        AnswerMatcher matcher = AnswerMatcher.of("Washington, D.C.");
+        assertTrue(matcher.matches("washington dc"));
+        assertTrue(matcher.matches("  Washington-D.C!  "));
+    }
+
+    @Test
+    void acceptsAlternativeAnswers() {
+        AnswerMatcher matcher = AnswerMatcher.of("Kyiv|Kiev");
+        assertTrue(matcher.matches("kyiv"));
+        assertTrue(matcher.matches("Kiev"));
+        assertFalse(matcher.matches("Moscow"));
+    }
+
+    @Test
+    void showsFirstAlternative() {
+        assertEquals("Kyiv", AnswerMatcher.of(" Kyiv |Kiev").getDisplayAnswer());
+    }
+
+    @Test
+    void rejectsTyposByDefault() {
+        AnswerMatcher matcher = AnswerMatcher.of("Canberra");
+        assertTrue(matcher.matches("canberra"));
+        assertFalse(matcher.matches("Canbera"));
+        assertFalse(matcher.matches("Canberrra"));
+    }
+
+    @Test
+    void acceptsOneTypoInLongAnswers() {
+        AnswerMatcher matcher = AnswerMatcher.of("Canberra", ONE_TYPO);
+        assertTrue(matcher.matches("Canbera"));
+        assertTrue(matcher.matches("Canberrra"));
+        assertTrue(matcher.matches("Canbarra"));
+    }
+
+    @Test
+    void rejectsMoreThanOneTypo() {
+        AnswerMatcher matcher = AnswerMatcher.of("Canberra", ONE_TYPO);
+        assertFalse(matcher.matches("Canbara"));
+        assertFalse(matcher.matches("Kanbarra"));
+        assertFalse(matcher.matches("Canberra Australia"));
+    }
+
+    @Test
+    void requiresExactShortAnswers() {
+        AnswerMatcher matcher = AnswerMatcher.of("Rome", ONE_TYPO);
+        assertTrue(matcher.matches("rome"));
+        assertFalse(matcher.matches("Roma"));
+        assertFalse(matcher.matches("Rom"));
+    }
+
+    @Test
+    void rejectsEmptyLines() {
+        AnswerMatcher matcher = AnswerMatcher.of("Oslo");
+        assertFalse(matcher.matches(""));
+        assertFalse(matcher.matches("?!"));
+    }
+
+    @Test
+    void neverMatchesWithoutAnswers() {
+        assertFalse(AnswerMatcher.of("!!").matches("anything"));
+    }
+
+    @Test
+    void matchesAnswersLongerThanTheBuffer() {
+        String answer = "Llanfairpwllgwyngyllgogerychwyrndrobwllllantysiliogogogochuchafllanfair";
+        AnswerMatcher matcher = AnswerMatcher.of(answer, ONE_TYPO);
+        assertTrue(matcher.matches(answer));
+        assertTrue(matcher.matches(answer.substring(1)));
+    }
+}
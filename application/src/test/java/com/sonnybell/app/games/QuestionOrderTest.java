@@ -0,0 +1,72 @@
+package com.sonnybell.app.games;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for QuestionOrder.
+ */
+class QuestionOrderTest {
+
+    private static final int SIZE = 4;
+    private static final int ROUNDS = 500;
+    // Every order of four questions
+    private static final int ORDERS = 24;
+    private static final int TRIES = 2000;
+
+    @Test
+    void asksEveryQuestionOnceARound() {
+        QuestionOrder order = new QuestionOrder(SIZE);
+        for (int round = 0; round < ROUNDS; round++) {
+            Set<Integer> asked = new HashSet<>();
+            for (int i = 0; i < SIZE; i++) {
+                asked.add(order.next());
+            }
+            assertEquals(SIZE, asked.size());
+        }
+    }
+
+    @Test
+    void neverRepeatsAQuestionBetweenRounds() {
+        QuestionOrder order = new QuestionOrder(2);
+        int previous = order.next();
+        for (int i = 0; i < ROUNDS; i++) {
+            int next = order.next();
+            assertNotEquals(previous, next);
+            previous = next;
+        }
+    }
+
+    @Test
+    void givesEveryOrder() {
+        Set<List<Integer>> orders = new HashSet<>();
+        for (int i = 0; i < TRIES && orders.size() < ORDERS; i++) {
+            QuestionOrder order = new QuestionOrder(SIZE);
+            List<Integer> asked = new ArrayList<>();
+            for (int j = 0; j < SIZE; j++) {
+                asked.add(order.next());
+            }
+            orders.add(asked);
+        }
+        assertEquals(ORDERS, orders.size());
+    }
+
+    @Test
+    void asksTheOnlyQuestionAgain() {
+        QuestionOrder order = new QuestionOrder(1);
+        assertEquals(0, order.next());
+        assertEquals(0, order.next());
+    }
+
+    @Test
+    void rejectsAnEmptyPack() {
+        assertThrows(IllegalArgumentException.class, () -> new QuestionOrder(0));
+    }
+}
@@ -0,0 +1,99 @@
+package com.sonnybell.app.loadtest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sonnybell.app.server.ServerProcess;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that a few degraded connections do not hold up everybody else.
+ * Healthy socket users connect straight to a server and a few users connect
+ * through ShapingProxy links that crawl or go half-open after the users have
+ * logged in. One more user then sends messages to the room, and the healthy
+ * users must still get nearly every message within the allowed latency.
+ */
+class BackpressureTest {
+
+    private static final String HOST = "127.0.0.1";
+    private static final String PASSWORD = "secret";
+    // The sender goes over the default rate limits
+    private static final String[] SERVER_SETTINGS = {
+        "-Dchat.rate.user.burst=100000", "-Dchat.rate.user.perSecond=100000",
+        "-Dchat.rate.address.burst=100000", "-Dchat.rate.address.perSecond=100000",
+    };
+    private static final int HEALTHY_USERS = 10;
+    private static final int CRAWLING_USERS = 3;
+    private static final int HALF_OPEN_USERS = 1;
+    // Messages per second sent to the room, their length and the time they are sent for
+    private static final int RATE = 100;
+    private static final int MESSAGE_BYTES = 4096;
+    private static final long DURATION_MS = 10_000;
+    // Bandwidth of a crawling link in bytes per second
+    private static final int CRAWL_BYTES_PER_SECOND = 2048;
+    // Limits the healthy users must stay within
+    private static final double MAX_P99_MS = 500;
+    private static final double MIN_DELIVERED = 0.99;
+
+    // Time the shaped links stay healthy, enough to log in and read the history
+    private static final int DEGRADE_AFTER_MS = 3000;
+    private static final int CRAWL_LATENCY_MS = 300;
+    private static final int STALL_EVERY_MS = 4000;
+    private static final int STALL_FOR_MS = 2000;
+    private static final long DRAIN_MS = 2000;
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+    private static final double P99 = 0.99;
+
+    @Test
+    void degradedClientsDoNotHoldUpHealthyClients() throws Exception {
+        LoadStats healthy = new LoadStats();
+        LoadStats shaped = new LoadStats();
+        ShapingProxy.Shape crawl = ShapingProxy.Shape.healthy().degradeAfter(DEGRADE_AFTER_MS)
+                .bandwidth(CRAWL_BYTES_PER_SECOND).latency(CRAWL_LATENCY_MS).stalls(STALL_EVERY_MS, STALL_FOR_MS);
+        ShapingProxy.Shape halfOpen = ShapingProxy.Shape.healthy().degradeAfter(DEGRADE_AFTER_MS).halfOpen();
+
+        try (ServerProcess server = ServerProcess.start(PASSWORD, SERVER_SETTINGS);
+                ShapingProxy crawlProxy = new ShapingProxy(0, HOST, server.getPort(), crawl);
+                ShapingProxy halfOpenProxy = new ShapingProxy(0, HOST, server.getPort(), halfOpen)) {
+            crawlProxy.start();
+            halfOpenProxy.start();
+
+            for (int i = 1; i <= CRAWLING_USERS; i++) {
+                new SocketUser("crawl-" + i, shaped, 0).connect(HOST, crawlProxy.getPort(), PASSWORD);
+            }
+            for (int i = 1; i <= HALF_OPEN_USERS; i++) {
+                new SocketUser("halfopen-" + i, shaped, 0).connect(HOST, halfOpenProxy.getPort(), PASSWORD);
+            }
+            for (int i = 1; i <= HEALTHY_USERS; i++) {
+                new SocketUser("healthy-" + i, healthy, 0).connect(HOST, server.getPort(), PASSWORD);
+            }
+            SocketUser sender = new SocketUser("sender", healthy, MESSAGE_BYTES);
+            sender.connect(HOST, server.getPort(), PASSWORD);
+
+            send(sender);
+            Thread.sleep(DRAIN_MS);
+
+            assertEquals(0, healthy.getRateLimited(), "the sender was rate limited");
+            double p99 = healthy.getSocketLatency().quantile(P99) / NANOS_PER_MILLI;
+            assertTrue(p99 <= MAX_P99_MS, "healthy p99 latency " + p99 + " ms");
+            long expected = healthy.getSent() * HEALTHY_USERS;
+            assertTrue(expected > 0, "no messages were sent");
+            double delivered = healthy.getSocketDelivered() / (double) expected;
+            assertTrue(delivered >= MIN_DELIVERED, "healthy users got " + delivered + " of the messages");
+        }
+    }
+
+    private static void send(SocketUser sender) throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            scheduler.scheduleAtFixedRate(sender::send, 0, TimeUnit.SECONDS.toNanos(1) / RATE,
+                    TimeUnit.NANOSECONDS);
+            Thread.sleep(DURATION_MS);
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.sonnybell.app.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sonnybell.app.loadtest.ShapingProxy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests three cluster nodes, each in a process of its own. Nodes a and b are
+ * linked both ways, so every broadcast between them arrives twice, and node c
+ * dials a through a proxy that drops the link. Every node has a web user, and
+ * every broadcast must reach every node exactly once, the users of every node
+ * must show in /api/status and a user can be removed from any node. A server
+ * that does not know the password is never linked, and learns nothing.
+ */
+class ClusterTest {
+
+    private static final String PASSWORD = "secret";
+    private static final String HOST = "127.0.0.1";
+    // Short, so a dropped link comes back soon
+    private static final String[] SETTINGS = {
+        "-Dchat.cluster.retryMs=200", "-Dchat.rate.user.burst=1000", "-Dchat.rate.address.burst=1000",
+    };
+    private static final long TIMEOUT_MS = 30_000;
+    private static final long POLL_MS = 50;
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_NO_CONTENT = 204;
+    private static final String RELAYED_OUT = "chat_cluster_messages_total{direction=\"out\"}";
+    private static final String DUPLICATES = "chat_cluster_duplicates_total";
+    private static final int CHALLENGE_BYTES = 32;
+
+    private final HttpClient http = HttpClient.newHttpClient();
+
+    @Test
+    void nodesShareBroadcastsUsersAndRemovals() throws Exception {
+        int portA = ServerProcess.freePort();
+        int portB = ServerProcess.freePort();
+        ShapingProxy proxy = new ShapingProxy(0, HOST, portA, ShapingProxy.Shape.healthy());
+        int proxyPort = proxy.getPort();
+        proxy.start();
+        try (ServerProcess a = ServerProcess.start(PASSWORD, with("-Dchat.cluster.node=a",
+                "-Dchat.cluster.port=" + portA, "-Dchat.cluster.peers=" + HOST + ":" + portB));
+                ServerProcess b = ServerProcess.start(PASSWORD, with("-Dchat.cluster.node=b",
+                        "-Dchat.cluster.port=" + portB, "-Dchat.cluster.peers=" + HOST + ":" + portA));
+                ServerProcess c = ServerProcess.start(PASSWORD, with("-Dchat.cluster.node=c",
+                        "-Dchat.cluster.peers=" + HOST + ":" + proxyPort + "," + HOST + ":" + portB))) {
+            await(() -> links(a, "b") == 2 && links(b, "a") == 2 && links(a, "c") == 1 && links(c, "a") == 1
+                    && links(b, "c") == 1 && links(c, "b") == 1);
+            Map<ServerProcess, String> tokens = Map.of(a, login(a, "alice"), b, login(b, "bob"),
+                    c, login(c, "carol"));
+
+            for (ServerProcess node : List.of(a, b, c)) {
+                await(() -> status(node).getInt("totalClients") == 3);
+                assertEquals(List.of("alice", "bob", "carol"), clientNames(node));
+            }
+
+            post(a, tokens.get(a), "from a");
+            post(b, tokens.get(b), "from b");
+            post(c, tokens.get(c), "from c");
+            assertDeliveredOnce(a, b, tokens, List.of("alice: from a", "bob: from b", "carol: from c"));
+
+            // Drop the link between c and a, c dials a again once the proxy is back
+            proxy.close();
+            await(() -> links(a, "c") == 0 && links(c, "a") == 0);
+            proxy = new ShapingProxy(proxyPort, HOST, portA, ShapingProxy.Shape.healthy());
+            proxy.start();
+            await(() -> links(a, "c") == 1 && links(c, "a") == 1);
+            // The users of c are sent again when the link is back
+            await(() -> status(a).getInt("totalClients") == 3);
+            assertEquals(List.of("alice", "bob", "carol"), clientNames(a));
+
+            post(a, tokens.get(a), "after the drop from a");
+            post(c, tokens.get(c), "after the drop from c");
+            assertDeliveredOnce(a, b, tokens, List.of("alice: after the drop from a", "carol: after the drop from c"));
+
+            // The admin of a removes a user that is on c
+            assertEquals(HTTP_OK, remove(a, "carol"));
+            for (ServerProcess node : List.of(a, b, c)) {
+                await(() -> status(node).getInt("totalClients") == 2);
+                assertEquals(List.of("alice", "bob"), clientNames(node));
+            }
+        } finally {
+            proxy.close();
+        }
+    }
+
+    @Test
+    void strangersLearnNothingAndAreNotLinked() throws Exception {
+        int portA = ServerProcess.freePort();
+        try (ServerProcess a = ServerProcess.start(PASSWORD, with("-Dchat.cluster.node=a",
+                "-Dchat.cluster.port=" + portA));
+                ServerProcess other = ServerProcess.start("other", with("-Dchat.cluster.node=other",
+                        "-Dchat.cluster.peers=" + HOST + ":" + portA))) {
+            await(() -> count(a.output(), "Cluster: handshake with") >= 1);
+            assertEquals(0, links(a, "other"));
+
+            // A client that does not know the password gets a challenge and nothing else
+            try (Socket socket = new Socket(HOST, portA)) {
+                socket.setSoTimeout((int) TIMEOUT_MS);
+                InputStream in = socket.getInputStream();
+                byte[] challenge = in.readNBytes(CHALLENGE_BYTES);
+                assertEquals(CHALLENGE_BYTES, challenge.length);
+                assertFalse(new String(challenge, StandardCharsets.ISO_8859_1).contains(PASSWORD));
+                socket.getOutputStream().write(new byte[2 * CHALLENGE_BYTES]);
+                assertEquals(-1, in.read());
+            }
+        }
+    }
+
+    private static String[] with(String... settings) {
+        String[] all = Arrays.copyOf(SETTINGS, SETTINGS.length + settings.length);
+        System.arraycopy(settings, 0, all, SETTINGS.length, settings.length);
+        return all;
+    }
+
+    /**
+     * Checks that every node has each text in its lobby history exactly once,
+     * after the copies sent over the second link between a and b have been
+     * dropped.
+     */
+    private void assertDeliveredOnce(ServerProcess a, ServerProcess b, Map<ServerProcess, String> tokens,
+            List<String> texts) {
+        for (ServerProcess node : tokens.keySet()) {
+            for (String text : texts) {
+                await(() -> history(node, tokens.get(node)).contains(text));
+            }
+        }
+        await(() -> metric(b, DUPLICATES) == metric(a, RELAYED_OUT)
+                && metric(a, DUPLICATES) == metric(b, RELAYED_OUT));
+        for (Map.Entry<ServerProcess, String> node : tokens.entrySet()) {
+            List<String> history = history(node.getKey(), node.getValue());
+            for (String text : texts) {
+                assertEquals(1, Collections.frequency(history, text), text + " in " + history);
+            }
+        }
+    }
+
+    /**
+     * Counts the links a node has open to another node, by what it printed.
+     */
+    private static int links(ServerProcess server, String node) {
+        String output = server.output();
+        return count(output, "Cluster: linked to node " + node + ".")
+                - count(output, "Cluster: link to node " + node + " closed.");
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int at = text.indexOf(part); at >= 0; at = text.indexOf(part, at + part.length())) {
+            count++;
+        }
+        return count;
+    }
+
+    private String login(ServerProcess server, String user) throws IOException, InterruptedException {
+        JSONObject body = new JSONObject().put("username", user).put("password", PASSWORD);
+        JSONObject response = new JSONObject(send(server, null, "POST", "/api/webchat/login", body.toString()));
+        assertTrue(response.getBoolean("valid"));
+        return response.getString("token");
+    }
+
+    private void post(ServerProcess server, String token, String message) throws IOException, InterruptedException {
+        send(server, token, "POST", "/api/webchat/messages", new JSONObject().put("message", message).toString());
+    }
+
+    private List<String> history(ServerProcess server, String token) {
+        try {
+            String sync = send(server, token, "GET", "/api/webchat/sync?room=general&since=0", null);
+            List<String> messages = new ArrayList<>();
+            for (Object message : new JSONObject(sync).getJSONArray("messages")) {
+                messages.add((String) message);
+            }
+            return messages;
+        } catch (IOException | InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private JSONObject status(ServerProcess server) {
+        try {
+            return new JSONObject(send(server, null, "GET", "/api/status", null));
+        } catch (IOException | InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private List<String> clientNames(ServerProcess server) {
+        List<String> names = new ArrayList<>(Arrays.asList(status(server).getString("clientNames").split(",")));
+        Collections.sort(names);
+        return names;
+    }
+
+    private int remove(ServerProcess server, String user) throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(
+                URI.create("http://" + HOST + ":" + server.getWebPort() + "/api/admin/remove-user/" + user))
+                .DELETE().build();
+        return http.send(request, HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+
+    /**
+     * Reads a metric of a server, 0 if it is not there yet.
+     */
+    private long metric(ServerProcess server, String name) {
+        try {
+            for (String line : send(server, null, "GET", "/api/metrics", null).split("\n")) {
+                if (line.startsWith(name + " ")) {
+                    return (long) Double.parseDouble(line.substring(name.length() + 1).trim());
+                }
+            }
+            return 0;
+        } catch (IOException | InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private String send(ServerProcess server, String token, String method, String path, String body)
+            throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(
+                URI.create("http://" + HOST + ":" + server.getWebPort() + path));
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        request.method(method,
+                body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body));
+        HttpResponse<String> response = http.send(request.build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != HTTP_OK && response.statusCode() != HTTP_NO_CONTENT) {
+            throw new IOException(path + " answered " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() - deadline < 0, "timed out");
+            try {
+                TimeUnit.MILLISECONDS.sleep(POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
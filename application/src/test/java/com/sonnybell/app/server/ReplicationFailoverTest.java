@@ -0,0 +1,194 @@
+package com.sonnybell.app.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.sonnybell.app.chatfunctions.RoomRegistry;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that a standby server takes over from a leader that crashed, with the
+ * same history. Web users chat on the leader, in the lobby and in a room of
+ * their own, the leader is killed, and the standby must open its ports and
+ * serve the same messages of both at the same positions, so a page polling
+ * the leader goes on polling the standby, and the same message log.
+ */
+class ReplicationFailoverTest {
+
+    private static final String PASSWORD = "secret";
+    private static final String USER = "alice";
+    private static final String ROOM_USER = "bob";
+    private static final String ROOM = "side";
+    private static final int MESSAGES = 20;
+    private static final int ROOM_MESSAGES = 5;
+    // Short, so the standby takes over soon after the leader is gone
+    private static final int TAKEOVER_MS = 1000;
+    // The user goes over the default rate limits
+    private static final String[] SETTINGS = {
+        "-Dchat.replication.takeoverMs=" + TAKEOVER_MS,
+        "-Dchat.rate.user.burst=1000", "-Dchat.rate.address.burst=1000",
+    };
+    private static final long TIMEOUT_MS = 30_000;
+    private static final long POLL_MS = 50;
+    private static final int HTTP_OK = 200;
+    private static final int HTTP_NO_CONTENT = 204;
+    private static final String SHIPPED = "chat_replication_entries_total{direction=\"shipped\"}";
+
+    private final HttpClient http = HttpClient.newHttpClient();
+
+    @Test
+    void standbyTakesOverWithTheSameHistory() throws Exception {
+        int replicationPort = ServerProcess.freePort();
+        try (ServerProcess leader = ServerProcess.start(PASSWORD,
+                with("-Dchat.replication.port=" + replicationPort));
+                ServerProcess standby = ServerProcess.launch(PASSWORD,
+                        with("-Dchat.replication.leader=127.0.0.1:" + replicationPort))) {
+            await(() -> metric(leader, "chat_replication_standbys") == 1);
+            String token = login(leader, USER);
+            for (int i = 1; i <= MESSAGES; i++) {
+                post(leader, token, "message " + i);
+            }
+            String roomToken = login(leader, ROOM_USER);
+            join(leader, roomToken, ROOM);
+            for (int i = 1; i <= ROOM_MESSAGES; i++) {
+                post(leader, roomToken, "in the room " + i);
+            }
+            JSONObject before = sync(leader, token, RoomRegistry.LOBBY, 0);
+            JSONObject roomBefore = sync(leader, roomToken, ROOM, 0);
+            List<String> exported = export(leader, token);
+            // Each message is a history entry and a log entry, so are the joins of the users
+            // and the second user leaving the lobby and joining the room
+            await(() -> metric(leader, SHIPPED) >= 2 * (MESSAGES + ROOM_MESSAGES + 4));
+
+            leader.close();
+            assertTrue(standby.awaitPort(TIMEOUT_MS) && standby.awaitWebPort(TIMEOUT_MS),
+                    "the standby did not take over:\n" + standby.output());
+
+            // A page that polled the leader goes on from its cursor and misses nothing
+            String newToken = login(standby, USER);
+            JSONObject after = sync(standby, newToken, RoomRegistry.LOBBY, before.getLong("cursor"));
+            assertFalse(after.getBoolean("reset"), after.toString());
+            assertEquals(before.getLong("cursor") + 1, after.getLong("cursor"));
+            assertEquals(1, after.getJSONArray("messages").length());
+            assertTrue(after.getJSONArray("messages").getString(0).contains(USER + " has joined"));
+
+            List<Object> history = sync(standby, newToken, RoomRegistry.LOBBY, 0).getJSONArray("messages").toList();
+            assertEquals(before.getJSONArray("messages").toList(), history.subList(0, history.size() - 1));
+            assertTrue(before.getJSONArray("messages").toList().contains(USER + ": message " + MESSAGES));
+
+            List<String> replicated = export(standby, newToken);
+            assertEquals(exported, replicated.subList(0, exported.size()), standby.output());
+
+            // The room is created again with the history it had on the leader
+            String newRoomToken = login(standby, ROOM_USER);
+            join(standby, newRoomToken, ROOM);
+            JSONObject roomAfter = sync(standby, newRoomToken, ROOM, roomBefore.getLong("cursor"));
+            assertFalse(roomAfter.getBoolean("reset"), roomAfter.toString());
+            assertEquals(1, roomAfter.getJSONArray("messages").length());
+            List<Object> roomHistory = sync(standby, newRoomToken, ROOM, 0).getJSONArray("messages").toList();
+            assertEquals(roomBefore.getJSONArray("messages").toList(), roomHistory.subList(0, roomHistory.size() - 1));
+            assertTrue(roomHistory.contains(ROOM_USER + ": in the room " + ROOM_MESSAGES));
+        }
+    }
+
+    private static String[] with(String setting) {
+        String[] settings = Arrays.copyOf(SETTINGS, SETTINGS.length + 1);
+        settings[SETTINGS.length] = setting;
+        return settings;
+    }
+
+    private String login(ServerProcess server, String user) throws IOException, InterruptedException {
+        JSONObject body = new JSONObject().put("username", user).put("password", PASSWORD);
+        JSONObject response = new JSONObject(send(server, null, "/api/webchat/login", body.toString()));
+        assertTrue(response.getBoolean("valid"));
+        return response.getString("token");
+    }
+
+    private void post(ServerProcess server, String token, String message) throws IOException, InterruptedException {
+        send(server, token, "/api/webchat/messages", new JSONObject().put("message", message).toString());
+    }
+
+    private void join(ServerProcess server, String token, String room) throws IOException, InterruptedException {
+        send(server, token, "/api/webchat/rooms", new JSONObject().put("room", room).toString());
+    }
+
+    private JSONObject sync(ServerProcess server, String token, String room, long since)
+            throws IOException, InterruptedException {
+        return new JSONObject(send(server, token, "/api/webchat/sync?room=" + room + "&since=" + since, null));
+    }
+
+    /**
+     * Exports the message log, one JSON object per line, times included.
+     */
+    private List<String> export(ServerProcess server, String token) throws IOException, InterruptedException {
+        List<String> lines = new ArrayList<>();
+        for (String line : send(server, token, "/api/export", null).split("\n")) {
+            if (!line.isEmpty()) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Reads a metric of a server, 0 if it cannot be read.
+     */
+    private long metric(ServerProcess server, String name) {
+        try {
+            for (String line : send(server, null, "/api/metrics", null).split("\n")) {
+                if (line.startsWith(name + " ")) {
+                    return (long) Double.parseDouble(line.substring(name.length() + 1).trim());
+                }
+            }
+        } catch (IOException e) {
+            return 0;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return 0;
+    }
+
+    /**
+     * Sends a GET request, or a POST request if there is a body.
+     */
+    private String send(ServerProcess server, String token, String path, String body)
+            throws IOException, InterruptedException {
+        HttpRequest.Builder request = HttpRequest.newBuilder(
+                URI.create("http://127.0.0.1:" + server.getWebPort() + path));
+        if (token != null) {
+            request.header("Authorization", "Bearer " + token);
+        }
+        request.method(body == null ? "GET" : "POST",
+                body == null ? HttpRequest.BodyPublishers.noBody() : HttpRequest.BodyPublishers.ofString(body));
+        HttpResponse<String> response = http.send(request.build(), HttpResponse.BodyHandlers.ofString());
+        if (response.statusCode() != HTTP_OK && response.statusCode() != HTTP_NO_CONTENT) {
+            throw new IOException(path + " answered " + response.statusCode());
+        }
+        return response.body();
+    }
+
+    private static void await(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS);
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() - deadline < 0, "timed out");
+            try {
+                TimeUnit.MILLISECONDS.sleep(POLL_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AssertionError(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.sonnybell.app.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ServerProcess class running a chat server in its own JVM for tests.
+ * The server keeps its state in static fields, so every server a test needs
+ * runs in a process of its own, from the test class path and in a temporary
+ * working directory for its logs.
+ */
+public final class ServerProcess implements AutoCloseable {
+
+    // Time a server gets to open its socket port
+    private static final long START_TIMEOUT_MS = 30_000;
+    private static final long POLL_MS = 50;
+    private static final int CONNECT_TIMEOUT_MS = 200;
+
+    private final Process process;
+    private final Path directory;
+    private final int port;
+    private final int webPort;
+    private final String password;
+
+    private ServerProcess(Process process, Path directory, int port, int webPort, String password) {
+        this.process = process;
+        this.directory = directory;
+        this.port = port;
+        this.webPort = webPort;
+        this.password = password;
+    }
+
+    /**
+     * Starts a server on free ports without waiting for it.
+     *
+     * @param password   The server password.
+     * @param properties System properties of the server, like -Dchat.rate.user.burst=100.
+     * @return The running server.
+     * @throws IOException If the process cannot be started.
+     */
+    public static ServerProcess launch(String password, String... properties) throws IOException {
+        return launch(freePort(), password, properties);
+    }
+
+    /**
+     * Starts a server on a given socket port without waiting for it.
+     *
+     * @param port       The socket port of the server.
+     * @param password   The server password.
+     * @param properties System properties of the server, like -Dchat.rate.user.burst=100.
+     * @return The running server.
+     * @throws IOException If the process cannot be started.
+     */
+    public static ServerProcess launch(int port, String password, String... properties) throws IOException {
+        Path directory = Files.createTempDirectory("chat-server");
+        int webPort = freePort();
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Dchat.web.port=" + webPort);
+        command.addAll(Arrays.asList(properties));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Server.class.getName());
+
+        File log = directory.resolve("server.log").toFile();
+        Process process = new ProcessBuilder(command).directory(directory.toFile())
+                .redirectErrorStream(true).redirectOutput(log).start();
+        // The server asks for its port and password on the console
+        try (OutputStream in = process.getOutputStream()) {
+            in.write((port + "\n" + password + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return new ServerProcess(process, directory, port, webPort, password);
+    }
+
+    /**
+     * Starts a server on free ports and waits until both its ports accept
+     * connections.
+     *
+     * @param password   The server password.
+     * @param properties System properties of the server, like -Dchat.rate.user.burst=100.
+     * @return The running server.
+     * @throws IOException If the server does not start.
+     */
+    public static ServerProcess start(String password, String... properties) throws IOException {
+        ServerProcess server = launch(password, properties);
+        if (!server.awaitPort(START_TIMEOUT_MS) || !server.awaitWebPort(START_TIMEOUT_MS)) {
+            server.close();
+            throw new IOException("The server did not start:\n" + server.output());
+        }
+        return server;
+    }
+
+    /**
+     * Finds a port nothing listens on.
+     *
+     * @return The port.
+     * @throws IOException If no port can be opened.
+     */
+    public static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    /**
+     * Waits until the socket port of the server accepts connections.
+     *
+     * @param timeoutMs The longest time to wait.
+     * @return Whether the port accepted a connection in time.
+     */
+    public boolean awaitPort(long timeoutMs) {
+        return awaitOpen(port, timeoutMs);
+    }
+
+    /**
+     * Waits until the web port of the server accepts connections. The server
+     * opens it after its socket port.
+     *
+     * @param timeoutMs The longest time to wait.
+     * @return Whether the port accepted a connection in time.
+     */
+    public boolean awaitWebPort(long timeoutMs) {
+        return awaitOpen(webPort, timeoutMs);
+    }
+
+    private boolean awaitOpen(int localPort, long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (process.isAlive() && System.nanoTime() - deadline < 0) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", localPort), CONNECT_TIMEOUT_MS);
+                return true;
+            } catch (IOException e) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(POLL_MS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the socket port of the server.
+     *
+     * @return The port.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Gets the web port of the server, open once its socket port is.
+     *
+     * @return The port.
+     */
+    public int getWebPort() {
+        return webPort;
+    }
+
+    /**
+     * Gets the server password.
+     *
+     * @return The password.
+     */
+    public String getPassword() {
+        return password;
+    }
+
+    /**
+     * Gets everything the server printed so far, to explain a failed test.
+     *
+     * @return The console output of the server.
+     */
+    public String output() {
+        try {
+            return Files.readString(directory.resolve("server.log"));
+        } catch (IOException e) {
+            return "(no output: " + e.getMessage() + ")";
+        }
+    }
+
+    /**
+     * Kills the server straight away, like a crash would.
+     */
+    @Override
+    public void close() {
+        process.destroyForcibly();
+        try {
+            process.waitFor(START_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
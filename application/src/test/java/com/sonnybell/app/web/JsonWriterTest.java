@@ -0,0 +1,166 @@
+package com.sonnybell.app.web;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for JsonWriter, reading what it writes back with org.json, the
+ * library the server used before, so both agree on every string.
+ */
+class JsonWriterTest {
+
+    // Characters that are escaped or encoded in more than one byte, mixed into random strings
+    private static final String TRICKY = "\"\\/\b\f\n\r\t\u0000\u0001\u001f\u007f\u0080\u00e9\u2028\u2029\u4e2d\ufffd"
+            + "\ud83d\ude00\ud834\udd1e";
+    private static final int RANDOM_STRINGS = 500;
+    private static final int MAX_RANDOM_LENGTH = 200;
+    private static final long SEED = 42;
+    // Longer than the buffer a writer starts with, and than the buffer kept for reuse
+    private static final int LONG_STRING = 100_000;
+    private static final int NDJSON_LINES = 5000;
+
+    @Test
+    void escapesControlCharactersQuotesAndBackslashes() {
+        StringBuilder controls = new StringBuilder();
+        for (char c = 0; c < ' '; c++) {
+            controls.append(c);
+        }
+        assertRoundTrip(controls.toString());
+        assertRoundTrip("say \"hi\" \\ back\\slash \\\" and \\\\");
+        assertEquals("[\"a\\\"b\\\\c\\n\\r\\t\\u0000\\u001f\\u2028\\u2029\"]",
+                written(json -> json.beginArray().value("a\"b\\c\n\r\t\u0000\u001f\u2028\u2029").endArray()));
+    }
+
+    @Test
+    void encodesSurrogatePairsAndOtherNonAsciiAsUtf8() {
+        String text = "café 中文 😀👍 𝄞";
+        assertRoundTrip(text);
+        assertEquals("[\"" + text + "\"]", written(json -> json.beginArray().value(text).endArray()));
+        // A lone surrogate has no UTF-8 form, it is replaced like String.getBytes does
+        assertEquals("[\"a?b?\"]", written(json -> json.beginArray().value("a\ud83db\ude00").endArray()));
+    }
+
+    @Test
+    void agreesWithOrgJsonOnRandomStrings() {
+        Random random = new Random(SEED);
+        for (int i = 0; i < RANDOM_STRINGS; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = random.nextInt(MAX_RANDOM_LENGTH);
+            while (text.length() < length) {
+                if (random.nextBoolean()) {
+                    text.append((char) (' ' + random.nextInt('~' - ' ')));
+                } else {
+                    int at = random.nextInt(TRICKY.length());
+                    // Keep surrogate pairs whole
+                    if (Character.isLowSurrogate(TRICKY.charAt(at))) {
+                        at--;
+                    }
+                    text.appendCodePoint(TRICKY.codePointAt(at));
+                }
+            }
+            assertRoundTrip(text.toString());
+        }
+    }
+
+    @Test
+    void writesStringsLongerThanTheBuffer() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < LONG_STRING) {
+            text.append("plain \"quoted\" é😀\n");
+        }
+        assertRoundTrip(text.toString());
+        // The next writer on the thread must not be handed the grown buffer
+        assertRoundTrip("short");
+    }
+
+    @Test
+    void writesNestedObjectsAndEveryKindOfValue() {
+        JSONObject object = new JSONObject(written(json -> {
+            json.beginObject();
+            json.name("text").value("hi");
+            json.name("missing").value((String) null);
+            json.name("min").value(Long.MIN_VALUE);
+            json.name("max").value(Long.MAX_VALUE);
+            json.name("half").value(0.5);
+            json.name("nan").value(Double.NaN);
+            json.name("yes").value(true);
+            json.name("list").array(List.of("a", "b"));
+            json.name("empty").beginArray().endArray();
+            json.name("nested").beginArray().beginObject().name("k\"ey").beginObject().endObject().endObject()
+                    .value(1).endArray();
+            json.endObject();
+        }));
+
+        assertEquals("hi", object.getString("text"));
+        assertTrue(object.isNull("missing"));
+        assertEquals(Long.MIN_VALUE, object.getLong("min"));
+        assertEquals(Long.MAX_VALUE, object.getLong("max"));
+        assertEquals(0.5, object.getDouble("half"));
+        assertTrue(object.isNull("nan"));
+        assertTrue(object.getBoolean("yes"));
+        assertEquals(List.of("a", "b"), object.getJSONArray("list").toList());
+        assertEquals(0, object.getJSONArray("empty").length());
+        JSONArray nested = object.getJSONArray("nested");
+        assertEquals(0, nested.getJSONObject(0).getJSONObject("k\"ey").length());
+        assertEquals(1, nested.getInt(1));
+    }
+
+    @Test
+    void streamsNdjsonLinesThroughTheStream() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonWriter json = new JsonWriter(out);
+        for (int i = 0; i < NDJSON_LINES; i++) {
+            json.beginObject().name("n").value(i).name("text").value("line \"" + i + "\"\né").endObject();
+            json.newline();
+        }
+        json.flush();
+        json.release();
+
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(NDJSON_LINES, lines.length);
+        for (int i = 0; i < NDJSON_LINES; i++) {
+            JSONObject line = new JSONObject(lines[i]);
+            assertEquals(i, line.getInt("n"));
+            assertEquals("line \"" + i + "\"\né", line.getString("text"));
+        }
+    }
+
+    /**
+     * Writes a string as a value and as a name, and checks org.json reads
+     * both back unchanged.
+     */
+    private static void assertRoundTrip(String text) {
+        JSONObject object = new JSONObject(written(json -> json.beginObject().name(text).value(text).endObject()));
+        assertEquals(1, object.length());
+        assertEquals(new ArrayList<>(List.of(text)), new ArrayList<>(object.keySet()));
+        assertEquals(text, object.getString(text));
+    }
+
+    /**
+     * Gets what is written to a writer, read from the stream it passes its
+     * buffer on to.
+     */
+    private static String written(Consumer<JsonWriter> writes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonWriter json = new JsonWriter(out);
+        writes.accept(json);
+        try {
+            json.flush();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        json.release();
+        return out.toString(StandardCharsets.UTF_8);
+    }
+}
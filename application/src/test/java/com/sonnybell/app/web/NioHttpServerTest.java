@@ -0,0 +1,299 @@
+package com.sonnybell.app.web;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import com.sun.net.httpserver.BasicAuthenticator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests for the NioHttpServer parsing requests sent over raw sockets: the
+ * request line and headers, bodies, keep-alive, pipelining and malformed
+ * requests. The handler echoes what it was given, so each response shows
+ * how its request was parsed. A context with an authenticator must check
+ * each request before its handler runs.
+ */
+class NioHttpServerTest {
+
+    private static final String HOST = "127.0.0.1";
+    private static final int HTTP_OK = 200;
+    private static final int READ_TIMEOUT_MS = 10_000;
+    // Time between the pieces of a request sent in parts, so each arrives in a read of its own
+    private static final long PIECE_DELAY_MS = 20;
+
+    private NioHttpServer server;
+    private ExecutorService workers;
+
+    /**
+     * Starts a server whose handler answers with the method, the request
+     * target, the X-Test header and the body of each request.
+     */
+    @BeforeEach
+    void startServer() throws IOException {
+        workers = Executors.newCachedThreadPool();
+        server = NioHttpServer.create(new InetSocketAddress(HOST, 0), 0);
+        server.setExecutor(workers);
+        server.createContext("/echo", exchange -> {
+            String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+            byte[] echo = (exchange.getRequestMethod() + " " + exchange.getRequestURI() + " "
+                    + exchange.getRequestHeaders().getFirst("X-Test") + " " + body).getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(HTTP_OK, echo.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(echo);
+            }
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+        workers.shutdownNow();
+    }
+
+    @Test
+    void parsesTheRequestLineAndHeaders() throws IOException {
+        try (Socket socket = connect()) {
+            send(socket, "GET /echo/a?x=1&y=%20 HTTP/1.1\r\nHost: test\r\nx-test:   spaced value  \r\n\r\n");
+            Response response = Response.read(socket.getInputStream());
+            assertEquals("HTTP/1.1 200 OK", response.statusLine);
+            assertEquals("GET /echo/a?x=1&y=%20 spaced value ", response.body);
+        }
+    }
+
+    @Test
+    void readsBodiesByLengthAndInChunks() throws IOException {
+        try (Socket socket = connect()) {
+            send(socket, "POST /echo HTTP/1.1\r\nContent-Length: 5\r\n\r\nhello");
+            assertEquals("POST /echo null hello", Response.read(socket.getInputStream()).body);
+            send(socket, "POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n"
+                    + "3;name=value\r\nabc\r\nA\r\n0123456789\r\n0\r\nTrailer: x\r\n\r\n");
+            assertEquals("POST /echo null abc0123456789", Response.read(socket.getInputStream()).body);
+        }
+    }
+
+    @Test
+    void keepsConnectionsAliveUnlessAskedToClose() throws IOException {
+        try (Socket socket = connect()) {
+            send(socket, "GET /echo HTTP/1.1\r\n\r\n");
+            assertNull(Response.read(socket.getInputStream()).header("connection"));
+            // Lines may end with a bare LF
+            send(socket, "GET /echo/again HTTP/1.1\nConnection: close\n\n");
+            Response response = Response.read(socket.getInputStream());
+            assertEquals("GET /echo/again null ", response.body);
+            assertEquals("close", response.header("connection"));
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        try (Socket socket = connect()) {
+            send(socket, "GET /echo HTTP/1.0\r\n\r\n");
+            assertEquals("HTTP/1.0 200 OK", Response.read(socket.getInputStream()).statusLine);
+            assertEquals(-1, socket.getInputStream().read());
+        }
+        try (Socket socket = connect()) {
+            send(socket, "GET /echo HTTP/1.0\r\nConnection: keep-alive\r\n\r\n");
+            assertEquals("keep-alive", Response.read(socket.getInputStream()).header("connection"));
+            send(socket, "GET /echo/1.0 HTTP/1.0\r\n\r\n");
+            assertEquals("GET /echo/1.0 null ", Response.read(socket.getInputStream()).body);
+        }
+    }
+
+    @Test
+    void answersPipelinedRequestsInOrder() throws IOException {
+        try (Socket socket = connect()) {
+            send(socket, "GET /echo/1 HTTP/1.1\r\n\r\n"
+                    + "POST /echo/2 HTTP/1.1\r\nContent-Length: 3\r\nX-Test: two\r\n\r\nabc"
+                    + "GET /missing HTTP/1.1\r\n\r\n"
+                    + "POST /echo/4 HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nhi\r\n0\r\n\r\n"
+                    + "GET /echo/5 HTTP/1.1\r\n\r\n");
+            InputStream in = socket.getInputStream();
+            assertEquals("GET /echo/1 null ", Response.read(in).body);
+            assertEquals("POST /echo/2 two abc", Response.read(in).body);
+            assertEquals("HTTP/1.1 404 Not Found", Response.read(in).statusLine);
+            assertEquals("POST /echo/4 null hi", Response.read(in).body);
+            assertEquals("GET /echo/5 null ", Response.read(in).body);
+        }
+    }
+
+    @Test
+    void authenticatesBeforeTheHandler() throws IOException {
+        server.createContext("/private", exchange -> {
+            byte[] user = exchange.getPrincipal().getUsername().getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(HTTP_OK, user.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(user);
+            }
+        }).setAuthenticator(new BasicAuthenticator("chat") {
+            @Override
+            public boolean checkCredentials(String username, String password) {
+                return "alice".equals(username) && "secret".equals(password);
+            }
+        });
+        try (Socket socket = connect()) {
+            send(socket, "GET /private HTTP/1.1\r\n\r\n");
+            Response response = Response.read(socket.getInputStream());
+            assertEquals("HTTP/1.1 401 Unauthorized", response.statusLine);
+            assertEquals("Basic realm=\"chat\", charset=\"UTF-8\"", response.header("www-authenticate"));
+            send(socket, "GET /private HTTP/1.1\r\nAuthorization: Basic " + credentials("alice:wrong") + "\r\n\r\n");
+            assertEquals("HTTP/1.1 401 Unauthorized", Response.read(socket.getInputStream()).statusLine);
+            send(socket, "GET /private HTTP/1.1\r\nAuthorization: Basic " + credentials("alice:secret")
+                    + "\r\n\r\n");
+            response = Response.read(socket.getInputStream());
+            assertEquals("HTTP/1.1 200 OK", response.statusLine);
+            assertEquals("alice", response.body);
+        }
+    }
+
+    @Test
+    void parsesARequestArrivingInPieces() throws IOException {
+        try (Socket socket = connect()) {
+            for (String piece : List.of("GE", "T /echo HT", "TP/1.1\r", "\nContent-Len", "gth: 4\r\n\r", "\nbo", "dy")) {
+                send(socket, piece);
+                socket.getOutputStream().flush();
+                sleep();
+            }
+            assertEquals("GET /echo null body", Response.read(socket.getInputStream()).body);
+        }
+    }
+
+    @Test
+    void answersMalformedRequestsWithAnErrorAndCloses() throws IOException {
+        List<String> requests = List.of(
+                "GARBAGE\r\n\r\n",
+                "GET /echo\r\n\r\n",
+                " /echo HTTP/1.1\r\n\r\n",
+                "GET /echo HTTP/1.1\r\nNo colon here\r\n\r\n",
+                "GET /echo HTTP/1.1\r\n: no name\r\n\r\n",
+                "POST /echo HTTP/1.1\r\nContent-Length: -1\r\n\r\n",
+                "POST /echo HTTP/1.1\r\nContent-Length: ten\r\n\r\n",
+                "POST /echo HTTP/1.1\r\nTransfer-Encoding: gzip\r\n\r\n",
+                "POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\nContent-Length: 1\r\n\r\n",
+                "POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n",
+                "POST /echo HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nabc\r\n0\r\n\r\n",
+                "GET /a b c HTTP/1.1\r\n\r\n",
+                "GET /echo^ HTTP/1.1\r\n\r\n");
+        for (String request : requests) {
+            assertEquals("HTTP/1.1 400 Bad Request", errorFor(request), request);
+        }
+        assertEquals("HTTP/1.1 505 HTTP Version Not Supported", errorFor("GET /echo HTTP/2.0\r\n\r\n"));
+        assertEquals("HTTP/1.1 413 Content Too Large",
+                errorFor("POST /echo HTTP/1.1\r\nContent-Length: 99999999999\r\n\r\n"));
+        assertEquals("HTTP/1.1 431 Request Header Fields Too Large",
+                errorFor("GET /echo HTTP/1.1\r\nX-Test: " + "x".repeat(20_000) + "\r\n\r\n"));
+    }
+
+    @Test
+    void answersTheGoodRequestsBeforeAMalformedOne() throws IOException {
+        try (Socket socket = connect()) {
+            send(socket, "GET /echo/ok HTTP/1.1\r\n\r\nNOT HTTP\r\n\r\nGET /echo/never HTTP/1.1\r\n\r\n");
+            InputStream in = socket.getInputStream();
+            assertEquals("GET /echo/ok null ", Response.read(in).body);
+            assertEquals("HTTP/1.1 400 Bad Request", Response.read(in).statusLine);
+            assertEquals(-1, in.read());
+        }
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(HOST, server.getAddress().getPort());
+        socket.setSoTimeout(READ_TIMEOUT_MS);
+        return socket;
+    }
+
+    private static String credentials(String userAndPassword) {
+        return Base64.getEncoder().encodeToString(userAndPassword.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void send(Socket socket, String request) throws IOException {
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * Sends a malformed request and gets the status line of the answer, the
+     * connection must be closed after it.
+     */
+    private String errorFor(String request) throws IOException {
+        try (Socket socket = connect()) {
+            send(socket, request);
+            Response response = Response.read(socket.getInputStream());
+            assertEquals(-1, socket.getInputStream().read(), request);
+            return response.statusLine;
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(PIECE_DELAY_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Response class holding one response read from a socket, whose body has
+     * a Content-Length.
+     */
+    private static final class Response {
+        private final String statusLine;
+        private final List<String> headers;
+        private final String body;
+
+        private Response(String statusLine, List<String> headers, String body) {
+            this.statusLine = statusLine;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        static Response read(InputStream in) throws IOException {
+            String statusLine = line(in);
+            List<String> headers = new ArrayList<>();
+            for (String header = line(in); !header.isEmpty(); header = line(in)) {
+                headers.add(header);
+            }
+            Response response = new Response(statusLine, headers, "");
+            String length = response.header("content-length");
+            byte[] body = in.readNBytes(length == null ? 0 : Integer.parseInt(length));
+            return new Response(statusLine, headers, new String(body, StandardCharsets.UTF_8));
+        }
+
+        String header(String name) {
+            for (String header : headers) {
+                int colon = header.indexOf(':');
+                if (header.substring(0, colon).toLowerCase(Locale.ROOT).equals(name)) {
+                    return header.substring(colon + 1).trim();
+                }
+            }
+            return null;
+        }
+
+        private static String line(InputStream in) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b = in.read();
+            while (b != '\n') {
+                if (b < 0) {
+                    throw new IOException("Connection closed after: " + line);
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+                b = in.read();
+            }
+            return line.toString(StandardCharsets.ISO_8859_1);
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.sonnybell.app.chatfunctions;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ChatHistoryBenchmark class measuring the lobby history.
+ * The single threaded benchmarks give the cost of one add and one snapshot,
+ * the grouped ones run three writers against one reader the way busy rooms
+ * and polling web clients hit the history at the same time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChatHistoryBenchmark {
+
+    // Created once, so only the history itself is measured
+    private final ChatMessage message = ChatMessage.chat("bench", "bench: the quick brown fox jumps over the lazy dog");
+
+    /**
+     * Fills the history, so every add overwrites the oldest message.
+     */
+    @Setup
+    public void fill() {
+        for (int i = 0; i < 100; i++) {
+            ChatHistory.addMessageToHistory(message);
+        }
+    }
+
+    /**
+     * Adds one message without contention.
+     */
+    @Benchmark
+    public void add() {
+        ChatHistory.addMessageToHistory(message);
+    }
+
+    /**
+     * Copies the full history without contention.
+     *
+     * @return The copy, so it is not optimized away.
+     */
+    @Benchmark
+    public List<String> snapshot() {
+        return ChatHistory.getMessageHistory();
+    }
+
+    /**
+     * Adds messages while another thread copies the history.
+     */
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void contendedAdd() {
+        ChatHistory.addMessageToHistory(message);
+    }
+
+    /**
+     * Copies the history while other threads add messages.
+     *
+     * @return The copy, so it is not optimized away.
+     */
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public List<String> contendedSnapshot() {
+        return ChatHistory.getMessageHistory();
+    }
+}
@@ -0,0 +1,85 @@
+package com.sonnybell.app.client;
+
+import com.sonnybell.app.chatfunctions.ChatMessage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BroadcastBenchmark class measuring ClientHandler.broadcastMessageToAll.
+ * Every client is a ClientHandler on an in-memory socket, so one operation
+ * is a full broadcast: the log line, the lobby history and the write to
+ * every client, without any network in the way.
+ * The lines are written by the shared writers, so an operation waits until
+ * every client has been written to. Otherwise only queueing would be
+ * measured, and the clients would be disconnected once the writers fell
+ * behind.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    /**
+     * The number of connected clients.
+     */
+    @Param({"10", "100", "1000"})
+    public int clients;
+
+    private final List<ClientHandler> handlers = new ArrayList<>();
+    private final ChatMessage message = ChatMessage.game("GAME: What is the capital of France?");
+
+    /**
+     * Connects the clients, logging to a temporary directory.
+     *
+     * @throws IOException If the temporary directory cannot be created.
+     */
+    @Setup
+    public void connect() throws IOException {
+        System.setProperty("user.dir", Files.createTempDirectory("chat-bench").toString());
+        for (int i = 0; i < clients; i++) {
+            handlers.add(InMemorySocket.connect("user" + i));
+        }
+    }
+
+    /**
+     * Disconnects the clients.
+     */
+    @TearDown
+    public void disconnect() {
+        for (ClientHandler handler : handlers) {
+            handler.closeEverything();
+        }
+        handlers.clear();
+    }
+
+    /**
+     * Broadcasts one message to every client and waits until it is written.
+     */
+    @Benchmark
+    public void broadcastToAll() {
+        ClientHandler.broadcastMessageToAll(message);
+        for (ClientHandler handler : handlers) {
+            while (handler.getPendingLines() > 0 && !handler.getSocket().isClosed()) {
+                Thread.yield();
+            }
+        }
+    }
+}
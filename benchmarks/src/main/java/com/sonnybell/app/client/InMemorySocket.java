@@ -0,0 +1,59 @@
+package com.sonnybell.app.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * InMemorySocket class standing in for a client connection in benchmarks.
+ * It sends the username line the ClientHandler reads first and throws away
+ * everything written to it, so a benchmark measures the server side only.
+ */
+final class InMemorySocket extends Socket {
+
+    private final InputStream in;
+    private final OutputStream out = OutputStream.nullOutputStream();
+    private volatile boolean closed;
+
+    InMemorySocket(String username) {
+        this.in = new ByteArrayInputStream((username + "\n").getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Connects a ClientHandler to a new in-memory socket.
+     *
+     * @param username The username the client logs in with.
+     * @return The handler, registered like a real client in the lobby.
+     */
+    static ClientHandler connect(String username) {
+        return new ClientHandler(new InMemorySocket(username));
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public InetAddress getInetAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+}
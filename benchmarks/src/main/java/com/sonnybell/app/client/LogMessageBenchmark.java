@@ -0,0 +1,79 @@
+package com.sonnybell.app.client;
+
+import com.sonnybell.app.chatfunctions.ChatMessage;
+import com.sonnybell.app.chatfunctions.MessageLogWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * LogMessageBenchmark class measuring ClientHandler.logMessage.
+ * Logging only queues the line, so the plain benchmark gives the cost a
+ * sender pays, including lines dropped once the queue is full.
+ * The sustained benchmark waits while the queue is more than half full, so
+ * its throughput is the rate the writer thread gets lines onto the disk.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class LogMessageBenchmark {
+
+    // Backlog above which the sustained benchmark waits for the writer
+    private static final int HIGH_WATER = 5000;
+
+    private final ChatMessage message = ChatMessage.chat("bench", "bench: the quick brown fox jumps over the lazy dog");
+
+    /**
+     * Points the message log at a temporary directory.
+     *
+     * @throws IOException If the temporary directory cannot be created.
+     */
+    @Setup
+    public void logToTemporaryDirectory() throws IOException {
+        System.setProperty("user.dir", Files.createTempDirectory("chat-bench").toString());
+    }
+
+    /**
+     * Writes the lines left in the queue, so iterations start empty.
+     */
+    @TearDown(Level.Iteration)
+    public void flush() {
+        MessageLogWriter.flush();
+    }
+
+    /**
+     * Logs one message.
+     */
+    @Benchmark
+    public void logMessage() {
+        ClientHandler.logMessage(message);
+    }
+
+    /**
+     * Logs one message, waiting first if the writer has fallen behind.
+     */
+    @Benchmark
+    public void logMessageSustained() {
+        while (MessageLogWriter.getBacklog() > HIGH_WATER) {
+            Thread.onSpinWait();
+        }
+        ClientHandler.logMessage(message);
+    }
+}
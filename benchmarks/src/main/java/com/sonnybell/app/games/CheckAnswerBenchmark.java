@@ -0,0 +1,113 @@
+package com.sonnybell.app.games;
+
+import com.sonnybell.app.chatfunctions.RoomRegistry;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CheckAnswerBenchmark class measuring how the capital game checks answers.
+ * Every chat line in a room with a running game goes through
+ * CapitalGame.checkAnswer, and almost all of them are wrong answers, so that
+ * is the path measured on the game. A correct answer closes the question and
+ * cannot be repeated, so matching right and nearly right answers is measured
+ * on the AnswerMatcher directly.
+ * A trial must stay shorter than the 30 second question timeout.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CheckAnswerBenchmark {
+
+    // Longest wait for the game to ask its first question
+    private static final long START_TIMEOUT_MS = 10_000;
+    private static final long POLL_MS = 50;
+
+    private final AnswerMatcher matcher = AnswerMatcher.of("Brasília");
+    // Typos are rejected by default, so the typo path is measured with one allowed
+    private final AnswerMatcher typoMatcher = AnswerMatcher.of("Brasília", 1);
+    private CapitalGame game;
+
+    /**
+     * Starts a game in the lobby and waits until its first question is open.
+     *
+     * @throws IOException          If the temporary directory cannot be created.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    @Setup
+    public void startGame() throws IOException, InterruptedException {
+        System.setProperty("user.dir", Files.createTempDirectory("chat-bench").toString());
+        game = new CapitalGame(RoomRegistry.lobby());
+        game.startGame();
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MS;
+        // The status ends with the current question once one has been asked
+        while (game.getGameStatus().endsWith(": ")) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new IllegalStateException("The game did not ask a question in time.");
+            }
+            Thread.sleep(POLL_MS);
+        }
+    }
+
+    /**
+     * Stops the game.
+     */
+    @TearDown
+    public void stopGame() {
+        game.stopGame();
+    }
+
+    /**
+     * Checks a wrong answer against the open question.
+     *
+     * @return Whether it was correct, so the call is not optimized away.
+     */
+    @Benchmark
+    public boolean checkWrongAnswer() {
+        return game.checkAnswer("bench", "I think it is Rio de Janeiro");
+    }
+
+    /**
+     * Matches the right answer written without its accent.
+     *
+     * @return Whether it matched.
+     */
+    @Benchmark
+    public boolean matchCorrect() {
+        return matcher.matches("brasilia");
+    }
+
+    /**
+     * Matches the right answer with one typo.
+     *
+     * @return Whether it matched.
+     */
+    @Benchmark
+    public boolean matchTypo() {
+        return typoMatcher.matches("Brasilla");
+    }
+
+    /**
+     * Matches a wrong answer of the same length.
+     *
+     * @return Whether it matched.
+     */
+    @Benchmark
+    public boolean matchWrong() {
+        return matcher.matches("Salvador");
+    }
+}
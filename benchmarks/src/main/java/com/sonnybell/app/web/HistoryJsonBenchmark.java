@@ -0,0 +1,69 @@
+package com.sonnybell.app.web;
+
+import com.sonnybell.app.chatfunctions.ChatHistory;
+import com.sonnybell.app.chatfunctions.ChatMessage;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HistoryJsonBenchmark class measuring the response body of a web client
+ * polling for messages.
+ * It does what WebChat does for GET /api/webchat/messages: copy the room
+ * history, put it in a JSON array and encode the array as UTF-8.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistoryJsonBenchmark {
+
+    /**
+     * The number of messages in the history.
+     */
+    @Param({"100", "1000"})
+    public int messages;
+
+    private ChatHistory history;
+
+    /**
+     * Fills a history with chat lines, some of them needing JSON escapes.
+     */
+    @Setup
+    public void fill() {
+        history = new ChatHistory(messages);
+        for (int i = 0; i < messages; i++) {
+            String text = i % 10 == 0
+                    ? "user" + i + ": \"quoted\" and a tab\tin é Ünicode"
+                    : "user" + i + ": the quick brown fox jumps over the lazy dog";
+            history.add(ChatMessage.chat("user" + i, text));
+        }
+    }
+
+    /**
+     * Serializes the history the way WebChat answers a poll.
+     *
+     * @return The response body.
+     */
+    @Benchmark
+    public byte[] serializeHistory() {
+        JSONArray arr = new JSONArray();
+        for (String msg : history.snapshot()) {
+            arr.put(msg);
+        }
+        return arr.toString().getBytes(StandardCharsets.UTF_8);
+    }
+}